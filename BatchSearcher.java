@@ -1,20 +1,16 @@
 package es.udc.fi.irudc.c2425.ClinicalTrials; // Paquete de la clase
 
 // Importaciones de Lucene para búsqueda y análisis
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
-import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.index.StoredFields;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.FSDirectory;
 
 // Importaciones estándar de Java para archivos y colecciones
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Set;
 
 public class BatchSearcher {
 
@@ -33,35 +29,47 @@ public class BatchSearcher {
         FSDirectory dir = FSDirectory.open(Path.of(indexPath)); // Para leer el indice de los trials
         IndexReader reader = DirectoryReader.open(dir); // Lector del índice
         IndexSearcher searcher = new IndexSearcher(reader); // Buscador del índice
-        StandardAnalyzer analyzer = new StandardAnalyzer(); // Analizador para procesar consultas
+        ClinicalTrialAnalyzer analyzer = ClinicalTrialAnalyzer.forQuery(); // Analizador compartido para procesar consultas (con sinónimos)
+        MetricsRegistry metrics = MetricsRegistry.get(); // Métricas de consultas (-Dmetrics.*)
+        metrics.registerQueryCache(searcher);
 
         // Carga de los tópicos desde XML
         List<Topic> topics = TopicParser.parseTopics(topicsPath); // Se crea una isntancia a partir del TopicParser para posteriormente parsear los topics del XML
 
-        // Preparación del archivo de salida
-        BufferedWriter writer = new BufferedWriter(new FileWriter(outputRunFile));
+        // Preparación del archivo de salida (formato TREC, o binario con -Drun.binary=true)
+        Path runPath = TrecRun.outputPath(outputRunFile);
+        TrecRun.Writer writer = TrecRun.writer(runPath, "mi_metodo");
 
-        // Envuelve al FileWriter para mejorar el rendimiento.
-        // En lugar de escribir directamente en el disco con cada línea, guarda los datos en un buffer en memoria y los escribe por bloques.
-        // Esto reduce el acceso al disco y hace la escritura mucho más eficiente.
+        // El escritor formatea las líneas en un buffer propio y las escribe por bloques,
+        // sin crear un String por resultado. Esto reduce el acceso al disco y la memoria temporal.
+        Set<String> idField = Set.of("nct_id"); // Solo se lee el identificador de cada resultado
+
+        // Constructor de la consulta textual: BM25F sobre brief_title, detailed_description y criteria
+        CombinedFieldQueryBuilder queryBuilder = new CombinedFieldQueryBuilder(reader, analyzer);
         
         // Iteración por cada tópico
         for (Topic topic : topics) {
             String queryText = topic.getQuery(); // Obtención de la consulta textual
+            QueryTrace trace = QueryTrace.start("batch", topic.getNumber()); // Traza opcional (-Dtrace.output)
 
             try {
-                // Campos sobre los que se realizará la búsqueda (coinciden con los del indexador)
-                String[] fields = {"brief_title", "detailed_description", "criteria"};
-
-                // Parser para múltiples campos
-                QueryParser parser = new MultiFieldQueryParser(fields, analyzer);
-                Query query = parser.parse(QueryParser.escape(queryText));
-
-                // Por ejemplo algo entre () se puede tomar en el parseo como un agrupamiento, dando errores de parsing
+                // El texto se analiza una sola vez; cada término puntúa sobre los tres campos como uno solo
+                Query query;
+                try (QueryTrace.Span span = trace.span("parse")) {
+                    query = queryBuilder.build(queryText);
+                    span.attr("query", query.getClass().getSimpleName());
+                }
 
                 // Ejecución de la búsqueda y obtención de los 100 resultados más relevantes
-                TopDocs topDocs = searcher.search(query, 100);
+                TopDocs topDocs;
+                long searchStart = System.nanoTime();
+                try (QueryTrace.Span span = trace.span("bm25")) {
+                    topDocs = trace.search(searcher, query, 100);
+                    span.attr("hits", topDocs.scoreDocs.length);
+                }
                 ScoreDoc[] hits = topDocs.scoreDocs;
+                metrics.recordQuery("bm25", System.nanoTime() - searchStart, hits.length);
+                trace.attr("hits", hits.length);
 
                 // El método devuelve un objeto de tipo TopDocs, que contiene:
                     // Un array con los documentos recuperados (scoreDocs).
@@ -70,21 +78,25 @@ public class BatchSearcher {
                 // Cada ScoreDoc representa un documento individual recuperado, junto con su ID interno y su puntuación de relevancia
 
                 // Iteración sobre los resultados obtenidos
-                for (int rank = 0; rank < hits.length; rank++) {
-                    Document doc = searcher.doc(hits[rank].doc); // Obtención del documento
-
-                    String docId = doc.get("NCT_ID"); // ID del ensayo clínico
-                    float score = hits[rank].score; // Puntuación de relevancia
-
-                    // Escritura del resultado en formato TREC
-                    writer.write(String.format(java.util.Locale.US, "%d Q0 %s %d %.4f mi_metodo\n",
-                        topic.getNumber(), docId, rank + 1, score));
+                try (QueryTrace.Span span = trace.span("write")) {
+                    StoredFields storedFields = searcher.storedFields();
+                    for (int rank = 0; rank < hits.length; rank++) {
+                        String docId = storedFields.document(hits[rank].doc, idField).get("nct_id"); // ID del ensayo clínico
+                        float score = hits[rank].score; // Puntuación de relevancia
+
+                        // Escritura del resultado en formato TREC
+                        writer.add(topic.getNumber(), docId, rank + 1, score);
+                    }
+                    span.attr("rows", hits.length);
                 }
 
             } catch (Exception e) {
                 // En caso de error, se notifica qué tópico falló
+                metrics.recordQueryError("bm25");
                 System.err.println("Error parsing topic " + topic.getNumber());
                 e.printStackTrace();
+            } finally {
+                trace.finish();
             }
         }
 
@@ -94,6 +106,6 @@ public class BatchSearcher {
         dir.close();
 
         // Confirmación por consola
-        System.out.println(".run file created at: " + outputRunFile);
+        System.out.println(".run file created at: " + runPath);
     }
 }
@@ -0,0 +1,609 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.QueryTimeoutImpl;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.KnnFloatVectorQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Motor de ranking en cascada configurable de forma declarativa (JSON).
+ *
+ * Cada etapa recibe las mejores candidatas de la etapa anterior, limitadas por su presupuesto
+ * de candidatas, y dispone de un presupuesto de tiempo. Si una etapa agota su presupuesto, la
+ * cascada se detiene y devuelve el mejor ranking obtenido hasta ese momento.
+ *
+ * Tipos de etapa soportados:
+ * - "bm25": BM25 filtrado por edad y género sobre brief_title, detailed_description y criteria.
+ * - "hybrid": BM25 filtrado fusionado con una búsqueda KNN filtrada sobre brief_title_vector.
+ * - "vector": rescoring barato por producto punto con los vectores del índice.
+ * - "features": reranker lineal sobre características de cada candidata.
+ * - "ltr": modelo de learning-to-rank (lineal o de árboles, {@link LtrModel}) cargado de "model"
+ *   sobre las características de {@link LtrFeatureExtractor}.
+ */
+public class CascadeRanker {
+
+    private final IndexReader reader;
+    private final CombinedFieldQueryBuilder queryBuilder;
+    private final LtrFeatureExtractor featureExtractor;
+    private final CascadeConfig config;
+    private final List<Stage> stages = new ArrayList<>();
+
+    public CascadeRanker(IndexReader reader, Analyzer analyzer, CascadeConfig config) throws IOException {
+        this.reader = reader;
+        this.queryBuilder = new CombinedFieldQueryBuilder(reader, analyzer);
+        this.featureExtractor = new LtrFeatureExtractor(reader, queryBuilder);
+        this.config = config;
+        if (config.stages == null || config.stages.isEmpty()) {
+            throw new IllegalArgumentException("La cascada debe tener al menos una etapa");
+        }
+        for (int i = 0; i < config.stages.size(); i++) {
+            StageConfig sc = config.stages.get(i);
+            Stage stage = createStage(sc);
+            if (i == 0 && !(stage instanceof CandidateStage)) {
+                throw new IllegalArgumentException("La primera etapa debe ser 'bm25' o 'hybrid', no '" + sc.type + "'");
+            }
+            if (i > 0 && stage instanceof CandidateStage) {
+                throw new IllegalArgumentException("La etapa '" + sc.type + "' solo puede ser la primera");
+            }
+            stages.add(stage);
+        }
+    }
+
+    /**
+     * Carga la definición de la cascada desde un archivo JSON.
+     */
+    public static CascadeConfig loadConfig(String path) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        return mapper.readValue(new File(path), CascadeConfig.class);
+    }
+
+    private Stage createStage(StageConfig sc) throws IOException {
+        switch (sc.type) {
+            case "bm25": return new CandidateStage(sc, false);
+            case "hybrid": return new CandidateStage(sc, true);
+            case "vector": return new VectorStage(sc);
+            case "features": return new FeatureStage(sc);
+            case "ltr": return new LtrStage(sc);
+            default: throw new IllegalArgumentException("Tipo de etapa desconocido: " + sc.type);
+        }
+    }
+
+    public CascadeConfig getConfig() {
+        return config;
+    }
+
+    public LtrFeatureExtractor getFeatureExtractor() {
+        return featureExtractor;
+    }
+
+    /**
+     * Ejecuta la cascada completa para una petición.
+     * Es seguro llamarlo desde varios hilos a la vez sobre el mismo lector.
+     */
+    public Result rank(Request request) throws IOException {
+        long start = System.nanoTime();
+        long globalDeadline = config.totalBudgetMs > 0 ? start + config.totalBudgetMs * 1_000_000L : Long.MAX_VALUE;
+
+        Result result = new Result();
+        List<Candidate> ranking = Collections.emptyList();
+
+        for (Stage stage : stages) {
+            StageConfig sc = stage.config();
+            StageReport report = new StageReport(sc.type);
+            result.reports.add(report);
+
+            long stageStart = System.nanoTime();
+            if (stageStart >= globalDeadline) {
+                report.skipped = true;
+                break;
+            }
+
+            List<Candidate> input = truncate(ranking, sc.candidates);
+            report.input = input.size();
+            long deadline = sc.timeBudgetMs > 0
+                    ? Math.min(stageStart + sc.timeBudgetMs * 1_000_000L, globalDeadline)
+                    : globalDeadline;
+
+            try (QueryTrace.Span span = QueryTrace.current().span("stage:" + sc.type).attr("input", input.size())) {
+                List<Candidate> output = stage.apply(request, input, deadline, report);
+                if (output != null) {
+                    ranking = output;
+                } else {
+                    report.skipped = true;
+                }
+                span.attr("output", ranking.size());
+            } catch (BudgetExceededException e) {
+                // Se conserva el ranking de la etapa anterior y se detiene la cascada
+                report.budgetExceeded = true;
+                report.elapsedMs = (System.nanoTime() - stageStart) / 1_000_000.0;
+                break;
+            }
+            report.output = ranking.size();
+            report.elapsedMs = (System.nanoTime() - stageStart) / 1_000_000.0;
+        }
+
+        result.ranking = truncate(ranking, config.topK);
+        result.elapsedMs = (System.nanoTime() - start) / 1_000_000.0;
+        MetricsRegistry.get().recordQuery("cascade", System.nanoTime() - start, result.ranking.size());
+        return result;
+    }
+
+    private static List<Candidate> truncate(List<Candidate> ranking, int limit) {
+        if (limit <= 0 || ranking.size() <= limit) return ranking;
+        return new ArrayList<>(ranking.subList(0, limit));
+    }
+
+    private static void sortByScore(List<Candidate> candidates) {
+        candidates.sort((a, b) -> Float.compare(b.score, a.score));
+    }
+
+    private static void checkDeadline(long deadline) throws BudgetExceededException {
+        if (System.nanoTime() > deadline) throw new BudgetExceededException();
+    }
+
+    /**
+     * Construye los filtros de edad y género de la petición.
+     */
+    static Query buildFilter(int age, String gender) {
+        BooleanQuery.Builder filter = new BooleanQuery.Builder();
+        boolean empty = true;
+
+        if (age != -1) {
+            filter.add(IntPoint.newRangeQuery("minimum_age", Integer.MIN_VALUE, age), BooleanClause.Occur.FILTER);
+            filter.add(IntPoint.newRangeQuery("maximum_age", age, Integer.MAX_VALUE), BooleanClause.Occur.FILTER);
+            empty = false;
+        }
+
+        // Filtro por género: aceptamos coincidencia exacta o "all"
+        if (gender != null && !gender.equals("unknown") && !gender.equals("all")) {
+            BooleanQuery.Builder genderQ = new BooleanQuery.Builder();
+            genderQ.add(new TermQuery(new Term("gender", gender)), BooleanClause.Occur.SHOULD);
+            genderQ.add(new TermQuery(new Term("gender", "all")), BooleanClause.Occur.SHOULD);
+            filter.add(genderQ.build(), BooleanClause.Occur.FILTER);
+            empty = false;
+        }
+        return empty ? null : filter.build();
+    }
+
+    private static float[] lexicalRange(List<Candidate> candidates) {
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (Candidate c : candidates) {
+            float v = c.lexicalScore;
+            if (Float.isNaN(v)) continue;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        return new float[] {min, max};
+    }
+
+    private static float normalize(float value, float[] range) {
+        if (Float.isNaN(value) || range[1] <= range[0]) return Float.isNaN(value) ? 0f : 1f;
+        return (value - range[0]) / (range[1] - range[0]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Etapas
+    // ---------------------------------------------------------------------------------------------
+
+    private interface Stage {
+        StageConfig config();
+
+        /**
+         * Devuelve el nuevo ranking, o null si la etapa no aplica a la petición.
+         */
+        List<Candidate> apply(Request request, List<Candidate> input, long deadline, StageReport report)
+                throws IOException, BudgetExceededException;
+    }
+
+    /**
+     * Etapa 1: conjunto de candidatas BM25 filtrado, opcionalmente fusionado con KNN.
+     */
+    private class CandidateStage implements Stage {
+        private final StageConfig sc;
+        private final boolean hybrid;
+
+        CandidateStage(StageConfig sc, boolean hybrid) {
+            this.sc = sc;
+            this.hybrid = hybrid;
+        }
+
+        @Override
+        public StageConfig config() {
+            return sc;
+        }
+
+        @Override
+        public List<Candidate> apply(Request request, List<Candidate> input, long deadline, StageReport report)
+                throws IOException {
+            int budget = sc.candidates > 0 ? sc.candidates : 1000;
+            Query filter = buildFilter(request.age, request.gender);
+
+            Query textQuery = queryBuilder.build(request.queryText);
+
+            BooleanQuery.Builder lexical = new BooleanQuery.Builder();
+            lexical.add(textQuery, BooleanClause.Occur.MUST);
+            if (filter != null) lexical.add(filter, BooleanClause.Occur.FILTER);
+
+            // Buscador propio por petición para poder fijar el timeout sin afectar a otros hilos
+            IndexSearcher searcher = new IndexSearcher(reader);
+            long remainingMs = Math.max(1, (deadline - System.nanoTime()) / 1_000_000L);
+            if (deadline != Long.MAX_VALUE) {
+                searcher.setTimeout(new QueryTimeoutImpl(remainingMs));
+            }
+
+            TopDocs lexicalDocs = searcher.search(lexical.build(), budget);
+            report.partial = searcher.timedOut();
+
+            Map<Integer, Candidate> byDoc = new LinkedHashMap<>();
+            for (ScoreDoc sd : lexicalDocs.scoreDocs) {
+                Candidate c = new Candidate(sd.doc);
+                c.lexicalScore = sd.score;
+                byDoc.put(sd.doc, c);
+            }
+
+            List<Candidate> candidates;
+            if (hybrid && request.embedding != null && !report.partial) {
+                int k = (int) sc.param("knnK", budget);
+                TopDocs knnDocs = searcher.search(new KnnFloatVectorQuery(VectorRescorer.VECTOR_FIELD, request.embedding, k, filter), k);
+                // La puntuación KNN usa la similitud del campo (euclídea, 1 / (1 + d²)): solo sirve para la
+                // fusión. En vectorScore se guarda el producto escalar, la misma escala que en VectorStage
+                Map<Integer, Float> knnScores = new HashMap<>();
+                float[] vecRange = {Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+                int[] knnIds = new int[knnDocs.scoreDocs.length];
+                for (int i = 0; i < knnIds.length; i++) {
+                    ScoreDoc sd = knnDocs.scoreDocs[i];
+                    byDoc.computeIfAbsent(sd.doc, Candidate::new);
+                    knnScores.put(sd.doc, sd.score);
+                    vecRange[0] = Math.min(vecRange[0], sd.score);
+                    vecRange[1] = Math.max(vecRange[1], sd.score);
+                    knnIds[i] = sd.doc;
+                }
+                float[] sims = VectorRescorer.dotProducts(reader, knnIds, knnIds.length, request.embedding);
+                for (int i = 0; i < knnIds.length; i++) {
+                    if (!Float.isNaN(sims[i])) byDoc.get(knnIds[i]).vectorScore = sims[i];
+                }
+                candidates = new ArrayList<>(byDoc.values());
+
+                float w = (float) sc.param("vectorWeight", 0.5);
+                float[] lexRange = lexicalRange(candidates);
+                for (Candidate c : candidates) {
+                    c.score = (1 - w) * normalize(c.lexicalScore, lexRange) + w * normalize(knnScores.getOrDefault(c.docId, Float.NaN), vecRange);
+                }
+                sortByScore(candidates);
+                candidates = truncate(candidates, budget);
+            } else {
+                candidates = new ArrayList<>(byDoc.values());
+                for (Candidate c : candidates) c.score = c.lexicalScore;
+            }
+            return candidates;
+        }
+    }
+
+    /**
+     * Etapa 2: rescoring vectorial barato con los vectores del índice.
+     */
+    private class VectorStage implements Stage {
+        private static final int CHUNK = 256;
+        private final StageConfig sc;
+
+        VectorStage(StageConfig sc) {
+            this.sc = sc;
+        }
+
+        @Override
+        public StageConfig config() {
+            return sc;
+        }
+
+        @Override
+        public List<Candidate> apply(Request request, List<Candidate> input, long deadline, StageReport report)
+                throws IOException, BudgetExceededException {
+            if (request.embedding == null) return null;
+
+            int[] docIds = new int[input.size()];
+            for (int i = 0; i < docIds.length; i++) docIds[i] = input.get(i).docId;
+
+            // Se procesa por bloques para comprobar el presupuesto de tiempo entre bloques
+            for (int from = 0; from < docIds.length; from += CHUNK) {
+                checkDeadline(deadline);
+                int to = Math.min(docIds.length, from + CHUNK);
+                float[] sims = VectorRescorer.dotProducts(reader, Arrays.copyOfRange(docIds, from, to), to - from, request.embedding);
+                for (int i = from; i < to; i++) {
+                    float sim = sims[i - from];
+                    if (!Float.isNaN(sim)) input.get(i).vectorScore = sim;
+                }
+            }
+
+            float w = (float) sc.param("weight", 1.0);
+            float[] lexRange = lexicalRange(input);
+            List<Candidate> output = new ArrayList<>(input.size());
+            for (Candidate c : input) {
+                float vector = Float.isNaN(c.vectorScore) ? 0f : c.vectorScore;
+                c.score = (1 - w) * normalize(c.lexicalScore, lexRange) + w * vector;
+                output.add(c);
+            }
+            sortByScore(output);
+            return output;
+        }
+    }
+
+    /**
+     * Etapa 3: reranker lineal sobre características de cada candidata.
+     * Pesos configurables: lexical, vector, ageTightness, genderMatch, rank.
+     */
+    private class FeatureStage implements Stage {
+        private final StageConfig sc;
+
+        FeatureStage(StageConfig sc) {
+            this.sc = sc;
+        }
+
+        @Override
+        public StageConfig config() {
+            return sc;
+        }
+
+        @Override
+        public List<Candidate> apply(Request request, List<Candidate> input, long deadline, StageReport report)
+                throws IOException, BudgetExceededException {
+            double wLexical = sc.param("lexical", 0.3);
+            double wVector = sc.param("vector", 1.0);
+            double wAge = sc.param("ageTightness", 0.1);
+            double wGender = sc.param("genderMatch", 0.05);
+            double wRank = sc.param("rank", 0.0);
+
+            checkDeadline(deadline);
+            // Edad y género salen de los doc values, no de los campos almacenados
+            float[] features = featureExtractor.extract(request, input);
+            checkDeadline(deadline);
+
+            float[] lexRange = lexicalRange(input);
+            float[] scores = new float[input.size()];
+            for (int i = 0; i < input.size(); i++) {
+                Candidate c = input.get(i);
+                int row = i * LtrFeatureExtractor.NUM_FEATURES;
+                double vector = Float.isNaN(c.vectorScore) ? 0 : c.vectorScore;
+                scores[i] = (float) (wLexical * normalize(c.lexicalScore, lexRange)
+                        + wVector * vector
+                        + wAge * features[row + LtrFeatureExtractor.AGE_TIGHTNESS]
+                        + wGender * features[row + LtrFeatureExtractor.GENDER_MATCH]
+                        + wRank / (i + 1));
+            }
+
+            // Las puntuaciones se asignan al final para no alterar el ranking anterior si se agota el presupuesto
+            List<Candidate> output = new ArrayList<>(input);
+            for (int i = 0; i < scores.length; i++) {
+                output.get(i).score = scores[i];
+            }
+            sortByScore(output);
+            return output;
+        }
+    }
+
+    /**
+     * Etapa de learning-to-rank: características de {@link LtrFeatureExtractor} puntuadas con el
+     * modelo de la etapa. El modelo se carga una sola vez al construir la cascada.
+     */
+    private class LtrStage implements Stage {
+        private final StageConfig sc;
+        private final LtrModel model;
+
+        LtrStage(StageConfig sc) throws IOException {
+            if (sc.model == null) {
+                throw new IllegalArgumentException("La etapa 'ltr' necesita la ruta del modelo en \"model\"");
+            }
+            this.sc = sc;
+            this.model = LtrModel.load(sc.model);
+        }
+
+        @Override
+        public StageConfig config() {
+            return sc;
+        }
+
+        @Override
+        public List<Candidate> apply(Request request, List<Candidate> input, long deadline, StageReport report)
+                throws IOException, BudgetExceededException {
+            checkDeadline(deadline);
+            float[] features = featureExtractor.extract(request, input);
+            checkDeadline(deadline);
+            float[] scores = model.scoreAll(features, input.size());
+
+            List<Candidate> output = new ArrayList<>(input);
+            for (int i = 0; i < scores.length; i++) {
+                output.get(i).score = scores[i];
+            }
+            sortByScore(output);
+            return output;
+        }
+    }
+
+    private static class BudgetExceededException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        BudgetExceededException() {
+            super(null, null, false, false);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Configuración declarativa, peticiones y resultados
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Definición de la cascada tal y como se lee del JSON.
+     */
+    public static class CascadeConfig {
+        public int topK = 10;
+        public long totalBudgetMs = 0; // 0 = sin límite global
+        public List<StageConfig> stages = new ArrayList<>();
+    }
+
+    /**
+     * Definición de una etapa: tipo, presupuesto de candidatas, presupuesto de tiempo y parámetros.
+     */
+    public static class StageConfig {
+        public String type;
+        public int candidates = 0;     // 0 = todas las candidatas de la etapa anterior
+        public long timeBudgetMs = 0;  // 0 = sin límite propio
+        public Map<String, Double> params = new HashMap<>();
+        public String model;           // solo "ltr": ruta del modelo JSON
+
+        double param(String name, double defaultValue) {
+            if (params == null) return defaultValue;
+            Double v = params.get(name);
+            return v != null ? v : defaultValue;
+        }
+    }
+
+    /**
+     * Petición de ranking: texto del paciente, filtros demográficos y embedding opcional.
+     */
+    public static class Request {
+        public final int topicId;
+        public final String queryText;
+        public final int age;
+        public final String gender;
+        public final float[] embedding;
+
+        public Request(int topicId, String queryText, int age, String gender, float[] embedding) {
+            this.topicId = topicId;
+            this.queryText = queryText;
+            this.age = age;
+            this.gender = gender != null ? gender.toLowerCase() : null;
+            this.embedding = embedding;
+        }
+    }
+
+    /**
+     * Documento candidato con las puntuaciones acumuladas por las etapas.
+     */
+    public static class Candidate {
+        public final int docId;
+        public float lexicalScore = Float.NaN;
+        public float vectorScore = Float.NaN; // producto escalar con la consulta, nunca la puntuación KNN
+        public float score;
+
+        Candidate(int docId) {
+            this.docId = docId;
+        }
+    }
+
+    /**
+     * Resumen de la ejecución de una etapa.
+     */
+    public static class StageReport {
+        public final String type;
+        public int input;
+        public int output;
+        public double elapsedMs;
+        public boolean partial;
+        public boolean budgetExceeded;
+        public boolean skipped;
+
+        StageReport(String type) {
+            this.type = type;
+        }
+
+        @Override
+        public String toString() {
+            String status = skipped ? "omitida" : budgetExceeded ? "presupuesto agotado" : partial ? "parcial" : "ok";
+            return String.format(java.util.Locale.US, "%s: %d -> %d en %.2f ms (%s)", type, input, output, elapsedMs, status);
+        }
+    }
+
+    /**
+     * Ranking final y resumen por etapa.
+     */
+    public static class Result {
+        public List<Candidate> ranking = Collections.emptyList();
+        public final List<StageReport> reports = new ArrayList<>();
+        public double elapsedMs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String configPath = args.length > 0 ? args[0] : "src/main/resources/cascade.json";
+        String indexPath = "src/main/resources/index";
+        String topicsPath = "src/main/resources/topics_queries_and_narratives.xml";
+        String embeddingsPath = "src/main/resources/query_embeddings.json";
+        String outputPath = "src/main/resources/results_cascade.txt";
+
+        CascadeConfig config = loadConfig(configPath);
+        Map<String, float[]> embeddings = QueryEmbeddings.load(embeddingsPath);
+
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)));
+             TrecRun.Writer writer = TrecRun.writer(TrecRun.outputPath(outputPath), "cascade")) {
+
+            CascadeRanker ranker = new CascadeRanker(reader, ClinicalTrialAnalyzer.forQuery(), config);
+            StoredFields storedFields = reader.storedFields();
+            Set<String> idField = Set.of("nct_id");
+
+            List<Topic2> topics = TopicParser2.parseTopics(topicsPath);
+            for (Topic2 topic : topics) {
+                int topicNumber = topic.getNumber();
+                String queryText = topic.getQuery();
+                if (queryText == null || queryText.isEmpty()) {
+                    System.out.println("Saltando tópico " + topicNumber + " por datos insuficientes.");
+                    continue;
+                }
+
+                Request request = new Request(topicNumber, queryText, topic.getAge(), topic.getGender(),
+                        embeddings.get(String.valueOf(topicNumber)));
+                // Traza opcional (-Dtrace.output): las etapas de la cascada añaden sus spans a la traza del hilo
+                QueryTrace trace = QueryTrace.start("cascade", topicNumber);
+                try {
+                    Result result = ranker.rank(request);
+
+                    System.out.printf(java.util.Locale.US, "Tópico %d | %.2f ms%n", topicNumber, result.elapsedMs);
+                    for (StageReport report : result.reports) {
+                        System.out.println("  " + report);
+                    }
+
+                    try (QueryTrace.Span span = trace.span("write")) {
+                        int rank = 1;
+                        for (Candidate c : result.ranking) {
+                            String nctId = storedFields.document(c.docId, idField).get("nct_id");
+                            writer.add(topicNumber, nctId, rank, c.score);
+                            rank++;
+                        }
+                        span.attr("rows", result.ranking.size());
+                    }
+                    trace.attr("ranking", result.ranking.size());
+                } finally {
+                    trace.finish();
+                }
+            }
+        }
+
+        System.out.println("Cascada completada. Resultados en: " + TrecRun.outputPath(outputPath));
+    }
+}
@@ -0,0 +1,234 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.en.EnglishPossessiveFilter;
+import org.apache.lucene.analysis.miscellaneous.ASCIIFoldingFilter;
+import org.apache.lucene.analysis.pattern.PatternReplaceCharFilter;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.synonym.SolrSynonymParser;
+import org.apache.lucene.analysis.synonym.SynonymGraphFilter;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.fst.ByteSequenceOutputs;
+import org.apache.lucene.util.fst.FST;
+
+/**
+ * Analizador común del índice y de las consultas.
+ *
+ * Cadena: códigos con guion unidos (covid-19 → covid19, il-6 → il6, her-2 → her2) →
+ * StandardTokenizer → posesivos ingleses → minúsculas → plegado ASCII (sjögren → sjogren) y, solo
+ * en consulta, expansión de sinónimos (MI ↔ myocardial infarction, T2DM ↔ type 2 diabetes...).
+ *
+ * Los sinónimos se aplican en consulta para no tener que reindexar al cambiar el diccionario. El
+ * diccionario (formato Solr, -Danalyzer.synonyms, por defecto clinical_synonyms.txt) se compila a
+ * un FST una sola vez y se guarda junto a él (.fst); mientras el SHA-256 del diccionario no cambie,
+ * se carga el FST en lugar de volver a procesar el texto.
+ *
+ * Las instancias compartidas ({@link #forIndexing()} y {@link #forQuery()}) son thread-safe: el
+ * Analyzer reutiliza una cadena de filtros por hilo y el SynonymMap es inmutable. El indexador ya
+ * no pasa el texto a minúsculas: lo hace el analizador, y los offsets apuntan al texto original.
+ */
+public final class ClinicalTrialAnalyzer extends Analyzer {
+
+    public static final String DEFAULT_SYNONYMS = "src/main/resources/clinical_synonyms.txt";
+
+    // Versión de la cadena de análisis y del formato del FST en disco: invalida la caché al cambiar
+    private static final int CACHE_VERSION = 1;
+    private static final int CACHE_MAGIC = 0x53594E46; // "SYNF"
+
+    private static final Pattern HYPHENATED_CODE = Pattern.compile("(?i)\\b([a-z]{1,10})-(\\d{1,4})\\b");
+
+    private static volatile ClinicalTrialAnalyzer indexAnalyzer;
+    private static volatile ClinicalTrialAnalyzer queryAnalyzer;
+
+    private final SynonymMap synonyms;
+
+    /**
+     * @param synonyms sinónimos a expandir, o null para no expandir
+     */
+    public ClinicalTrialAnalyzer(SynonymMap synonyms) {
+        this.synonyms = synonyms;
+    }
+
+    /**
+     * Analizador del índice (sin sinónimos).
+     */
+    public static ClinicalTrialAnalyzer forIndexing() {
+        ClinicalTrialAnalyzer analyzer = indexAnalyzer;
+        if (analyzer == null) {
+            synchronized (ClinicalTrialAnalyzer.class) {
+                if (indexAnalyzer == null) indexAnalyzer = new ClinicalTrialAnalyzer(null);
+                analyzer = indexAnalyzer;
+            }
+        }
+        return analyzer;
+    }
+
+    /**
+     * Analizador de consultas con el diccionario de sinónimos; si el diccionario no existe o no se
+     * puede leer, se usa el analizador del índice.
+     */
+    public static ClinicalTrialAnalyzer forQuery() {
+        ClinicalTrialAnalyzer analyzer = queryAnalyzer;
+        if (analyzer == null) {
+            synchronized (ClinicalTrialAnalyzer.class) {
+                if (queryAnalyzer == null) {
+                    Path source = Path.of(System.getProperty("analyzer.synonyms", DEFAULT_SYNONYMS));
+                    SynonymMap map = null;
+                    if (Files.exists(source)) {
+                        try {
+                            map = loadSynonyms(source, cachePath(source));
+                        } catch (IOException e) {
+                            System.err.println("No se pudieron cargar los sinónimos de " + source + ": " + e.getMessage());
+                        }
+                    }
+                    queryAnalyzer = map != null ? new ClinicalTrialAnalyzer(map) : forIndexing();
+                }
+                analyzer = queryAnalyzer;
+            }
+        }
+        return analyzer;
+    }
+
+    @Override
+    protected Reader initReader(String fieldName, Reader reader) {
+        return new PatternReplaceCharFilter(HYPHENATED_CODE, "$1$2", reader);
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(String fieldName) {
+        StandardTokenizer source = new StandardTokenizer();
+        TokenStream stream = new EnglishPossessiveFilter(source);
+        stream = new LowerCaseFilter(stream);
+        stream = new ASCIIFoldingFilter(stream);
+        if (synonyms != null) {
+            stream = new SynonymGraphFilter(stream, synonyms, true);
+        }
+        return new TokenStreamComponents(source, stream);
+    }
+
+    @Override
+    protected TokenStream normalize(String fieldName, TokenStream in) {
+        return new ASCIIFoldingFilter(new LowerCaseFilter(in));
+    }
+
+    static Path cachePath(Path source) {
+        return source.resolveSibling(source.getFileName() + ".fst");
+    }
+
+    /**
+     * Carga el diccionario desde la caché si corresponde al mismo texto; si no, lo compila y
+     * reescribe la caché.
+     *
+     * @return sinónimos, o null si el diccionario está vacío
+     */
+    static SynonymMap loadSynonyms(Path source, Path cache) throws IOException {
+        byte[] text = Files.readAllBytes(source);
+        String checksum = sha256(text);
+
+        if (Files.exists(cache)) {
+            try {
+                SynonymMap cached = readCache(cache, checksum);
+                if (cached != null) return cached;
+            } catch (IOException e) {
+                System.err.println("Caché de sinónimos inválida (" + e.getMessage() + "), se recompila");
+            }
+        }
+
+        long start = System.nanoTime();
+        SynonymMap map = compile(new String(text, StandardCharsets.UTF_8));
+        if (map.fst == null) return null; // diccionario vacío
+        writeCache(cache, checksum, map);
+        System.out.printf(Locale.US, "Sinónimos compilados: %d palabras en %.1f ms (%s)%n", map.words.size(),
+                (System.nanoTime() - start) / 1e6, cache);
+        return map;
+    }
+
+    /**
+     * Compila un diccionario en formato Solr. Las entradas se analizan con la misma cadena que el
+     * texto (sin sinónimos), así que "COVID-19" y "covid19" son la misma entrada.
+     */
+    static SynonymMap compile(String solrSynonyms) throws IOException {
+        SolrSynonymParser parser = new SolrSynonymParser(true, true, new ClinicalTrialAnalyzer(null));
+        try {
+            parser.parse(new StringReader(solrSynonyms));
+        } catch (java.text.ParseException e) {
+            throw new IOException("Diccionario de sinónimos no válido: " + e.getMessage(), e);
+        }
+        return parser.build();
+    }
+
+    private static SynonymMap readCache(Path cache, String checksum) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(cache), 1 << 16)) {
+            DataInput data = new InputStreamDataInput(in);
+            if (data.readInt() != CACHE_MAGIC || data.readInt() != CACHE_VERSION || !checksum.equals(data.readString())) {
+                return null;
+            }
+            int maxHorizontalContext = data.readVInt();
+            int wordCount = data.readVInt();
+            BytesRefHash words = new BytesRefHash();
+            for (int i = 0; i < wordCount; i++) {
+                byte[] bytes = new byte[data.readVInt()];
+                data.readBytes(bytes, 0, bytes.length);
+                words.add(new BytesRef(bytes)); // los ids se asignan en el mismo orden en que se escribieron
+            }
+            FST<BytesRef> fst = new FST<>(FST.readMetadata(data, ByteSequenceOutputs.getSingleton()), data);
+            return new SynonymMap(fst, words, maxHorizontalContext);
+        }
+    }
+
+    private static void writeCache(Path cache, String checksum, SynonymMap map) throws IOException {
+        Path tmp = cache.resolveSibling(cache.getFileName() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16)) {
+            DataOutput data = new OutputStreamDataOutput(out);
+            data.writeInt(CACHE_MAGIC);
+            data.writeInt(CACHE_VERSION);
+            data.writeString(checksum);
+            data.writeVInt(map.maxHorizontalContext);
+            data.writeVInt(map.words.size());
+            BytesRef word = new BytesRef();
+            for (int i = 0; i < map.words.size(); i++) {
+                map.words.get(i, word);
+                data.writeVInt(word.length);
+                data.writeBytes(word.bytes, word.offset, word.length);
+            }
+            map.fst.save(data, data);
+        }
+        Files.move(tmp, cache, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -2,21 +2,20 @@
 package es.udc.fi.irudc.c2425.ClinicalTrials;
 
 // Importaciones necesarias para manejo de archivos, rutas, colecciones, etc.
-import java.io.BufferedWriter;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.StoredFields;
 import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.KnnVectorQuery;
+import org.apache.lucene.search.KnnFloatVectorQuery;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.FSDirectory;
@@ -29,6 +28,8 @@ public class ClinicalTrialEmbeddingSearcher {
     // Mapa que almacena los embeddings de todas las queries (tópicos) usando su ID como clave
     private static Map<String, float[]> embeddingsMap = new HashMap<>();
 
+    private static final Set<String> ID_FIELD = Set.of("nct_id");
+
     public static void main(String[] args) throws Exception {
         // Ruta donde se encuentra el índice generado previamente con Lucene
         String indexPath = "src/main/resources/index";
@@ -45,6 +46,7 @@ public class ClinicalTrialEmbeddingSearcher {
         // Abrimos el índice con un IndexReader y lo usamos para inicializar un IndexSearcher
         IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)));
         IndexSearcher searcher = new IndexSearcher(reader);                         
+        MetricsRegistry metrics = MetricsRegistry.get(); // Métricas de consultas (-Dmetrics.*)
 
         // Cargamos todos los embeddings de las queries a memoria desde el JSON
         loadAllQueryEmbeddings(embeddingsFile);
@@ -52,8 +54,8 @@ public class ClinicalTrialEmbeddingSearcher {
         // Parseamos los tópicos desde el XML usando una clase auxiliar
         List<Topic2> topics = TopicParser2.parseTopics(topicsPath);
 
-        // Preparamos el BufferedWriter para escribir los resultados de búsqueda
-        BufferedWriter writer = new BufferedWriter(new FileWriter(outputPath));
+        // Preparamos el escritor de runs (TREC, o binario con -Drun.binary=true) para los resultados
+        TrecRun.Writer writer = TrecRun.writer(TrecRun.outputPath(outputPath), "metodo1");
 
         // Iteramos sobre todos los tópicos (casos clínicos)
         for (Topic2 topic : topics) {
@@ -72,14 +74,31 @@ public class ClinicalTrialEmbeddingSearcher {
             // Mensaje de control para seguimiento de ejecución
             System.out.println("Tópico " + topicNumber + " | Ejecutando búsqueda vectorial...");
 
-            // Creamos una consulta vectorial (KNN) sobre el campo "brief_title_vector"
-            KnnVectorQuery vectorQuery = new KnnVectorQuery("brief_title_vector", queryEmbedding, 100);
+            // Traza opcional de las etapas del tópico (-Dtrace.output)
+            QueryTrace trace = QueryTrace.start("embedding", topicNumber);
+
+            try {
+                // Creamos una consulta vectorial (KNN) sobre el campo "brief_title_vector"
+                KnnFloatVectorQuery vectorQuery = new KnnFloatVectorQuery("brief_title_vector", queryEmbedding, 100);
 
-            // Ejecutamos la búsqueda y recuperamos los 100 documentos más similares
-            TopDocs topDocs = searcher.search(vectorQuery, 100);
+                // Ejecutamos la búsqueda y recuperamos los 100 documentos más similares
+                // La búsqueda HNSW se hace al reescribir la consulta, así que el span incluye todo su coste
+                TopDocs topDocs;
+                long searchStart = System.nanoTime();
+                try (QueryTrace.Span span = trace.span("knn")) {
+                    topDocs = searcher.search(vectorQuery, 100);
+                    span.attr("hits", topDocs.scoreDocs.length);
+                }
+                metrics.recordQuery("knn", System.nanoTime() - searchStart, topDocs.scoreDocs.length);
 
-            // Escribimos los resultados en el archivo de salida en formato TREC
-            writeResultsTREC(writer, searcher, topDocs, topicNumber);
+                // Escribimos los resultados en el archivo de salida en formato TREC
+                try (QueryTrace.Span span = trace.span("write")) {
+                    writeResultsTREC(writer, searcher, topDocs, topicNumber);
+                    span.attr("rows", topDocs.scoreDocs.length);
+                }
+            } finally {
+                trace.finish();
+            }
         }
 
         // Cerramos el escritor y el lector del índice
@@ -135,23 +154,21 @@ public class ClinicalTrialEmbeddingSearcher {
      * Escribe los resultados de búsqueda en formato TREC.
      * Cada línea sigue el formato: <topic_id> Q0 <nct_id> <rank> <score> <run_name>
      */
-    private static void writeResultsTREC(BufferedWriter writer, IndexSearcher searcher,
+    private static void writeResultsTREC(TrecRun.Writer writer, IndexSearcher searcher,
                                         TopDocs topDocs, int topicNumber) throws IOException {
         int rank = 1;
+        StoredFields storedFields = searcher.storedFields();
 
         // Iteramos sobre los documentos devueltos
         for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
-            // Obtenemos el documento Lucene a partir del ID
-            Document doc = searcher.doc(scoreDoc.doc);
-
-            // Recuperamos el identificador del ensayo clínico
-            String nctId = doc.get("nct_id");
+            // Recuperamos solo el identificador del ensayo clínico, sin cargar el resto de campos almacenados
+            String nctId = storedFields.document(scoreDoc.doc, ID_FIELD).get("nct_id");
 
             // Obtenemos la puntuación asignada por la búsqueda vectorial
             float score = scoreDoc.score;
 
             // Escribimos el resultado en el archivo
-            writer.write(String.format("%d Q0 %s %d %.4f metodo1\n", topicNumber, nctId, rank, score));
+            writer.add(topicNumber, nctId, rank, score);
             rank++;
         }
     }
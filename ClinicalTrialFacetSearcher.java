@@ -0,0 +1,265 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.apache.lucene.facet.DrillDownQuery;
+import org.apache.lucene.facet.FacetResult;
+import org.apache.lucene.facet.Facets;
+import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.facet.FacetsCollector.MatchingDocs;
+import org.apache.lucene.facet.FacetsConfig;
+import org.apache.lucene.facet.LabelAndValue;
+import org.apache.lucene.facet.sortedset.DefaultSortedSetDocValuesReaderState;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesFacetCounts;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BitDocIdSet;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Búsqueda facetada sobre fase, estado, tipo de estudio, condiciones e intervenciones.
+ *
+ * Los recuentos se calculan sobre los SortedSetDocValues que añade el indexador, en la misma
+ * pasada de recolección que obtiene los top-k documentos. Los documentos coincidentes (y sus
+ * puntuaciones) quedan en memoria, de modo que los filtros de drill-down se aplican sobre ellos
+ * sin volver a ejecutar la consulta textual.
+ */
+public class ClinicalTrialFacetSearcher {
+
+    /** Dimensiones de facetas indexadas por {@link ClinicalTrialIndexer}. */
+    public static final String[] DIMENSIONS = {"phase", "overall_status", "study_type", "condition", "intervention"};
+
+    private final IndexSearcher searcher;
+    private final FacetsConfig config;
+    private final SortedSetDocValuesReaderState state;
+
+    /**
+     * Configuración de facetas compartida entre el indexador y el buscador.
+     */
+    public static FacetsConfig buildFacetsConfig() {
+        FacetsConfig config = new FacetsConfig();
+        config.setMultiValued("condition", true);
+        config.setMultiValued("intervention", true);
+        return config;
+    }
+
+    public ClinicalTrialFacetSearcher(IndexSearcher searcher) throws IOException {
+        this.searcher = searcher;
+        this.config = buildFacetsConfig();
+        // El estado de ordinales es costoso de construir: se crea una única vez por lector
+        this.state = new DefaultSortedSetDocValuesReaderState(searcher.getIndexReader(), config);
+    }
+
+    /**
+     * Ejecuta la consulta y devuelve top-k documentos y recuentos de facetas en una única pasada.
+     *
+     * @param query consulta (textual y filtros)
+     * @param topK número de documentos a devolver
+     * @param topFacets número de valores por dimensión
+     */
+    public FacetedResult search(Query query, int topK, int topFacets) throws IOException {
+        FacetsCollector fc = new FacetsCollector(true); // conserva las puntuaciones para el drill-down
+        TopDocs topDocs = FacetsCollector.search(searcher, query, topK, fc);
+        return new FacetedResult(topDocs, count(fc, topFacets), fc.getMatchingDocs());
+    }
+
+    /**
+     * Restringe un resultado previo a los documentos con alguno de los valores dados en la dimensión.
+     * No vuelve a ejecutar la consulta textual: filtra los documentos ya recolectados con las
+     * postings de drill-down y reutiliza sus puntuaciones.
+     *
+     * @param previous resultado previo (de search o de otro drillDown)
+     * @param dim dimensión de la faceta
+     * @param values valores aceptados (OR dentro de la dimensión)
+     */
+    public FacetedResult drillDown(FacetedResult previous, int topK, int topFacets, String dim, String... values)
+            throws IOException {
+        String indexField = config.getDimConfig(dim).indexFieldName;
+        Term[] terms = new Term[values.length];
+        for (int i = 0; i < values.length; i++) {
+            terms[i] = DrillDownQuery.term(indexField, dim, values[i]);
+        }
+
+        List<MatchingDocs> filtered = new ArrayList<>(previous.matchingDocs.size());
+        for (MatchingDocs md : previous.matchingDocs) {
+            filtered.add(filter(md, indexField, terms));
+        }
+
+        FacetsCollector fc = new FilteredFacetsCollector(filtered);
+        return new FacetedResult(topDocs(filtered, topK), count(fc, topFacets), filtered);
+    }
+
+    private Map<String, FacetResult> count(FacetsCollector fc, int topFacets) throws IOException {
+        Facets facets = new SortedSetDocValuesFacetCounts(state, fc);
+        Map<String, FacetResult> results = new LinkedHashMap<>();
+        for (String dim : DIMENSIONS) {
+            FacetResult result = facets.getTopChildren(topFacets, dim);
+            if (result != null) results.put(dim, result);
+        }
+        return results;
+    }
+
+    /**
+     * Intersecta los documentos de un segmento con las postings de los términos de drill-down.
+     */
+    private static MatchingDocs filter(MatchingDocs md, String indexField, Term[] terms) throws IOException {
+        int maxDoc = md.context.reader().maxDoc();
+        FixedBitSet bits = new FixedBitSet(maxDoc);
+        float[] scores = md.scores != null ? new float[md.totalHits] : null;
+        int count = 0;
+
+        Terms fieldTerms = md.context.reader().terms(indexField);
+        DocIdSetIterator docs = md.bits != null ? md.bits.iterator() : null;
+        if (fieldTerms != null && docs != null) {
+            TermsEnum termsEnum = fieldTerms.iterator();
+            List<PostingsEnum> postings = new ArrayList<>(terms.length);
+            for (Term term : terms) {
+                if (termsEnum.seekExact(term.bytes())) {
+                    postings.add(termsEnum.postings(null, PostingsEnum.NONE));
+                }
+            }
+
+            if (!postings.isEmpty()) {
+                int scoreIndex = 0;
+                for (int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docs.nextDoc(), scoreIndex++) {
+                    if (matchesAny(postings, doc)) {
+                        bits.set(doc);
+                        if (scores != null) scores[count] = md.scores[scoreIndex];
+                        count++;
+                    }
+                }
+            }
+        }
+        return new MatchingDocs(md.context, new BitDocIdSet(bits, count), count, scores);
+    }
+
+    private static boolean matchesAny(List<PostingsEnum> postings, int doc) throws IOException {
+        boolean match = false;
+        for (PostingsEnum p : postings) {
+            int current = p.docID();
+            if (current < doc) current = p.advance(doc);
+            if (current == doc) match = true;
+        }
+        return match;
+    }
+
+    /**
+     * Obtiene los top-k documentos de los recolectados a partir de sus puntuaciones guardadas.
+     */
+    private static TopDocs topDocs(List<MatchingDocs> matchingDocs, int topK) throws IOException {
+        PriorityQueue<ScoreDoc> queue = new PriorityQueue<>((a, b) -> a.score != b.score
+                ? Float.compare(a.score, b.score) : Integer.compare(b.doc, a.doc));
+        long totalHits = 0;
+
+        for (MatchingDocs md : matchingDocs) {
+            totalHits += md.totalHits;
+            DocIdSetIterator docs = md.bits.iterator();
+            if (docs == null) continue;
+            int scoreIndex = 0;
+            for (int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docs.nextDoc(), scoreIndex++) {
+                float score = md.scores != null ? md.scores[scoreIndex] : 0f;
+                queue.offer(new ScoreDoc(md.context.docBase + doc, score));
+                if (queue.size() > topK) queue.poll();
+            }
+        }
+
+        ScoreDoc[] hits = new ScoreDoc[queue.size()];
+        for (int i = hits.length - 1; i >= 0; i--) {
+            hits[i] = queue.poll();
+        }
+        return new TopDocs(new TotalHits(totalHits, TotalHits.Relation.EQUAL_TO), hits);
+    }
+
+    /**
+     * FacetsCollector que expone un conjunto de documentos ya filtrado para el recuento.
+     */
+    private static class FilteredFacetsCollector extends FacetsCollector {
+        private final List<MatchingDocs> matchingDocs;
+
+        FilteredFacetsCollector(List<MatchingDocs> matchingDocs) {
+            super(true);
+            this.matchingDocs = matchingDocs;
+        }
+
+        @Override
+        public List<MatchingDocs> getMatchingDocs() {
+            return matchingDocs;
+        }
+    }
+
+    /**
+     * Resultado facetado: documentos, recuentos por dimensión y documentos recolectados para el drill-down.
+     */
+    public static class FacetedResult {
+        public final TopDocs topDocs;
+        public final Map<String, FacetResult> facets;
+        private final List<MatchingDocs> matchingDocs;
+
+        FacetedResult(TopDocs topDocs, Map<String, FacetResult> facets, List<MatchingDocs> matchingDocs) {
+            this.topDocs = topDocs;
+            this.facets = facets;
+            this.matchingDocs = matchingDocs;
+        }
+    }
+
+    private static void printResult(IndexSearcher searcher, TrialDocStore docStore, FacetedResult result) throws IOException {
+        System.out.println("Total hits: " + result.topDocs.totalHits.value);
+        for (ScoreDoc sd : result.topDocs.scoreDocs) {
+            Map<String, String> doc = TrialDocStore.display(searcher, docStore, sd.doc, Set.of("nct_id", "brief_title"));
+            System.out.println("  " + doc.get("nct_id") + " | " + doc.get("brief_title") + " | Score: " + sd.score);
+        }
+        for (FacetResult facet : result.facets.values()) {
+            System.out.println("  [" + facet.dim + "] (" + facet.value + ")");
+            for (LabelAndValue lv : facet.labelValues) {
+                System.out.println("    " + lv.label + ": " + lv.value);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String indexPath = "src/main/resources/index";
+        String queryText = args.length > 0 ? args[0] : "breast cancer";
+
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(Path.of(indexPath)));
+             TrialDocStore docStore = TrialDocStore.openIfExists(Path.of(TrialDocStore.DEFAULT_PATH))) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            ClinicalTrialFacetSearcher facetSearcher = new ClinicalTrialFacetSearcher(searcher);
+
+            Query textQuery = new CombinedFieldQueryBuilder(reader, ClinicalTrialAnalyzer.forQuery()).build(queryText);
+            Query query = new BooleanQuery.Builder().add(textQuery, BooleanClause.Occur.MUST).build();
+
+            long start = System.nanoTime();
+            FacetedResult result = facetSearcher.search(query, 10, 10);
+            System.out.printf("Búsqueda facetada: %.2f ms%n", (System.nanoTime() - start) / 1_000_000.0);
+            printResult(searcher, docStore, result);
+
+            // Drill-down sobre el resultado anterior sin volver a ejecutar la consulta textual
+            start = System.nanoTime();
+            FacetedResult recruiting = facetSearcher.drillDown(result, 10, 10, "overall_status", "Recruiting");
+            FacetedResult phase3 = facetSearcher.drillDown(recruiting, 10, 10, "phase", "Phase 3");
+            System.out.printf("%nDrill-down (Recruiting, Phase 3): %.2f ms%n", (System.nanoTime() - start) / 1_000_000.0);
+            printResult(searcher, docStore, phase3);
+        }
+    }
+}
@@ -1,9 +1,7 @@
 package es.udc.fi.irudc.c2425.ClinicalTrials; // Define el paquete donde se encuentra la clase.
 
-import org.apache.lucene.document.Document; // Importa la clase Document de Lucene para representar documentos en el índice.
 import org.apache.lucene.index.DirectoryReader; // Permite leer el índice almacenado en disco.
 import org.apache.lucene.index.IndexReader; // Clase base para leer documentos en el índice.
-import org.apache.lucene.index.StoredFields; // Permite acceder a los campos almacenados en el índice.
 import org.apache.lucene.index.Term; // Representa un término en el índice de Lucene.
 import org.apache.lucene.store.FSDirectory; // Permite acceder a un índice almacenado en el sistema de archivos.
 
@@ -11,8 +9,9 @@ import java.io.IOException; // Manejo de excepciones en operaciones de entrada/s
 import java.nio.file.Path; // Permite manejar rutas de archivos.
 
 /**
- * Clase que lee e itera sobre todos los elementos en el índice de Lucene.
- * Imprime el campo "Brief_Title" de cada documento y muestra estadísticas del índice.
+ * Clase que lee el índice de Lucene y muestra sus estadísticas.
+ * El informe detallado (campos, edades, géneros, vectores y segmentos) se calcula con
+ * {@link IndexAnalytics} a partir de las estructuras del índice, sin cargar campos almacenados.
  */
 public class ClinicalTrialIndexReader {
 
@@ -34,25 +33,25 @@ public class ClinicalTrialIndexReader {
             // Imprime estadísticas básicas del índice.
             printIndexStats(reader);
 
-            // Itera sobre todos los documentos y muestra el título breve de cada uno.
-            iterateAndPrintDocuments(reader);
+            // Informe del índice calculado en paralelo por segmento.
+            new IndexAnalytics(reader, 20).report(dir, Runtime.getRuntime().availableProcessors());
 
             // Muestra la frecuencia de un término específico en un campo del índice.
-            printDocumentFrequency(reader, "Brief_Title", "cancer");
+            printDocumentFrequency(reader, "brief_title", "cancer");
 
             // Cierra el lector del índice para liberar recursos.
             reader.close();
             dir.close();
 
-        } catch (IOException e) {
-            e.printStackTrace(); // Maneja excepciones en caso de error al abrir el índice.
+        } catch (Exception e) {
+            e.printStackTrace(); // Maneja excepciones en caso de error al abrir o analizar el índice.
         }
         
         long endTime = System.currentTimeMillis();
         long elapsedMillis = endTime - startTime; // Calcula el tiempo total en milisegundos.
         double elapsedSeconds = elapsedMillis / 1000.0; // Convierte a segundos.
 
-        System.out.println("Total time taken for indexing: " + elapsedSeconds + " seconds");
+        System.out.println("Total time taken for reading the index: " + elapsedSeconds + " seconds");
     }
 
     /**
@@ -69,33 +68,6 @@ public class ClinicalTrialIndexReader {
         System.out.println("===================================\n");
     }
 
-    /**
-     * Itera sobre todos los documentos en el índice e imprime el campo "Brief_Title".
-     *
-     * @param reader Objeto IndexReader para acceder al índice.
-     */
-    private static void iterateAndPrintDocuments(IndexReader reader) throws IOException {
-        System.out.println("===== Documentos en el Índice =====");
-
-        // Accede a los campos almacenados en cada documento.
-        StoredFields storedFields = reader.storedFields();
-
-        // Itera sobre todos los documentos en el índice.
-        for (int i = 0; i < reader.maxDoc(); i++) {
-            // Obtiene los campos almacenados del documento con el ID actual.
-            Document doc = storedFields.document(i);
-
-            // Extrae el valor del campo "Brief_Title".
-            String briefTitle = doc.get("Brief_Title");
-            if (briefTitle != null) {
-                // Imprime el ID del documento y su título breve.
-                System.out.println("Document ID: " + i + " | Brief Title: " + briefTitle);
-            }
-        }
-
-        System.out.println("===================================\n");
-    }
-
     /**
      * Muestra la frecuencia de un término en un campo específico del índice.
      *
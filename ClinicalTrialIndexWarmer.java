@@ -0,0 +1,201 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.KnnFloatVectorQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.store.MMapDirectory;
+
+/**
+ * Fase de calentamiento del índice para eliminar la latencia de arranque en frío.
+ *
+ * Opcionalmente precarga en la caché de páginas ciertos archivos del índice (vectores y grafo
+ * HNSW, doc values, puntos, postings) mediante la precarga de MMapDirectory, y ejecuta un
+ * conjunto de consultas de calentamiento (p. ej. los tópicos) antes de dar el buscador por listo.
+ * Informa de la latencia de la primera pasada (fría) frente a las siguientes (calientes) para
+ * poder dimensionar el calentamiento.
+ */
+public class ClinicalTrialIndexWarmer {
+
+    /** Grupos de archivos precargables por extensión. */
+    public static final Map<String, Set<String>> PRELOAD_GROUPS = new HashMap<>();
+    static {
+        PRELOAD_GROUPS.put("vectors", new HashSet<>(Arrays.asList("vec", "vex", "vem", "vemf", "veq", "vemq")));
+        PRELOAD_GROUPS.put("docvalues", new HashSet<>(Arrays.asList("dvd", "dvm")));
+        PRELOAD_GROUPS.put("points", new HashSet<>(Arrays.asList("kdd", "kdi", "kdm")));
+        PRELOAD_GROUPS.put("postings", new HashSet<>(Arrays.asList("doc", "pos", "pay", "tim", "tip", "tmd")));
+        PRELOAD_GROUPS.put("norms", new HashSet<>(Arrays.asList("nvd", "nvm")));
+        // Los segmentos pequeños se escriben como archivo compuesto y solo se pueden precargar enteros
+        PRELOAD_GROUPS.put("compound", new HashSet<>(Arrays.asList("cfs", "cfe")));
+    }
+
+
+    private ClinicalTrialIndexWarmer() {
+    }
+
+    /**
+     * Abre el índice con MMapDirectory precargando los grupos de archivos indicados.
+     *
+     * @param indexPath ruta del índice
+     * @param groups grupos a precargar (claves de {@link #PRELOAD_GROUPS}); vacío para no precargar
+     */
+    public static MMapDirectory openDirectory(Path indexPath, Set<String> groups) throws IOException {
+        Set<String> extensions = new HashSet<>();
+        for (String group : groups) {
+            Set<String> groupExtensions = PRELOAD_GROUPS.get(group);
+            if (groupExtensions == null) {
+                throw new IllegalArgumentException("Grupo de precarga desconocido: " + group);
+            }
+            extensions.addAll(groupExtensions);
+        }
+
+        MMapDirectory directory = new MMapDirectory(indexPath);
+        directory.setPreload((fileName, context) -> {
+            int dot = fileName.lastIndexOf('.');
+            return dot >= 0 && extensions.contains(fileName.substring(dot + 1));
+        });
+        return directory;
+    }
+
+    /**
+     * Construye las consultas de calentamiento a partir de los tópicos: la consulta textual
+     * filtrada de cada tópico y, si hay embedding, su consulta KNN.
+     */
+    public static List<Query> buildWarmingQueries(List<Topic2> topics, Map<String, float[]> embeddings, Analyzer analyzer) {
+        List<Query> queries = new ArrayList<>();
+        // Sin lector no hay estadísticas para podar: se calientan todos los términos de cada tópico
+        CombinedFieldQueryBuilder queryBuilder = new CombinedFieldQueryBuilder(null, analyzer);
+        for (Topic2 topic : topics) {
+            String queryText = topic.getQuery();
+            if (queryText != null && !queryText.isEmpty()) {
+                try {
+                    Query text = queryBuilder.build(queryText);
+                    BooleanQuery.Builder builder = new BooleanQuery.Builder().add(text, BooleanClause.Occur.MUST);
+                    Query filter = CascadeRanker.buildFilter(topic.getAge(), topic.getGender() != null ? topic.getGender().toLowerCase() : null);
+                    if (filter != null) builder.add(filter, BooleanClause.Occur.FILTER);
+                    queries.add(builder.build());
+                } catch (Exception e) {
+                    System.err.println("Consulta de calentamiento inválida en el tópico " + topic.getNumber());
+                }
+            }
+            float[] embedding = embeddings.get(String.valueOf(topic.getNumber()));
+            if (embedding != null) {
+                queries.add(new KnnFloatVectorQuery(VectorRescorer.VECTOR_FIELD, embedding, 100));
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * Ejecuta las consultas de calentamiento varias veces y devuelve la latencia de cada pasada.
+     *
+     * @param searcher buscador a calentar
+     * @param queries consultas de calentamiento
+     * @param passes número de pasadas (la primera es la fría)
+     * @return latencias por pasada en milisegundos, alineadas con las consultas
+     */
+    public static double[][] warm(IndexSearcher searcher, List<Query> queries, int passes) throws IOException {
+        double[][] latencies = new double[passes][queries.size()];
+        for (int pass = 0; pass < passes; pass++) {
+            for (int i = 0; i < queries.size(); i++) {
+                long start = System.nanoTime();
+                searcher.search(queries.get(i), 100);
+                latencies[pass][i] = (System.nanoTime() - start) / 1_000_000.0;
+            }
+        }
+        return latencies;
+    }
+
+    /**
+     * Imprime el resumen de latencias de cada pasada (media, p50, p99 y máximo).
+     */
+    public static void printReport(double[][] latencies) {
+        for (int pass = 0; pass < latencies.length; pass++) {
+            double[] sorted = latencies[pass].clone();
+            if (sorted.length == 0) continue;
+            Arrays.sort(sorted);
+            double sum = 0;
+            for (double v : sorted) sum += v;
+            System.out.printf(Locale.US, "Pasada %d (%s): media %.2f ms | p50 %.2f ms | p99 %.2f ms | max %.2f ms | total %.0f ms%n",
+                    pass + 1, pass == 0 ? "fría" : "caliente", sum / sorted.length,
+                    sorted[(int) (sorted.length * 0.50)], sorted[Math.min(sorted.length - 1, (int) (sorted.length * 0.99))],
+                    sorted[sorted.length - 1], sum);
+        }
+    }
+
+    /**
+     * SearcherFactory que calienta cada nuevo buscador antes de publicarlo, p. ej. en un
+     * SearcherManager o en una réplica.
+     */
+    public static class WarmingSearcherFactory extends SearcherFactory {
+        private final List<Query> queries;
+        private final boolean onRefresh;
+
+        public WarmingSearcherFactory(List<Query> queries) {
+            this(queries, true);
+        }
+
+        /**
+         * @param onRefresh false para calentar solo el primer buscador: en el indexador near-real-time
+         *                  cada refresco esperaría a todo el calentamiento, y los segmentos grandes
+         *                  nuevos ya los calienta el IndexWriter al fusionarlos
+         */
+        public WarmingSearcherFactory(List<Query> queries, boolean onRefresh) {
+            this.queries = queries;
+            this.onRefresh = onRefresh;
+        }
+
+        @Override
+        public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) throws IOException {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            if (previousReader == null || onRefresh) {
+                warm(searcher, queries, 1);
+            }
+            return searcher;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String indexPath = "src/main/resources/index";
+        String topicsPath = "src/main/resources/topics_queries_and_narratives.xml";
+        String embeddingsPath = "src/main/resources/query_embeddings.json";
+        String groupsArg = args.length > 0 ? args[0] : "vectors,docvalues";
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        Set<String> groups = new HashSet<>();
+        for (String group : groupsArg.split(",")) {
+            if (!group.isBlank() && !group.equals("none")) groups.add(group.trim());
+        }
+
+        long start = System.nanoTime();
+        try (MMapDirectory directory = openDirectory(Path.of(indexPath), groups);
+             IndexReader reader = DirectoryReader.open(directory)) {
+            System.out.printf(Locale.US, "Índice abierto con precarga %s en %.0f ms%n", groups, (System.nanoTime() - start) / 1_000_000.0);
+
+            IndexSearcher searcher = new IndexSearcher(reader);
+            List<Query> queries = buildWarmingQueries(TopicParser2.parseTopics(topicsPath),
+                    QueryEmbeddings.load(embeddingsPath), ClinicalTrialAnalyzer.forQuery());
+
+            double[][] latencies = warm(searcher, queries, passes);
+            printReport(latencies);
+            System.out.printf(Locale.US, "Buscador listo tras %.0f ms (%d consultas de calentamiento)%n",
+                    (System.nanoTime() - start) / 1_000_000.0, queries.size());
+        }
+    }
+}
@@ -4,22 +4,48 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
 import org.apache.lucene.document.IntPoint;
 import org.apache.lucene.document.KnnVectorField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.facet.FacetsConfig;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesFacetField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -28,27 +54,152 @@ public class ClinicalTrialIndexer {
 
     private static IndexWriter writer;
     private static int count = 0;
+    private static int withVector = 0; // ensayos indexados con embedding en esta ejecución
     private static Map<String, float[]> briefTitleEmbeddings = new HashMap<>();
+    private static Map<String, SparseVectors.SparseVector> sparseVectors = Map.of();
+    private static final FacetsConfig facetsConfig = ClinicalTrialFacetSearcher.buildFacetsConfig();
+    private static ClinicalTrialSuggester suggester;
+    private static TrialDocStore.Writer docStore;
+
+    /**
+     * Layout ligero (-Dindex.layout=lean): el índice solo almacena identificadores y valores pequeños
+     * (nct_id, género, edades) y los textos completos se guardan en el {@link TrialDocStore}.
+     */
+    static final boolean LEAN_LAYOUT = "lean".equalsIgnoreCase(System.getProperty("index.layout", "full"));
+
+    // Texto almacenado con offsets en las postings para resaltar fragmentos sin reanalizar el texto
+    private static final FieldType TEXT_WITH_OFFSETS = new FieldType(TextField.TYPE_STORED);
+    // Igual pero sin almacenar: en el layout ligero el texto se lee del almacén externo
+    private static final FieldType TEXT_WITH_OFFSETS_NOT_STORED = new FieldType(TextField.TYPE_NOT_STORED);
+    static {
+        TEXT_WITH_OFFSETS.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        TEXT_WITH_OFFSETS.freeze();
+        TEXT_WITH_OFFSETS_NOT_STORED.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        TEXT_WITH_OFFSETS_NOT_STORED.freeze();
+    }
+
+    // Checkpoints de la ingesta: commit cada ingest.checkpointEvery archivos o ingest.checkpointSeconds segundos
+    private static final int CHECKPOINT_FILES = Integer.getInteger("ingest.checkpointEvery", 10_000);
+    private static final long CHECKPOINT_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("ingest.checkpointSeconds", 300));
+
+    // Datos de usuario de cada commit de la ingesta
+    static final String CURSOR_KEY = "ingest.cursor";     // último archivo procesado (ruta relativa)
+    static final String FILES_KEY = "ingest.files";       // número de archivos procesados
+    static final String COUNT_KEY = "ingest.count";       // ensayos indexados
+    static final String COMPLETE_KEY = "ingest.complete"; // true cuando la ingesta ha terminado
+
+    /**
+     * Archivos XML del dataset como rutas relativas separadas por '/', en orden lexicográfico. Con un
+     * orden fijo, el conjunto de archivos ya procesados queda representado por el último (el cursor).
+     */
+    static List<String> listTrialFiles(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(p -> p.getFileName().toString().toLowerCase().endsWith(".xml"))
+                    .map(p -> root.relativize(p).toString().replace(File.separatorChar, '/'))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
 
-    private static void processDirectoryAndIndex(File dir) {
-        File[] files = dir.listFiles();
-        if (files == null) return;
-
-        for (File file : files) {
-            if (file.isDirectory()) {
-                processDirectoryAndIndex(file);
-            } else if (file.getName().toLowerCase().endsWith(".xml")) {
-                ClinicalTrial trial = ClinicalTrialParser.parseFromFile(file.getAbsolutePath());
-                if (trial != null) {
-                    indexClinicalTrial(trial);
-                    count++;
+    /**
+     * Indexa los archivos desde la posición dada, con un checkpoint cada CHECKPOINT_FILES archivos o
+     * CHECKPOINT_NANOS, lo que antes ocurra. Tras una caída se repite como mucho ese trabajo.
+     */
+    private static void ingest(Path root, List<String> files, int from) throws IOException {
+        long lastCheckpoint = System.nanoTime();
+        int sinceCheckpoint = 0;
+        for (int i = from; i < files.size(); i++) {
+            String file = files.get(i);
+            ClinicalTrial trial = ClinicalTrialParser.parseFromFile(root.resolve(file).toString());
+            if (trial != null) {
+                indexClinicalTrial(trial);
+                suggester.addTrial(trial);
+                if (docStore != null) {
+                    docStore.add(trial.getNctId(), buildRecord(trial));
                 }
+                count++;
             }
+
+            sinceCheckpoint++;
+            if (sinceCheckpoint >= CHECKPOINT_FILES || System.nanoTime() - lastCheckpoint >= CHECKPOINT_NANOS) {
+                checkpoint(file, i + 1, false);
+                sinceCheckpoint = 0;
+                lastCheckpoint = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Confirma todo lo indexado hasta el archivo dado (incluido). El almacén de documentos y las
+     * frecuencias del suggester se guardan antes que el índice, cuyo commit es el que decide desde
+     * dónde se reanuda: lo que quede por delante de él se vuelve a escribir igual al reanudar.
+     */
+    private static void checkpoint(String cursor, int files, boolean complete) throws IOException {
+        if (docStore != null) {
+            docStore.commit();
+        }
+        if (complete) {
+            suggester.commit();
+        } else {
+            suggester.checkpoint(Integer.toString(files));
+        }
+
+        Map<String, String> userData = new HashMap<>();
+        if (cursor != null) userData.put(CURSOR_KEY, cursor);
+        userData.put(FILES_KEY, Integer.toString(files));
+        userData.put(COUNT_KEY, Integer.toString(count));
+        userData.put(COMPLETE_KEY, Boolean.toString(complete));
+        writer.setLiveCommitData(userData.entrySet());
+        writer.commit();
+        if (!complete) {
+            System.out.println("Checkpoint: " + files + " archivos, " + count + " ensayos (" + cursor + ")");
+        }
+    }
+
+    /**
+     * Añade el ensayo al índice. Un error se propaga: la ingesta se detiene sin que ningún checkpoint
+     * cuente el ensayo, y al reanudar se vuelve a procesar desde el último checkpoint.
+     */
+    private static void indexClinicalTrial(ClinicalTrial trial) throws IOException {
+        writer.addDocument(buildDocument(trial, briefTitleEmbeddings, sparseVectors, LEAN_LAYOUT));
+        if (trial.getBriefTitle() != null && briefTitleEmbeddings.containsKey(trial.getNctId())) {
+            withVector++;
         }
+        MetricsRegistry.get().recordIndexed("bulk", "add", 1);
     }
 
-    private static void indexClinicalTrial(ClinicalTrial trial) {
+    /**
+     * Construye el documento Lucene de un ensayo clínico con el layout configurado.
+     * Se comparte entre la indexación completa y la indexación near-real-time.
+     *
+     * @param trial ensayo parseado
+     * @param embeddings embeddings de los títulos breves por NCT ID
+     * @return documento listo para añadir al IndexWriter
+     */
+    static Document buildDocument(ClinicalTrial trial, Map<String, float[]> embeddings) throws IOException {
+        return buildDocument(trial, embeddings, LEAN_LAYOUT);
+    }
+
+    /**
+     * Construye el documento Lucene de un ensayo clínico.
+     *
+     * @param lean true para no almacenar los textos ni el vector serializado (layout ligero)
+     */
+    static Document buildDocument(ClinicalTrial trial, Map<String, float[]> embeddings, boolean lean) throws IOException {
+        return buildDocument(trial, embeddings, Map.of(), lean);
+    }
+
+    /**
+     * Construye el documento Lucene de un ensayo clínico con sus impactos dispersos, si los hay.
+     *
+     * @param sparse vectores dispersos aprendidos por NCT ID ({@link SparseVectors})
+     */
+    static Document buildDocument(ClinicalTrial trial, Map<String, float[]> embeddings,
+                                  Map<String, SparseVectors.SparseVector> sparse, boolean lean) throws IOException {
         Document doc = new Document();
+        Field.Store storeText = lean ? Field.Store.NO : Field.Store.YES;
+        FieldType textWithOffsets = lean ? TEXT_WITH_OFFSETS_NOT_STORED : TEXT_WITH_OFFSETS;
 
         String nctId = trial.getNctId();
         if (nctId != null) {
@@ -56,59 +207,128 @@ public class ClinicalTrialIndexer {
         }
 
         if (trial.getBriefTitle() != null) {
-            String briefTitle = trial.getBriefTitle().toLowerCase();
-            doc.add(new TextField("brief_title", briefTitle, Field.Store.YES));
+            doc.add(new TextField("brief_title", trial.getBriefTitle(), storeText));
 
-            float[] vector = briefTitleEmbeddings.get(nctId);
+            float[] vector = embeddings.get(nctId);
             if (vector != null) {
                 doc.add(new KnnVectorField("brief_title_vector", vector));
 
-                // Serializar vector como texto separado por comas
+                // Serializar vector como texto separado por comas (el layout ligero usa solo los valores vectoriales)
                 StringBuilder sb = new StringBuilder();
                 for (float val : vector) {
                     sb.append(val).append(",");
                 }
-                if (sb.length() > 0) {
+                if (sb.length() > 0 && !lean) {
                     sb.setLength(sb.length() - 1); // eliminar última coma
                     doc.add(new StoredField("brief_title_vector_stored", sb.toString()));
                 }
-
-                System.out.println("Indexado con vector: " + nctId);
-            } else {
-                System.out.println("Sin vector (no indexado): " + nctId);
             }
         }
 
+        if (nctId != null) {
+            SparseVectors.addFields(doc, sparse.get(nctId));
+        }
+
         if (trial.getDetailedDescription() != null) {
-            doc.add(new TextField("detailed_description", trial.getDetailedDescription().toLowerCase(), Field.Store.YES));
+            doc.add(new Field("detailed_description", trial.getDetailedDescription(), textWithOffsets));
         }
 
         if (trial.getcriteria() != null) {
-            doc.add(new TextField("criteria", trial.getcriteria().toLowerCase(), Field.Store.YES));
+            doc.add(new Field("criteria", trial.getcriteria(), textWithOffsets));
         }
 
         if (trial.getGender() != null) {
             doc.add(new StringField("gender", trial.getGender().toLowerCase(), Field.Store.YES));
+            doc.add(new SortedDocValuesField("gender", new BytesRef(trial.getGender().toLowerCase())));
         }
 
         if (trial.getMinAgeInt() != -1) {
             doc.add(new IntPoint("minimum_age", trial.getMinAgeInt()));
             doc.add(new StoredField("minimum_age", trial.getMinAgeInt()));
+            doc.add(new NumericDocValuesField("minimum_age", trial.getMinAgeInt()));
         }
 
         if (trial.getMaxAgeInt() != -1) {
             doc.add(new IntPoint("maximum_age", trial.getMaxAgeInt()));
             doc.add(new StoredField("maximum_age", trial.getMaxAgeInt()));
+            doc.add(new NumericDocValuesField("maximum_age", trial.getMaxAgeInt()));
         }
 
-        try {
-            writer.addDocument(doc);
-        } catch (IOException e) {
-            e.printStackTrace();
+        // Facetas sobre doc values para los recuentos por fase, estado, tipo de estudio, condición e intervención
+        addFacet(doc, "phase", trial.getPhase());
+        addFacet(doc, "overall_status", trial.getOverallStatus());
+        // Fase y estado también como doc values propios para las características de LTR (LtrFeatureExtractor)
+        addSortedValue(doc, "phase", trial.getPhase());
+        addSortedValue(doc, "overall_status", trial.getOverallStatus());
+        addFacet(doc, "study_type", trial.getStudyType());
+        if (trial.getConditions() != null) {
+            for (String condition : trial.getConditions()) {
+                addFacet(doc, "condition", condition);
+            }
         }
+        if (trial.getInterventions() != null) {
+            for (String intervention : trial.getInterventions()) {
+                addFacet(doc, "intervention", intervention);
+            }
+        }
+
+        return facetsConfig.build(doc);
     }
 
-    private static void loadBriefTitleEmbeddings(String embeddingsPath) {
+    /**
+     * Registro completo del ensayo para el {@link TrialDocStore}. Los campos indexados con offsets
+     * se guardan con el mismo texto que se indexa, para que los offsets de las postings sigan siendo
+     * válidos al resaltar.
+     */
+    static Map<String, String> buildRecord(ClinicalTrial trial) {
+        Map<String, String> record = new LinkedHashMap<>();
+        record.put("nct_id", trial.getNctId());
+        record.put("brief_title", trial.getBriefTitle());
+        record.put("official_title", trial.getOfficialTitle());
+        record.put("brief_summary", trial.getBriefSummary());
+        record.put("detailed_description", trial.getDetailedDescription());
+        record.put("criteria", trial.getcriteria());
+        record.put("gender", trial.getGender());
+        record.put("minimum_age", trial.getMinimumAge());
+        record.put("maximum_age", trial.getMaximumAge());
+        record.put("phase", trial.getPhase());
+        record.put("overall_status", trial.getOverallStatus());
+        record.put("study_type", trial.getStudyType());
+        record.put("conditions", trial.getConditions() != null ? String.join("; ", trial.getConditions()) : null);
+        record.put("interventions", trial.getInterventions() != null ? String.join("; ", trial.getInterventions()) : null);
+        return record;
+    }
+
+    /**
+     * Añade un valor de faceta al documento, ignorando valores vacíos o ausentes ("N/A").
+     */
+    private static void addFacet(Document doc, String dim, String value) {
+        String normalized = normalizeFacetValue(value);
+        if (normalized == null) return;
+        doc.add(new SortedSetDocValuesFacetField(dim, normalized));
+    }
+
+    /**
+     * Añade un valor como doc value ordenado de un solo valor, con la misma normalización que las facetas.
+     */
+    private static void addSortedValue(Document doc, String field, String value) {
+        String normalized = normalizeFacetValue(value);
+        if (normalized == null) return;
+        doc.add(new SortedDocValuesField(field, new BytesRef(normalized)));
+    }
+
+    private static String normalizeFacetValue(String value) {
+        if (value == null) return null;
+        String normalized = value.replaceAll("\\s+", " ").trim();
+        return normalized.isEmpty() || normalized.equals("N/A") ? null : normalized;
+    }
+
+    /**
+     * Carga los embeddings de los títulos breves desde el archivo JSONL (un objeto por línea con
+     * "nct_id" y "embedding").
+     */
+    static Map<String, float[]> loadBriefTitleEmbeddings(String embeddingsPath) {
+        Map<String, float[]> embeddings = new HashMap<>();
         ObjectMapper mapper = new ObjectMapper();
 
         try (BufferedReader reader = new BufferedReader(new FileReader(embeddingsPath))) {
@@ -129,7 +349,7 @@ public class ClinicalTrialIndexer {
                             vector[i] = (float) embeddingArray.get(i).asDouble();
                         }
 
-                        briefTitleEmbeddings.put(id, vector);
+                        embeddings.put(id, vector);
                     } else {
                         System.err.println("Línea " + lineNumber + ": falta 'nct_id' o 'embedding'.");
                     }
@@ -140,52 +360,158 @@ public class ClinicalTrialIndexer {
                 }
             }
 
-            System.out.println("Total embeddings cargados: " + briefTitleEmbeddings.size());
+            System.out.println("Total embeddings cargados: " + embeddings.size());
 
         } catch (IOException e) {
             System.err.println("Error leyendo el archivo de embeddings.");
             e.printStackTrace();
         }
+        return embeddings;
     }
 
-    private static void createIndex(String datasetRoot, String indexPath) {
-        File rootDir = new File(datasetRoot);
-        if (!rootDir.exists()) {
+    /**
+     * Indexa el dataset completo.
+     *
+     * @param resume true para continuar desde el último checkpoint de una ingesta interrumpida; si
+     *               no hay ninguno, la ingesta empieza desde cero
+     */
+    private static void createIndex(String datasetRoot, String indexPath, String suggestPath, String docStorePath, boolean resume) {
+        Path root = Path.of(datasetRoot);
+        if (!Files.isDirectory(root)) {
             System.err.println("El directorio del dataset no existe: " + datasetRoot);
             return;
         }
 
-        try {
-            Directory dir = FSDirectory.open(Path.of(indexPath));
-            StandardAnalyzer analyzer = new StandardAnalyzer();
-            IndexWriterConfig config = new IndexWriterConfig(analyzer);
-            config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        try (Directory dir = FSDirectory.open(Path.of(indexPath))) {
+            List<String> files = listTrialFiles(root);
 
-            try (IndexWriter w = new IndexWriter(dir, config)) {
+            // Punto de reanudación a partir de los datos del último commit
+            Map<String, String> checkpoint = resume && DirectoryReader.indexExists(dir)
+                    ? SegmentInfos.readLatestCommit(dir).getUserData() : Map.of();
+            if (Boolean.parseBoolean(checkpoint.get(COMPLETE_KEY))) {
+                System.out.println("La ingesta de " + indexPath + " ya está completa (" + checkpoint.get(COUNT_KEY) + " ensayos).");
+                return;
+            }
+            boolean resuming = checkpoint.containsKey(FILES_KEY);
+            if (resume && !resuming) {
+                System.out.println("No hay checkpoint en " + indexPath + ": la ingesta empieza desde cero.");
+            }
+            int from = 0;
+            if (resuming) {
+                count = Integer.parseInt(checkpoint.get(COUNT_KEY));
+                String cursor = checkpoint.get(CURSOR_KEY);
+                if (cursor != null) {
+                    // Si el archivo del cursor ya no existe, se sigue por el siguiente en orden
+                    int pos = Collections.binarySearch(files, cursor);
+                    from = pos >= 0 ? pos + 1 : -pos - 1;
+                }
+                System.out.println("Reanudando tras " + cursor + ": " + count + " ensayos indexados, quedan "
+                        + (files.size() - from) + " de " + files.size() + " archivos.");
+            }
+
+            IndexWriterConfig config = new IndexWriterConfig(ClinicalTrialAnalyzer.forIndexing());
+            config.setOpenMode(resuming ? IndexWriterConfig.OpenMode.APPEND : IndexWriterConfig.OpenMode.CREATE);
+            config.setMergeScheduler(new MetricsRegistry.MeteredMergeScheduler("bulk"));
+            // Solo se fusionan segmentos contiguos, así que los docIds siguen el orden de ingesta aunque
+            // los commits intermedios de una ingesta reanudada corten los segmentos en otros puntos
+            config.setMergePolicy(new LogByteSizeMergePolicy());
+            // Solo confirman los checkpoints: si la ingesta falla, el cierre descarta lo indexado desde el último
+            config.setCommitOnClose(false);
+
+            // El suggester se reconstruye junto al índice a partir de los mismos ensayos
+            try (IndexWriter w = new IndexWriter(dir, config);
+                 ClinicalTrialSuggester s = resuming
+                         ? ClinicalTrialSuggester.resume(Path.of(suggestPath), checkpoint.get(FILES_KEY))
+                         : new ClinicalTrialSuggester(Path.of(suggestPath), true);
+                 TrialDocStore.Writer d = LEAN_LAYOUT ? new TrialDocStore.Writer(Path.of(docStorePath), resuming) : null) {
                 writer = w;
+                suggester = s;
+                docStore = d;
 
                 System.out.println("Cargando embeddings...");
-                loadBriefTitleEmbeddings("src/main/resources/brieftitle_embeddings.jsonl");
+                briefTitleEmbeddings = loadBriefTitleEmbeddings("src/main/resources/brieftitle_embeddings.jsonl");
+                MetricsRegistry.get().registerEmbeddings("brief_title", briefTitleEmbeddings);
+                // Impactos dispersos aprendidos (opcionales): -Dindex.sparse o sparse_vectors.jsonl si existe
+                String sparsePath = System.getProperty("index.sparse", SparseVectors.DEFAULT_DOCUMENTS);
+                if (Files.exists(Path.of(sparsePath))) {
+                    sparseVectors = SparseVectors.loadDocuments(sparsePath);
+                }
 
                 System.out.println("Procesando dataset...");
-                processDirectoryAndIndex(rootDir);
+                ingest(root, files, from);
 
-                writer.commit();
+                // Último checkpoint antes de construir el suggester: si se cae durante la construcción,
+                // al reanudar no queda ningún archivo pendiente y solo se repite este paso
+                String last = files.isEmpty() ? null : files.get(files.size() - 1);
+                checkpoint(last, files.size(), false);
+                checkpoint(last, files.size(), true);
             }
 
+            try (IndexReader reader = DirectoryReader.open(dir)) {
+                System.out.println("Huella del índice: " + fingerprint(reader));
+            }
             System.out.println("Indexación completada.");
             System.out.println("Total clinical trials indexados: " + count);
+            System.out.println("Indexados con vector en esta ejecución: " + withVector);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Huella del contenido del índice: el nct_id de cada documento en orden de docId y las
+     * estadísticas de los campos de texto, leídos del diccionario de términos. Una ingesta reanudada
+     * debe dar la misma huella que una ingesta sin interrupciones del mismo dataset.
+     */
+    static String fingerprint(IndexReader reader) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        String[] ids = new String[reader.maxDoc()];
+        for (LeafReaderContext ctx : reader.leaves()) {
+            Terms terms = ctx.reader().terms("nct_id");
+            if (terms == null) continue;
+            Bits liveDocs = ctx.reader().getLiveDocs();
+            TermsEnum termsEnum = terms.iterator();
+            PostingsEnum postings = null;
+            for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+                postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    if (liveDocs == null || liveDocs.get(doc)) {
+                        ids[ctx.docBase + doc] = term.utf8ToString();
+                    }
+                }
+            }
+        }
+        for (String id : ids) {
+            if (id != null) digest.update((id + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        for (String field : new String[] {"brief_title", "detailed_description", "criteria"}) {
+            String stats = field + ":" + reader.getDocCount(field) + ":" + reader.getSumTotalTermFreq(field) + "\n";
+            digest.update(stats.getBytes(StandardCharsets.UTF_8));
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
     public static void main(String[] args) {
         String datasetRoot = "C:\\Users\\enriq\\OneDrive\\Escritorio\\dataset";
         String indexPath = "src/main/resources/index";
+        String suggestPath = "src/main/resources/suggest";
+        String docStorePath = TrialDocStore.DEFAULT_PATH;
+        // Continuar una ingesta interrumpida: -Dingest.resume=true o el argumento "resume"
+        boolean resume = Boolean.getBoolean("ingest.resume") || (args.length > 0 && args[0].equals("resume"));
 
         long startTime = System.currentTimeMillis();
-        createIndex(datasetRoot, indexPath);
+        createIndex(datasetRoot, indexPath, suggestPath, docStorePath, resume);
         long endTime = System.currentTimeMillis();
 
         double elapsedSeconds = (endTime - startTime) / 1000.0;
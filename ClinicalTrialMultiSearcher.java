@@ -2,24 +2,25 @@
 package es.udc.fi.irudc.c2425.ClinicalTrials;
 
 // Importaciones necesarias de Apache Lucene
-import org.apache.lucene.analysis.standard.StandardAnalyzer; // Analizador estándar para tokenizar el texto
-import org.apache.lucene.document.Document; // Representa documentos en el índice
 import org.apache.lucene.document.IntPoint; // Campo para realizar búsquedas por rango con enteros
 import org.apache.lucene.index.DirectoryReader; // Lector de índices en disco
 import org.apache.lucene.index.IndexReader; // Interfaz para acceder a documentos indexados
-import org.apache.lucene.queryparser.classic.MultiFieldQueryParser; // Permite consultar varios campos
-import org.apache.lucene.queryparser.classic.ParseException; // Excepción por errores de parsing
 import org.apache.lucene.search.*; // Operaciones de búsqueda de Lucene
 import org.apache.lucene.store.FSDirectory; // Abre el índice desde el sistema de archivos
 
 // Importaciones estándar de Java
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
 
 // Clase principal que permite realizar búsquedas interactivas
 public class ClinicalTrialMultiSearcher {
 
+    // Campos que se muestran de cada resultado
+    private static final Set<String> DISPLAY_FIELDS = Set.of("nct_id", "brief_title");
+
     public static void main(String[] args) {
         // Ruta donde está almacenado el índice Lucene
         String indexPath = "src/main/resources/index";
@@ -52,90 +53,132 @@ public class ClinicalTrialMultiSearcher {
             // Cierra el escáner una vez capturada toda la entrada
             scanner.close();
 
-            // Campos sobre los que se aplicará la búsqueda textual
-            String[] fields = {"Brief_Title", "Detailed_Description", "Eligibility_Criteria"};
-
-            // Crea un parser para procesar la consulta del usuario sobre esos campos
-            MultiFieldQueryParser parser = new MultiFieldQueryParser(fields, new StandardAnalyzer());
-
-            // Parsear la consulta del usuario a un objeto Query
-            // Lo convierte a objeto de Lucene que pueda entender
-            // Le dice que busque las palabras en cualquiera de los 3 campos
-            Query textQuery = parser.parse(userQuery);
-
-            // Filtro por edad mínima: se permite si la edad del paciente es mayor o igual que Min_Age
-            Query ageFilter = IntPoint.newRangeQuery("Min_Age", Integer.MIN_VALUE, age); 
-
-            // campo, valor menor, valor mayor
-
-            // Filtro por edad máxima: se permite si la edad del paciente es menor o igual que Max_Age
-            Query maxAgeFilter = IntPoint.newRangeQuery("Max_Age", age, Integer.MAX_VALUE);
-
-            // Si el usuario ha especificado género, se crea un filtro correspondiente
-            Query genderFilter = null;
-            if (!genderInput.equals("all")) {
-                // Se construye un filtro por igualdad exacta en el campo Gender
-                genderFilter = new TermQuery(new org.apache.lucene.index.Term("Gender", genderInput));
-            }
-
-            // Se construye la consulta final como una consulta booleana
-            BooleanQuery.Builder finalQuery = new BooleanQuery.Builder();
-
-            // El texto debe coincidir en alguno de los campos (obligatorio)
-            finalQuery.add(textQuery, BooleanClause.Occur.MUST);
-
-            // Se añaden los filtros de edad
-            finalQuery.add(ageFilter, BooleanClause.Occur.FILTER);
-            finalQuery.add(maxAgeFilter, BooleanClause.Occur.FILTER);
-
-            // Si hay un filtro de género, también se añade
-            if (genderFilter != null) {
-                finalQuery.add(genderFilter, BooleanClause.Occur.FILTER);
+            // Crea el constructor de consultas: analiza el texto una vez y puntúa cada término sobre
+            // brief_title, detailed_description y criteria como si fueran un único campo (BM25F)
+            ClinicalTrialAnalyzer analyzer = ClinicalTrialAnalyzer.forQuery();
+            CombinedFieldQueryBuilder queryBuilder = new CombinedFieldQueryBuilder(reader, analyzer);
+
+            // Traza opcional de las etapas de la consulta (-Dtrace.output)
+            QueryTrace trace = QueryTrace.start("multi", userQuery);
+
+            try {
+                // Convierte la consulta del usuario a un objeto Query
+                // Lo convierte a objeto de Lucene que pueda entender
+                // Busca las palabras en los 3 campos, puntuados como un único campo combinado
+                Query textQuery;
+                try (QueryTrace.Span span = trace.span("parse")) {
+                    textQuery = queryBuilder.build(userQuery);
+                    span.attr("query", textQuery.getClass().getSimpleName());
+                }
+
+                // Filtro por edad mínima: se permite si la edad del paciente es mayor o igual que Min_Age
+                Query ageFilter = IntPoint.newRangeQuery("minimum_age", Integer.MIN_VALUE, age); 
+
+                // campo, valor menor, valor mayor
+
+                // Filtro por edad máxima: se permite si la edad del paciente es menor o igual que Max_Age
+                Query maxAgeFilter = IntPoint.newRangeQuery("maximum_age", age, Integer.MAX_VALUE);
+
+                // Si el usuario ha especificado género, se crea un filtro correspondiente
+                Query genderFilter = null;
+                if (!genderInput.equals("all")) {
+                    // Se construye un filtro por igualdad exacta en el campo gender
+                    genderFilter = new TermQuery(new org.apache.lucene.index.Term("gender", genderInput));
+                }
+
+                // Se construye la consulta final como una consulta booleana
+                BooleanQuery.Builder finalQuery = new BooleanQuery.Builder();
+
+                // El texto debe coincidir en alguno de los campos (obligatorio)
+                finalQuery.add(textQuery, BooleanClause.Occur.MUST);
+
+                // Se añaden los filtros de edad
+                finalQuery.add(ageFilter, BooleanClause.Occur.FILTER);
+                finalQuery.add(maxAgeFilter, BooleanClause.Occur.FILTER);
+
+                // Si hay un filtro de género, también se añade
+                if (genderFilter != null) {
+                    finalQuery.add(genderFilter, BooleanClause.Occur.FILTER);
+                }
+                // Es decir, si el género elegido es distinto de all, se aplica el filtro, si no, se deja como está y no se aplica filtro
+
+                // Ejecutar la búsqueda y obtener los 10 mejores resultados
+                // TopDocs representa el resultado de una búsqueda en Lucene
+                // Lo crea el IndexSearcher
+                Query query = finalQuery.build();
+                TopDocs topDocs;
+                long searchStart = System.nanoTime();
+                try (QueryTrace.Span span = trace.span("bm25")) {
+                    topDocs = trace.search(searcher, query, 10);
+                    span.attr("hits", topDocs.scoreDocs.length);
+                }
+                MetricsRegistry.get().recordQuery("multi", System.nanoTime() - searchStart, topDocs.scoreDocs.length);
+
+                // Cuando creas topDocs con el searcher, se devuelve un array con los 10 documentos con mayor score y con su respectivo id
+                // Es lo que después en el display results se recorre de manera que se obtienen enumerados y en orden
+
+                // Top Docs contiene el total hits y el score docs, con cada doc con su id y score
+
+                // Mostrar los resultados por consola
+                // Los fragmentos se obtienen de los offsets indexados, con pasajes y tiempo por resultado acotados
+                // Con el layout ligero (-Dindex.layout=lean) el texto se lee del almacén externo
+                TrialDocStore docStore = TrialDocStore.openIfExists(Path.of(TrialDocStore.DEFAULT_PATH));
+                TrialHighlighter highlighter = new TrialHighlighter(searcher, analyzer, docStore);
+                Map<Integer, Map<String, String>> snippets;
+                try (QueryTrace.Span span = trace.span("highlight")) {
+                    snippets = highlighter.highlight(query, topDocs);
+                    span.attr("snippets", snippets.size());
+                }
+                try (QueryTrace.Span span = trace.span("display")) {
+                    displayResults(searcher, docStore, topDocs, userQuery, snippets);
+                    span.attr("hits", topDocs.scoreDocs.length);
+                }
+
+                // Cerrar recursos
+                if (docStore != null) {
+                    docStore.close();
+                }
+            } finally {
+                trace.finish();
             }
-            // Es decir, si el género elegido es distinto de all, se aplica el filtro, si no, se deja como está y no se aplica filtro
-
-            // Ejecutar la búsqueda y obtener los 10 mejores resultados
-            // TopDocs representa el resultado de una búsqueda en Lucene
-            // Lo crea el IndexSearcher
-            TopDocs topDocs = searcher.search(finalQuery.build(), 10);
-
-            // Cuando creas topDocs con el searcher, se devuelve un array con los 10 documentos con mayor score y con su respectivo id
-            // Es lo que después en el display results se recorre de manera que se obtienen enumerados y en orden
-
-            // Top Docs contiene el total hits y el score docs, con cada doc con su id y score
-
-            // Mostrar los resultados por consola
-            displayResults(searcher, topDocs, userQuery);
-
-            // Cerrar recursos
             reader.close();
             dir.close();
 
-        } catch (IOException | ParseException e) {
+        } catch (IOException e) {
             // Manejo de errores: problemas con lectura del índice o parsing de la consulta
             e.printStackTrace();
         }
     }
 
     // Método auxiliar para mostrar los resultados de búsqueda por consola
-    private static void displayResults(IndexSearcher searcher, TopDocs topDocs, String query) throws IOException {
+    private static void displayResults(IndexSearcher searcher, TrialDocStore docStore, TopDocs topDocs, String query,
+                                       Map<Integer, Map<String, String>> snippets) throws IOException {
         System.out.println("\nSearch Results for query: '" + query + "'");
         System.out.println("Total hits: " + topDocs.totalHits.value);
 
         // Recorre cada documento recuperado
         for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
-            // Recupera el documento real usando su ID
-            Document doc = searcher.doc(scoreDoc.doc);
-
-            // Extrae algunos campos para mostrar
-            String nctId = doc.get("NCT_ID");
-            String briefTitle = doc.get("Brief_Title");
+            // Recupera solo los campos que se muestran (del índice o del almacén externo)
+            Map<String, String> fields = TrialDocStore.display(searcher, docStore, scoreDoc.doc, DISPLAY_FIELDS);
+            String nctId = fields.get("nct_id");
+            String briefTitle = fields.get("brief_title");
 
             // Muestra el resultado
             System.out.println("DocID: " + scoreDoc.doc +
                                " | NCT ID: " + nctId +
                                " | Title: " + briefTitle +
                                " | Score: " + scoreDoc.score);
+
+            // Muestra los fragmentos en los que aparecen los términos de la consulta
+            Map<String, String> docSnippets = snippets.get(scoreDoc.doc);
+            if (docSnippets != null) {
+                for (String field : TrialHighlighter.FIELDS) {
+                    String snippet = docSnippets.get(field);
+                    if (snippet != null) {
+                        System.out.println("    " + field + ": " + snippet);
+                    }
+                }
+            }
         }
     }
 }
@@ -0,0 +1,457 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.SimpleMergedSegmentWarmer;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.ControlledRealTimeReopenThread;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.InfoStream;
+
+/**
+ * Indexación near-real-time para actualizaciones diarias de los ensayos (p. ej. el estado de reclutamiento).
+ *
+ * Mantiene un IndexWriter abierto que acepta altas, actualizaciones y bajas por NCT ID, ya sea
+ * mediante la API o a través de un directorio de entrada vigilado. La visibilidad y la durabilidad
+ * se configuran por separado:
+ * - Visibilidad: un ControlledRealTimeReopenThread reabre los lectores cada refreshSeconds sin
+ *   bloquear las consultas en curso.
+ * - Durabilidad: un commit periódico cada commitSeconds (y al cerrar).
+ *
+ * Directorio de entrada: cada archivo *.xml se trata como alta o actualización del ensayo, y cada
+ * archivo *.delete contiene un NCT ID por línea a eliminar. Los archivos deben dejarse en el
+ * directorio con un rename atómico; una vez procesados se borran.
+ *
+ * Con el layout ligero (-Dindex.layout=lean) los registros completos se añaden también al
+ * {@link TrialDocStore}, que se confirma antes que el índice en cada commit. Las altas y bajas no se
+ * intercalan con un commit: el almacén y el índice confirman siempre el mismo conjunto de ensayos.
+ *
+ * Con un {@link ClinicalTrialSuggester} configurado, las altas, actualizaciones y bajas actualizan
+ * también las sugerencias, que se confirman junto al índice.
+ *
+ * Con un {@link TrialPercolator} configurado, los ensayos que llegan juntos al directorio de entrada
+ * se cruzan como un lote con las consultas guardadas de los pacientes.
+ *
+ * Con {@link #startReplication} cada commit se publica a las réplicas de solo lectura
+ * ({@link SegmentReplication}), que sirven las búsquedas sin compartir CPU con la indexación.
+ */
+public class ClinicalTrialNrtIndexer implements Closeable {
+
+    private final Directory directory;
+    private final IndexWriter writer;
+    private final SearcherManager searcherManager;
+    private final ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+    private final ScheduledExecutorService commitScheduler;
+    private final Map<String, float[]> embeddings;
+    private final TrialDocStore.Writer docStore;
+    private final SnapshotDeletionPolicy snapshots;
+    // Lectura: cada alta o baja (almacén + escritor); escritura: el commit de ambos
+    private final ReadWriteLock commitLock = new ReentrantReadWriteLock();
+    private volatile SegmentReplication.Primary replicationPrimary;
+    private volatile WatchService watchService;
+    private Thread watcherThread;
+    private volatile TrialPercolator percolator;
+    private volatile ClinicalTrialSuggester suggester;
+    private volatile Map<String, SparseVectors.SparseVector> sparseVectors = Map.of();
+    private volatile Consumer<List<TrialPercolator.Match>> matchConsumer;
+
+    /**
+     * @param indexPath ruta del índice (se crea si no existe)
+     * @param embeddings embeddings de los títulos breves por NCT ID
+     * @param refreshSeconds intervalo máximo hasta que un cambio es visible para las búsquedas
+     * @param commitSeconds intervalo entre commits (durabilidad)
+     * @param searcherFactory fábrica de buscadores (p. ej. para calentarlos), o null
+     */
+    public ClinicalTrialNrtIndexer(Path indexPath, Map<String, float[]> embeddings, double refreshSeconds,
+                                   long commitSeconds, SearcherFactory searcherFactory) throws IOException {
+        this.embeddings = embeddings;
+        this.directory = FSDirectory.open(indexPath);
+
+        IndexWriterConfig config = new IndexWriterConfig(ClinicalTrialAnalyzer.forIndexing());
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+        config.setMergeScheduler(new MetricsRegistry.MeteredMergeScheduler("nrt"));
+        // Los segmentos fusionados se calientan en el hilo de la fusión, antes de ser visibles
+        config.setMergedSegmentWarmer(new SimpleMergedSegmentWarmer(InfoStream.NO_OUTPUT));
+        // Permite proteger el commit publicado a las réplicas mientras lo copian
+        this.snapshots = new SnapshotDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
+        config.setIndexDeletionPolicy(snapshots);
+        this.writer = new IndexWriter(directory, config);
+        this.docStore = ClinicalTrialIndexer.LEAN_LAYOUT ? new TrialDocStore.Writer(Path.of(TrialDocStore.DEFAULT_PATH), true) : null;
+
+        MetricsRegistry metrics = MetricsRegistry.get();
+        metrics.registerEmbeddings("brief_title", embeddings);
+        this.searcherManager = new SearcherManager(writer, searcherFactory);
+        this.searcherManager.addListener(metrics.refreshListener("nrt"));
+        // Los lectores se reabren como mucho cada refreshSeconds; si alguien espera un cambio concreto, en 100 ms
+        this.reopenThread = new ControlledRealTimeReopenThread<>(writer, searcherManager, refreshSeconds, 0.1);
+        this.reopenThread.setName("nrt-reopen");
+        this.reopenThread.setDaemon(true);
+        this.reopenThread.start();
+
+        this.commitScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "nrt-commit");
+            t.setDaemon(true);
+            return t;
+        });
+        this.commitScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                commit();
+            } catch (IOException e) {
+                System.err.println("Error en el commit periódico: " + e.getMessage());
+            }
+        }, commitSeconds, commitSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Añade el ensayo o reemplaza la versión existente con el mismo NCT ID.
+     *
+     * @return número de secuencia de la operación, para esperar su visibilidad
+     */
+    public long addOrUpdate(ClinicalTrial trial) throws IOException {
+        long seqNo;
+        commitLock.readLock().lock();
+        try {
+            if (docStore != null) {
+                docStore.add(trial.getNctId(), ClinicalTrialIndexer.buildRecord(trial));
+            }
+            if (suggester != null) {
+                suggester.addTrial(trial); // sustituye lo que aportaba la versión anterior
+            }
+            seqNo = writer.updateDocument(new Term("nct_id", trial.getNctId()), ClinicalTrialIndexer.buildDocument(trial, embeddings, sparseVectors, ClinicalTrialIndexer.LEAN_LAYOUT));
+        } finally {
+            commitLock.readLock().unlock();
+        }
+        MetricsRegistry.get().recordIndexed("nrt", "update", 1);
+        return seqNo;
+    }
+
+    /**
+     * Elimina el ensayo con el NCT ID dado.
+     *
+     * @return número de secuencia de la operación, para esperar su visibilidad
+     */
+    public long delete(String nctId) throws IOException {
+        long seqNo;
+        commitLock.readLock().lock();
+        try {
+            seqNo = writer.deleteDocuments(new Term("nct_id", nctId));
+            if (docStore != null) {
+                docStore.delete(nctId);
+            }
+            if (suggester != null) {
+                suggester.deleteTrial(nctId);
+            }
+        } finally {
+            commitLock.readLock().unlock();
+        }
+        MetricsRegistry.get().recordIndexed("nrt", "delete", 1);
+        return seqNo;
+    }
+
+    /**
+     * Bloquea hasta que la operación con el número de secuencia dado sea visible para las búsquedas.
+     */
+    public void waitForVisibility(long seqNo) throws InterruptedException {
+        reopenThread.waitForGeneration(seqNo);
+    }
+
+    /**
+     * Obtiene un buscador sobre la última vista refrescada. Debe liberarse con {@link #release}.
+     */
+    public IndexSearcher acquire() throws IOException {
+        return searcherManager.acquire();
+    }
+
+    public void release(IndexSearcher searcher) throws IOException {
+        searcherManager.release(searcher);
+    }
+
+    public SearcherManager getSearcherManager() {
+        return searcherManager;
+    }
+
+    public IndexWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * Hace durables los cambios pendientes.
+     */
+    public synchronized void commit() throws IOException {
+        commitLock.writeLock().lock();
+        try {
+            if (!writer.hasUncommittedChanges()) return;
+            if (suggester != null) {
+                suggester.commit();
+            }
+            if (docStore != null) {
+                docStore.commit(); // el índice nunca apunta a un registro que no esté en el almacén
+            }
+            writer.commit();
+        } finally {
+            commitLock.writeLock().unlock();
+        }
+        if (replicationPrimary != null) {
+            replicationPrimary.publish();
+        }
+    }
+
+    /**
+     * Publica el último commit y los siguientes a las réplicas locales.
+     *
+     * @param port puerto en localhost en el que se sirven los archivos del índice
+     */
+    public synchronized SegmentReplication.Primary startReplication(int port) throws IOException {
+        if (replicationPrimary == null) {
+            commitLock.writeLock().lock();
+            try {
+                if (docStore != null) {
+                    docStore.commit();
+                }
+                writer.commit(); // las réplicas necesitan un commit aunque el índice esté vacío
+            } finally {
+                commitLock.writeLock().unlock();
+            }
+            replicationPrimary = new SegmentReplication.Primary(directory, snapshots, port);
+        }
+        return replicationPrimary;
+    }
+
+    /**
+     * Vectores dispersos aprendidos por NCT ID que se indexan junto a los ensayos ({@link SparseVectors}).
+     */
+    public void setSparseVectors(Map<String, SparseVectors.SparseVector> sparseVectors) {
+        this.sparseVectors = sparseVectors;
+    }
+
+    /**
+     * Mantiene las sugerencias al día con las altas, actualizaciones y bajas. El suggester debe
+     * abrirse sin reconstrucción y lo cierra quien lo creó, después de cerrar el indexador.
+     */
+    public void setSuggester(ClinicalTrialSuggester suggester) {
+        this.suggester = suggester;
+    }
+
+    /**
+     * Cruza los ensayos que entran por el directorio de entrada con las consultas guardadas.
+     *
+     * @param percolator percolador con las consultas de los pacientes
+     * @param matchConsumer recibe las coincidencias de cada lote
+     */
+    public void setPercolator(TrialPercolator percolator, Consumer<List<TrialPercolator.Match>> matchConsumer) {
+        this.matchConsumer = matchConsumer;
+        this.percolator = percolator;
+    }
+
+    /**
+     * Empieza a vigilar el directorio de entrada. Los archivos ya presentes se procesan al arrancar.
+     */
+    public void watch(Path dropDir) throws IOException {
+        Files.createDirectories(dropDir);
+        watchService = FileSystems.getDefault().newWatchService();
+        dropDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE); // un rename dentro del directorio genera ENTRY_CREATE
+
+        List<ClinicalTrial> initial = new ArrayList<>();
+        try (DirectoryStream<Path> existing = Files.newDirectoryStream(dropDir)) {
+            for (Path file : existing) {
+                processDropFile(file, initial);
+            }
+        }
+        percolate(initial);
+
+        watcherThread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watchService.take();
+                    List<ClinicalTrial> batch = new ArrayList<>();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // Se han perdido eventos: se vuelve a recorrer el directorio
+                            try (DirectoryStream<Path> files = Files.newDirectoryStream(dropDir)) {
+                                for (Path file : files) processDropFile(file, batch);
+                            }
+                            continue;
+                        }
+                        processDropFile(dropDir.resolve((Path) event.context()), batch);
+                    }
+                    percolate(batch);
+                    if (!key.reset()) break;
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // Cierre del indexador
+            } catch (IOException e) {
+                System.err.println("Error vigilando " + dropDir + ": " + e.getMessage());
+            }
+        }, "nrt-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    /**
+     * Cruza con las consultas guardadas los ensayos dados de alta o actualizados en un lote.
+     */
+    private void percolate(List<ClinicalTrial> batch) {
+        TrialPercolator p = percolator;
+        if (p == null || batch.isEmpty()) return;
+        try {
+            List<TrialPercolator.Match> matches = p.percolate(batch);
+            System.out.println("Percolación: " + p.getLastStats());
+            if (!matches.isEmpty()) matchConsumer.accept(matches);
+        } catch (IOException e) {
+            System.err.println("Error en la percolación del lote: " + e.getMessage());
+        }
+    }
+
+    private void processDropFile(Path file, List<ClinicalTrial> batch) {
+        String name = file.getFileName().toString().toLowerCase();
+        if (!Files.isRegularFile(file)) return;
+        try {
+            if (name.endsWith(".xml")) {
+                ClinicalTrial trial = ClinicalTrialParser.parseFromFile(file.toString());
+                if (trial != null && !"N/A".equals(trial.getNctId())) {
+                    addOrUpdate(trial);
+                    batch.add(trial);
+                    System.out.println("Actualizado: " + trial.getNctId());
+                } else {
+                    System.err.println("No se pudo parsear: " + file);
+                }
+            } else if (name.endsWith(".delete")) {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    String nctId = line.trim();
+                    if (!nctId.isEmpty()) {
+                        delete(nctId);
+                        System.out.println("Eliminado: " + nctId);
+                    }
+                }
+            } else {
+                return;
+            }
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("Error procesando " + file + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+        if (watcherThread != null) {
+            watcherThread.interrupt();
+        }
+        commitScheduler.shutdownNow();
+        reopenThread.close();
+        commit();
+        if (replicationPrimary != null) {
+            replicationPrimary.close();
+        }
+        searcherManager.close();
+        writer.close();
+        if (docStore != null) {
+            docStore.close();
+        }
+        directory.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String indexPath = "src/main/resources/index";
+        String dropPath = "src/main/resources/drop";
+        String embeddingsPath = "src/main/resources/brieftitle_embeddings.jsonl";
+        String topicsPath = "src/main/resources/topics_queries_and_narratives.xml";
+        String queryEmbeddingsPath = "src/main/resources/query_embeddings.json";
+        double refreshSeconds = args.length > 0 ? Double.parseDouble(args[0]) : 1.0;
+        long commitSeconds = args.length > 1 ? Long.parseLong(args[1]) : 60;
+
+        Map<String, float[]> embeddings = ClinicalTrialIndexer.loadBriefTitleEmbeddings(embeddingsPath);
+        // Solo el primer lector se calienta con los tópicos: calentar cada refresco retrasaría la visibilidad
+        List<Query> warmingQueries = ClinicalTrialIndexWarmer.buildWarmingQueries(TopicParser2.parseTopics(topicsPath),
+                QueryEmbeddings.load(queryEmbeddingsPath), ClinicalTrialAnalyzer.forQuery());
+        ClinicalTrialNrtIndexer indexer = new ClinicalTrialNrtIndexer(Path.of(indexPath), embeddings, refreshSeconds, commitSeconds,
+                new ClinicalTrialIndexWarmer.WarmingSearcherFactory(warmingQueries, false));
+        // Sugerencias (si existen, p. ej. tras ClinicalTrialIndexer): -Dnrt.suggest=ruta
+        Path suggestPath = Path.of(System.getProperty("nrt.suggest", "src/main/resources/suggest"));
+        ClinicalTrialSuggester suggester = Files.isDirectory(suggestPath) ? new ClinicalTrialSuggester(suggestPath, false) : null;
+        indexer.setSuggester(suggester);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                indexer.close();
+                if (suggester != null) suggester.close();
+                System.out.println("Indexador NRT cerrado.");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+
+        String sparsePath = System.getProperty("index.sparse", SparseVectors.DEFAULT_DOCUMENTS);
+        if (Files.exists(Path.of(sparsePath))) {
+            indexer.setSparseVectors(SparseVectors.loadDocuments(sparsePath));
+        }
+
+        // -Dnrt.percolate=true: cruza los ensayos nuevos con las consultas guardadas de los pacientes
+        if (Boolean.getBoolean("nrt.percolate")) {
+            TrialPercolator percolator = new TrialPercolator(Path.of(TrialPercolator.DEFAULT_PATH),
+                    Integer.getInteger("percolator.threads", Runtime.getRuntime().availableProcessors()),
+                    Float.parseFloat(System.getProperty("percolator.minScore", "0")));
+            indexer.setPercolator(percolator, matches -> {
+                for (TrialPercolator.Match m : matches) {
+                    System.out.println("Coincidencia: " + m.patientId + " -> " + m.nctId + " (" + m.score + ")");
+                }
+            });
+        }
+
+        // -Dreplication.port=N: publica los commits a réplicas (SegmentReplication replica localhost:N)
+        Integer replicationPort = Integer.getInteger("replication.port");
+        SegmentReplication.Primary primary = replicationPort != null ? indexer.startReplication(replicationPort) : null;
+        SegmentReplication.Revision published = null;
+        if (primary != null) {
+            System.out.println("Publicando commits a las réplicas en localhost:" + primary.port());
+        }
+
+        indexer.watch(Path.of(dropPath));
+        System.out.println("Indexador NRT vigilando " + dropPath + " (refresco " + refreshSeconds + " s, commit " + commitSeconds + " s)");
+
+        while (true) {
+            Thread.sleep(10_000);
+            IndexSearcher searcher = indexer.acquire();
+            try {
+                System.out.println("Documentos visibles: " + searcher.getIndexReader().numDocs());
+            } finally {
+                indexer.release(searcher);
+            }
+            if (primary != null && primary.current() != published) {
+                published = primary.current();
+                System.out.println("Publicado el commit " + published.generation + " (" + published.files.size() + " archivos)");
+            }
+        }
+    }
+}
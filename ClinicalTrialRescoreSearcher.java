@@ -2,9 +2,7 @@
 package es.udc.fi.irudc.c2425.ClinicalTrials;
 
 // Importaciones para gestión de archivos y estructuras de datos
-import java.io.BufferedWriter;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -12,14 +10,13 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.document.IntPoint;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.StoredFields;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
@@ -37,6 +34,9 @@ public class ClinicalTrialRescoreSearcher {
     // Mapa que almacenará todos los embeddings de las queries (topics) en memoria
     private static Map<String, float[]> embeddingsMap = new HashMap<>();
 
+    // Único campo almacenado que se necesita de cada resultado
+    private static final Set<String> ID_FIELD = Set.of("nct_id");
+
     public static void main(String[] args) throws Exception {
         // Rutas de entrada/salida
         String indexPath = "src/main/resources/index"; // Índice Lucene
@@ -50,15 +50,21 @@ public class ClinicalTrialRescoreSearcher {
         // Abrimos el índice Lucene
         IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)));
         IndexSearcher searcher = new IndexSearcher(reader);
+        MetricsRegistry metrics = MetricsRegistry.get(); // Métricas de consultas (-Dmetrics.*)
+        metrics.registerQueryCache(searcher);
+
+        // Constructor de la consulta textual (BM25F sobre los tres campos de texto)
+        CombinedFieldQueryBuilder textQueryBuilder = new CombinedFieldQueryBuilder(reader, ClinicalTrialAnalyzer.forQuery());
 
-        // Analizador para las búsquedas textuales
-        StandardAnalyzer analyzer = new StandardAnalyzer();
+        // Profundidad de la búsqueda textual que se reordena. Con la expansión de sinónimos del
+        // analizador los relevantes aparecen antes y ya no hace falta recuperar 10.000 documentos
+        int rescoreDepth = Integer.getInteger("rescore.depth", 1000);
 
         // Cargamos los tópicos (queries clínicas)
         List<Topic2> topics = TopicParser2.parseTopics(topicsPath);
 
         // Preparamos el archivo de salida para escribir los resultados
-        BufferedWriter writer = new BufferedWriter(new FileWriter(outputPath));
+        TrecRun.Writer writer = TrecRun.writer(TrecRun.outputPath(outputPath), "metodo3_rescore");
 
         // Procesamos cada tópico (caso clínico individual)
         for (Topic2 topic : topics) {
@@ -76,35 +82,58 @@ public class ClinicalTrialRescoreSearcher {
 
             System.out.println("\nTópico " + topicNumber + " | Ejecutando búsqueda textual...");
 
-            // Ejecutamos la búsqueda textual con filtros
-            TopDocs initialResults = searchInitialQuery(searcher, analyzer, queryText, age, gender, 10000);
-
-            // Lista para guardar documentos reordenados por similitud semántica
-            List<ScoredDocument> rescored = new ArrayList<>(); // Esto devuelve un objeto de tipo TopDocs, que contiene ScoreDocs,
-            // array que empareja el doc del clinical trial con su score
-
-            // Recorremos los documentos recuperados inicialmente
-            for (ScoreDoc sd : initialResults.scoreDocs) { // Se recorren los score docs con el nombre sd
-                Document doc = searcher.doc(sd.doc); // Con esto se accede a los docs al completo
-                String nctId = doc.get("nct_id"); // Se obtiene el id
-                String vecStr = doc.get("brief_title_vector_stored"); // vector embebido en el índice como string
-
-                // Si el documento tiene vector, calculamos la similitud
-                if (nctId != null && vecStr != null) {
-                    float[] docVec = parseStoredVector(vecStr);          // Convertimos el string a float[]
-                    float score = dotProduct(embedding, docVec);        // Producto punto como medida de similitud
-                    rescored.add(new ScoredDocument(sd.doc, score));    // Añadimos el documento con su nuevo score
-                } else {
-                    System.out.println("Documento " + (nctId != null ? nctId : "[sin ID]") + " sin vector almacenado.");
+            // Traza opcional de las etapas del tópico (-Dtrace.output)
+            QueryTrace trace = QueryTrace.start("rescore", topicNumber);
+            long queryStart = System.nanoTime();
+
+            try {
+                // Ejecutamos la búsqueda textual con filtros
+                TopDocs initialResults = searchInitialQuery(searcher, textQueryBuilder, queryText, age, gender, rescoreDepth);
+                trace.attr("hits", initialResults.scoreDocs.length);
+
+                // Lista para guardar documentos reordenados por similitud semántica
+                List<ScoredDocument> rescored = new ArrayList<>(); // Esto devuelve un objeto de tipo TopDocs, que contiene ScoreDocs,
+                // array que empareja el doc del clinical trial con su score
+
+                // Los vectores se leen de los valores vectoriales del índice (los mismos que usa KNN), sin
+                // cargar campos almacenados: así funciona también con el layout ligero (-Dindex.layout=lean)
+                try (QueryTrace.Span span = trace.span("rescore")) {
+                    int count = initialResults.scoreDocs.length;
+                    int[] docIds = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        docIds[i] = initialResults.scoreDocs[i].doc;
+                    }
+                    float[] similarities = VectorRescorer.dotProducts(reader, docIds, count, embedding); // Producto punto con la query
+
+                    for (int i = 0; i < count; i++) {
+                        // Si el documento tiene vector, lo añadimos con su nuevo score
+                        if (!Float.isNaN(similarities[i])) {
+                            rescored.add(new ScoredDocument(docIds[i], similarities[i]));
+                        }
+                    }
+                    span.attr("without_vector", count - rescored.size());
+                    if (rescored.size() < count) {
+                        System.out.println((count - rescored.size()) + " documentos sin vector.");
+                    }
+                }
+
+                // Ordenamos los documentos según la puntuación del rescoring (descendente)
+                try (QueryTrace.Span span = trace.span("sort")) {
+                    rescored.sort((a, b) -> Float.compare(b.score, a.score)); // Reordenación descendente
+                    // Da negativo si b < a, entonces a va antes que b
+                    span.attr("candidates", rescored.size());
                 }
-            }
 
-            // Ordenamos los documentos según la puntuación del rescoring (descendente)
-            rescored.sort((a, b) -> Float.compare(b.score, a.score)); // Reordenación descendente
-            // Da negativo si b < a, entonces a va antes que b
+                metrics.recordQuery("rescore", System.nanoTime() - queryStart, rescored.size());
 
-            // Escribimos los top 10 resultados reordenados en el archivo TREC
-            writeResultsTREC(writer, searcher, rescored, topicNumber, 10);
+                // Escribimos los top 10 resultados reordenados en el archivo TREC
+                try (QueryTrace.Span span = trace.span("write")) {
+                    writeResultsTREC(writer, searcher, rescored, topicNumber, 10);
+                    span.attr("rows", Math.min(10, rescored.size()));
+                }
+            } finally {
+                trace.finish();
+            }
         }
 
         // Cerramos recursos
@@ -116,16 +145,17 @@ public class ClinicalTrialRescoreSearcher {
     /**
      * Realiza la búsqueda textual inicial aplicando filtros por edad y género.
      */
-    private static TopDocs searchInitialQuery(IndexSearcher searcher, StandardAnalyzer analyzer,
+    private static TopDocs searchInitialQuery(IndexSearcher searcher, CombinedFieldQueryBuilder textQueryBuilder,
                                             String queryText, int age, String gender, int topK) throws Exception {
         // Constructor de consulta booleana
         BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder();
 
-        // Campos a consultar en la búsqueda textual
-        String[] fields = {"brief_title", "detailed_description", "criteria"};
-
-        // Analizamos el texto de la query en múltiples campos
-        Query parsedQuery = new MultiFieldQueryParser(fields, analyzer).parse(queryText);
+        // Analizamos el texto de la query una vez y lo puntuamos sobre los tres campos combinados
+        Query parsedQuery;
+        try (QueryTrace.Span span = QueryTrace.current().span("parse")) {
+            parsedQuery = textQueryBuilder.build(queryText);
+            span.attr("query", parsedQuery.getClass().getSimpleName());
+        }
         queryBuilder.add(parsedQuery, BooleanClause.Occur.MUST);
 
         // Filtro por edad mínima y máxima
@@ -140,14 +170,20 @@ public class ClinicalTrialRescoreSearcher {
             queryBuilder.add(genderQ.build(), BooleanClause.Occur.SHOULD);
         }
 
-        // Ejecutamos la búsqueda y devolvemos los topK resultados
-        return searcher.search(queryBuilder.build(), topK);
+        // Ejecutamos la búsqueda y devolvemos los topK resultados (con el profiler de Lucene si se está trazando)
+        QueryTrace trace = QueryTrace.current();
+        try (QueryTrace.Span span = trace.span("bm25")) {
+            TopDocs topDocs = trace.search(searcher, queryBuilder.build(), topK);
+            span.attr("hits", topDocs.scoreDocs.length);
+            return topDocs;
+        }
     }
 
     /**
-     * Convierte un string con vectores separados por comas a un array de floats.
+     * Convierte un string con vectores separados por comas a un array de floats (vector almacenado
+     * del layout completo; se mantiene para las comparativas).
      */
-    private static float[] parseStoredVector(String vectorString) {
+    static float[] parseStoredVector(String vectorString) {
         String[] parts = vectorString.split(",");
         float[] vec = new float[parts.length];
         for (int i = 0; i < parts.length; i++) {
@@ -159,7 +195,7 @@ public class ClinicalTrialRescoreSearcher {
     /**
      * Calcula el producto punto entre dos vectores.
      */
-    private static float dotProduct(float[] a, float[] b) {
+    static float dotProduct(float[] a, float[] b) {
         float sum = 0f;
         for (int i = 0; i < a.length && i < b.length; i++) {
             sum += a[i] * b[i];
@@ -170,14 +206,14 @@ public class ClinicalTrialRescoreSearcher {
     /**
      * Escribe los resultados reordenados en formato TREC.
      */
-    private static void writeResultsTREC(BufferedWriter writer, IndexSearcher searcher,
+    private static void writeResultsTREC(TrecRun.Writer writer, IndexSearcher searcher,
                                          List<ScoredDocument> rescoredDocs, int topicNumber, int topK) throws IOException {
         int rank = 1;
+        StoredFields storedFields = searcher.storedFields();
         for (ScoredDocument sd : rescoredDocs) {
             if (rank > topK) break; // Solo topK documentos
-            Document doc = searcher.doc(sd.docId);
-            String nctId = doc.get("nct_id");
-            writer.write(String.format("%d Q0 %s %d %.4f metodo3_rescore\n", topicNumber, nctId, rank, sd.score));
+            String nctId = storedFields.document(sd.docId, ID_FIELD).get("nct_id"); // Solo se carga el id
+            writer.add(topicNumber, nctId, rank, sd.score);
             rank++;
         }
     }
@@ -0,0 +1,223 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.KnnFloatVectorQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Búsqueda sobre los impactos dispersos aprendidos ({@link SparseVectors}) y comparación con BM25F
+ * y KNN sobre el mismo índice.
+ *
+ * Cada tópico usa su vector disperso precalculado (query_sparse.json) o, si no lo hay, los términos
+ * de la consulta BM25F con peso igual a su frecuencia. Los tres métodos aplican el mismo filtro de
+ * edad y género. El run disperso se escribe en results_sparse.txt.
+ *
+ * Con -Dsparse.compare=true (o el argumento "compare") se ejecutan además BM25F y KNN y se muestra,
+ * por método, la latencia (media, p50 y p95 de la mediana de -Dsparse.repeat ejecuciones por tópico,
+ * tras una pasada de calentamiento) y, si hay qrels, P@10, nDCG@10 y R@100.
+ *
+ * Propiedades: -Dsparse.maxTerms=128 (términos de la consulta), -Dsparse.k=100.
+ */
+public class ClinicalTrialSparseSearcher {
+
+    private static final Set<String> ID_FIELD = Set.of("nct_id");
+
+    /**
+     * Resultados de un método: documentos por tópico y latencia de cada tópico.
+     */
+    private static final class MethodResult {
+        final String name;
+        final Map<Integer, List<String>> rankings = new LinkedHashMap<>();
+        final Map<Integer, float[]> scores = new LinkedHashMap<>();
+        final List<Double> latenciesMs = new ArrayList<>();
+
+        MethodResult(String name) {
+            this.name = name;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String indexPath = "src/main/resources/index";
+        String topicsPath = "src/main/resources/topics_queries_and_narratives.xml";
+        String embeddingsPath = "src/main/resources/query_embeddings.json";
+        String qrelsPath = "src/main/resources/qrels.txt";
+        String outputPath = "src/main/resources/results_sparse.txt";
+        boolean compare = Boolean.getBoolean("sparse.compare") || (args.length > 0 && args[0].equals("compare"));
+        int maxTerms = Integer.getInteger("sparse.maxTerms", 128);
+        int k = Integer.getInteger("sparse.k", 100);
+        int repeat = Math.max(1, Integer.getInteger("sparse.repeat", 3));
+
+        Map<String, SparseVectors.SparseVector> sparseQueries = SparseVectors.loadQueries(
+                System.getProperty("sparse.queries", SparseVectors.DEFAULT_QUERIES));
+        Map<String, float[]> embeddings = compare ? QueryEmbeddings.load(embeddingsPath) : Map.of();
+        List<Topic2> topics = TopicParser2.parseTopics(topicsPath);
+
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)))) {
+            if (reader.getDocCount(SparseVectors.FIELD) == 0) {
+                System.err.println("El índice no tiene impactos dispersos: indexa con -Dindex.sparse=<vectores JSONL>.");
+                return;
+            }
+            IndexSearcher searcher = new IndexSearcher(reader);
+            // Sin caché de consultas: se mide la ejecución, no resultados de filtros cacheados
+            searcher.setQueryCache(null);
+            CombinedFieldQueryBuilder textQueryBuilder = new CombinedFieldQueryBuilder(reader, ClinicalTrialAnalyzer.forQuery());
+
+            // Consultas de cada método construidas por adelantado: solo se mide la búsqueda
+            Map<String, Map<Integer, Query>> methods = new LinkedHashMap<>();
+            methods.put("sparse", new LinkedHashMap<>());
+            if (compare) {
+                methods.put("bm25f", new LinkedHashMap<>());
+                methods.put("knn", new LinkedHashMap<>());
+            }
+            int fromText = 0;
+            for (Topic2 topic : topics) {
+                int topicNumber = topic.getNumber();
+                if (topic.getQuery() == null || topic.getQuery().isEmpty()) {
+                    System.out.println("Saltando tópico " + topicNumber + " por datos insuficientes.");
+                    continue;
+                }
+                Query filter = CascadeRanker.buildFilter(topic.getAge(),
+                        topic.getGender() != null ? topic.getGender().toLowerCase() : null);
+
+                SparseVectors.SparseVector vector = sparseQueries.get(String.valueOf(topicNumber));
+                if (vector == null) {
+                    vector = SparseVectors.fromQueryTerms(textQueryBuilder.queryTerms(topic.getQuery()));
+                    fromText++;
+                }
+                methods.get("sparse").put(topicNumber, filtered(SparseVectors.query(vector, maxTerms), filter));
+
+                if (compare) {
+                    methods.get("bm25f").put(topicNumber, filtered(textQueryBuilder.build(topic.getQuery()), filter));
+                    float[] embedding = embeddings.get(String.valueOf(topicNumber));
+                    if (embedding != null) {
+                        methods.get("knn").put(topicNumber, new KnnFloatVectorQuery(VectorRescorer.VECTOR_FIELD, embedding, k, filter));
+                    }
+                }
+            }
+            if (fromText > 0) {
+                System.out.println(fromText + " tópicos sin vector disperso precalculado: se usan los términos de la consulta.");
+            }
+
+            StoredFields storedFields = reader.storedFields();
+            List<MethodResult> results = new ArrayList<>();
+            for (Map.Entry<String, Map<Integer, Query>> method : methods.entrySet()) {
+                results.add(run(method.getKey(), method.getValue(), searcher, storedFields, k, repeat));
+            }
+
+            try (TrecRun.Writer writer = TrecRun.writer(TrecRun.outputPath(outputPath), "sparse")) {
+                MethodResult sparse = results.get(0);
+                for (Map.Entry<Integer, List<String>> e : sparse.rankings.entrySet()) {
+                    List<String> ids = e.getValue();
+                    float[] scores = sparse.scores.get(e.getKey());
+                    for (int i = 0; i < ids.size(); i++) {
+                        writer.add(e.getKey(), ids.get(i), i + 1, scores[i]);
+                    }
+                }
+            }
+            System.out.println("Búsqueda dispersa completada. Resultados en: " + TrecRun.outputPath(outputPath));
+
+            if (compare) {
+                Map<String, Map<String, Integer>> qrels = Files.exists(Path.of(qrelsPath))
+                        ? Evaluation.parseQrels(qrelsPath) : Collections.emptyMap();
+                printComparison(results, qrels);
+            }
+        }
+    }
+
+    private static Query filtered(Query query, Query filter) {
+        if (filter == null) return query;
+        return new BooleanQuery.Builder()
+                .add(query, BooleanClause.Occur.MUST)
+                .add(filter, BooleanClause.Occur.FILTER)
+                .build();
+    }
+
+    /**
+     * Ejecuta las consultas de un método: una pasada de calentamiento y repeat pasadas medidas.
+     */
+    private static MethodResult run(String name, Map<Integer, Query> queries, IndexSearcher searcher,
+                                    StoredFields storedFields, int k, int repeat) throws Exception {
+        MethodResult result = new MethodResult(name);
+        for (Query query : queries.values()) {
+            searcher.search(query, k);
+        }
+
+        MetricsRegistry metrics = MetricsRegistry.get();
+        long[] times = new long[repeat];
+        for (Map.Entry<Integer, Query> e : queries.entrySet()) {
+            TopDocs topDocs = null;
+            for (int r = 0; r < repeat; r++) {
+                long start = System.nanoTime();
+                topDocs = searcher.search(e.getValue(), k);
+                times[r] = System.nanoTime() - start;
+                metrics.recordQuery(name, times[r], topDocs.scoreDocs.length);
+            }
+            Arrays.sort(times);
+            result.latenciesMs.add(times[repeat / 2] / 1e6);
+
+            List<String> ids = new ArrayList<>(topDocs.scoreDocs.length);
+            float[] scores = new float[topDocs.scoreDocs.length];
+            for (ScoreDoc sd : topDocs.scoreDocs) {
+                scores[ids.size()] = sd.score;
+                ids.add(storedFields.document(sd.doc, ID_FIELD).get("nct_id"));
+            }
+            result.rankings.put(e.getKey(), ids);
+            result.scores.put(e.getKey(), scores);
+        }
+        return result;
+    }
+
+    private static void printComparison(List<MethodResult> results, Map<String, Map<String, Integer>> qrels) {
+        System.out.println();
+        System.out.printf(Locale.US, "%-8s %7s %9s %9s %9s %8s %8s %8s%n",
+                "método", "tópicos", "media ms", "p50 ms", "p95 ms", "P@10", "nDCG@10", "R@100");
+        for (MethodResult r : results) {
+            List<Double> sorted = new ArrayList<>(r.latenciesMs);
+            Collections.sort(sorted);
+            double mean = sorted.stream().mapToDouble(Double::doubleValue).average().orElse(0);
+
+            double p10 = 0, ndcg10 = 0, r100 = 0;
+            int judged = 0;
+            for (Map.Entry<Integer, List<String>> e : r.rankings.entrySet()) {
+                Map<String, Integer> relevant = qrels.get(String.valueOf(e.getKey()));
+                if (relevant == null || relevant.isEmpty()) continue;
+                p10 += Evaluation.precisionAtK(e.getValue(), relevant, 10);
+                ndcg10 += Evaluation.ndcgAtK(e.getValue(), relevant, 10);
+                r100 += Evaluation.recallAtK(e.getValue(), relevant, 100);
+                judged++;
+            }
+            if (judged > 0) {
+                System.out.printf(Locale.US, "%-8s %7d %9.2f %9.2f %9.2f %8.4f %8.4f %8.4f%n", r.name, sorted.size(),
+                        mean, percentile(sorted, 0.5), percentile(sorted, 0.95), p10 / judged, ndcg10 / judged, r100 / judged);
+            } else {
+                System.out.printf(Locale.US, "%-8s %7d %9.2f %9.2f %9.2f %8s %8s %8s%n", r.name, sorted.size(),
+                        mean, percentile(sorted, 0.5), percentile(sorted, 0.95), "-", "-", "-");
+            }
+        }
+    }
+
+    private static double percentile(List<Double> sorted, double p) {
+        if (sorted.isEmpty()) return 0;
+        return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(p * sorted.size()) - 1));
+    }
+}
@@ -0,0 +1,473 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.suggest.InputIterator;
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.search.suggest.analyzing.AnalyzingInfixSuggester;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Autocompletado sobre títulos, condiciones e intervenciones de los ensayos.
+ *
+ * Usa un AnalyzingInfixSuggester sobre un directorio memory-mapped, de modo que las búsquedas
+ * por prefijo (incluso en mitad del texto) se resuelven en memoria. El peso de cada sugerencia es
+ * su frecuencia en la colección; las frecuencias se guardan junto al suggester (weights.tsv) para
+ * poder actualizarlo de forma incremental al añadir nuevos ensayos sin reconstruirlo entero.
+ *
+ * Las frecuencias se cuentan por tipo: un mismo texto puede ser a la vez condición e intervención.
+ * El suggester guarda una sugerencia por texto con todos sus tipos como contextos, la frecuencia
+ * total como peso y el tipo más frecuente como payload.
+ *
+ * Lo que aporta cada ensayo se guarda por NCT ID (trials.tsv): volver a añadir un ensayo sustituye
+ * su aportación anterior y {@link #deleteTrial} la resta, de modo que las actualizaciones del
+ * indexador NRT no inflan los pesos. Las sugerencias que se quedan sin ensayos se eliminan.
+ */
+public class ClinicalTrialSuggester implements Closeable {
+
+    public static final String KIND_TITLE = "title";
+    public static final String KIND_CONDITION = "condition";
+    public static final String KIND_INTERVENTION = "intervention";
+
+    private static final String WEIGHTS_FILE = "weights.tsv";
+    private static final String TRIALS_FILE = "trials.tsv";
+    private static final String CHECKPOINT_PREFIX = "weights-checkpoint-";
+    private static final String TRIALS_CHECKPOINT_PREFIX = "trials-checkpoint-";
+
+    private final Path path;
+    private final MMapDirectory directory;
+    private final Suggester suggester;
+    private final Map<String, Entry> entries = new HashMap<>();
+    // NCT ID -> valores que aportó el ensayo, para restarlos al actualizarlo o eliminarlo
+    private final Map<String, Contribution> trials = new HashMap<>();
+    private final Set<String> dirty = new LinkedHashSet<>();
+    private boolean rebuild;
+    private String lastCheckpoint;
+
+    /**
+     * Abre (o crea) el suggester en el directorio dado.
+     *
+     * @param path directorio del suggester
+     * @param rebuild true para descartar el contenido previo y reconstruirlo en el próximo commit
+     */
+    public ClinicalTrialSuggester(Path path, boolean rebuild) throws IOException {
+        this.path = path;
+        Files.createDirectories(path);
+        this.directory = new MMapDirectory(path);
+        this.suggester = new Suggester(directory);
+        this.rebuild = rebuild;
+        if (!rebuild) {
+            loadWeights(path.resolve(WEIGHTS_FILE));
+            loadTrials(path.resolve(TRIALS_FILE));
+        }
+    }
+
+    /**
+     * Reanuda una reconstrucción interrumpida a partir de las frecuencias guardadas en un
+     * {@link #checkpoint(String)}. El suggester se reconstruye entero en el próximo commit.
+     *
+     * @param tag etiqueta del checkpoint (la que se guardó junto al commit del índice)
+     */
+    public static ClinicalTrialSuggester resume(Path path, String tag) throws IOException {
+        ClinicalTrialSuggester suggester = new ClinicalTrialSuggester(path, true);
+        Path file = path.resolve(CHECKPOINT_PREFIX + tag + ".tsv");
+        if (!Files.exists(file)) {
+            suggester.close();
+            throw new IOException("No existe el checkpoint del suggester: " + file);
+        }
+        suggester.loadWeights(file);
+        suggester.loadTrials(path.resolve(TRIALS_CHECKPOINT_PREFIX + tag + ".tsv"));
+        suggester.lastCheckpoint = tag;
+        return suggester;
+    }
+
+    /**
+     * Guarda las frecuencias acumuladas con la etiqueta dada, sin construir el suggester, para poder
+     * reanudar una reconstrucción con {@link #resume}. Se conservan este checkpoint y el anterior:
+     * si el proceso muere antes de confirmar el índice, el índice sigue apuntando al anterior.
+     */
+    public synchronized void checkpoint(String tag) throws IOException {
+        saveTrials(path.resolve(TRIALS_CHECKPOINT_PREFIX + tag + ".tsv"));
+        saveWeights(path.resolve(CHECKPOINT_PREFIX + tag + ".tsv"));
+        for (String prefix : List.of(CHECKPOINT_PREFIX, TRIALS_CHECKPOINT_PREFIX)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(path, prefix + "*.tsv")) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    String fileTag = name.substring(prefix.length(), name.length() - ".tsv".length());
+                    if (!fileTag.equals(tag) && !fileTag.equals(lastCheckpoint)) {
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
+        lastCheckpoint = tag;
+    }
+
+    /**
+     * Registra los valores de un ensayo, sustituyendo los que aportó antes el mismo NCT ID. Los
+     * cambios son visibles tras {@link #commit()}.
+     */
+    public synchronized void addTrial(ClinicalTrial trial) {
+        String nctId = trial.getNctId();
+        if (nctId != null) {
+            remove(trials.remove(nctId));
+        }
+        List<String> kinds = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        add(trial.getBriefTitle(), KIND_TITLE, kinds, texts);
+        if (trial.getConditions() != null) {
+            for (String condition : trial.getConditions()) add(condition, KIND_CONDITION, kinds, texts);
+        }
+        if (trial.getInterventions() != null) {
+            for (String intervention : trial.getInterventions()) add(intervention, KIND_INTERVENTION, kinds, texts);
+        }
+        if (nctId != null && !texts.isEmpty()) {
+            trials.put(nctId, new Contribution(kinds.toArray(new String[0]), texts.toArray(new String[0])));
+        }
+    }
+
+    /**
+     * Resta los valores que aportó un ensayo eliminado. Los cambios son visibles tras {@link #commit()}.
+     */
+    public synchronized void deleteTrial(String nctId) {
+        remove(trials.remove(nctId));
+    }
+
+    private void add(String value, String kind, List<String> kinds, List<String> texts) {
+        if (value == null) return;
+        String text = value.replaceAll("\\s+", " ").trim();
+        if (text.isEmpty() || text.equals("N/A")) return;
+
+        entries.computeIfAbsent(text, k -> new Entry()).weights.merge(kind, 1L, Long::sum);
+        if (!rebuild) dirty.add(text);
+        kinds.add(kind);
+        texts.add(text);
+    }
+
+    private void remove(Contribution contribution) {
+        if (contribution == null) return;
+        for (int i = 0; i < contribution.texts.length; i++) {
+            String text = contribution.texts[i];
+            Entry entry = entries.get(text);
+            if (entry == null) continue;
+            entry.weights.computeIfPresent(contribution.kinds[i], (k, w) -> w > 1 ? w - 1 : null);
+            if (entry.weights.isEmpty()) entries.remove(text);
+            if (!rebuild) dirty.add(text);
+        }
+    }
+
+    /**
+     * Persiste los cambios: reconstruye el suggester completo si se abrió en modo rebuild o
+     * actualiza solo las entradas modificadas en caso contrario.
+     */
+    public synchronized void commit() throws IOException {
+        if (rebuild) {
+            suggester.build(new EntryIterator(new ArrayList<>(entries.keySet())));
+            rebuild = false;
+        } else if (!dirty.isEmpty()) {
+            for (String text : dirty) {
+                Entry entry = entries.get(text);
+                if (entry == null) {
+                    suggester.remove(text); // ya no la aporta ningún ensayo
+                } else {
+                    suggester.update(new BytesRef(text), entry.contexts(), entry.total(), new BytesRef(entry.kind()));
+                }
+            }
+            suggester.commit();
+            suggester.refresh();
+        }
+        dirty.clear();
+        saveTrials(path.resolve(TRIALS_FILE));
+        saveWeights(path.resolve(WEIGHTS_FILE));
+        deleteCheckpoints();
+    }
+
+    private void deleteCheckpoints() throws IOException {
+        for (String prefix : List.of(CHECKPOINT_PREFIX, TRIALS_CHECKPOINT_PREFIX)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(path, prefix + "*.tsv")) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+        }
+        lastCheckpoint = null;
+    }
+
+    /**
+     * Devuelve las mejores sugerencias para el texto escrito hasta el momento.
+     *
+     * @param prefix texto introducido por el usuario
+     * @param kind tipo de sugerencia (title, condition, intervention) o null para todos
+     * @param num número máximo de sugerencias
+     */
+    public List<LookupResult> lookup(String prefix, String kind, int num) throws IOException {
+        if (suggester.getCount() == 0) return Collections.emptyList();
+        return suggester.lookup(prefix, kind != null ? contexts(kind) : null, num, true, false);
+    }
+
+    private static Set<BytesRef> contexts(String kind) {
+        return Collections.singleton(new BytesRef(kind));
+    }
+
+    private void loadWeights(Path file) throws IOException {
+        if (!Files.exists(file)) return;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int first = line.indexOf('\t');
+                int second = line.indexOf('\t', first + 1);
+                if (first < 0 || second < 0) continue;
+                entries.computeIfAbsent(line.substring(second + 1), k -> new Entry())
+                        .weights.put(line.substring(0, first), Long.parseLong(line.substring(first + 1, second)));
+            }
+        }
+    }
+
+    /**
+     * Carga las aportaciones por ensayo (nct_id, tipo, texto por línea). Un suggester anterior sin
+     * este archivo sigue funcionando, pero no puede restar lo que aportaron sus ensayos.
+     */
+    private void loadTrials(Path file) throws IOException {
+        if (!Files.exists(file)) return;
+        Map<String, List<String[]>> byTrial = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int first = line.indexOf('\t');
+                int second = line.indexOf('\t', first + 1);
+                if (first < 0 || second < 0) continue;
+                byTrial.computeIfAbsent(line.substring(0, first), k -> new ArrayList<>())
+                        .add(new String[] {line.substring(first + 1, second).intern(), line.substring(second + 1)});
+            }
+        }
+        for (Map.Entry<String, List<String[]>> e : byTrial.entrySet()) {
+            List<String[]> values = e.getValue();
+            String[] kinds = new String[values.size()];
+            String[] texts = new String[values.size()];
+            for (int i = 0; i < kinds.length; i++) {
+                kinds[i] = values.get(i)[0];
+                texts[i] = values.get(i)[1];
+            }
+            trials.put(e.getKey(), new Contribution(kinds, texts));
+        }
+    }
+
+    private void saveTrials(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Contribution> e : trials.entrySet()) {
+                Contribution c = e.getValue();
+                for (int i = 0; i < c.texts.length; i++) {
+                    writer.write(e.getKey());
+                    writer.write('\t');
+                    writer.write(c.kinds[i]);
+                    writer.write('\t');
+                    writer.write(c.texts[i]);
+                    writer.newLine();
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void saveWeights(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                for (Map.Entry<String, Long> w : e.getValue().weights.entrySet()) {
+                    writer.write(w.getKey());
+                    writer.write('\t');
+                    writer.write(Long.toString(w.getValue()));
+                    writer.write('\t');
+                    writer.write(e.getKey());
+                    writer.newLine();
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        suggester.close();
+        directory.close();
+    }
+
+    /**
+     * Frecuencias de un texto por tipo (title, condition, intervention).
+     */
+    private static class Entry {
+        final Map<String, Long> weights = new TreeMap<>();
+
+        long total() {
+            long total = 0;
+            for (long w : weights.values()) total += w;
+            return total;
+        }
+
+        /** Tipo más frecuente; en caso de empate, el primero en orden alfabético. */
+        String kind() {
+            String kind = null;
+            long max = -1;
+            for (Map.Entry<String, Long> w : weights.entrySet()) {
+                if (w.getValue() > max) {
+                    kind = w.getKey();
+                    max = w.getValue();
+                }
+            }
+            return kind;
+        }
+
+        Set<BytesRef> contexts() {
+            Set<BytesRef> contexts = new HashSet<>();
+            for (String kind : weights.keySet()) contexts.add(new BytesRef(kind));
+            return contexts;
+        }
+    }
+
+    /**
+     * Valores que aportó un ensayo: el tipo y el texto normalizado de cada uno.
+     */
+    private static final class Contribution {
+        final String[] kinds;
+        final String[] texts;
+
+        Contribution(String[] kinds, String[] texts) {
+            this.kinds = kinds;
+            this.texts = texts;
+        }
+    }
+
+    /**
+     * AnalyzingInfixSuggester que permite eliminar una sugerencia.
+     */
+    private static final class Suggester extends AnalyzingInfixSuggester {
+        Suggester(MMapDirectory directory) throws IOException {
+            super(directory, new StandardAnalyzer());
+        }
+
+        void remove(String text) throws IOException {
+            // update() abre el escritor si aún no lo está; el documento se borra a continuación
+            update(new BytesRef(text), null, 0, null);
+            writer.deleteDocuments(new Term(EXACT_TEXT_FIELD_NAME, text));
+        }
+    }
+
+    /**
+     * Iterador de entrada para la construcción completa del suggester.
+     */
+    private class EntryIterator implements InputIterator {
+        private final Iterator<String> texts;
+        private Entry current;
+
+        EntryIterator(List<String> texts) {
+            this.texts = texts.iterator();
+        }
+
+        @Override
+        public BytesRef next() {
+            if (!texts.hasNext()) return null;
+            String text = texts.next();
+            current = entries.get(text);
+            return new BytesRef(text);
+        }
+
+        @Override
+        public long weight() {
+            return current.total();
+        }
+
+        @Override
+        public BytesRef payload() {
+            return new BytesRef(current.kind());
+        }
+
+        @Override
+        public boolean hasPayloads() {
+            return true;
+        }
+
+        @Override
+        public Set<BytesRef> contexts() {
+            return current.contexts();
+        }
+
+        @Override
+        public boolean hasContexts() {
+            return true;
+        }
+    }
+
+    /**
+     * Benchmark de latencia de lookup: genera prefijos a partir de las sugerencias más frecuentes
+     * y mide la latencia de cada consulta, mostrando los percentiles p50, p99 y p99.9.
+     */
+    public static void main(String[] args) throws Exception {
+        String suggestPath = args.length > 0 ? args[0] : "src/main/resources/suggest";
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+
+        try (ClinicalTrialSuggester suggester = new ClinicalTrialSuggester(Path.of(suggestPath), false)) {
+            List<String> prefixes = new ArrayList<>();
+            List<Map.Entry<String, Entry>> top = new ArrayList<>(suggester.entries.entrySet());
+            top.sort((a, b) -> Long.compare(b.getValue().total(), a.getValue().total()));
+            for (Map.Entry<String, Entry> e : top.subList(0, Math.min(1000, top.size()))) {
+                String text = e.getKey().toLowerCase();
+                for (int len = 2; len <= Math.min(8, text.length()); len += 2) {
+                    prefixes.add(text.substring(0, len));
+                }
+            }
+            if (prefixes.isEmpty()) {
+                System.out.println("El suggester está vacío: " + suggestPath);
+                return;
+            }
+
+            // Calentamiento
+            for (int i = 0; i < 10_000; i++) {
+                suggester.lookup(prefixes.get(i % prefixes.size()), null, 10);
+            }
+
+            long[] latencies = new long[iterations];
+            for (int i = 0; i < iterations; i++) {
+                String prefix = prefixes.get(i % prefixes.size());
+                long start = System.nanoTime();
+                suggester.lookup(prefix, null, 10);
+                latencies[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(latencies);
+
+            System.out.println("Sugerencias: " + suggester.entries.size() + " | Prefijos: " + prefixes.size()
+                    + " | Lookups: " + iterations);
+            System.out.printf("p50: %.1f µs%n", latencies[(int) (iterations * 0.50)] / 1000.0);
+            System.out.printf("p99: %.1f µs%n", latencies[(int) (iterations * 0.99)] / 1000.0);
+            System.out.printf("p99.9: %.1f µs%n", latencies[(int) (iterations * 0.999)] / 1000.0);
+            System.out.printf("max: %.1f µs%n", latencies[iterations - 1] / 1000.0);
+
+            System.out.println("\nEjemplo '" + prefixes.get(0) + "':");
+            for (LookupResult result : suggester.lookup(prefixes.get(0), null, 5)) {
+                System.out.println("  " + result.key + " (" + result.value + ", " + result.payload.utf8ToString() + ")");
+            }
+        }
+    }
+}
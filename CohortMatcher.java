@@ -0,0 +1,423 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.store.FSDirectory;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Trabajo por lotes que cruza una cohorte completa de pacientes con todos los ensayos.
+ *
+ * Los pacientes se leen de un JSONL sin cargarlo entero, uno por línea:
+ * {"patient_id":"P000001","age":54,"gender":"female","conditions":["type 2 diabetes","obesity"],
+ *  "text":"...","embedding":[0.01, ...]}
+ * (conditions puede ser un texto o una lista; text y embedding son opcionales).
+ *
+ * Cada paciente se busca con el {@link CascadeRanker} (BM25 filtrado por edad y género, fusionado
+ * con KNN si hay embedding, según la configuración de la cascada) en un pool de hilos. El hilo
+ * lector solo separa líneas; el parseo del JSON y la búsqueda se hacen en los trabajadores.
+ *
+ * - Contrapresión: como mucho cohort.queue pacientes en vuelo (leídos y aún no escritos); el lector
+ *   se bloquea hasta que el escritor libera sitio.
+ * - Salida compacta en el orden de entrada, una línea por paciente: patient_id TAB NCT:score NCT:score...
+ * - Checkpoint cada cohort.checkpointEvery pacientes: posición en bytes de la entrada y tamaño de la
+ *   salida ya sincronizada. Con -Dcohort.resume=true se trunca la salida a ese tamaño y se sigue
+ *   leyendo desde esa posición, de modo que ningún paciente se escribe dos veces.
+ * - Progreso cada cohort.reportSeconds con los pacientes por segundo.
+ *
+ * Uso: CohortMatcher [pacientes.jsonl] [salida.tsv] [cascade.json]
+ */
+public class CohortMatcher {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private static final Set<String> ID_FIELD = Set.of("nct_id");
+    private static final Future<Match> END = CompletableFuture.completedFuture(null);
+
+    private final CascadeRanker ranker;
+    private final int threads;
+    private final int maxInFlight;
+    private final int checkpointEvery;
+    private final long reportNanos;
+    private final ThreadLocal<StoredFields> storedFields;
+    private final MetricsRegistry.Counter matchedCounter;
+    private final MetricsRegistry.Counter errorCounter;
+    private volatile Throwable failure;
+
+    public CohortMatcher(IndexReader reader, CascadeRanker.CascadeConfig config, int threads, int maxInFlight,
+                         int checkpointEvery, long reportSeconds) throws IOException {
+        this.ranker = new CascadeRanker(reader, ClinicalTrialAnalyzer.forQuery(), config);
+        this.threads = threads;
+        this.maxInFlight = maxInFlight;
+        this.checkpointEvery = checkpointEvery;
+        this.reportNanos = TimeUnit.SECONDS.toNanos(reportSeconds);
+        // StoredFields no es seguro entre hilos: uno por trabajador
+        this.storedFields = ThreadLocal.withInitial(() -> {
+            try {
+                return reader.storedFields();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        MetricsRegistry metrics = MetricsRegistry.get();
+        this.matchedCounter = metrics.counter("cohort_patients_total", "Pacientes procesados por el cruce de cohortes", "result", "matched");
+        this.errorCounter = metrics.counter("cohort_patients_total", "Pacientes procesados por el cruce de cohortes", "result", "error");
+    }
+
+    /**
+     * Estado persistido del trabajo. Todo lo anterior a inputOffset está escrito en los primeros
+     * outputBytes bytes de la salida.
+     */
+    public static class Checkpoint {
+        public long inputOffset;
+        public long lines;
+        public long patients;
+        public long errors;
+        public long outputBytes;
+        public boolean complete;
+    }
+
+    /**
+     * Resultado de un paciente: la línea de salida (null si ha fallado) y la posición de la entrada
+     * tras su línea.
+     */
+    private static class Match {
+        final long lineNumber;
+        final long endOffset;
+        final byte[] line;
+
+        Match(long lineNumber, long endOffset, byte[] line) {
+            this.lineNumber = lineNumber;
+            this.endOffset = endOffset;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Ejecuta el cruce completo (o lo reanuda desde el último checkpoint).
+     */
+    public void run(Path patientsPath, Path outputPath, boolean resume) throws Exception {
+        Path checkpointPath = outputPath.resolveSibling(outputPath.getFileName() + ".checkpoint");
+        Checkpoint checkpoint = resume && Files.exists(checkpointPath)
+                ? MAPPER.readValue(checkpointPath.toFile(), Checkpoint.class) : new Checkpoint();
+        if (checkpoint.complete) {
+            System.out.println("El cruce ya está completo: " + checkpoint.patients + " pacientes en " + outputPath);
+            return;
+        }
+        if (checkpoint.patients > 0) {
+            System.out.println("Reanudando tras " + checkpoint.patients + " pacientes (línea " + checkpoint.lines
+                    + ", byte " + checkpoint.inputOffset + ")");
+        }
+
+        AtomicInteger workerId = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "cohort-worker-" + workerId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        BlockingQueue<Future<Match>> pending = new LinkedBlockingQueue<>();
+        Semaphore inFlight = new Semaphore(maxInFlight);
+
+        try (FileChannel output = FileChannel.open(outputPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             LineReader in = new LineReader(Files.newInputStream(patientsPath), checkpoint.inputOffset)) {
+            // Se descarta lo escrito después del último checkpoint: esos pacientes se vuelven a procesar
+            output.truncate(checkpoint.outputBytes);
+            output.position(checkpoint.outputBytes);
+
+            // Daemon: si el lector se interrumpe y no llega a esperarlo, no impide que la JVM termine
+            Thread writer = new Thread(() -> writeResults(pending, inFlight, output, checkpoint, checkpointPath), "cohort-writer");
+            writer.setDaemon(true);
+            writer.start();
+
+            try {
+                long lineNumber = checkpoint.lines;
+                String line;
+                while (failure == null && (line = in.readLine()) != null) {
+                    lineNumber++;
+                    if (line.isBlank()) continue;
+                    inFlight.acquire();
+                    final String json = line;
+                    final long number = lineNumber;
+                    final long endOffset = in.offset();
+                    pending.put(workers.submit(() -> match(json, number, endOffset)));
+                }
+            } catch (Exception e) {
+                // Con un fallo de lectura el escritor vacía la cola sin escribir ni marcar el cruce como completo
+                if (failure == null) failure = e;
+                throw e;
+            } finally {
+                pending.offer(END); // cola sin límite: no bloquea ni depende del estado de interrupción
+                writer.join();
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+
+        if (failure != null) {
+            throw new IOException("El cruce se ha detenido; se puede reanudar con -Dcohort.resume=true", failure);
+        }
+    }
+
+    /**
+     * Parsea el paciente, ejecuta la cascada y formatea la línea de salida. Los errores del paciente
+     * se registran y no detienen el trabajo.
+     */
+    private Match match(String json, long lineNumber, long endOffset) {
+        try {
+            JsonNode node = MAPPER.readTree(json);
+            String patientId = node.has("patient_id") ? node.get("patient_id").asText() : "line-" + lineNumber;
+            String queryText = queryText(node);
+            if (queryText.isBlank()) {
+                throw new IllegalArgumentException("sin condiciones ni texto");
+            }
+
+            float[] embedding = null;
+            JsonNode array = node.get("embedding");
+            if (array != null && array.isArray() && array.size() > 0) {
+                embedding = new float[array.size()];
+                for (int i = 0; i < embedding.length; i++) {
+                    embedding[i] = (float) array.get(i).asDouble();
+                }
+            }
+            String gender = node.has("gender") ? node.get("gender").asText().toLowerCase(Locale.ROOT) : "unknown";
+            int age = node.has("age") ? node.get("age").asInt(-1) : -1;
+
+            CascadeRanker.Request request = new CascadeRanker.Request((int) Math.min(lineNumber, Integer.MAX_VALUE),
+                    queryText, age, gender, embedding);
+            CascadeRanker.Result result = ranker.rank(request);
+
+            StoredFields fields = storedFields.get();
+            StringBuilder sb = new StringBuilder(patientId.length() + 24 * result.ranking.size() + 2);
+            sb.append(patientId).append('\t');
+            for (int i = 0; i < result.ranking.size(); i++) {
+                CascadeRanker.Candidate c = result.ranking.get(i);
+                if (i > 0) sb.append(' ');
+                sb.append(fields.document(c.docId, ID_FIELD).get("nct_id")).append(':');
+                TrecRun.appendScore(sb, c.score);
+            }
+            sb.append('\n');
+            matchedCounter.inc();
+            return new Match(lineNumber, endOffset, sb.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            System.err.println("Línea " + lineNumber + ": " + e.getMessage());
+            errorCounter.inc();
+            return new Match(lineNumber, endOffset, null);
+        }
+    }
+
+    /**
+     * Texto de la consulta: las condiciones (texto o lista) y el texto libre del paciente.
+     */
+    static String queryText(JsonNode node) {
+        StringBuilder sb = new StringBuilder();
+        JsonNode conditions = node.get("conditions");
+        if (conditions != null && conditions.isArray()) {
+            for (int i = 0; i < conditions.size(); i++) {
+                sb.append(conditions.get(i).asText()).append(' ');
+            }
+        } else if (conditions != null) {
+            sb.append(conditions.asText()).append(' ');
+        }
+        if (node.has("text")) {
+            sb.append(node.get("text").asText());
+        }
+        return sb.toString().trim();
+    }
+
+    /**
+     * Hilo escritor: escribe los resultados en el orden de entrada, hace los checkpoints y muestra
+     * el progreso. Si falla, sigue liberando los pacientes en vuelo para que el lector no se bloquee.
+     */
+    private void writeResults(BlockingQueue<Future<Match>> pending, Semaphore inFlight, FileChannel channel,
+                              Checkpoint checkpoint, Path checkpointPath) {
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+        long start = System.nanoTime();
+        long lastReport = start;
+        long reportedPatients = 0;
+        long processed = 0;
+
+        try {
+            while (true) {
+                Future<Match> future = pending.take();
+                if (future == END) break;
+                Match match;
+                try {
+                    match = future.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Error inesperado en un trabajador", e.getCause());
+                }
+                inFlight.release();
+                if (failure != null) continue;
+
+                if (match.line != null) {
+                    out.write(match.line);
+                    checkpoint.outputBytes += match.line.length;
+                } else {
+                    checkpoint.errors++;
+                }
+                checkpoint.patients++;
+                checkpoint.lines = match.lineNumber;
+                checkpoint.inputOffset = match.endOffset;
+                processed++;
+
+                if (processed % checkpointEvery == 0) {
+                    saveCheckpoint(out, channel, checkpoint, checkpointPath);
+                }
+                long now = System.nanoTime();
+                if (now - lastReport >= reportNanos) {
+                    System.out.printf(Locale.US, "%d pacientes | %.1f pacientes/s (%.1f de media) | %d errores | %d en vuelo%n",
+                            checkpoint.patients, (processed - reportedPatients) / ((now - lastReport) / 1e9),
+                            processed / ((now - start) / 1e9), checkpoint.errors, maxInFlight - inFlight.availablePermits());
+                    lastReport = now;
+                    reportedPatients = processed;
+                }
+            }
+
+            if (failure == null) {
+                checkpoint.complete = true;
+                saveCheckpoint(out, channel, checkpoint, checkpointPath);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf(Locale.US, "Cruce completado: %d pacientes en esta ejecución (%d en total, %d errores) en %.1f s | %.1f pacientes/s%n",
+                        processed, checkpoint.patients, checkpoint.errors, seconds, processed / seconds);
+            }
+        } catch (Exception e) {
+            failure = e;
+            // Se liberan los pacientes que queden en vuelo para desbloquear al lector
+            try {
+                for (Future<Match> future = pending.take(); future != END; future = pending.take()) {
+                    inFlight.release();
+                }
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Sincroniza la salida y guarda el checkpoint de forma atómica.
+     */
+    private static void saveCheckpoint(OutputStream out, FileChannel channel, Checkpoint checkpoint, Path checkpointPath) throws IOException {
+        out.flush();
+        channel.force(false);
+        Path tmp = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        MAPPER.writeValue(tmp.toFile(), checkpoint);
+        Files.move(tmp, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Lector de líneas UTF-8 que lleva la cuenta de la posición en bytes, para poder reanudar la
+     * lectura en mitad del archivo.
+     */
+    private static final class LineReader implements Closeable {
+        private final InputStream in;
+        private final byte[] buffer = new byte[1 << 16];
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(8192);
+        private int pos;
+        private int limit;
+        private long offset;
+
+        LineReader(InputStream in, long offset) throws IOException {
+            this.in = in;
+            this.offset = offset;
+            in.skipNBytes(offset);
+        }
+
+        /**
+         * Posición en bytes tras la última línea leída.
+         */
+        long offset() {
+            return offset;
+        }
+
+        String readLine() throws IOException {
+            line.reset();
+            boolean read = false;
+            while (true) {
+                if (pos == limit) {
+                    limit = in.read(buffer);
+                    pos = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        return read ? decode() : null;
+                    }
+                }
+                read = true;
+                int start = pos;
+                while (pos < limit && buffer[pos] != '\n') pos++;
+                line.write(buffer, start, pos - start);
+                offset += pos - start;
+                if (pos < limit) {
+                    pos++; // salto de línea
+                    offset++;
+                    return decode();
+                }
+            }
+        }
+
+        private String decode() {
+            String s = line.toString(StandardCharsets.UTF_8);
+            return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String patientsPath = args.length > 0 ? args[0] : "src/main/resources/patients.jsonl";
+        String outputPath = args.length > 1 ? args[1] : "src/main/resources/cohort_matches.tsv";
+        String configPath = args.length > 2 ? args[2] : "src/main/resources/cascade.json";
+        String indexPath = "src/main/resources/index";
+
+        int threads = Integer.getInteger("cohort.threads", Runtime.getRuntime().availableProcessors());
+        int maxInFlight = Integer.getInteger("cohort.queue", threads * 64);
+        int checkpointEvery = Integer.getInteger("cohort.checkpointEvery", 10_000);
+        long reportSeconds = Long.getLong("cohort.reportSeconds", 10);
+        boolean resume = Boolean.getBoolean("cohort.resume");
+
+        CascadeRanker.CascadeConfig config = CascadeRanker.loadConfig(configPath);
+        Integer topK = Integer.getInteger("cohort.topK");
+        if (topK != null) config.topK = topK;
+
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)))) {
+            System.out.println("Índice: " + reader.numDocs() + " ensayos | Hilos: " + threads + " | En vuelo: " + maxInFlight
+                    + " | Top-k: " + config.topK);
+            new CohortMatcher(reader, config, threads, maxInFlight, checkpointEvery, reportSeconds)
+                    .run(Path.of(patientsPath), Path.of(outputPath), resume);
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.synonym.SynonymGraphFilter;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.sandbox.search.CombinedFieldQuery;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SynonymQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.graph.GraphTokenStreamFiniteStrings;
+
+/**
+ * Construye la parte textual de las consultas léxicas con semántica BM25F.
+ *
+ * MultiFieldQueryParser expande cada término en una TermQuery por campo: una narrativa de 60
+ * términos acaba en una disyunción de 180 cláusulas, cada campo puntúa con sus propias
+ * estadísticas y un término que aparece en los tres campos cuenta tres veces. Aquí, en cambio:
+ * - El texto se analiza una sola vez y los términos repetidos se agrupan; la frecuencia en la
+ *   consulta pasa a ser el boost del término.
+ * - Cada término es una CombinedFieldQuery sobre brief_title, detailed_description y criteria con
+ *   pesos (BM25F): los campos se puntúan como un único campo combinado.
+ * - Los sinónimos del analizador de consulta respetan el grafo de tokens: los de un solo término en
+ *   la misma posición van en la misma CombinedFieldQuery (varios addTerm, puntuados como un único
+ *   término), y los de varios términos ("myocardial infarction" para "MI") son frases en cada campo.
+ *   Las alternativas de una misma posición se combinan con una DisjunctionMaxQuery, de modo que un
+ *   documento que contiene varias no cuenta el concepto más de una vez.
+ * - Se podan los términos casi vacíos (IDF por debajo de bm25f.minIdf, p. ej. "the" o "patients",
+ *   ya que el analizador no elimina palabras vacías) y, si quedan más de bm25f.maxTerms, los de
+ *   menor tf·IDF. Con menos cláusulas, la poda dinámica (WAND) descarta antes los documentos.
+ *
+ * Propiedades: -Dbm25f.weights=brief_title:1,detailed_description:1,criteria:1 (pesos ≥ 1),
+ * -Dbm25f.minIdf=1.0, -Dbm25f.maxTerms=64 (0 = sin límite). Con -Dquery.mode=multifield se usa el
+ * MultiFieldQueryParser anterior, para comparar.
+ *
+ * Es thread-safe: no guarda estado entre consultas.
+ */
+public class CombinedFieldQueryBuilder {
+
+    public static final String[] TEXT_FIELDS = {"brief_title", "detailed_description", "criteria"};
+    public static final String DEFAULT_WEIGHTS = "brief_title:1.0,detailed_description:1.0,criteria:1.0";
+
+    private static final boolean MULTIFIELD = "multifield".equals(System.getProperty("query.mode", "bm25f"));
+
+    private final IndexReader reader;
+    private final Analyzer analyzer;
+    private final Map<String, Float> weights;
+    private final double minIdf;
+    private final int maxTerms;
+
+    /**
+     * Constructor con la configuración de las propiedades del sistema.
+     *
+     * @param reader índice del que se toman las estadísticas para la poda, o null para no podar
+     */
+    public CombinedFieldQueryBuilder(IndexReader reader, Analyzer analyzer) {
+        this(reader, analyzer, parseWeights(System.getProperty("bm25f.weights", DEFAULT_WEIGHTS)),
+                Double.parseDouble(System.getProperty("bm25f.minIdf", "1.0")), Integer.getInteger("bm25f.maxTerms", 64));
+    }
+
+    public CombinedFieldQueryBuilder(IndexReader reader, Analyzer analyzer, Map<String, Float> weights,
+                                     double minIdf, int maxTerms) {
+        for (Map.Entry<String, Float> e : weights.entrySet()) {
+            if (e.getValue() < 1f) {
+                throw new IllegalArgumentException("El peso del campo " + e.getKey() + " debe ser ≥ 1: " + e.getValue());
+            }
+        }
+        this.reader = reader;
+        this.analyzer = analyzer;
+        this.weights = weights;
+        this.minIdf = minIdf;
+        this.maxTerms = maxTerms;
+    }
+
+    /**
+     * Lee los pesos con el formato campo:peso,campo:peso.
+     */
+    static Map<String, Float> parseWeights(String spec) {
+        Map<String, Float> weights = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split(":");
+            weights.put(kv[0].trim(), kv.length > 1 ? Float.parseFloat(kv[1].trim()) : 1f);
+        }
+        return weights;
+    }
+
+    /**
+     * Unidad de la consulta: un tramo del grafo de tokens con sus alternativas. Sin sinónimos es un
+     * único término; con ellos, los términos sueltos de la posición y las frases de varios términos.
+     */
+    static final class QueryUnit {
+        final List<String> terms;
+        final List<String[]> phrases;
+        int tf = 1;
+        double idf;
+
+        QueryUnit(List<String> terms, List<String[]> phrases) {
+            this.terms = terms;
+            this.phrases = phrases;
+        }
+
+        /** Identifica la unidad independientemente del orden de las alternativas. */
+        String key() {
+            TreeSet<String> alternatives = new TreeSet<>(terms);
+            for (String[] phrase : phrases) alternatives.add(String.join(" ", phrase));
+            return String.join("|", alternatives);
+        }
+    }
+
+    /**
+     * Consulta textual para el texto libre dado (no se interpreta la sintaxis de QueryParser).
+     */
+    public Query build(String text) throws IOException {
+        if (MULTIFIELD) {
+            try {
+                return new MultiFieldQueryParser(weights.keySet().toArray(new String[0]), analyzer).parse(QueryParser.escape(text));
+            } catch (ParseException e) {
+                throw new IOException("Consulta no válida: " + e.getMessage(), e);
+            }
+        }
+
+        List<QueryUnit> units = units(text);
+        if (units.isEmpty()) {
+            return new MatchNoDocsQuery("Consulta sin términos");
+        }
+
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (QueryUnit unit : units) {
+            List<Query> alternatives = new ArrayList<>(1 + unit.phrases.size());
+            if (!unit.terms.isEmpty()) {
+                CombinedFieldQuery.Builder combined = new CombinedFieldQuery.Builder();
+                for (Map.Entry<String, Float> field : weights.entrySet()) {
+                    combined.addField(field.getKey(), field.getValue());
+                }
+                for (String term : unit.terms) {
+                    combined.addTerm(new BytesRef(term));
+                }
+                alternatives.add(combined.build());
+            }
+            for (String[] phrase : unit.phrases) {
+                // CombinedFieldQuery no admite frases: cada campo se puntúa por separado y cuenta el mejor
+                List<Query> perField = new ArrayList<>(weights.size());
+                for (Map.Entry<String, Float> field : weights.entrySet()) {
+                    Query query = new PhraseQuery(field.getKey(), phrase);
+                    perField.add(field.getValue() != 1f ? new BoostQuery(query, field.getValue()) : query);
+                }
+                alternatives.add(new DisjunctionMaxQuery(perField, 0f));
+            }
+            Query query = alternatives.size() == 1 ? alternatives.get(0) : new DisjunctionMaxQuery(alternatives, 0f);
+            builder.add(unit.tf > 1 ? new BoostQuery(query, unit.tf) : query, BooleanClause.Occur.SHOULD);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Unidades que conserva la consulta BM25F (tras la poda), en orden de aparición.
+     */
+    List<QueryUnit> units(String text) throws IOException {
+        List<QueryUnit> units = analyze(text);
+        int analyzed = units.size();
+        if (reader != null && !units.isEmpty()) {
+            units = prune(units);
+        }
+        QueryTrace.current().attr("query_terms", analyzed).attr("query_terms_kept", units.size());
+        return units;
+    }
+
+    /**
+     * Las mismas unidades puntuadas sobre un solo campo, para calcular el BM25 campo a campo
+     * (LtrFeatureExtractor): los sinónimos de un término son una SynonymQuery y los de varios
+     * términos, una frase.
+     *
+     * @return consulta del campo, o null si no hay unidades
+     */
+    static Query fieldQuery(List<QueryUnit> units, String field) {
+        if (units.isEmpty()) return null;
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (QueryUnit unit : units) {
+            List<Query> alternatives = new ArrayList<>(1 + unit.phrases.size());
+            if (unit.terms.size() == 1) {
+                alternatives.add(new TermQuery(new Term(field, unit.terms.get(0))));
+            } else if (!unit.terms.isEmpty()) {
+                SynonymQuery.Builder synonyms = new SynonymQuery.Builder(field);
+                for (String term : unit.terms) {
+                    synonyms.addTerm(new Term(field, term));
+                }
+                alternatives.add(synonyms.build());
+            }
+            for (String[] phrase : unit.phrases) {
+                alternatives.add(new PhraseQuery(field, phrase));
+            }
+            Query query = alternatives.size() == 1 ? alternatives.get(0) : new DisjunctionMaxQuery(alternatives, 0f);
+            builder.add(unit.tf > 1 ? new BoostQuery(query, unit.tf) : query, BooleanClause.Occur.SHOULD);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Términos originales de la consulta, sin los sinónimos que añade el analizador, con su
+     * frecuencia en el texto y tras la misma poda que la consulta BM25F. Los usa como vector disperso
+     * de respaldo ClinicalTrialSparseSearcher, que no puede representar frases.
+     */
+    Map<String, Integer> queryTerms(String text) throws IOException {
+        Map<String, QueryUnit> originals = new LinkedHashMap<>();
+        try (TokenStream stream = analyzer.tokenStream(weights.keySet().iterator().next(), text)) {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            TypeAttribute type = stream.addAttribute(TypeAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                if (SynonymGraphFilter.TYPE_SYNONYM.equals(type.type())) continue;
+                QueryUnit unit = originals.get(term.toString());
+                if (unit != null) {
+                    unit.tf++;
+                } else {
+                    originals.put(term.toString(), new QueryUnit(List.of(term.toString()), List.of()));
+                }
+            }
+            stream.end();
+        }
+        List<QueryUnit> units = new ArrayList<>(originals.values());
+        if (reader != null && !units.isEmpty()) {
+            units = prune(units);
+        }
+        Map<String, Integer> kept = new LinkedHashMap<>();
+        for (QueryUnit unit : units) {
+            kept.put(unit.terms.get(0), unit.tf);
+        }
+        return kept;
+    }
+
+    /**
+     * Unidades de la consulta en orden de aparición, con su frecuencia. El grafo de tokens se
+     * divide por sus puntos de articulación, como hace QueryBuilder de Lucene: donde no hay caminos
+     * alternativos, los tokens de la posición son términos sinónimos; donde los hay, cada camino es
+     * una alternativa (un término o una frase).
+     */
+    List<QueryUnit> analyze(String text) throws IOException {
+        Map<String, QueryUnit> units = new LinkedHashMap<>();
+        try (TokenStream stream = analyzer.tokenStream(weights.keySet().iterator().next(), text)) {
+            // El grafo consume el flujo (incluido reset()) y guarda copias de los tokens
+            GraphTokenStreamFiniteStrings graph = new GraphTokenStreamFiniteStrings(stream);
+            int[] articulationPoints = graph.articulationPoints();
+            int start = 0;
+            for (int i = 0; i <= articulationPoints.length; i++) {
+                int end = i < articulationPoints.length ? articulationPoints[i] : -1;
+                List<String> terms = new ArrayList<>();
+                List<String[]> phrases = new ArrayList<>();
+                if (graph.hasSidePath(start)) {
+                    for (Iterator<TokenStream> paths = graph.getFiniteStrings(start, end); paths.hasNext(); ) {
+                        String[] path = tokens(paths.next());
+                        if (path.length == 1) {
+                            if (!terms.contains(path[0])) terms.add(path[0]);
+                        } else if (path.length > 1) {
+                            phrases.add(path);
+                        }
+                    }
+                } else {
+                    for (AttributeSource token : graph.getTerms(start)) {
+                        String term = token.addAttribute(CharTermAttribute.class).toString();
+                        if (!terms.contains(term)) terms.add(term);
+                    }
+                }
+                start = end;
+
+                if (terms.isEmpty() && phrases.isEmpty()) continue;
+                QueryUnit unit = new QueryUnit(terms, phrases);
+                QueryUnit existing = units.putIfAbsent(unit.key(), unit);
+                if (existing != null) existing.tf++;
+            }
+        }
+        return new ArrayList<>(units.values());
+    }
+
+    private static String[] tokens(TokenStream path) throws IOException {
+        List<String> tokens = new ArrayList<>();
+        CharTermAttribute term = path.addAttribute(CharTermAttribute.class);
+        path.reset();
+        while (path.incrementToken()) {
+            tokens.add(term.toString());
+        }
+        path.end();
+        path.close();
+        return tokens.toArray(new String[0]);
+    }
+
+    /**
+     * Elimina las unidades que no pueden coincidir con ningún documento y las de IDF bajo, y limita
+     * su número a maxTerms por tf·IDF. Si la poda las eliminaría todas, se conserva la de mayor IDF.
+     *
+     * Mismo criterio que CombinedFieldQuery: el df de un término en el campo combinado es el máximo
+     * de los campos. El de una frase se acota con el menor df de sus términos, y el de una unidad es
+     * el máximo de sus alternativas. Las alternativas con df 0 se descartan.
+     */
+    private List<QueryUnit> prune(List<QueryUnit> units) throws IOException {
+        long maxDoc = reader.maxDoc();
+        List<QueryUnit> kept = new ArrayList<>(units.size());
+        QueryUnit best = null;
+        for (QueryUnit unit : units) {
+            int df = 0;
+            List<String> terms = new ArrayList<>(unit.terms.size());
+            for (String term : unit.terms) {
+                int termDf = docFreq(term);
+                if (termDf == 0) continue;
+                terms.add(term);
+                df = Math.max(df, termDf);
+            }
+            List<String[]> phrases = new ArrayList<>(unit.phrases.size());
+            for (String[] phrase : unit.phrases) {
+                int phraseDf = Integer.MAX_VALUE;
+                for (String term : phrase) {
+                    phraseDf = Math.min(phraseDf, docFreq(term));
+                }
+                if (phraseDf == 0) continue;
+                phrases.add(phrase);
+                df = Math.max(df, phraseDf);
+            }
+            if (df == 0) continue; // no puede coincidir con ningún documento
+
+            QueryUnit pruned = new QueryUnit(terms, phrases);
+            pruned.tf = unit.tf;
+            pruned.idf = Math.log(1 + (maxDoc - df + 0.5) / (df + 0.5));
+            if (best == null || pruned.idf > best.idf) best = pruned;
+            if (pruned.idf >= minIdf) kept.add(pruned);
+        }
+        if (kept.isEmpty() && best != null) {
+            kept.add(best);
+        }
+        if (maxTerms > 0 && kept.size() > maxTerms) {
+            kept.sort((a, b) -> Double.compare(b.tf * b.idf, a.tf * a.idf));
+            kept = new ArrayList<>(kept.subList(0, maxTerms));
+        }
+        return kept;
+    }
+
+    private int docFreq(String term) throws IOException {
+        int df = 0;
+        for (String field : weights.keySet()) {
+            df = Math.max(df, reader.docFreq(new Term(field, term)));
+        }
+        return df;
+    }
+}
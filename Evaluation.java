@@ -4,11 +4,24 @@ package es.udc.fi.irudc.c2425.ClinicalTrials; // Paquete de la clase
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
+/**
+ * Evaluación de runs en formato TREC: P, R, AP, nDCG y RR en varios cortes.
+ *
+ * Las métricas en un corte k usan siempre k, como trec_eval: P@k = relevantes entre los k primeros / k
+ * y el DCG ideal se calcula sobre k posiciones, aunque el ranking tenga menos de k documentos. La
+ * versión anterior usaba k = min(10, longitud del ranking), de modo que un ranking corto obtiene
+ * ahora un P@10 y un nDCG@10 menores que antes; los valores no son comparables con los informes
+ * generados con esa versión.
+ */
 public class Evaluation {
 
     // Método que lee el archivo qrels.txt y construye un mapa con los documentos relevantes por consulta
@@ -30,19 +43,18 @@ public class Evaluation {
         return qrels; // Devuelve el mapa completo
     }
 
-    // Método que lee el archivo de resultados y los organiza por consulta
+    // Método que lee el archivo de resultados (texto o binario) y los organiza por consulta
     public static Map<String, List<String>> parseRanking(String rankingFile) throws IOException {
         Map<String, List<String>> rankings = new HashMap<>(); // Mapa: queryID -> lista ordenada de docIDs recuperados
-        BufferedReader br = new BufferedReader(new FileReader(rankingFile)); // Lector del archivo
-        String line;
-        while ((line = br.readLine()) != null) { // Lee cada línea del archivo de resultados
-            String[] parts = line.split("\\s+"); // Separa por espacios
-            if (parts.length < 6) continue; // Verifica que la línea tenga el formato TREC correcto
-            String queryId = parts[0]; // Primer campo: ID de la consulta
-            String docId = parts[2];   // Tercer campo: ID del documento recuperado
-            rankings.computeIfAbsent(queryId, k -> new ArrayList<>()).add(docId); // Añade el documento a la lista de esa consulta
+        List<String> current = null;
+        try (TrecRun.Reader run = TrecRun.reader(Path.of(rankingFile))) { // Lector en streaming sin expresiones regulares
+            while (run.next()) {
+                if (run.topicChanged()) {
+                    current = rankings.computeIfAbsent(run.topic(), k -> new ArrayList<>()); // Lista de esa consulta
+                }
+                current.add(run.docId()); // Añade el documento a la lista de esa consulta
+            }
         }
-        br.close(); // Cierra el lector
         return rankings; // Devuelve el mapa de rankings
     }
 
@@ -124,57 +136,394 @@ public class Evaluation {
         return idealDcg == 0 ? 0 : dcg / idealDcg; // DCG normalizado: cuánto se acerca al ideal
     }
 
+    // ---------------------------------------------------------------------------------------------
+    // Evaluación en una sola pasada con identificadores enteros
+    //
+    // Los métodos anteriores recorren el ranking una vez por métrica y buscan cada documento por
+    // String. Para ejecuciones grandes se usa este camino: los documentos de los qrels se internan a
+    // enteros una sola vez, los qrels de cada consulta se guardan en un mapa de primitivos, y todas
+    // las métricas (P, R, AP, nDCG, RR) se calculan en todos los cortes en un único recorrido.
+    // ---------------------------------------------------------------------------------------------
+
+    public static final int[] DEFAULT_CUTOFFS = {5, 10, 20, 100, 1000};
+
+    // Índices de las métricas en TopicMetrics.values
+    public static final int P = 0;
+    public static final int R = 1;
+    public static final int AP = 2;
+    public static final int NDCG = 3;
+    public static final int RR = 4;
+    public static final String[] METRIC_NAMES = {"P", "Recall", "AP", "NDCG", "RR"};
+
+    // Documento que no aparece en los qrels (no relevante)
+    static final int UNKNOWN_DOC = -1;
+
+    /**
+     * Juicios de relevancia con los documentos internados a enteros.
+     */
+    public static class Qrels {
+        final DocIdDictionary dictionary = new DocIdDictionary();
+        final Map<String, TopicQrels> topics = new HashMap<>();
+
+        public TopicQrels get(String queryId) {
+            return topics.get(queryId);
+        }
+
+        public Set<String> queryIds() {
+            return topics.keySet();
+        }
+
+        /**
+         * Identificador interno de un documento, o UNKNOWN_DOC si no aparece en los qrels.
+         */
+        public int docId(String docId) {
+            return dictionary.lookup(docId, 0, docId.length());
+        }
+    }
+
+    /**
+     * Qrels de una consulta: relevancia por documento y DCG ideal acumulado por posición.
+     */
+    public static class TopicQrels {
+        final IntIntMap relevance = new IntIntMap();
+        int numRelevant;
+        double[] idealDcg; // idealDcg[i] = DCG ideal de las i+1 primeras posiciones
+
+        static final TopicQrels EMPTY = new TopicQrels();
+        static {
+            EMPTY.idealDcg = new double[0];
+        }
+    }
+
+    /**
+     * Valores de todas las métricas en todos los cortes de una consulta: values[métrica][corte].
+     */
+    public static class TopicMetrics {
+        public final int[] cutoffs;
+        public final double[][] values;
+
+        TopicMetrics(int[] cutoffs) {
+            this.cutoffs = cutoffs;
+            this.values = new double[METRIC_NAMES.length][cutoffs.length];
+        }
+
+        public double get(int metric, int cutoffIndex) {
+            return values[metric][cutoffIndex];
+        }
+    }
+
+    /**
+     * Lee los qrels en formato TREC (query 0 doc rel) sin expresiones regulares.
+     * Solo se guardan los documentos con relevancia mayor que 0.
+     */
+    public static Qrels loadQrels(String qrelsFile, int maxCutoff) throws IOException {
+        Qrels qrels = new Qrels();
+        int[] bounds = new int[8];
+        try (BufferedReader br = new BufferedReader(new FileReader(qrelsFile), 1 << 16)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (TrecRun.tokenize(line, bounds) < 4) continue;
+                int relevance = TrecRun.parseInt(line, bounds[6], bounds[7]);
+                if (relevance <= 0) continue;
+                String queryId = line.substring(bounds[0], bounds[1]);
+                int doc = qrels.dictionary.intern(line.substring(bounds[4], bounds[5]));
+                TopicQrels topic = qrels.topics.computeIfAbsent(queryId, k -> new TopicQrels());
+                if (topic.relevance.put(doc, relevance) == 0) topic.numRelevant++;
+            }
+        }
+
+        // El DCG ideal se calcula una única vez por consulta (y no en cada llamada a nDCG)
+        for (TopicQrels topic : qrels.topics.values()) {
+            int[] rels = topic.relevance.values();
+            Arrays.sort(rels);
+            int n = Math.min(maxCutoff, rels.length);
+            topic.idealDcg = new double[n];
+            double ideal = 0;
+            for (int i = 0; i < n; i++) {
+                ideal += rels[rels.length - 1 - i] / discount(i);
+                topic.idealDcg[i] = ideal;
+            }
+        }
+        return qrels;
+    }
+
+    /**
+     * Lee un archivo de resultados (texto o binario, ver {@link TrecRun}) en streaming y devuelve,
+     * por consulta, el ranking de documentos internados (UNKNOWN_DOC para los que no están en los
+     * qrels). No se crea un String por documento.
+     */
+    public static Map<String, int[]> readRun(String rankingFile, Qrels qrels) throws IOException {
+        Map<String, IntList> rankings = new HashMap<>();
+        IntList current = null;
+
+        try (TrecRun.Reader run = TrecRun.reader(Path.of(rankingFile))) {
+            while (run.next()) {
+                if (run.topicChanged()) {
+                    current = rankings.computeIfAbsent(run.topic(), k -> new IntList());
+                }
+                CharSequence doc = run.doc();
+                current.add(qrels.dictionary.lookup(doc, 0, doc.length()));
+            }
+        }
+
+        Map<String, int[]> result = new HashMap<>(rankings.size() * 2);
+        for (Map.Entry<String, IntList> e : rankings.entrySet()) {
+            result.put(e.getKey(), e.getValue().toArray());
+        }
+        return result;
+    }
+
+    /**
+     * Calcula P, R, AP, nDCG y RR en todos los cortes con un único recorrido del ranking. Los
+     * documentos que faltan hasta el corte cuentan como no relevantes (P@k se divide siempre entre k).
+     *
+     * @param ranking documentos internados en orden de ranking
+     * @param topic qrels de la consulta (TopicQrels.EMPTY si no tiene)
+     * @param cutoffs cortes en orden creciente
+     */
+    public static TopicMetrics evaluate(int[] ranking, TopicQrels topic, int[] cutoffs) {
+        TopicMetrics metrics = new TopicMetrics(cutoffs);
+        int maxCutoff = cutoffs[cutoffs.length - 1];
+        int limit = Math.min(maxCutoff, ranking.length);
+
+        int hits = 0;
+        int firstRelevant = -1;
+        double apSum = 0;
+        double dcg = 0;
+        int c = 0;
+
+        for (int i = 0; i < limit; i++) {
+            int doc = ranking[i];
+            int rel = doc == UNKNOWN_DOC ? 0 : topic.relevance.get(doc);
+            if (rel > 0) {
+                hits++;
+                apSum += hits / (double) (i + 1);
+                dcg += rel / discount(i);
+                if (firstRelevant < 0) firstRelevant = i;
+            }
+            while (c < cutoffs.length && cutoffs[c] == i + 1) {
+                record(metrics, c++, hits, apSum, dcg, firstRelevant, topic);
+            }
+        }
+        // Cortes mayores que la longitud del ranking
+        while (c < cutoffs.length) {
+            record(metrics, c++, hits, apSum, dcg, firstRelevant, topic);
+        }
+        return metrics;
+    }
+
+    private static void record(TopicMetrics metrics, int c, int hits, double apSum, double dcg,
+                               int firstRelevant, TopicQrels topic) {
+        int k = metrics.cutoffs[c];
+        metrics.values[P][c] = (double) hits / k;
+        metrics.values[R][c] = topic.numRelevant == 0 ? 0 : (double) hits / topic.numRelevant;
+        metrics.values[AP][c] = topic.numRelevant == 0 ? 0 : apSum / topic.numRelevant;
+        double ideal = topic.idealDcg.length == 0 ? 0 : topic.idealDcg[Math.min(k, topic.idealDcg.length) - 1];
+        metrics.values[NDCG][c] = ideal == 0 ? 0 : dcg / ideal;
+        metrics.values[RR][c] = firstRelevant >= 0 && firstRelevant < k ? 1.0 / (firstRelevant + 1) : 0;
+    }
+
+    // Descuento logarítmico por posición (la primera posición no se penaliza), igual que dcgAtK
+    private static final double[] DISCOUNTS = new double[1024];
+    static {
+        for (int i = 0; i < DISCOUNTS.length; i++) {
+            DISCOUNTS[i] = i == 0 ? 1 : Math.log(i + 1) / Math.log(2);
+        }
+    }
+
+    private static double discount(int i) {
+        return i < DISCOUNTS.length ? DISCOUNTS[i] : Math.log(i + 1) / Math.log(2);
+    }
+
+    /**
+     * Diccionario String → entero de direccionamiento abierto que permite buscar por un
+     * fragmento de una línea sin crear el String.
+     */
+    static final class DocIdDictionary {
+        private String[] keys = new String[1024];
+        private int[] ids = new int[1024];
+        private int size;
+
+        int intern(String key) {
+            int slot = find(key, 0, key.length());
+            if (keys[slot] != null) return ids[slot];
+            if ((size + 1) * 2 > keys.length) {
+                rehash();
+                slot = find(key, 0, key.length());
+            }
+            keys[slot] = key;
+            ids[slot] = size;
+            return size++;
+        }
+
+        int lookup(CharSequence line, int start, int end) {
+            int slot = find(line, start, end);
+            return keys[slot] != null ? ids[slot] : UNKNOWN_DOC;
+        }
+
+        private int find(CharSequence s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) h = 31 * h + s.charAt(i);
+            int mask = keys.length - 1;
+            int slot = mix(h) & mask;
+            while (keys[slot] != null && !matches(keys[slot], s, start, end)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private static boolean matches(String key, CharSequence s, int start, int end) {
+            if (key.length() != end - start) return false;
+            for (int i = 0; i < key.length(); i++) {
+                if (key.charAt(i) != s.charAt(start + i)) return false;
+            }
+            return true;
+        }
+
+        private void rehash() {
+            String[] oldKeys = keys;
+            int[] oldIds = ids;
+            keys = new String[oldKeys.length * 2];
+            ids = new int[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int slot = find(oldKeys[i], 0, oldKeys[i].length());
+                    keys[slot] = oldKeys[i];
+                    ids[slot] = oldIds[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Mapa int → int de direccionamiento abierto (claves no negativas, 0 = ausente).
+     */
+    static final class IntIntMap {
+        private int[] keys = new int[16];
+        private int[] values = new int[16];
+        private int size;
+
+        IntIntMap() {
+            Arrays.fill(keys, -1);
+        }
+
+        int get(int key) {
+            int mask = keys.length - 1;
+            int slot = mix(key) & mask;
+            while (keys[slot] != -1) {
+                if (keys[slot] == key) return values[slot];
+                slot = (slot + 1) & mask;
+            }
+            return 0;
+        }
+
+        /**
+         * @return valor anterior, o 0 si la clave no estaba
+         */
+        int put(int key, int value) {
+            if ((size + 1) * 2 > keys.length) rehash();
+            int mask = keys.length - 1;
+            int slot = mix(key) & mask;
+            while (keys[slot] != -1) {
+                if (keys[slot] == key) {
+                    int old = values[slot];
+                    values[slot] = value;
+                    return old;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+            return 0;
+        }
+
+        int[] values() {
+            int[] result = new int[size];
+            int n = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != -1) result[n++] = values[i];
+            }
+            return result;
+        }
+
+        private void rehash() {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            Arrays.fill(keys, -1);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != -1) put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Lista de enteros creciente sin boxing.
+     */
+    static final class IntList {
+        private int[] data = new int[128];
+        private int size;
+
+        void add(int value) {
+            if (size == data.length) data = Arrays.copyOf(data, size * 2);
+            data[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
     // Método principal que ejecuta la evaluación completa
     public static void main(String[] args) {
-        String qrelsFile = "src/main/resources/qrels.txt";       // Ruta del archivo de juicios de relevancia
-        String rankingFile = "src/main/resources/results_hybrid.txt";  // Ruta del archivo de resultados generados
+        String qrelsFile = args.length > 0 ? args[0] : "src/main/resources/qrels.txt";              // Ruta del archivo de juicios de relevancia
+        String rankingFile = args.length > 1 ? args[1] : "src/main/resources/results_hybrid.txt";   // Ruta del archivo de resultados generados
+        int[] cutoffs = DEFAULT_CUTOFFS;
 
         try {
-            Map<String, Map<String, Integer>> qrels = parseQrels(qrelsFile);         // Mapa de consulta → docs relevantes con score
-            Map<String, List<String>> rankings = parseRanking(rankingFile); // Mapa de consulta → docs recuperados
-
-            // Variables para acumular métricas globales
-            double sumPAtk = 0.0;
-            double sumRecallAtk = 0.0;
-            double sumAP = 0.0;
-            double sumNDCGAtk = 0.0;
-            int queryCount = 0;
-
-            // Itera por cada consulta procesada
-            for (String queryId : rankings.keySet()) {
-                List<String> retrieved = rankings.get(queryId); // Documentos recuperados para esa consulta
-                Map<String, Integer> relevant = qrels.getOrDefault(queryId, new HashMap<>()); // Mapa de relevantes
-
-                int k = Math.min(10, retrieved.size()); // Evaluar hasta los primeros 10 documentos
-
-                // Calcula las métricas para esta consulta
-                double pAtk = precisionAtK(retrieved, relevant, k);    
-                double recallAtk = recallAtK(retrieved, relevant, k);  
-                double ap = mapAtK(retrieved, relevant, k);       
-                double ndcgAtk = ndcgAtK(retrieved, relevant, k);      
-
-                // Imprime resultados individuales
+            long start = System.nanoTime();
+            Qrels qrels = loadQrels(qrelsFile, cutoffs[cutoffs.length - 1]); // Qrels con documentos internados
+            Map<String, int[]> rankings = readRun(rankingFile, qrels);        // Rankings de enteros por consulta
+
+            // Acumuladores de las métricas globales: [métrica][corte]
+            double[][] sums = new double[METRIC_NAMES.length][cutoffs.length];
+            List<String> queryIds = new ArrayList<>(rankings.keySet());
+            queryIds.sort(null);
+
+            for (String queryId : queryIds) {
+                TopicQrels topic = qrels.topics.getOrDefault(queryId, TopicQrels.EMPTY);
+                TopicMetrics metrics = evaluate(rankings.get(queryId), topic, cutoffs);
+
+                // Imprime resultados individuales en el corte 10
                 System.out.println("Query " + queryId + ":");
-                System.out.printf("  P@%d: %.4f\n", k, pAtk);
-                System.out.printf("  Recall@%d: %.4f\n", k, recallAtk);
-                System.out.printf("  AP@%d: %.4f\n", k, ap);
-                System.out.printf("  NDCG@%d: %.4f\n", k, ndcgAtk);
+                for (int m = 0; m < METRIC_NAMES.length; m++) {
+                    System.out.printf("  %s@10: %.4f\n", METRIC_NAMES[m], metrics.get(m, 1));
+                    for (int c = 0; c < cutoffs.length; c++) {
+                        sums[m][c] += metrics.values[m][c];
+                    }
+                }
                 System.out.println();
-
-                // Acumula para promediar
-                sumPAtk += pAtk;
-                sumRecallAtk += recallAtk;
-                sumAP += ap;
-                sumNDCGAtk += ndcgAtk;
-                queryCount++; // Cuenta la consulta procesada
             }
 
-            // Imprime métricas globales promediadas
+            // Imprime métricas globales promediadas en todos los cortes
+            int queryCount = Math.max(1, queryIds.size());
             System.out.println("Métricas promedio:");
-            System.out.printf("  Mean P@10: %.4f\n", sumPAtk / queryCount);
-            System.out.printf("  Mean Recall@10: %.4f\n", sumRecallAtk / queryCount);
-            System.out.printf("  MAP@10: %.4f\n", sumAP / queryCount);
-            System.out.printf("  Mean NDCG@10: %.4f\n", sumNDCGAtk / queryCount);
+            for (int m = 0; m < METRIC_NAMES.length; m++) {
+                StringBuilder sb = new StringBuilder("  " + (m == AP ? "MAP" : "Mean " + METRIC_NAMES[m]) + ":");
+                for (int c = 0; c < cutoffs.length; c++) {
+                    sb.append(String.format(Locale.US, "  @%d %.4f", cutoffs[c], sums[m][c] / queryCount));
+                }
+                System.out.println(sb);
+            }
+            System.out.printf(Locale.US, "%nEvaluación completada en %.1f ms%n", (System.nanoTime() - start) / 1e6);
 
         } catch (IOException e) {
             e.printStackTrace(); // Muestra el error si falla la lectura de archivos
@@ -0,0 +1,420 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Motor de evaluación de muchas ejecuciones a la vez con tests de significancia pareados.
+ *
+ * Calcula las métricas por tópico (P, R, AP, nDCG y RR) de cada ejecución una sola vez, en
+ * paralelo por ejecución y por tópico, y compara todas las parejas de ejecuciones con un t-test pareado y un test de
+ * aleatorización (sign-flip) sobre un ForkJoinPool. El resultado se escribe como CSV (una fila
+ * por pareja y métrica) y como JSON (medias por ejecución y matrices de p-valores por métrica).
+ *
+ * Los tópicos evaluados son los de los qrels; si una ejecución no tiene resultados para un tópico
+ * todas sus métricas valen 0 en ese tópico, de modo que las comparaciones están siempre pareadas.
+ */
+public class EvaluationEngine {
+
+    public static final String[] METRICS = {"P", "R", "AP", "nDCG", "RR"};
+    private static final int[] METRIC_INDEX = {Evaluation.P, Evaluation.R, Evaluation.AP, Evaluation.NDCG, Evaluation.RR};
+
+    private final ForkJoinPool pool;
+    private final int cutoff;
+    private final int permutations;
+    private final long seed;
+
+    public EvaluationEngine(int threads, int cutoff, int permutations, long seed) {
+        this.pool = new ForkJoinPool(threads);
+        this.cutoff = cutoff;
+        this.permutations = permutations;
+        this.seed = seed;
+    }
+
+    /**
+     * Métricas por tópico de una ejecución: metric → valores alineados con la lista de tópicos.
+     */
+    public static class RunMetrics {
+        public final String name;
+        public final Map<String, double[]> perTopic = new LinkedHashMap<>();
+        public final Map<String, Double> means = new LinkedHashMap<>();
+
+        RunMetrics(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Resultado de comparar dos ejecuciones sobre una métrica.
+     */
+    public static class Comparison {
+        public String runA;
+        public String runB;
+        public String metric;
+        public double meanA;
+        public double meanB;
+        public double t;
+        public double pTTest;
+        public double pRandomization;
+    }
+
+    /**
+     * Evalúa todas las ejecuciones en paralelo.
+     *
+     * @param qrels juicios de relevancia
+     * @param topics tópicos evaluados (orden fijo para el emparejamiento)
+     * @param runFiles archivos de ejecución en formato TREC; cada ejecución se identifica por el
+     *                 nombre del archivo, que no puede repetirse
+     */
+    public List<RunMetrics> evaluate(Evaluation.Qrels qrels, List<String> topics, List<File> runFiles)
+            throws Exception {
+        // Las comparaciones, las medias y las matrices de p-valores se indexan por nombre
+        Set<String> names = new HashSet<>();
+        for (File file : runFiles) {
+            if (!names.add(file.getName())) {
+                throw new IllegalArgumentException("Nombre de ejecución repetido: " + file.getName()
+                        + " (" + file.getPath() + "); renombra uno de los archivos");
+            }
+        }
+        return pool.submit(() -> runFiles.parallelStream().map(file -> {
+            try {
+                return evaluateRun(file, qrels, topics);
+            } catch (IOException e) {
+                throw new RuntimeException("Error leyendo " + file, e);
+            }
+        }).collect(Collectors.toList())).get();
+    }
+
+    private RunMetrics evaluateRun(File file, Evaluation.Qrels qrels, List<String> topics) throws IOException {
+        MetricsRegistry metricsRegistry = MetricsRegistry.get();
+        long start = System.nanoTime();
+        Map<String, int[]> rankings = Evaluation.readRun(file.getPath(), qrels);
+        long read = System.nanoTime();
+        metricsRegistry.latency("evaluation_seconds", "Duración de la evaluación de un run", "stage", "read").observeNanos(read - start);
+        int[] cutoffs = {cutoff};
+        RunMetrics run = new RunMetrics(file.getName());
+        for (String metric : METRICS) {
+            run.perTopic.put(metric, new double[topics.size()]);
+        }
+
+        // Paralelismo por tópico dentro de la ejecución (se ejecuta en el mismo ForkJoinPool)
+        IntStream.range(0, topics.size()).parallel().forEach(i -> {
+            int[] ranking = rankings.getOrDefault(topics.get(i), new int[0]);
+            Evaluation.TopicMetrics metrics = Evaluation.evaluate(ranking, qrels.get(topics.get(i)), cutoffs);
+            for (int m = 0; m < METRICS.length; m++) {
+                run.perTopic.get(METRICS[m])[i] = metrics.get(METRIC_INDEX[m], 0);
+            }
+        });
+
+        for (String metric : METRICS) {
+            run.means.put(metric, mean(run.perTopic.get(metric)));
+        }
+        metricsRegistry.latency("evaluation_seconds", "Duración de la evaluación de un run", "stage", "metrics").observeNanos(System.nanoTime() - read);
+        metricsRegistry.counter("runs_evaluated_total", "Runs evaluados").inc();
+        metricsRegistry.counter("topics_evaluated_total", "Tópicos evaluados").inc(topics.size());
+        return run;
+    }
+
+    /**
+     * Compara todas las parejas de ejecuciones en las métricas indicadas.
+     */
+    public List<Comparison> compareAll(List<RunMetrics> runs, List<String> metrics) throws Exception {
+        List<Comparison> comparisons = new ArrayList<>();
+        for (int a = 0; a < runs.size(); a++) {
+            for (int b = a + 1; b < runs.size(); b++) {
+                for (String metric : metrics) {
+                    comparisons.add(compare(runs.get(a), runs.get(b), metric));
+                }
+            }
+        }
+        return comparisons;
+    }
+
+    private Comparison compare(RunMetrics a, RunMetrics b, String metric) {
+        double[] x = a.perTopic.get(metric);
+        double[] y = b.perTopic.get(metric);
+        double[] diffs = new double[x.length];
+        for (int i = 0; i < x.length; i++) diffs[i] = x[i] - y[i];
+
+        Comparison c = new Comparison();
+        c.runA = a.name;
+        c.runB = b.name;
+        c.metric = metric;
+        c.meanA = a.means.get(metric);
+        c.meanB = b.means.get(metric);
+
+        double[] tTest = pairedTTest(diffs);
+        c.t = tTest[0];
+        c.pTTest = tTest[1];
+
+        // Semilla derivada de la pareja para que los resultados sean reproducibles
+        long pairSeed = seed ^ ((long) (a.name + "|" + b.name + "|" + metric).hashCode() << 16);
+        long extreme = pool.invoke(new RandomizationTask(diffs, Math.abs(sum(diffs)), permutations, pairSeed, 0));
+        c.pRandomization = (extreme + 1.0) / (permutations + 1.0);
+        return c;
+    }
+
+    /**
+     * Test de aleatorización pareado (sign-flip) dividido en bloques de permutaciones.
+     * Cada bloque usa su propio generador derivado de la semilla, de modo que el resultado no
+     * depende del número de hilos.
+     */
+    private static class RandomizationTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+        private static final int BLOCK = 5_000;
+
+        private final double[] diffs;
+        private final double observed;
+        private final int count;
+        private final long seed;
+        private final int blockIndex;
+
+        RandomizationTask(double[] diffs, double observed, int count, long seed, int blockIndex) {
+            this.diffs = diffs;
+            this.observed = observed;
+            this.count = count;
+            this.seed = seed;
+            this.blockIndex = blockIndex;
+        }
+
+        @Override
+        protected Long compute() {
+            if (count > BLOCK) {
+                int blocks = (count + BLOCK - 1) / BLOCK;
+                int leftBlocks = blocks / 2;
+                int leftCount = leftBlocks * BLOCK;
+                RandomizationTask left = new RandomizationTask(diffs, observed, leftCount, seed, blockIndex);
+                RandomizationTask right = new RandomizationTask(diffs, observed, count - leftCount, seed, blockIndex + leftBlocks);
+                left.fork();
+                return right.compute() + left.join();
+            }
+
+            SplittableRandom random = new SplittableRandom(seed + blockIndex * 0x9E3779B97F4A7C15L);
+            double tolerance = 1e-12;
+            long extreme = 0;
+            for (int p = 0; p < count; p++) {
+                double total = 0;
+                long bits = 0;
+                for (int i = 0; i < diffs.length; i++) {
+                    if ((i & 63) == 0) bits = random.nextLong();
+                    total += ((bits >>> (i & 63)) & 1L) == 0 ? diffs[i] : -diffs[i];
+                }
+                if (Math.abs(total) >= observed - tolerance) extreme++;
+            }
+            return extreme;
+        }
+    }
+
+    /**
+     * t-test pareado de dos colas.
+     *
+     * @return {t, p-valor}
+     */
+    static double[] pairedTTest(double[] diffs) {
+        int n = diffs.length;
+        if (n < 2) return new double[] {0, 1};
+        double mean = mean(diffs);
+        double ss = 0;
+        for (double d : diffs) ss += (d - mean) * (d - mean);
+        double sd = Math.sqrt(ss / (n - 1));
+        if (sd == 0) return new double[] {0, mean == 0 ? 1 : 0};
+
+        double t = mean / (sd / Math.sqrt(n));
+        double df = n - 1;
+        double p = regularizedIncompleteBeta(df / (df + t * t), df / 2, 0.5);
+        return new double[] {t, p};
+    }
+
+    /**
+     * Función beta incompleta regularizada I_x(a, b) por fracción continua.
+     */
+    static double regularizedIncompleteBeta(double x, double a, double b) {
+        if (x <= 0) return 0;
+        if (x >= 1) return 1;
+        double lnFront = logGamma(a + b) - logGamma(a) - logGamma(b) + a * Math.log(x) + b * Math.log(1 - x);
+        if (x < (a + 1) / (a + b + 2)) {
+            return Math.exp(lnFront) * betaContinuedFraction(x, a, b) / a;
+        }
+        return 1 - Math.exp(lnFront) * betaContinuedFraction(1 - x, b, a) / b;
+    }
+
+    private static double betaContinuedFraction(double x, double a, double b) {
+        final double tiny = 1e-300;
+        double qab = a + b;
+        double qap = a + 1;
+        double qam = a - 1;
+        double c = 1;
+        double d = 1 - qab * x / qap;
+        if (Math.abs(d) < tiny) d = tiny;
+        d = 1 / d;
+        double h = d;
+        for (int m = 1; m <= 300; m++) {
+            int m2 = 2 * m;
+            double aa = m * (b - m) * x / ((qam + m2) * (a + m2));
+            d = 1 + aa * d;
+            if (Math.abs(d) < tiny) d = tiny;
+            c = 1 + aa / c;
+            if (Math.abs(c) < tiny) c = tiny;
+            d = 1 / d;
+            h *= d * c;
+            aa = -(a + m) * (qab + m) * x / ((a + m2) * (qap + m2));
+            d = 1 + aa * d;
+            if (Math.abs(d) < tiny) d = tiny;
+            c = 1 + aa / c;
+            if (Math.abs(c) < tiny) c = tiny;
+            d = 1 / d;
+            double delta = d * c;
+            h *= delta;
+            if (Math.abs(delta - 1) < 1e-14) break;
+        }
+        return h;
+    }
+
+    /**
+     * Logaritmo de la función gamma (aproximación de Lanczos).
+     */
+    private static double logGamma(double x) {
+        double[] coef = {76.18009172947146, -86.50532032941677, 24.01409824083091,
+                -1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5};
+        double y = x;
+        double tmp = x + 5.5;
+        tmp -= (x + 0.5) * Math.log(tmp);
+        double ser = 1.000000000190015;
+        for (double c : coef) ser += c / ++y;
+        return -tmp + Math.log(2.5066282746310005 * ser / x);
+    }
+
+    private static double mean(double[] values) {
+        return values.length == 0 ? 0 : sum(values) / values.length;
+    }
+
+    private static double sum(double[] values) {
+        double total = 0;
+        for (double v : values) total += v;
+        return total;
+    }
+
+    /**
+     * Escribe las comparaciones como CSV (una fila por pareja y métrica).
+     */
+    public static void writeCsv(List<Comparison> comparisons, String path) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(path))) {
+            writer.write("run_a,run_b,metric,mean_a,mean_b,diff,t,p_ttest,p_randomization\n");
+            for (Comparison c : comparisons) {
+                writer.write(String.format(Locale.US, "%s,%s,%s,%.4f,%.4f,%.4f,%.4f,%.6f,%.6f\n",
+                        c.runA, c.runB, c.metric, c.meanA, c.meanB, c.meanA - c.meanB, c.t, c.pTTest, c.pRandomization));
+            }
+        }
+    }
+
+    /**
+     * Escribe medias por ejecución, matrices de p-valores por métrica y la lista de comparaciones como JSON.
+     */
+    public static void writeJson(List<RunMetrics> runs, List<Comparison> comparisons, int cutoff, String path) throws IOException {
+        List<String> names = runs.stream().map(r -> r.name).collect(Collectors.toList());
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put("cutoff", cutoff);
+        root.put("runs", names);
+
+        Map<String, Map<String, Double>> means = new LinkedHashMap<>();
+        for (RunMetrics run : runs) means.put(run.name, run.means);
+        root.put("means", means);
+
+        // Matriz simétrica de p-valores del test de aleatorización por métrica
+        Map<String, double[][]> matrices = new LinkedHashMap<>();
+        for (Comparison c : comparisons) {
+            double[][] matrix = matrices.computeIfAbsent(c.metric, m -> {
+                double[][] empty = new double[names.size()][names.size()];
+                for (double[] row : empty) Arrays.fill(row, 1.0);
+                return empty;
+            });
+            int a = names.indexOf(c.runA);
+            int b = names.indexOf(c.runB);
+            matrix[a][b] = c.pRandomization;
+            matrix[b][a] = c.pRandomization;
+        }
+        root.put("pRandomization", matrices);
+        root.put("comparisons", comparisons);
+
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(new File(path), root);
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Uso: EvaluationEngine qrels.txt run1.txt run2.txt ... (o un directorio con las ejecuciones)
+     */
+    public static void main(String[] args) throws Exception {
+        String qrelsFile = args.length > 0 ? args[0] : "src/main/resources/qrels.txt";
+        List<File> runFiles = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            File f = new File(args[i]);
+            if (f.isDirectory()) {
+                File[] files = f.listFiles((dir, name) -> name.endsWith(".txt"));
+                if (files != null) {
+                    Arrays.sort(files);
+                    runFiles.addAll(Arrays.asList(files));
+                }
+            } else {
+                runFiles.add(f);
+            }
+        }
+        if (runFiles.size() < 2) {
+            System.err.println("Uso: EvaluationEngine <qrels> <run1> <run2> [...] | <directorio de runs>");
+            return;
+        }
+
+        int cutoff = Integer.getInteger("eval.cutoff", 10);
+        int permutations = Integer.getInteger("eval.permutations", 100_000);
+        int threads = Integer.getInteger("eval.threads", Runtime.getRuntime().availableProcessors());
+        List<String> metrics = Arrays.asList(System.getProperty("eval.metrics", "AP,nDCG").split(","));
+
+        Evaluation.Qrels qrels = Evaluation.loadQrels(qrelsFile, cutoff);
+        List<String> topics = new ArrayList<>(qrels.queryIds());
+        Collections.sort(topics);
+
+        EvaluationEngine engine = new EvaluationEngine(threads, cutoff, permutations, 42L);
+        try {
+            long start = System.nanoTime();
+            List<RunMetrics> runs = engine.evaluate(qrels, topics, runFiles);
+            long evaluated = System.nanoTime();
+            List<Comparison> comparisons = engine.compareAll(runs, metrics);
+            long compared = System.nanoTime();
+
+            for (RunMetrics run : runs) {
+                System.out.printf(Locale.US, "%-40s P@%d %.4f | R@%d %.4f | AP@%d %.4f | nDCG@%d %.4f | RR@%d %.4f%n", run.name,
+                        cutoff, run.means.get("P"), cutoff, run.means.get("R"), cutoff, run.means.get("AP"),
+                        cutoff, run.means.get("nDCG"), cutoff, run.means.get("RR"));
+            }
+
+            writeCsv(comparisons, "src/main/resources/comparison.csv");
+            writeJson(runs, comparisons, cutoff, "src/main/resources/comparison.json");
+
+            System.out.printf(Locale.US, "%n%d ejecuciones, %d tópicos: métricas en %.0f ms, %d comparaciones (%d permutaciones) en %.0f ms%n",
+                    runs.size(), topics.size(), (evaluated - start) / 1e6, comparisons.size(), permutations, (compared - evaluated) / 1e6);
+        } finally {
+            engine.shutdown();
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.QueryTimeout;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Búsqueda federada sobre varias colecciones (índices) abiertas a la vez: distintas ediciones de
+ * TREC CT, el registro interno de ensayos...
+ *
+ * Cada petición se lanza en paralelo contra todas las colecciones con BM25F filtrado por edad y
+ * género. Cada colección tiene un tiempo máximo, contado desde que llega la petición: Lucene corta
+ * la búsqueda al agotarlo (resultados parciales) y, si la colección aun así no responde, se descarta
+ * sin bloquear al resto. Cancelar el Future no detiene a Lucene, así que el corte lo hace siempre el
+ * QueryTimeout; el pool crece según haga falta, de modo que una búsqueda lenta no deja en cola a las
+ * peticiones siguientes.
+ *
+ * Las puntuaciones de cada colección se normalizan antes de mezclarlas, porque BM25 no es
+ * comparable entre índices con estadísticas distintas:
+ * - "minmax": (s - min) / (max - min) dentro de la colección.
+ * - "zscore": (s - media) / desviación típica dentro de la colección.
+ * - "rank": 1 / (rrfK + posición), independiente de la escala (RRF).
+ * La puntuación normalizada se multiplica por el peso de la colección. Un NCT ID que aparece en
+ * varias colecciones se devuelve una sola vez con la procedencia de todas ellas; su puntuación es
+ * la máxima ("max") o la suma ("sum", lo habitual con "rank") de las de cada colección.
+ *
+ * Las colecciones se describen en un JSON (collections.json). Es thread-safe.
+ */
+public class FederatedSearcher implements Closeable {
+
+    private static final Set<String> ID_FIELD = Set.of("nct_id");
+
+    private final FederationConfig config;
+    private final List<CollectionSearcher> collections = new ArrayList<>();
+    private final ExecutorService executor;
+
+    public FederatedSearcher(FederationConfig config) throws IOException {
+        if (config.collections == null || config.collections.isEmpty()) {
+            throw new IllegalArgumentException("La federación debe tener al menos una colección");
+        }
+        if (!Set.of("minmax", "zscore", "rank").contains(config.normalization)) {
+            throw new IllegalArgumentException("Normalización desconocida: " + config.normalization);
+        }
+        if (!Set.of("max", "sum").contains(config.dedupe)) {
+            throw new IllegalArgumentException("Política de duplicados desconocida: " + config.dedupe);
+        }
+        this.config = config;
+        try {
+            for (CollectionConfig cc : config.collections) {
+                collections.add(new CollectionSearcher(cc));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (CollectionSearcher c : collections) c.close();
+            throw e;
+        }
+        // Sin límite fijo de hilos: un pool del tamaño de la federación solo atiende una petición a la vez
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "federated-search");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Carga la definición de la federación desde un archivo JSON.
+     */
+    public static FederationConfig loadConfig(String path) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        return mapper.readValue(new File(path), FederationConfig.class);
+    }
+
+    /**
+     * Colección abierta: lector, constructor de consultas con sus propias estadísticas y métricas.
+     */
+    private static final class CollectionSearcher implements Closeable {
+        final CollectionConfig config;
+        final DirectoryReader reader;
+        final CombinedFieldQueryBuilder queryBuilder;
+        final MetricsRegistry.Histogram latency;
+        final MetricsRegistry.Counter timeouts;
+
+        CollectionSearcher(CollectionConfig config) throws IOException {
+            if (config.name == null || config.path == null) {
+                throw new IllegalArgumentException("Cada colección necesita 'name' y 'path'");
+            }
+            this.config = config;
+            this.reader = DirectoryReader.open(FSDirectory.open(Path.of(config.path)));
+            this.queryBuilder = new CombinedFieldQueryBuilder(reader, ClinicalTrialAnalyzer.forQuery());
+            MetricsRegistry metrics = MetricsRegistry.get();
+            this.latency = metrics.latency("federated_collection_seconds", "Duración de la búsqueda en cada colección",
+                    "collection", config.name);
+            this.timeouts = metrics.counter("federated_timeouts_total", "Búsquedas cortadas o descartadas por tiempo",
+                    "collection", config.name);
+        }
+
+        /**
+         * Busca en la colección y devuelve sus resultados con la puntuación original.
+         *
+         * @param deadline instante (System.nanoTime) en que Lucene corta la búsqueda, o Long.MAX_VALUE
+         */
+        CollectionResult search(CascadeRanker.Request request, int depth, long deadline) throws IOException {
+            long start = System.nanoTime();
+            if (start >= deadline) {
+                // El plazo se agotó antes de empezar (p. ej. esperando un hilo): no se busca
+                timeouts.inc();
+                CollectionResult expired = new CollectionResult(config.name);
+                expired.timedOut = true;
+                return expired;
+            }
+            Query filter = CascadeRanker.buildFilter(request.age, request.gender);
+            BooleanQuery.Builder query = new BooleanQuery.Builder();
+            query.add(queryBuilder.build(request.queryText), BooleanClause.Occur.MUST);
+            if (filter != null) query.add(filter, BooleanClause.Occur.FILTER);
+
+            // Buscador propio por petición para poder fijar el timeout sin afectar a otros hilos
+            IndexSearcher searcher = new IndexSearcher(reader);
+            if (deadline != Long.MAX_VALUE) searcher.setTimeout(deadlineTimeout(deadline));
+            TopDocs topDocs = searcher.search(query.build(), depth);
+
+            CollectionResult result = new CollectionResult(config.name);
+            result.partial = searcher.timedOut();
+            StoredFields storedFields = reader.storedFields();
+            for (ScoreDoc sd : topDocs.scoreDocs) {
+                result.nctIds.add(storedFields.document(sd.doc, ID_FIELD).get("nct_id"));
+                result.scores.add(sd.score);
+            }
+            result.elapsedMs = (System.nanoTime() - start) / 1_000_000.0;
+            latency.observeNanos(System.nanoTime() - start);
+            if (result.partial) timeouts.inc();
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * QueryTimeout con un instante absoluto: a diferencia de QueryTimeoutImpl, no empieza a contar
+     * cuando el hilo toma la tarea, sino cuando llegó la petición.
+     */
+    private static QueryTimeout deadlineTimeout(long deadline) {
+        return () -> System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * Ejecuta la búsqueda federada.
+     *
+     * @param k número de resultados de la lista final
+     */
+    public Result search(CascadeRanker.Request request, int k) throws IOException {
+        long start = System.nanoTime();
+        int depth = config.depth > 0 ? config.depth : k;
+        // El plazo de cada colección lo aplica Lucene; la espera añade un margen para recoger los parciales
+        long searchDeadline = config.timeoutMs > 0 ? start + TimeUnit.MILLISECONDS.toNanos(config.timeoutMs) : Long.MAX_VALUE;
+        long deadline = config.timeoutMs > 0 ? searchDeadline + TimeUnit.MILLISECONDS.toNanos(config.graceMs) : Long.MAX_VALUE;
+
+        List<Future<CollectionResult>> futures = new ArrayList<>(collections.size());
+        for (CollectionSearcher c : collections) {
+            futures.add(executor.submit(() -> c.search(request, depth, searchDeadline)));
+        }
+
+        Result result = new Result();
+        List<CollectionResult> answered = new ArrayList<>(collections.size());
+        for (int i = 0; i < futures.size(); i++) {
+            CollectionSearcher c = collections.get(i);
+            CollectionResult cr;
+            try {
+                cr = deadline == Long.MAX_VALUE ? futures.get(i).get()
+                        : futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (!cr.timedOut) answered.add(cr);
+            } catch (TimeoutException e) {
+                // Sin interrupción: interrumpir una lectura de NIOFSDirectory cerraría el canal del índice.
+                // La búsqueda termina sola en cuanto Lucene comprueba el plazo.
+                futures.get(i).cancel(false);
+                c.timeouts.inc();
+                cr = new CollectionResult(c.config.name);
+                cr.timedOut = true;
+            } catch (ExecutionException e) {
+                MetricsRegistry.get().recordQueryError("federated");
+                cr = new CollectionResult(c.config.name);
+                cr.error = String.valueOf(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Búsqueda federada interrumpida", e);
+            }
+            result.reports.add(cr);
+        }
+
+        result.hits = merge(answered, k);
+        result.elapsedMs = (System.nanoTime() - start) / 1_000_000.0;
+        QueryTrace.current().attr("collections", collections.size()).attr("collections_answered", answered.size());
+        MetricsRegistry.get().recordQuery("federated", System.nanoTime() - start, result.hits.size());
+        return result;
+    }
+
+    /**
+     * Normaliza las puntuaciones de cada colección, agrupa por NCT ID y ordena.
+     */
+    private List<Hit> merge(List<CollectionResult> results, int k) {
+        Map<String, Hit> byId = new LinkedHashMap<>();
+        for (CollectionResult cr : results) {
+            float weight = weightOf(cr.collection);
+            float[] normalized = normalize(cr.scores);
+            for (int i = 0; i < normalized.length; i++) {
+                float score = weight * normalized[i];
+                Hit hit = byId.get(cr.nctIds.get(i));
+                if (hit == null) {
+                    hit = new Hit(cr.nctIds.get(i));
+                    hit.score = score;
+                    byId.put(hit.nctId, hit);
+                } else {
+                    hit.score = config.dedupe.equals("sum") ? hit.score + score : Math.max(hit.score, score);
+                }
+                hit.sources.add(new Source(cr.collection, i + 1, cr.scores.get(i), score));
+            }
+        }
+        List<Hit> hits = new ArrayList<>(byId.values());
+        hits.sort((a, b) -> {
+            int cmp = Float.compare(b.score, a.score);
+            return cmp != 0 ? cmp : a.nctId.compareTo(b.nctId);
+        });
+        return hits.size() > k ? new ArrayList<>(hits.subList(0, k)) : hits;
+    }
+
+    private float weightOf(String collection) {
+        for (CollectionSearcher c : collections) {
+            if (c.config.name.equals(collection)) return c.config.weight;
+        }
+        return 1f;
+    }
+
+    /**
+     * Puntuaciones normalizadas según la configuración; la lista viene ordenada por puntuación.
+     */
+    float[] normalize(List<Float> scores) {
+        int n = scores.size();
+        float[] out = new float[n];
+        if (n == 0) return out;
+        switch (config.normalization) {
+            case "rank":
+                for (int i = 0; i < n; i++) out[i] = 1f / (config.rrfK + i + 1);
+                break;
+            case "zscore": {
+                double mean = 0;
+                for (float s : scores) mean += s;
+                mean /= n;
+                double var = 0;
+                for (float s : scores) var += (s - mean) * (s - mean);
+                double std = Math.sqrt(var / n);
+                for (int i = 0; i < n; i++) out[i] = std > 0 ? (float) ((scores.get(i) - mean) / std) : 0f;
+                break;
+            }
+            default: {
+                float min = Float.POSITIVE_INFINITY;
+                float max = Float.NEGATIVE_INFINITY;
+                for (float s : scores) {
+                    min = Math.min(min, s);
+                    max = Math.max(max, s);
+                }
+                for (int i = 0; i < n; i++) out[i] = max > min ? (scores.get(i) - min) / (max - min) : 1f;
+            }
+        }
+        return out;
+    }
+
+    public List<String> collectionNames() {
+        List<String> names = new ArrayList<>(collections.size());
+        for (CollectionSearcher c : collections) names.add(c.config.name);
+        return names;
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        IOException first = null;
+        for (CollectionSearcher c : collections) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                if (first == null) first = e;
+            }
+        }
+        if (first != null) throw first;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Configuración declarativa y resultados
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Definición de la federación tal y como se lee del JSON.
+     */
+    public static class FederationConfig {
+        public List<CollectionConfig> collections = new ArrayList<>();
+        public String normalization = "minmax"; // minmax, zscore o rank
+        public String dedupe = "max";           // max o sum
+        public long timeoutMs = 500;            // 0 = sin límite
+        public long graceMs = 50;               // margen para recoger los resultados parciales
+        public int depth = 0;                   // resultados por colección; 0 = los mismos que k
+        public int rrfK = 60;                   // constante de la normalización por posición
+    }
+
+    /**
+     * Colección: nombre para la procedencia, ruta del índice y peso en la mezcla.
+     */
+    public static class CollectionConfig {
+        public String name;
+        public String path;
+        public float weight = 1f;
+    }
+
+    /**
+     * Resultados de una colección con la puntuación original, en orden.
+     */
+    public static class CollectionResult {
+        public final String collection;
+        final List<String> nctIds = new ArrayList<>();
+        final List<Float> scores = new ArrayList<>();
+        public double elapsedMs;
+        public boolean partial;  // Lucene cortó la búsqueda al agotar el tiempo
+        public boolean timedOut; // no respondió a tiempo: no aporta resultados
+        public String error;
+
+        CollectionResult(String collection) {
+            this.collection = collection;
+        }
+
+        public int size() {
+            return nctIds.size();
+        }
+
+        @Override
+        public String toString() {
+            String status = error != null ? "error: " + error : timedOut ? "sin respuesta a tiempo" : partial ? "parcial" : "ok";
+            return String.format(Locale.US, "%s: %d resultados en %.2f ms (%s)", collection, nctIds.size(), elapsedMs, status);
+        }
+    }
+
+    /**
+     * Aparición de un ensayo en una colección.
+     */
+    public static class Source {
+        public final String collection;
+        public final int rank;
+        public final float rawScore;
+        public final float normalizedScore;
+
+        Source(String collection, int rank, float rawScore, float normalizedScore) {
+            this.collection = collection;
+            this.rank = rank;
+            this.rawScore = rawScore;
+            this.normalizedScore = normalizedScore;
+        }
+    }
+
+    /**
+     * Ensayo de la lista final con su puntuación mezclada y su procedencia.
+     */
+    public static class Hit {
+        public final String nctId;
+        public float score;
+        public final List<Source> sources = new ArrayList<>(2);
+
+        Hit(String nctId) {
+            this.nctId = nctId;
+        }
+    }
+
+    /**
+     * Lista final y resumen por colección.
+     */
+    public static class Result {
+        public List<Hit> hits = Collections.emptyList();
+        public final List<CollectionResult> reports = new ArrayList<>();
+        public double elapsedMs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String configPath = args.length > 0 ? args[0] : "src/main/resources/collections.json";
+        String topicsPath = "src/main/resources/topics_queries_and_narratives.xml";
+        String outputPath = "src/main/resources/results_federated.txt";
+        int k = Integer.getInteger("federated.k", 100);
+
+        FederationConfig config = loadConfig(configPath);
+        try (FederatedSearcher federated = new FederatedSearcher(config);
+             TrecRun.Writer writer = TrecRun.writer(TrecRun.outputPath(outputPath), "federated-" + config.normalization)) {
+            System.out.println("Colecciones: " + federated.collectionNames() + " | Normalización: " + config.normalization
+                    + " | Duplicados: " + config.dedupe + " | Timeout: " + config.timeoutMs + " ms");
+
+            int duplicates = 0;
+            for (Topic2 topic : TopicParser2.parseTopics(topicsPath)) {
+                int topicNumber = topic.getNumber();
+                if (topic.getQuery() == null || topic.getQuery().isEmpty()) {
+                    System.out.println("Saltando tópico " + topicNumber + " por datos insuficientes.");
+                    continue;
+                }
+                CascadeRanker.Request request = new CascadeRanker.Request(topicNumber, topic.getQuery(), topic.getAge(),
+                        topic.getGender(), null);
+                QueryTrace trace = QueryTrace.start("federated", topicNumber);
+                try {
+                    Result result = federated.search(request, k);
+
+                    System.out.printf(Locale.US, "Tópico %d | %d resultados en %.2f ms%n", topicNumber, result.hits.size(), result.elapsedMs);
+                    for (CollectionResult report : result.reports) {
+                        System.out.println("  " + report);
+                    }
+                    int rank = 1;
+                    for (Hit hit : result.hits) {
+                        if (hit.sources.size() > 1) duplicates++;
+                        writer.add(topicNumber, hit.nctId, rank++, hit.score);
+                    }
+                    trace.attr("hits", result.hits.size());
+                } finally {
+                    trace.finish();
+                }
+            }
+            System.out.println("Ensayos encontrados en más de una colección: " + duplicates);
+        }
+        System.out.println("Búsqueda federada completada. Resultados en: " + TrecRun.outputPath(outputPath));
+    }
+}
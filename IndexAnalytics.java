@@ -0,0 +1,375 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.facet.FacetResult;
+import org.apache.lucene.facet.LabelAndValue;
+import org.apache.lucene.facet.sortedset.DefaultSortedSetDocValuesReaderState;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesFacetCounts;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FloatVectorValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Bits;
+
+/**
+ * Informe del contenido del índice calculado a partir de sus estructuras (diccionarios de términos,
+ * puntos, doc values y valores vectoriales), sin cargar ningún campo almacenado.
+ *
+ * Cada segmento se analiza en paralelo y los resultados parciales se combinan al final:
+ * - Por campo de texto: documentos con el campo, términos únicos, longitud media y los N términos
+ *   con mayor frecuencia documental. Los candidatos se eligen por segmento (los 4N mejores de cada
+ *   uno) y su frecuencia se recalcula después sobre todo el índice.
+ * - Distribución de edades mínima y máxima a partir de los puntos, y de género a partir de la
+ *   frecuencia documental de cada valor.
+ * - Distribución de fase y estado a partir de los doc values de las facetas.
+ * - Cobertura de vectores del título breve.
+ * - Tamaño de cada segmento y de los archivos del índice por tipo.
+ */
+public class IndexAnalytics {
+
+    private static final String[] TEXT_FIELDS = {"brief_title", "detailed_description", "criteria"};
+    private static final String[] AGE_FIELDS = {"minimum_age", "maximum_age"};
+    private static final String[] FACET_DIMS = {"phase", "overall_status"};
+    private static final int[] AGE_BOUNDS = {1, 12, 18, 30, 45, 65, 80}; // límites superiores exclusivos
+    private static final String[] AGE_LABELS = {"<1", "1-11", "12-17", "18-29", "30-44", "45-64", "65-79", "80+"};
+
+    private final IndexReader reader;
+    private final int topN;
+
+    public IndexAnalytics(IndexReader reader, int topN) {
+        this.reader = reader;
+        this.topN = topN;
+    }
+
+    /**
+     * Estadísticas parciales de un segmento.
+     */
+    private static class SegmentStats {
+        final Map<String, long[]> fieldStats = new TreeMap<>(); // campo -> {docCount, sumTotalTermFreq}
+        final Map<String, Set<BytesRef>> candidates = new TreeMap<>();
+        final Map<String, long[]> ageHistograms = new TreeMap<>();
+        final Map<String, Long> genders = new TreeMap<>();
+        long liveDocs;
+        long docsWithVector;
+        int vectorDimension;
+    }
+
+    /**
+     * Analiza un segmento sin tocar los campos almacenados.
+     */
+    private SegmentStats analyzeSegment(LeafReaderContext ctx) throws IOException {
+        LeafReader leaf = ctx.reader();
+        SegmentStats stats = new SegmentStats();
+        stats.liveDocs = leaf.numDocs();
+
+        for (String field : TEXT_FIELDS) {
+            Terms terms = leaf.terms(field);
+            if (terms == null) continue;
+            stats.fieldStats.put(field, new long[] {terms.getDocCount(), terms.getSumTotalTermFreq()});
+
+            // Candidatos a términos más frecuentes del segmento (cola de mínimos de tamaño acotado)
+            int poolSize = topN * 4;
+            PriorityQueue<Object[]> pool = new PriorityQueue<>(Comparator.comparingInt(o -> (Integer) o[1]));
+            TermsEnum te = terms.iterator();
+            BytesRef term;
+            while ((term = te.next()) != null) {
+                int df = te.docFreq();
+                if (pool.size() < poolSize) {
+                    pool.add(new Object[] {BytesRef.deepCopyOf(term), df});
+                } else if (df > (Integer) pool.peek()[1]) {
+                    pool.poll();
+                    pool.add(new Object[] {BytesRef.deepCopyOf(term), df});
+                }
+            }
+            Set<BytesRef> selected = new HashSet<>();
+            for (Object[] o : pool) selected.add((BytesRef) o[0]);
+            stats.candidates.put(field, selected);
+        }
+
+        Bits live = leaf.getLiveDocs();
+        for (String field : AGE_FIELDS) {
+            PointValues points = leaf.getPointValues(field);
+            if (points == null) continue;
+            long[] histogram = new long[AGE_LABELS.length];
+            points.intersect(new AgeHistogramVisitor(histogram, live));
+            stats.ageHistograms.put(field, histogram);
+        }
+
+        Terms genderTerms = leaf.terms("gender");
+        if (genderTerms != null) {
+            TermsEnum te = genderTerms.iterator();
+            BytesRef value;
+            while ((value = te.next()) != null) {
+                stats.genders.merge(value.utf8ToString(), (long) te.docFreq(), Long::sum);
+            }
+        }
+
+        FieldInfo vectorInfo = leaf.getFieldInfos().fieldInfo(VectorRescorer.VECTOR_FIELD);
+        FloatVectorValues vectors = leaf.getFloatVectorValues(VectorRescorer.VECTOR_FIELD);
+        if (vectors != null) {
+            if (live == null) {
+                stats.docsWithVector = vectors.size();
+            } else {
+                // size() incluye los documentos borrados; el denominador de la cobertura son los vivos
+                for (int doc = vectors.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = vectors.nextDoc()) {
+                    if (live.get(doc)) stats.docsWithVector++;
+                }
+            }
+            stats.vectorDimension = vectorInfo != null ? vectorInfo.getVectorDimension() : vectors.dimension();
+        }
+        return stats;
+    }
+
+    /**
+     * Recorre el árbol BKD de un campo de edad contando documentos por rango. Las celdas cuyo
+     * mínimo y máximo caen en el mismo rango se cuentan sin decodificar cada valor.
+     */
+    private static class AgeHistogramVisitor implements PointValues.IntersectVisitor {
+        private final long[] histogram;
+        private final Bits live;
+        private int cellBin = -1;
+
+        AgeHistogramVisitor(long[] histogram, Bits live) {
+            this.histogram = histogram;
+            this.live = live;
+        }
+
+        @Override
+        public void visit(int docID) {
+            if (live == null || live.get(docID)) histogram[cellBin]++;
+        }
+
+        @Override
+        public void visit(int docID, byte[] packedValue) {
+            if (live == null || live.get(docID)) histogram[bin(IntPoint.decodeDimension(packedValue, 0))]++;
+        }
+
+        @Override
+        public PointValues.Relation compare(byte[] minPackedValue, byte[] maxPackedValue) {
+            int minBin = bin(IntPoint.decodeDimension(minPackedValue, 0));
+            int maxBin = bin(IntPoint.decodeDimension(maxPackedValue, 0));
+            if (minBin == maxBin) {
+                cellBin = minBin;
+                return PointValues.Relation.CELL_INSIDE_QUERY;
+            }
+            return PointValues.Relation.CELL_CROSSES_QUERY;
+        }
+
+        private static int bin(int age) {
+            for (int i = 0; i < AGE_BOUNDS.length; i++) {
+                if (age < AGE_BOUNDS[i]) return i;
+            }
+            return AGE_BOUNDS.length;
+        }
+    }
+
+    /**
+     * Ejecuta el análisis completo e imprime el informe.
+     *
+     * @param directory directorio del índice (para los tamaños de segmentos y archivos)
+     * @param threads hilos para el análisis por segmento
+     */
+    public void report(Directory directory, int threads) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<SegmentStats>> segmentFutures = new ArrayList<>();
+            for (LeafReaderContext ctx : reader.leaves()) {
+                segmentFutures.add(pool.submit(() -> analyzeSegment(ctx)));
+            }
+            // Los términos únicos no se pueden sumar entre segmentos: se cuentan sobre la vista fusionada, un campo por tarea
+            Map<String, Future<Long>> uniqueTerms = new TreeMap<>();
+            for (String field : TEXT_FIELDS) {
+                uniqueTerms.put(field, pool.submit(countUniqueTerms(field)));
+            }
+
+            List<SegmentStats> segments = new ArrayList<>();
+            for (Future<SegmentStats> f : segmentFutures) segments.add(f.get());
+
+            printFieldStats(segments, uniqueTerms);
+            printAgeAndGender(segments);
+            printFacetDistributions();
+            printVectorCoverage(segments);
+            printSegments(directory);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private Callable<Long> countUniqueTerms(String field) {
+        return () -> {
+            Terms terms = MultiTerms.getTerms(reader, field);
+            if (terms == null) return 0L;
+            if (terms.size() >= 0) return terms.size(); // un único segmento
+            long count = 0;
+            TermsEnum te = terms.iterator();
+            while (te.next() != null) count++;
+            return count;
+        };
+    }
+
+    private void printFieldStats(List<SegmentStats> segments, Map<String, Future<Long>> uniqueTerms) throws Exception {
+        System.out.println("===== Campos de texto =====");
+        for (String field : TEXT_FIELDS) {
+            long docCount = 0, sumTtf = 0;
+            Set<BytesRef> candidates = new HashSet<>();
+            for (SegmentStats s : segments) {
+                long[] fs = s.fieldStats.get(field);
+                if (fs == null) continue;
+                docCount += fs[0];
+                sumTtf += fs[1];
+                candidates.addAll(s.candidates.get(field));
+            }
+            if (docCount == 0) {
+                System.out.println(field + ": sin términos indexados");
+                continue;
+            }
+            System.out.printf(Locale.US, "%s: %d documentos | %d términos únicos | longitud media %.1f términos%n",
+                    field, docCount, uniqueTerms.get(field).get(), sumTtf / (double) docCount);
+
+            // Frecuencia documental exacta de los candidatos sobre todo el índice
+            List<Object[]> top = new ArrayList<>();
+            for (BytesRef term : candidates) {
+                top.add(new Object[] {term.utf8ToString(), reader.docFreq(new Term(field, term))});
+            }
+            top.sort((a, b) -> Integer.compare((Integer) b[1], (Integer) a[1]));
+            StringBuilder sb = new StringBuilder("  top " + topN + ":");
+            for (Object[] t : top.subList(0, Math.min(topN, top.size()))) {
+                sb.append(' ').append(t[0]).append('(').append(t[1]).append(')');
+            }
+            System.out.println(sb);
+        }
+        System.out.println();
+    }
+
+    private void printAgeAndGender(List<SegmentStats> segments) {
+        System.out.println("===== Edad y género =====");
+        for (String field : AGE_FIELDS) {
+            long[] total = new long[AGE_LABELS.length];
+            long withField = 0;
+            for (SegmentStats s : segments) {
+                long[] h = s.ageHistograms.get(field);
+                if (h == null) continue;
+                for (int i = 0; i < h.length; i++) {
+                    total[i] += h[i];
+                    withField += h[i];
+                }
+            }
+            StringBuilder sb = new StringBuilder(field + " (" + withField + " documentos):");
+            for (int i = 0; i < total.length; i++) {
+                sb.append(' ').append(AGE_LABELS[i]).append('=').append(total[i]);
+            }
+            System.out.println(sb);
+        }
+
+        Map<String, Long> genders = new TreeMap<>();
+        for (SegmentStats s : segments) {
+            s.genders.forEach((k, v) -> genders.merge(k, v, Long::sum));
+        }
+        // docFreq incluye documentos borrados aún no purgados por un merge
+        System.out.println("gender: " + genders + (reader.hasDeletions() ? " (incluye documentos borrados)" : ""));
+        System.out.println();
+    }
+
+    private void printFacetDistributions() throws IOException {
+        System.out.println("===== Fase y estado (doc values) =====");
+        try {
+            DefaultSortedSetDocValuesReaderState state =
+                    new DefaultSortedSetDocValuesReaderState(reader, ClinicalTrialFacetSearcher.buildFacetsConfig());
+            SortedSetDocValuesFacetCounts counts = new SortedSetDocValuesFacetCounts(state);
+            for (String dim : FACET_DIMS) {
+                FacetResult result = counts.getTopChildren(20, dim);
+                if (result == null) continue;
+                StringBuilder sb = new StringBuilder(dim + ":");
+                for (LabelAndValue lv : result.labelValues) {
+                    sb.append(' ').append(lv.label).append('=').append(lv.value);
+                }
+                System.out.println(sb);
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("El índice no tiene facetas: " + e.getMessage());
+        }
+        System.out.println();
+    }
+
+    private void printVectorCoverage(List<SegmentStats> segments) {
+        long live = 0, withVector = 0;
+        int dimension = 0;
+        for (SegmentStats s : segments) {
+            live += s.liveDocs;
+            withVector += s.docsWithVector;
+            dimension = Math.max(dimension, s.vectorDimension);
+        }
+        System.out.println("===== Vectores =====");
+        System.out.printf(Locale.US, "%s: %d de %d documentos (%.1f%%), dimensión %d%n%n", VectorRescorer.VECTOR_FIELD,
+                withVector, live, live == 0 ? 0 : 100.0 * withVector / live, dimension);
+    }
+
+    private void printSegments(Directory directory) throws IOException {
+        System.out.println("===== Segmentos =====");
+        SegmentInfos infos = SegmentInfos.readLatestCommit(directory);
+        for (SegmentCommitInfo sci : infos) {
+            System.out.printf(Locale.US, "%s: %d docs | %d borrados | %.1f MB | %s%n", sci.info.name, sci.info.maxDoc(),
+                    sci.getDelCount(), sci.sizeInBytes() / (1024.0 * 1024.0), sci.info.getUseCompoundFile() ? "compuesto" : "archivos separados");
+        }
+
+        Map<String, Long> byExtension = new TreeMap<>();
+        long total = 0;
+        for (String file : directory.listAll()) {
+            int dot = file.lastIndexOf('.');
+            String ext = dot >= 0 ? file.substring(dot + 1) : file.replaceAll("_\\d+$", "");
+            long length = directory.fileLength(file);
+            byExtension.merge(ext, length, Long::sum);
+            total += length;
+        }
+        System.out.println("Archivos por tipo:");
+        for (Map.Entry<String, Long> e : byExtension.entrySet()) {
+            System.out.printf(Locale.US, "  %-10s %10.2f MB (%.1f%%)%n", e.getKey(), e.getValue() / (1024.0 * 1024.0),
+                    total == 0 ? 0 : 100.0 * e.getValue() / total);
+        }
+        System.out.printf(Locale.US, "Total: %.2f MB%n%n", total / (1024.0 * 1024.0));
+    }
+
+    public static void main(String[] args) throws Exception {
+        String indexPath = args.length > 0 ? args[0] : "src/main/resources/index";
+        int topN = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        long start = System.nanoTime();
+        try (Directory dir = FSDirectory.open(Path.of(indexPath));
+             IndexReader reader = DirectoryReader.open(dir)) {
+            System.out.println("Índice: " + indexPath + " | " + reader.numDocs() + " documentos en " + reader.leaves().size()
+                    + " segmentos\n");
+            new IndexAnalytics(reader, topN).report(dir, threads);
+        }
+        System.out.printf(Locale.US, "Informe generado en %.2f s%n", (System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,434 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.KnnFloatVectorQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Generador de carga en lazo abierto para medir a partir de qué QPS se degrada la latencia.
+ *
+ * Las peticiones llegan a una tasa fija independientemente de lo que tarden las anteriores: la
+ * petición i tiene como instante previsto t0 + i / qps, y su latencia se mide desde ese instante
+ * previsto (no desde que un hilo queda libre para enviarla). Así el tiempo de espera en cola cuenta
+ * como latencia y se evita la omisión coordinada de los generadores en lazo cerrado.
+ *
+ * Cada petición es de un tipo (lexical, vector o rescore) según la mezcla configurada, y se
+ * ejecuta en el propio proceso contra el índice o contra un endpoint HTTP local
+ * (GET endpoint?type=...&topic=...&q=...&age=...&gender=...). Se informa del throughput y de los
+ * percentiles p50, p99 y p99.9 (HdrHistogram) por tipo de consulta, por ventana de tiempo y en total.
+ *
+ * Parámetros (propiedades del sistema):
+ * - load.rates: tasas a probar, separadas por comas (p. ej. 50,100,200,400); se ejecutan en escalera.
+ * - load.duration: segundos por tasa (30).
+ * - load.window: segundos por ventana del informe (5).
+ * - load.mix: mezcla de tipos (lexical:0.5,vector:0.3,rescore:0.2).
+ * - load.threads: hilos que atienden las peticiones en proceso (núcleos disponibles).
+ * - load.endpoint: URL del endpoint HTTP; si no se indica, se busca en proceso.
+ * - load.queries: log de consultas TSV (topic, texto, edad, género); por defecto los tópicos.
+ */
+public class LoadGenerator {
+
+    public static final String TYPE_LEXICAL = "lexical";
+    public static final String TYPE_VECTOR = "vector";
+    public static final String TYPE_RESCORE = "rescore";
+
+    private static final long MAX_LATENCY_NS = TimeUnit.MINUTES.toNanos(5);
+
+    /**
+     * Consulta a reproducir: texto, datos del paciente y embedding (si existe).
+     */
+    public static class LoadQuery {
+        final String topicId;
+        final String text;
+        final int age;
+        final String gender;
+        final float[] embedding;
+
+        public LoadQuery(String topicId, String text, int age, String gender, float[] embedding) {
+            this.topicId = topicId;
+            this.text = text;
+            this.age = age;
+            this.gender = gender;
+            this.embedding = embedding;
+        }
+    }
+
+    /**
+     * Destino de las peticiones: el índice en proceso o un endpoint HTTP.
+     */
+    public interface Target extends AutoCloseable {
+        void execute(String type, LoadQuery query) throws Exception;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    /**
+     * Ejecuta las consultas directamente sobre el índice, como lo hacen los buscadores.
+     */
+    public static class InProcessTarget implements Target {
+        private final IndexReader reader;
+        private final IndexSearcher searcher;
+        private final CombinedFieldQueryBuilder queryBuilder;
+        private final int topK;
+        private final int rescoreDepth;
+
+        public InProcessTarget(String indexPath, int topK, int rescoreDepth) throws IOException {
+            this.reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)));
+            this.searcher = new IndexSearcher(reader);
+            this.queryBuilder = new CombinedFieldQueryBuilder(reader, ClinicalTrialAnalyzer.forQuery());
+            MetricsRegistry.get().registerQueryCache(searcher);
+            this.topK = topK;
+            this.rescoreDepth = rescoreDepth;
+        }
+
+        @Override
+        public void execute(String type, LoadQuery query) throws Exception {
+            long start = System.nanoTime();
+            int hits = executeQuery(type, query);
+            MetricsRegistry.get().recordQuery(type, System.nanoTime() - start, hits);
+        }
+
+        private int executeQuery(String type, LoadQuery query) throws Exception {
+            Query filter = CascadeRanker.buildFilter(query.age, query.gender);
+            switch (type) {
+                case TYPE_LEXICAL:
+                    return searcher.search(lexicalQuery(query, filter), topK).scoreDocs.length;
+                case TYPE_VECTOR:
+                    return searcher.search(new KnnFloatVectorQuery(VectorRescorer.VECTOR_FIELD, query.embedding, topK, filter), topK).scoreDocs.length;
+                case TYPE_RESCORE:
+                    TopDocs candidates = searcher.search(lexicalQuery(query, filter), rescoreDepth);
+                    ScoreDoc[] hits = candidates.scoreDocs;
+                    int[] docIds = new int[hits.length];
+                    for (int i = 0; i < hits.length; i++) docIds[i] = hits[i].doc;
+                    VectorRescorer.dotProducts(reader, docIds, docIds.length, query.embedding);
+                    return docIds.length;
+                default:
+                    throw new IllegalArgumentException("Tipo de consulta desconocido: " + type);
+            }
+        }
+
+        private Query lexicalQuery(LoadQuery query, Query filter) throws Exception {
+            // El constructor no guarda estado entre consultas: se comparte entre los hilos
+            Query text = queryBuilder.build(query.text);
+            if (filter == null) return text;
+            return new BooleanQuery.Builder()
+                    .add(text, BooleanClause.Occur.MUST)
+                    .add(filter, BooleanClause.Occur.FILTER)
+                    .build();
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * Envía cada consulta a un endpoint HTTP local; cualquier respuesta distinta de 2xx es un error.
+     */
+    public static class HttpTarget implements Target {
+        private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+        private final String endpoint;
+
+        public HttpTarget(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public void execute(String type, LoadQuery query) throws Exception {
+            String uri = endpoint + (endpoint.contains("?") ? "&" : "?")
+                    + "type=" + type
+                    + "&topic=" + URLEncoder.encode(query.topicId, StandardCharsets.UTF_8)
+                    + "&q=" + URLEncoder.encode(query.text, StandardCharsets.UTF_8)
+                    + "&age=" + query.age
+                    + "&gender=" + URLEncoder.encode(query.gender != null ? query.gender : "", StandardCharsets.UTF_8);
+            HttpResponse<Void> response = client.send(HttpRequest.newBuilder(URI.create(uri)).GET().build(),
+                    HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() / 100 != 2) {
+                throw new IOException("HTTP " + response.statusCode());
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final Target target;
+    private final List<LoadQuery> queries;
+    private final Map<String, Double> mix;
+    private final int threads;
+
+    public LoadGenerator(Target target, List<LoadQuery> queries, Map<String, Double> mix, int threads) {
+        this.target = target;
+        this.queries = queries;
+        this.mix = mix;
+        this.threads = threads;
+    }
+
+    /**
+     * Resultado de una tasa: histogramas acumulados por tipo y contadores.
+     */
+    public static class RunResult {
+        final double targetQps;
+        final Map<String, Histogram> histograms = new LinkedHashMap<>();
+        final Histogram total = new Histogram(MAX_LATENCY_NS, 3);
+        long errors;
+        long unfinished; // peticiones que no terminaron antes del plazo final
+        double elapsedSeconds;
+
+        RunResult(double targetQps) {
+            this.targetQps = targetQps;
+        }
+    }
+
+    /**
+     * Lanza peticiones a la tasa dada durante el tiempo indicado e informa por ventanas.
+     *
+     * @param qps tasa de llegada objetivo
+     * @param durationSeconds duración de la prueba
+     * @param windowSeconds duración de cada ventana del informe
+     * @param windowLog destino de las filas CSV por ventana (o null)
+     */
+    public RunResult run(double qps, int durationSeconds, int windowSeconds, BufferedWriter windowLog) throws Exception {
+        Map<String, Recorder> recorders = new LinkedHashMap<>();
+        RunResult result = new RunResult(qps);
+        for (String type : mix.keySet()) {
+            recorders.put(type, new Recorder(MAX_LATENCY_NS, 3));
+            result.histograms.put(type, new Histogram(MAX_LATENCY_NS, 3));
+        }
+        String[] types = mix.keySet().toArray(new String[0]);
+        double[] cumulative = new double[types.length];
+        double sum = 0;
+        for (int i = 0; i < types.length; i++) {
+            sum += mix.get(types[i]);
+            cumulative[i] = sum;
+        }
+
+        // Cola sin límite: si el sistema no da abasto, las peticiones esperan y su latencia lo refleja
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        AtomicLong errors = new AtomicLong();
+        AtomicLong completed = new AtomicLong();
+        SplittableRandom random = new SplittableRandom(42);
+        long intervalNs = (long) (1e9 / qps);
+        long totalRequests = (long) (qps * durationSeconds);
+        long windowNs = TimeUnit.SECONDS.toNanos(windowSeconds);
+
+        long start = System.nanoTime();
+        long nextWindow = start + windowNs;
+        int window = 0;
+        for (long i = 0; i < totalRequests; i++) {
+            long intended = start + i * intervalNs;
+            long now;
+            while ((now = System.nanoTime()) < intended) {
+                LockSupport.parkNanos(Math.min(intended - now, 1_000_000));
+            }
+            while (now >= nextWindow) {
+                reportWindow(++window, windowSeconds, recorders, result, windowLog);
+                nextWindow += windowNs;
+            }
+
+            double r = random.nextDouble() * sum;
+            int t = 0;
+            while (t < types.length - 1 && r >= cumulative[t]) t++;
+            String type = types[t];
+            LoadQuery query = queries.get(random.nextInt(queries.size()));
+            Recorder recorder = recorders.get(type);
+
+            workers.execute(() -> {
+                try {
+                    target.execute(type, query);
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+                // Latencia desde el instante previsto de llegada, no desde el envío real
+                recorder.recordValue(Math.min(System.nanoTime() - intended, MAX_LATENCY_NS));
+                completed.incrementAndGet();
+            });
+        }
+
+        workers.shutdown();
+        if (!workers.awaitTermination(MAX_LATENCY_NS, TimeUnit.NANOSECONDS)) {
+            // Las que siguen en cola o en curso superan la latencia máxima medible: no se esperan más
+            workers.shutdownNow();
+        }
+        reportWindow(++window, windowSeconds, recorders, result, windowLog);
+        result.elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        result.errors = errors.get();
+        result.unfinished = totalRequests - completed.get();
+        return result;
+    }
+
+    private void reportWindow(int window, int windowSeconds, Map<String, Recorder> recorders, RunResult result,
+                              BufferedWriter windowLog) throws IOException {
+        for (Map.Entry<String, Recorder> e : recorders.entrySet()) {
+            Histogram interval = e.getValue().getIntervalHistogram();
+            result.histograms.get(e.getKey()).add(interval);
+            result.total.add(interval);
+            if (interval.getTotalCount() == 0) continue;
+
+            String line = String.format(Locale.US, "%.0f,%d,%s,%d,%.1f,%.2f,%.2f,%.2f,%.2f",
+                    result.targetQps, window, e.getKey(), interval.getTotalCount(),
+                    interval.getTotalCount() / (double) windowSeconds, ms(interval.getValueAtPercentile(50)),
+                    ms(interval.getValueAtPercentile(99)), ms(interval.getValueAtPercentile(99.9)), ms(interval.getMaxValue()));
+            System.out.println("  ventana " + line);
+            if (windowLog != null) {
+                windowLog.write(line);
+                windowLog.newLine();
+            }
+        }
+    }
+
+    /**
+     * Imprime el resumen de una tasa: throughput y percentiles por tipo y en total.
+     */
+    public static void printSummary(RunResult result) {
+        System.out.printf(Locale.US, "%nTasa objetivo %.0f QPS | alcanzada %.1f QPS | errores %d%n",
+                result.targetQps, result.total.getTotalCount() / result.elapsedSeconds, result.errors);
+        if (result.unfinished > 0) {
+            System.out.printf(Locale.US, "AVISO: %d peticiones sin terminar tras el plazo; la prueba está incompleta y "
+                    + "sus latencias no aparecen en los percentiles%n", result.unfinished);
+        }
+        System.out.println("tipo\tn\tQPS\tp50 ms\tp99 ms\tp99.9 ms\tmax ms");
+        for (Map.Entry<String, Histogram> e : result.histograms.entrySet()) {
+            printRow(e.getKey(), e.getValue(), result.elapsedSeconds);
+        }
+        printRow("total", result.total, result.elapsedSeconds);
+    }
+
+    private static void printRow(String name, Histogram h, double seconds) {
+        if (h.getTotalCount() == 0) return;
+        System.out.printf(Locale.US, "%s\t%d\t%.1f\t%.2f\t%.2f\t%.2f\t%.2f%n", name, h.getTotalCount(),
+                h.getTotalCount() / seconds, ms(h.getValueAtPercentile(50)), ms(h.getValueAtPercentile(99)),
+                ms(h.getValueAtPercentile(99.9)), ms(h.getMaxValue()));
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * Convierte la mezcla "tipo:peso,tipo:peso" en un mapa ordenado.
+     */
+    static Map<String, Double> parseMix(String spec) {
+        Map<String, Double> mix = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split(":");
+            if (kv[0].isEmpty()) continue;
+            String type = kv[0].trim();
+            if (!type.equals(TYPE_LEXICAL) && !type.equals(TYPE_VECTOR) && !type.equals(TYPE_RESCORE)) {
+                throw new IllegalArgumentException("Tipo de consulta desconocido: " + type);
+            }
+            mix.put(type, kv.length > 1 ? Double.parseDouble(kv[1]) : 1.0);
+        }
+        return mix;
+    }
+
+    /**
+     * Carga un log de consultas TSV: topic, texto y, opcionalmente, edad y género.
+     */
+    static List<LoadQuery> loadQueryLog(String path, Map<String, float[]> embeddings) throws IOException {
+        List<LoadQuery> queries = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length < 2 || parts[1].isBlank()) continue;
+                int age = parts.length > 2 ? Integer.parseInt(parts[2].trim()) : -1;
+                String gender = parts.length > 3 ? parts[3].trim().toLowerCase() : null;
+                queries.add(new LoadQuery(parts[0], parts[1], age, gender, embeddings.get(parts[0])));
+            }
+        }
+        return queries;
+    }
+
+    static List<LoadQuery> fromTopics(List<Topic2> topics, Map<String, float[]> embeddings) {
+        List<LoadQuery> queries = new ArrayList<>();
+        for (Topic2 topic : topics) {
+            if (topic.getQuery() == null || topic.getQuery().isEmpty()) continue;
+            String id = String.valueOf(topic.getNumber());
+            queries.add(new LoadQuery(id, topic.getQuery(), topic.getAge(),
+                    topic.getGender() != null ? topic.getGender().toLowerCase() : null, embeddings.get(id)));
+        }
+        return queries;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String indexPath = "src/main/resources/index";
+        String topicsPath = "src/main/resources/topics_queries_and_narratives.xml";
+        String embeddingsPath = "src/main/resources/query_embeddings.json";
+        String windowsPath = "src/main/resources/load_windows.csv";
+
+        String[] rates = System.getProperty("load.rates", "50,100,200").split(",");
+        int duration = Integer.getInteger("load.duration", 30);
+        int windowSeconds = Integer.getInteger("load.window", 5);
+        int threads = Integer.getInteger("load.threads", Runtime.getRuntime().availableProcessors());
+        Map<String, Double> mix = parseMix(System.getProperty("load.mix", "lexical:0.5,vector:0.3,rescore:0.2"));
+        String endpoint = System.getProperty("load.endpoint");
+        String queryLog = System.getProperty("load.queries");
+
+        Map<String, float[]> embeddings = QueryEmbeddings.load(embeddingsPath);
+        List<LoadQuery> queries = queryLog != null
+                ? loadQueryLog(queryLog, embeddings)
+                : fromTopics(TopicParser2.parseTopics(topicsPath), embeddings);
+        if (mix.containsKey(TYPE_VECTOR) || mix.containsKey(TYPE_RESCORE)) {
+            // Las consultas vectoriales necesitan embedding
+            queries.removeIf(q -> q.embedding == null);
+        }
+        if (queries.isEmpty()) {
+            System.err.println("No hay consultas que reproducir.");
+            return;
+        }
+
+        try (Target target = endpoint != null ? new HttpTarget(endpoint) : new InProcessTarget(indexPath, 100, 1000);
+             BufferedWriter windowLog = new BufferedWriter(new FileWriter(windowsPath))) {
+            windowLog.write("target_qps,window,type,count,qps,p50_ms,p99_ms,p999_ms,max_ms");
+            windowLog.newLine();
+
+            LoadGenerator generator = new LoadGenerator(target, queries, mix, threads);
+            System.out.println("Destino: " + (endpoint != null ? endpoint : indexPath) + " | consultas: " + queries.size()
+                    + " | mezcla: " + mix + " | hilos: " + threads);
+            for (String rate : rates) {
+                double qps = Double.parseDouble(rate.trim());
+                System.out.printf(Locale.US, "%n== %.0f QPS durante %d s ==%n", qps, duration);
+                printSummary(generator.run(qps, duration, windowSeconds, windowLog));
+            }
+        }
+        System.out.println("\nLatencias por ventana en: " + windowsPath);
+    }
+}
@@ -0,0 +1,292 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.SmallFloat;
+
+import es.udc.fi.irudc.c2425.ClinicalTrials.CascadeRanker.Candidate;
+import es.udc.fi.irudc.c2425.ClinicalTrials.CascadeRanker.Request;
+
+/**
+ * Extrae las características de learning-to-rank de un conjunto de candidatas.
+ *
+ * Todo sale de estructuras por columnas, nunca de los campos almacenados:
+ * - BM25 por campo: una disyunción por campo con las unidades que conserva la consulta BM25F
+ *   (sinónimos de un término como SynonymQuery, los de varios como frase); los scorers avanzan por
+ *   las candidatas en orden de docId.
+ * - Similitud vectorial: producto escalar con los valores vectoriales del índice, siempre calculado
+ *   aquí para que la característica no dependa de qué etapas la precedieron.
+ * - Edad, género, fase y estado: doc values (numéricos y ordenados) que añade el indexador.
+ * - Longitud de los campos: normas de BM25 (longitud cuantizada, sin coste de almacenamiento extra).
+ *
+ * Las candidatas se recorren una sola vez, segmento a segmento y en orden de docId, de modo que cada
+ * iterador solo avanza hacia delante. Para 1000 candidatas el coste es de unos pocos milisegundos.
+ * Con un índice anterior a los doc values las características de edad, género, fase y estado valen 0:
+ * hay que reindexar.
+ *
+ * Es thread-safe: el estado de cada petición vive en la llamada a {@link #extract}.
+ */
+public class LtrFeatureExtractor {
+
+    /** Nombres de las características en el orden de las columnas (el id en SVMlight es la posición + 1). */
+    public static final String[] FEATURE_NAMES = {
+            "bm25_brief_title", "bm25_detailed_description", "bm25_criteria", "bm25f",
+            "vector", "age_tightness", "age_in_range", "gender_match", "gender_specific",
+            "phase", "status_open", "status_completed",
+            "len_brief_title", "len_detailed_description", "len_criteria"
+    };
+    public static final int NUM_FEATURES = FEATURE_NAMES.length;
+
+    static final int BM25_FIELD = 0;      // 3 columnas, una por campo de TEXT_FIELDS
+    static final int BM25F = 3;
+    static final int VECTOR = 4;
+    static final int AGE_TIGHTNESS = 5;
+    static final int AGE_IN_RANGE = 6;
+    static final int GENDER_MATCH = 7;
+    static final int GENDER_SPECIFIC = 8;
+    static final int PHASE = 9;
+    static final int STATUS_OPEN = 10;
+    static final int STATUS_COMPLETED = 11;
+    static final int FIELD_LENGTH = 12;   // 3 columnas, una por campo de TEXT_FIELDS
+
+    private static final String[] TEXT_FIELDS = CombinedFieldQueryBuilder.TEXT_FIELDS;
+    private static final BytesRef ALL_GENDERS = new BytesRef("all");
+
+    private final IndexReader reader;
+    private final IndexSearcher searcher;
+    private final CombinedFieldQueryBuilder queryBuilder;
+
+    public LtrFeatureExtractor(IndexReader reader, CombinedFieldQueryBuilder queryBuilder) {
+        this.reader = reader;
+        this.searcher = new IndexSearcher(reader);
+        // Los scorers se usan como iteradores sobre las candidatas: la caché de consultas no aporta nada
+        this.searcher.setQueryCache(null);
+        this.queryBuilder = queryBuilder;
+    }
+
+    /**
+     * Índice de columna de una característica: por nombre, o como "f&lt;id SVMlight&gt;" (p. ej. "f5").
+     */
+    public static int featureIndex(String name) {
+        for (int i = 0; i < NUM_FEATURES; i++) {
+            if (FEATURE_NAMES[i].equals(name)) return i;
+        }
+        if (name.length() > 1 && name.charAt(0) == 'f') {
+            try {
+                int id = Integer.parseInt(name.substring(1));
+                if (id >= 1 && id <= NUM_FEATURES) return id - 1;
+            } catch (NumberFormatException e) {
+                // no es un id numérico
+            }
+        }
+        throw new IllegalArgumentException("Característica desconocida: " + name);
+    }
+
+    /**
+     * Calcula las características de las candidatas.
+     *
+     * @return matriz por filas: la fila i ocupa [i * NUM_FEATURES, (i + 1) * NUM_FEATURES)
+     */
+    public float[] extract(Request request, List<Candidate> candidates) throws IOException {
+        int n = candidates.size();
+        float[] features = new float[n * NUM_FEATURES];
+        if (n == 0) return features;
+
+        try (QueryTrace.Span span = QueryTrace.current().span("ltr_features").attr("candidates", n)) {
+            // Orden por docId sin objetos intermedios: docId en los 32 bits altos, fila en los bajos
+            long[] order = new long[n];
+            for (int i = 0; i < n; i++) {
+                Candidate c = candidates.get(i);
+                order[i] = ((long) c.docId << 32) | i;
+                features[i * NUM_FEATURES + BM25F] = Float.isNaN(c.lexicalScore) ? 0f : c.lexicalScore;
+            }
+            Arrays.sort(order);
+
+            Weight[] fieldWeights = fieldWeights(request.queryText);
+            List<LeafReaderContext> leaves = reader.leaves();
+            int k = 0;
+            int segments = 0;
+            while (k < n) {
+                LeafReaderContext ctx = leaves.get(ReaderUtil.subIndex((int) (order[k] >>> 32), leaves));
+                LeafFeatures leaf = new LeafFeatures(ctx, fieldWeights, request);
+                int end = ctx.docBase + ctx.reader().maxDoc();
+                for (; k < n && (int) (order[k] >>> 32) < end; k++) {
+                    leaf.fill((int) (order[k] >>> 32) - ctx.docBase, features, (int) order[k] * NUM_FEATURES);
+                }
+                segments++;
+            }
+            span.attr("segments", segments);
+
+            fillVectorScores(request, candidates, features);
+        }
+        return features;
+    }
+
+    /**
+     * Un Weight por campo de texto con las unidades de la consulta BM25F, o null si no hay términos.
+     */
+    private Weight[] fieldWeights(String queryText) throws IOException {
+        Weight[] weights = new Weight[TEXT_FIELDS.length];
+        if (queryText == null || queryText.isEmpty()) return weights;
+        List<CombinedFieldQueryBuilder.QueryUnit> units = queryBuilder.units(queryText);
+        if (units.isEmpty()) return weights;
+
+        for (int f = 0; f < TEXT_FIELDS.length; f++) {
+            Query query = searcher.rewrite(CombinedFieldQueryBuilder.fieldQuery(units, TEXT_FIELDS[f]));
+            weights[f] = searcher.createWeight(query, ScoreMode.COMPLETE, 1f);
+        }
+        return weights;
+    }
+
+    /**
+     * Similitud vectorial: producto escalar con el vector del índice. No se reutiliza la puntuación
+     * de las etapas anteriores, para que entrenamiento (LtrTrainingExport) y puntuación vean la misma
+     * escala con cualquier configuración de la cascada.
+     */
+    private void fillVectorScores(Request request, List<Candidate> candidates, float[] features) throws IOException {
+        if (request.embedding == null) return;
+        int n = candidates.size();
+        int[] docIds = new int[n];
+        for (int i = 0; i < n; i++) docIds[i] = candidates.get(i).docId;
+        float[] sims = VectorRescorer.dotProducts(reader, docIds, n, request.embedding);
+        for (int i = 0; i < n; i++) {
+            if (!Float.isNaN(sims[i])) features[i * NUM_FEATURES + VECTOR] = sims[i];
+        }
+    }
+
+    /**
+     * Iteradores de un segmento. Las tablas por ordinal (fase, estado, género) se calculan una vez
+     * por segmento, de modo que por documento solo se comparan enteros.
+     */
+    private static final class LeafFeatures {
+        private final Scorer[] scorers = new Scorer[TEXT_FIELDS.length];
+        private final NumericDocValues[] norms = new NumericDocValues[TEXT_FIELDS.length];
+        private final NumericDocValues minAge;
+        private final NumericDocValues maxAge;
+        private final SortedDocValues gender;
+        private final SortedDocValues phase;
+        private final SortedDocValues status;
+        private final int requestAge;
+        private final int requestGenderOrd;
+        private final int allGendersOrd;
+        private final float[] phaseByOrd;
+        private final byte[] statusByOrd; // 1 = abierto, 2 = completado
+
+        LeafFeatures(LeafReaderContext ctx, Weight[] fieldWeights, Request request) throws IOException {
+            LeafReader leaf = ctx.reader();
+            for (int f = 0; f < TEXT_FIELDS.length; f++) {
+                scorers[f] = fieldWeights[f] != null ? fieldWeights[f].scorer(ctx) : null;
+                norms[f] = leaf.getNormValues(TEXT_FIELDS[f]);
+            }
+            // getXxxDocValues devuelve null si el campo no tiene doc values (índices anteriores)
+            minAge = leaf.getNumericDocValues("minimum_age");
+            maxAge = leaf.getNumericDocValues("maximum_age");
+            gender = leaf.getSortedDocValues("gender");
+            phase = leaf.getSortedDocValues("phase");
+            status = leaf.getSortedDocValues("overall_status");
+            requestAge = request.age;
+
+            requestGenderOrd = gender != null && request.gender != null ? gender.lookupTerm(new BytesRef(request.gender)) : -1;
+            allGendersOrd = gender != null ? gender.lookupTerm(ALL_GENDERS) : -1;
+
+            phaseByOrd = new float[phase != null ? phase.getValueCount() : 0];
+            for (int ord = 0; ord < phaseByOrd.length; ord++) {
+                phaseByOrd[ord] = phaseValue(phase.lookupOrd(ord).utf8ToString());
+            }
+            statusByOrd = new byte[status != null ? status.getValueCount() : 0];
+            for (int ord = 0; ord < statusByOrd.length; ord++) {
+                statusByOrd[ord] = statusClass(status.lookupOrd(ord).utf8ToString());
+            }
+        }
+
+        void fill(int doc, float[] features, int row) throws IOException {
+            for (int f = 0; f < TEXT_FIELDS.length; f++) {
+                Scorer scorer = scorers[f];
+                if (scorer != null) {
+                    DocIdSetIterator it = scorer.iterator();
+                    if (it.docID() < doc) it.advance(doc);
+                    if (it.docID() == doc) features[row + BM25_FIELD + f] = scorer.score();
+                }
+                NumericDocValues fieldNorms = norms[f];
+                if (fieldNorms != null && fieldNorms.advanceExact(doc)) {
+                    int length = SmallFloat.byte4ToInt((byte) fieldNorms.longValue());
+                    features[row + FIELD_LENGTH + f] = (float) Math.log1p(length);
+                }
+            }
+
+            int min = minAge != null && minAge.advanceExact(doc) ? (int) minAge.longValue() : -1;
+            int max = maxAge != null && maxAge.advanceExact(doc) ? (int) maxAge.longValue() : -1;
+            if (min != -1 && max != -1) {
+                features[row + AGE_TIGHTNESS] = 1f / (1f + Math.max(0, max - min) / 10f);
+            }
+            if (requestAge >= 0 && (min == -1 || requestAge >= min) && (max == -1 || requestAge <= max)) {
+                features[row + AGE_IN_RANGE] = 1f;
+            }
+
+            if (gender != null && gender.advanceExact(doc)) {
+                int ord = gender.ordValue();
+                boolean specific = ord == requestGenderOrd && ord != allGendersOrd;
+                if (specific || ord == allGendersOrd) features[row + GENDER_MATCH] = 1f;
+                if (specific) features[row + GENDER_SPECIFIC] = 1f;
+            }
+            if (phase != null && phase.advanceExact(doc)) {
+                features[row + PHASE] = phaseByOrd[phase.ordValue()];
+            }
+            if (status != null && status.advanceExact(doc)) {
+                byte cls = statusByOrd[status.ordValue()];
+                if (cls == 1) features[row + STATUS_OPEN] = 1f;
+                else if (cls == 2) features[row + STATUS_COMPLETED] = 1f;
+            }
+        }
+    }
+
+    /**
+     * Fase como número: "Phase 2" → 2, "Phase 1/Phase 2" → 1.5, "Early Phase 1" → 0.5; 0 si no consta.
+     */
+    static float phaseValue(String phase) {
+        String lower = phase.toLowerCase();
+        if (lower.startsWith("early phase")) return 0.5f;
+        float sum = 0;
+        int count = 0;
+        for (int i = 0; i < lower.length(); i++) {
+            char ch = lower.charAt(i);
+            if (ch >= '1' && ch <= '4' && i > 0 && !Character.isDigit(lower.charAt(i - 1))) {
+                sum += ch - '0';
+                count++;
+            }
+        }
+        return count > 0 ? sum / count : 0f;
+    }
+
+    /**
+     * Clase del estado: 1 si el ensayo admite pacientes (o lo hará), 2 si está completado, 0 en otro caso.
+     */
+    static byte statusClass(String status) {
+        switch (status.toLowerCase()) {
+            case "recruiting":
+            case "not yet recruiting":
+            case "enrolling by invitation":
+            case "available":
+                return 1;
+            case "completed":
+                return 2;
+            default:
+                return 0;
+        }
+    }
+}
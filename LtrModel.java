@@ -0,0 +1,184 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Modelo de learning-to-rank evaluado en proceso sobre las filas de {@link LtrFeatureExtractor}.
+ *
+ * Formatos JSON admitidos (las características se nombran como en
+ * {@link LtrFeatureExtractor#FEATURE_NAMES} o por su id de SVMlight, "f1", "f2"...):
+ * - Lineal: {"type": "linear", "bias": 0.0, "weights": {"bm25f": 0.3, "vector": 1.0}}
+ * - Conjunto de árboles (gradient boosting): {"type": "trees", "base": 0.0, "trees": [árbol, ...]},
+ *   donde cada nodo es {"feature": "bm25f", "threshold": 12.5, "left": nodo, "right": nodo} o
+ *   {"leaf": 0.25}. Si el valor es menor o igual que el umbral se sigue por la izquierda. La tasa de
+ *   aprendizaje debe estar ya aplicada a las hojas.
+ *
+ * Los árboles se aplanan en arrays paralelos al cargarlos, de modo que puntuar una fila es un bucle
+ * sin objetos ni llamadas virtuales por nodo. Los modelos son inmutables y thread-safe.
+ */
+public abstract class LtrModel {
+
+    /**
+     * Puntuación de la fila que empieza en offset dentro de la matriz de características.
+     */
+    public abstract float score(float[] features, int offset);
+
+    /**
+     * Puntúa todas las filas de la matriz.
+     */
+    public float[] scoreAll(float[] features, int rows) {
+        float[] scores = new float[rows];
+        for (int i = 0; i < rows; i++) {
+            scores[i] = score(features, i * LtrFeatureExtractor.NUM_FEATURES);
+        }
+        return scores;
+    }
+
+    public static LtrModel load(String path) throws IOException {
+        JsonNode root = new ObjectMapper().readTree(new File(path));
+        String type = root.path("type").asText("");
+        switch (type) {
+            case "linear": return Linear.fromJson(root);
+            case "trees": return TreeEnsemble.fromJson(root);
+            default: throw new IOException("Tipo de modelo LTR desconocido en " + path + ": '" + type + "'");
+        }
+    }
+
+    /**
+     * Modelo lineal: bias + Σ peso · característica. Solo se recorren las características con peso.
+     */
+    static final class Linear extends LtrModel {
+        private final int[] features;
+        private final float[] weights;
+        private final float bias;
+
+        Linear(int[] features, float[] weights, float bias) {
+            this.features = features;
+            this.weights = weights;
+            this.bias = bias;
+        }
+
+        static Linear fromJson(JsonNode root) {
+            JsonNode weightsNode = root.path("weights");
+            int[] features = new int[weightsNode.size()];
+            float[] weights = new float[weightsNode.size()];
+            int i = 0;
+            for (Iterator<Map.Entry<String, JsonNode>> it = weightsNode.fields(); it.hasNext(); i++) {
+                Map.Entry<String, JsonNode> e = it.next();
+                features[i] = LtrFeatureExtractor.featureIndex(e.getKey());
+                weights[i] = (float) e.getValue().asDouble();
+            }
+            return new Linear(features, weights, (float) root.path("bias").asDouble(0));
+        }
+
+        @Override
+        public float score(float[] row, int offset) {
+            float sum = bias;
+            for (int i = 0; i < features.length; i++) {
+                sum += weights[i] * row[offset + features[i]];
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Conjunto de árboles de regresión aplanados. Nodo n: si feature[n] &lt; 0 es una hoja con valor
+     * value[n]; si no, se salta a left[n] o right[n] según row[feature[n]] &lt;= threshold[n]. Los
+     * nodos de cada árbol son contiguos y el primero es la raíz.
+     */
+    static final class TreeEnsemble extends LtrModel {
+        private final int[] roots;
+        private final int[] feature;
+        private final float[] threshold;
+        private final int[] left;
+        private final int[] right;
+        private final float[] value;
+        private final float base;
+
+        private TreeEnsemble(int[] roots, int[] feature, float[] threshold, int[] left, int[] right, float[] value, float base) {
+            this.roots = roots;
+            this.feature = feature;
+            this.threshold = threshold;
+            this.left = left;
+            this.right = right;
+            this.value = value;
+            this.base = base;
+        }
+
+        static TreeEnsemble fromJson(JsonNode root) {
+            JsonNode trees = root.path("trees");
+            int[] roots = new int[trees.size()];
+            List<JsonNode> nodes = new ArrayList<>();
+            for (int t = 0; t < trees.size(); t++) {
+                roots[t] = nodes.size();
+                collect(trees.get(t), nodes);
+            }
+
+            int n = nodes.size();
+            int[] feature = new int[n];
+            float[] threshold = new float[n];
+            int[] left = new int[n];
+            int[] right = new int[n];
+            float[] value = new float[n];
+            for (int t = 0; t < roots.length; t++) {
+                flatten(trees.get(t), roots[t], feature, threshold, left, right, value);
+            }
+            return new TreeEnsemble(roots, feature, threshold, left, right, value, (float) root.path("base").asDouble(0));
+        }
+
+        /** Recorrido en preorden para reservar una posición por nodo. */
+        private static void collect(JsonNode node, List<JsonNode> nodes) {
+            nodes.add(node);
+            if (!node.has("leaf")) {
+                collect(required(node, "left"), nodes);
+                collect(required(node, "right"), nodes);
+            }
+        }
+
+        /** Rellena los arrays en el mismo preorden que collect; devuelve la siguiente posición libre. */
+        private static int flatten(JsonNode node, int index, int[] feature, float[] threshold, int[] left, int[] right,
+                                   float[] value) {
+            if (node.has("leaf")) {
+                feature[index] = -1;
+                value[index] = (float) node.get("leaf").asDouble();
+                return index + 1;
+            }
+            feature[index] = LtrFeatureExtractor.featureIndex(required(node, "feature").asText());
+            threshold[index] = (float) required(node, "threshold").asDouble();
+            left[index] = index + 1;
+            int next = flatten(node.get("left"), index + 1, feature, threshold, left, right, value);
+            right[index] = next;
+            return flatten(node.get("right"), next, feature, threshold, left, right, value);
+        }
+
+        private static JsonNode required(JsonNode node, String name) {
+            JsonNode child = node.get(name);
+            if (child == null) {
+                throw new IllegalArgumentException("Nodo de árbol sin '" + name + "': " + node);
+            }
+            return child;
+        }
+
+        @Override
+        public float score(float[] row, int offset) {
+            float sum = base;
+            for (int root : roots) {
+                int node = root;
+                int f;
+                while ((f = feature[node]) >= 0) {
+                    node = row[offset + f] <= threshold[node] ? left[node] : right[node];
+                }
+                sum += value[node];
+            }
+            return sum;
+        }
+    }
+}
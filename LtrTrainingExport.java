@@ -0,0 +1,135 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Exporta el conjunto de entrenamiento de learning-to-rank en formato SVMlight a partir de los qrels.
+ *
+ * Para cada tópico se ejecutan las etapas de la cascada anteriores a la etapa "ltr" (o todas, si no
+ * la hay), de modo que el modelo se entrena sobre las mismas candidatas que puntuará en producción.
+ * Cada candidata produce una línea "relevancia qid:tópico 1:v1 2:v2 ... # NCT...", con la relevancia
+ * de los qrels (0 si no está juzgada como relevante) y las columnas de {@link LtrFeatureExtractor}.
+ * La cabecera lista los nombres de las características para poder leer el modelo entrenado.
+ *
+ * Si la cascada no tiene etapa "ltr" se exportan las -Dltr.candidates (1000) primeras candidatas.
+ * Al terminar se muestra el coste medio de la extracción por cada 1000 candidatas.
+ *
+ * Uso: LtrTrainingExport [cascade.json] [qrels] [salida]
+ */
+public class LtrTrainingExport {
+
+    public static void main(String[] args) throws Exception {
+        String configPath = args.length > 0 ? args[0] : "src/main/resources/cascade.json";
+        String qrelsPath = args.length > 1 ? args[1] : "src/main/resources/qrels.txt";
+        Path output = Paths.get(args.length > 2 ? args[2] : "src/main/resources/ltr_train.svm");
+        String indexPath = "src/main/resources/index";
+        String topicsPath = "src/main/resources/topics_queries_and_narratives.xml";
+        String embeddingsPath = "src/main/resources/query_embeddings.json";
+
+        CascadeRanker.CascadeConfig config = candidateConfig(CascadeRanker.loadConfig(configPath));
+        Map<String, Map<String, Integer>> qrels = Evaluation.parseQrels(qrelsPath);
+        Map<String, float[]> embeddings = QueryEmbeddings.load(embeddingsPath);
+
+        int rows = 0;
+        int positives = 0;
+        long extractNanos = 0;
+        Path tmp = output.resolveSibling(output.getFileName() + ".tmp");
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)));
+             BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+
+            CascadeRanker ranker = new CascadeRanker(reader, ClinicalTrialAnalyzer.forQuery(), config);
+            LtrFeatureExtractor extractor = ranker.getFeatureExtractor();
+            StoredFields storedFields = reader.storedFields();
+            Set<String> idField = Set.of("nct_id");
+
+            StringBuilder line = new StringBuilder(256);
+            line.append("# ");
+            for (int f = 0; f < LtrFeatureExtractor.NUM_FEATURES; f++) {
+                line.append(f + 1).append(':').append(LtrFeatureExtractor.FEATURE_NAMES[f]).append(' ');
+            }
+            out.write(line.toString().trim());
+            out.newLine();
+
+            for (Topic2 topic : TopicParser2.parseTopics(topicsPath)) {
+                int topicNumber = topic.getNumber();
+                Map<String, Integer> relevant = qrels.getOrDefault(String.valueOf(topicNumber), Collections.emptyMap());
+                if (topic.getQuery() == null || topic.getQuery().isEmpty() || relevant.isEmpty()) {
+                    System.out.println("Saltando tópico " + topicNumber + " (sin consulta o sin juicios relevantes).");
+                    continue;
+                }
+
+                CascadeRanker.Request request = new CascadeRanker.Request(topicNumber, topic.getQuery(), topic.getAge(),
+                        topic.getGender(), embeddings.get(String.valueOf(topicNumber)));
+                List<CascadeRanker.Candidate> candidates = ranker.rank(request).ranking;
+
+                long start = System.nanoTime();
+                float[] features = extractor.extract(request, candidates);
+                extractNanos += System.nanoTime() - start;
+
+                for (int i = 0; i < candidates.size(); i++) {
+                    String nctId = storedFields.document(candidates.get(i).docId, idField).get("nct_id");
+                    int label = relevant.getOrDefault(nctId, 0);
+                    if (label > 0) positives++;
+
+                    line.setLength(0);
+                    line.append(label).append(" qid:").append(topicNumber);
+                    int row = i * LtrFeatureExtractor.NUM_FEATURES;
+                    for (int f = 0; f < LtrFeatureExtractor.NUM_FEATURES; f++) {
+                        float value = features[row + f];
+                        if (value == 0f) continue; // formato disperso
+                        line.append(' ').append(f + 1).append(':');
+                        TrecRun.appendScore(line, value);
+                    }
+                    line.append(" # ").append(nctId);
+                    out.write(line.toString());
+                    out.newLine();
+                    rows++;
+                }
+            }
+        }
+        Files.move(tmp, output, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        System.out.printf(Locale.US, "Exportadas %d filas (%d relevantes) en %s%n", rows, positives, output);
+        if (rows > 0) {
+            System.out.printf(Locale.US, "Extracción de características: %.2f ms por cada 1000 candidatas%n",
+                    extractNanos / 1e6 / rows * 1000);
+        }
+    }
+
+    /**
+     * Etapas de la cascada que generan las candidatas de la etapa "ltr", sin límites de tiempo para
+     * que el conjunto de entrenamiento no dependa de la carga de la máquina.
+     */
+    static CascadeRanker.CascadeConfig candidateConfig(CascadeRanker.CascadeConfig full) {
+        CascadeRanker.CascadeConfig config = new CascadeRanker.CascadeConfig();
+        config.stages = new ArrayList<>();
+        int candidates = 0;
+        for (CascadeRanker.StageConfig stage : full.stages) {
+            if ("ltr".equals(stage.type)) {
+                candidates = stage.candidates;
+                break;
+            }
+            stage.timeBudgetMs = 0;
+            config.stages.add(stage);
+        }
+        config.totalBudgetMs = 0;
+        config.topK = candidates > 0 ? candidates : Integer.getInteger("ltr.candidates", 1000);
+        return config;
+    }
+}
@@ -0,0 +1,530 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LRUQueryCache;
+import org.apache.lucene.search.QueryCache;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Registro de métricas de búsqueda, indexación y evaluación.
+ *
+ * Contiene contadores, gauges e histogramas (con buckets fijos, al estilo de Prometheus)
+ * identificados por nombre y etiquetas, p. ej. clinicaltrials_queries_total{mode="rescore"}.
+ * Se expone de tres formas, activables con propiedades del sistema:
+ * - metrics.jmx=true: MBean es.udc.fi.irudc.c2425.ClinicalTrials:type=Metrics con un atributo por serie.
+ * - metrics.port=9404: endpoint HTTP /metrics en formato de texto de Prometheus.
+ * - metrics.file=ruta.prom: volcado periódico (cada metrics.fileSeconds, 15 s) y al terminar la JVM,
+ *   útil para los programas por lotes con el textfile collector de node_exporter.
+ *
+ * Las métricas se registran la primera vez que se usan, así que instrumentar un camino de código
+ * solo requiere llamar a {@link #get()} y a los métodos de conveniencia.
+ */
+public final class MetricsRegistry {
+
+    public static final String PREFIX = "clinicaltrials_";
+
+    /** Buckets de latencia en segundos (de 0,5 ms a 30 s). */
+    private static final double[] LATENCY_BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+    /** Buckets para el número de hits devueltos por consulta. */
+    private static final double[] HITS_BUCKETS = {0, 1, 10, 100, 1000, 10000};
+
+    private static volatile MetricsRegistry instance;
+
+    // Nombre de la métrica -> etiquetas -> serie
+    private final Map<String, Map<String, Metric>> metrics = new ConcurrentSkipListMap<>();
+    private final Map<String, String> help = new ConcurrentHashMap<>();
+    private HttpServer server;
+    private ScheduledExecutorService dumper;
+
+    private MetricsRegistry() {
+    }
+
+    /**
+     * Registro global; la primera llamada activa las exportaciones configuradas.
+     */
+    public static MetricsRegistry get() {
+        MetricsRegistry registry = instance;
+        if (registry == null) {
+            synchronized (MetricsRegistry.class) {
+                registry = instance;
+                if (registry == null) {
+                    registry = new MetricsRegistry();
+                    registry.startExporters();
+                    instance = registry;
+                }
+            }
+        }
+        return registry;
+    }
+
+    private void startExporters() {
+        try {
+            if (Boolean.getBoolean("metrics.jmx")) {
+                registerMBean();
+            }
+            Integer port = Integer.getInteger("metrics.port");
+            if (port != null) {
+                startHttpServer(port);
+            }
+            String file = System.getProperty("metrics.file");
+            if (file != null) {
+                startFileDump(Path.of(file), Long.getLong("metrics.fileSeconds", 15));
+            }
+        } catch (Exception e) {
+            System.err.println("No se pudieron activar las métricas: " + e.getMessage());
+        }
+    }
+
+    // ---------------------------------------------------------------- tipos de métrica
+
+    private interface Metric {
+        void write(String name, String labels, StringBuilder out);
+
+        void attributes(String name, String labels, Map<String, Double> out);
+    }
+
+    public static final class Counter implements Metric {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void inc(long n) {
+            value.add(n);
+        }
+
+        public long value() {
+            return value.sum();
+        }
+
+        @Override
+        public void write(String name, String labels, StringBuilder out) {
+            line(out, name, labels, value.sum());
+        }
+
+        @Override
+        public void attributes(String name, String labels, Map<String, Double> out) {
+            out.put(name + labels, (double) value.sum());
+        }
+    }
+
+    private static final class Gauge implements Metric {
+        private final DoubleSupplier supplier;
+
+        Gauge(DoubleSupplier supplier) {
+            this.supplier = supplier;
+        }
+
+        @Override
+        public void write(String name, String labels, StringBuilder out) {
+            line(out, name, labels, supplier.getAsDouble());
+        }
+
+        @Override
+        public void attributes(String name, String labels, Map<String, Double> out) {
+            out.put(name + labels, supplier.getAsDouble());
+        }
+    }
+
+    public static final class Histogram implements Metric {
+        private final double[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length];
+            for (int i = 0; i < bounds.length; i++) buckets[i] = new LongAdder();
+        }
+
+        public void observe(double value) {
+            for (int i = 0; i < bounds.length; i++) {
+                if (value <= bounds[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(value);
+        }
+
+        public void observeNanos(long nanos) {
+            observe(nanos / 1e9);
+        }
+
+        @Override
+        public void write(String name, String labels, StringBuilder out) {
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets[i].sum();
+                line(out, name + "_bucket", withLabel(labels, "le", format(bounds[i])), cumulative);
+            }
+            line(out, name + "_bucket", withLabel(labels, "le", "+Inf"), count.sum());
+            line(out, name + "_count", labels, count.sum());
+            line(out, name + "_sum", labels, sum.sum());
+        }
+
+        @Override
+        public void attributes(String name, String labels, Map<String, Double> out) {
+            out.put(name + "_count" + labels, (double) count.sum());
+            out.put(name + "_sum" + labels, sum.sum());
+        }
+    }
+
+    // ---------------------------------------------------------------- registro
+
+    /**
+     * Contador con el nombre y las etiquetas dadas (pares clave, valor).
+     */
+    public Counter counter(String name, String description, String... labels) {
+        return (Counter) register(name, description, labels, Counter::new);
+    }
+
+    public Histogram histogram(String name, String description, double[] bounds, String... labels) {
+        return (Histogram) register(name, description, labels, () -> new Histogram(bounds));
+    }
+
+    public Histogram latency(String name, String description, String... labels) {
+        return histogram(name, description, LATENCY_BUCKETS, labels);
+    }
+
+    /**
+     * Gauge calculado en cada lectura. Si ya existe uno con la misma clave, se reemplaza (p. ej. al
+     * reabrir un índice).
+     */
+    public void gauge(String name, String description, DoubleSupplier supplier, String... labels) {
+        help.putIfAbsent(PREFIX + name, description);
+        series(PREFIX + name).put(labels(name, labels), new Gauge(supplier));
+    }
+
+    private Metric register(String name, String description, String[] labels, java.util.function.Supplier<Metric> factory) {
+        help.putIfAbsent(PREFIX + name, description);
+        return series(PREFIX + name).computeIfAbsent(labels(name, labels), k -> factory.get());
+    }
+
+    private Map<String, Metric> series(String name) {
+        return metrics.computeIfAbsent(name, k -> new ConcurrentSkipListMap<>());
+    }
+
+    private static String labels(String name, String[] labels) {
+        if (labels.length % 2 != 0) throw new IllegalArgumentException("Etiquetas incompletas para " + name);
+        StringBuilder sb = new StringBuilder();
+        if (labels.length > 0) {
+            sb.append('{');
+            for (int i = 0; i < labels.length; i += 2) {
+                if (i > 0) sb.append(',');
+                sb.append(labels[i]).append("=\"").append(labels[i + 1].replace("\"", "\\\"")).append('"');
+            }
+            sb.append('}');
+        }
+        return sb.toString();
+    }
+
+    // ---------------------------------------------------------------- instrumentación
+
+    /**
+     * Registra una consulta: número, latencia y hits devueltos por modo (bm25, knn, rescore, cascade...).
+     */
+    public void recordQuery(String mode, long nanos, int hits) {
+        counter("queries_total", "Consultas ejecutadas", "mode", mode).inc();
+        latency("query_latency_seconds", "Latencia de las consultas", "mode", mode).observeNanos(nanos);
+        histogram("query_hits", "Hits devueltos por consulta", HITS_BUCKETS, "mode", mode).observe(hits);
+    }
+
+    public void recordQueryError(String mode) {
+        counter("query_errors_total", "Consultas fallidas", "mode", mode).inc();
+    }
+
+    /**
+     * Registra documentos indexados (o eliminados) por origen: bulk, nrt...
+     */
+    public void recordIndexed(String source, String operation, long docs) {
+        counter("documents_indexed_total", "Documentos añadidos, actualizados o eliminados", "source", source, "op", operation).inc(docs);
+    }
+
+    /**
+     * Expone los aciertos y fallos de la caché de consultas de Lucene (LRUQueryCache). La caché
+     * por defecto es global, así que basta con registrarla una vez por proceso.
+     */
+    public void registerQueryCache(IndexSearcher searcher) {
+        QueryCache cache = searcher.getQueryCache();
+        if (!(cache instanceof LRUQueryCache)) return;
+        LRUQueryCache lru = (LRUQueryCache) cache;
+        gauge("query_cache_hits", "Aciertos de la caché de consultas", () -> lru.getHitCount());
+        gauge("query_cache_misses", "Fallos de la caché de consultas", () -> lru.getMissCount());
+        gauge("query_cache_hit_ratio", "Proporción de aciertos de la caché de consultas", () -> {
+            long total = lru.getHitCount() + lru.getMissCount();
+            return total == 0 ? 0 : lru.getHitCount() / (double) total;
+        });
+        gauge("query_cache_entries", "Entradas en la caché de consultas", () -> lru.getCacheSize());
+        gauge("query_cache_bytes", "Memoria usada por la caché de consultas", () -> lru.ramBytesUsed());
+    }
+
+    /**
+     * Expone la memoria estimada de un mapa de embeddings cargado en memoria. El tamaño se calcula
+     * una vez al registrarlo (los mapas no cambian después de cargarse).
+     */
+    public void registerEmbeddings(String name, Map<String, float[]> embeddings) {
+        long bytes = RamUsageEstimator.shallowSizeOf(embeddings);
+        for (Map.Entry<String, float[]> e : embeddings.entrySet()) {
+            bytes += RamUsageEstimator.sizeOf(e.getKey()) + RamUsageEstimator.sizeOf(e.getValue())
+                    + 4L * RamUsageEstimator.NUM_BYTES_OBJECT_REF; // entrada del HashMap
+        }
+        final double total = bytes;
+        final double count = embeddings.size();
+        gauge("embeddings_heap_bytes", "Memoria estimada de los embeddings cargados", () -> total, "map", name);
+        gauge("embeddings_count", "Embeddings cargados", () -> count, "map", name);
+    }
+
+    /**
+     * Listener que cuenta y cronometra los refrescos de un SearcherManager (o cualquier ReferenceManager).
+     */
+    public ReferenceManager.RefreshListener refreshListener(String name) {
+        Counter refreshes = counter("reader_refreshes_total", "Refrescos de lectores que abrieron una vista nueva", "manager", name);
+        Histogram latency = latency("reader_refresh_seconds", "Duración de los intentos de refresco", "manager", name);
+        return new ReferenceManager.RefreshListener() {
+            private final ThreadLocal<Long> start = new ThreadLocal<>();
+
+            @Override
+            public void beforeRefresh() {
+                start.set(System.nanoTime());
+            }
+
+            @Override
+            public void afterRefresh(boolean didRefresh) {
+                Long t0 = start.get();
+                if (t0 != null) latency.observeNanos(System.nanoTime() - t0);
+                if (didRefresh) refreshes.inc();
+            }
+        };
+    }
+
+    /**
+     * ConcurrentMergeScheduler que mide el número y la duración de los merges.
+     */
+    public static class MeteredMergeScheduler extends ConcurrentMergeScheduler {
+        private final Counter merges;
+        private final Counter mergedSegments;
+        private final Histogram mergeTime;
+
+        public MeteredMergeScheduler(String index) {
+            MetricsRegistry registry = get();
+            this.merges = registry.counter("merges_total", "Merges completados", "index", index);
+            this.mergedSegments = registry.counter("merged_segments_total", "Segmentos fusionados", "index", index);
+            this.mergeTime = registry.latency("merge_seconds", "Duración de los merges", "index", index);
+        }
+
+        @Override
+        protected void doMerge(MergeSource mergeSource, MergePolicy.OneMerge merge) throws IOException {
+            long start = System.nanoTime();
+            try {
+                super.doMerge(mergeSource, merge);
+            } finally {
+                mergeTime.observeNanos(System.nanoTime() - start);
+                merges.inc();
+                mergedSegments.inc(merge.segments.size());
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- exportación
+
+    /**
+     * Serializa todas las métricas en el formato de texto de Prometheus.
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Map<String, Metric>> family : metrics.entrySet()) {
+            String name = family.getKey();
+            if (family.getValue().isEmpty()) continue;
+            Metric first = family.getValue().values().iterator().next();
+            out.append("# HELP ").append(name).append(' ').append(help.getOrDefault(name, name)).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type(first)).append('\n');
+            for (Map.Entry<String, Metric> e : family.getValue().entrySet()) {
+                e.getValue().write(name, e.getKey(), out);
+            }
+        }
+        return out.toString();
+    }
+
+    private static String type(Metric metric) {
+        if (metric instanceof Counter) return "counter";
+        if (metric instanceof Histogram) return "histogram";
+        return "gauge";
+    }
+
+    private static void line(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append(labels).append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return String.format(Locale.US, "%.6g", value);
+    }
+
+    private static String withLabel(String labels, String key, String value) {
+        String label = key + "=\"" + value + "\"";
+        return labels.isEmpty() ? "{" + label + "}" : labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+
+    /**
+     * Escribe las métricas en el archivo de forma atómica (archivo temporal y rename).
+     */
+    public void dump(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write(toPrometheus());
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public synchronized void startFileDump(Path file, long seconds) {
+        if (dumper != null) return;
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        Runnable task = () -> {
+            try {
+                dump(file);
+            } catch (IOException e) {
+                System.err.println("Error volcando las métricas: " + e.getMessage());
+            }
+        };
+        dumper.scheduleWithFixedDelay(task, seconds, seconds, TimeUnit.SECONDS);
+        // Volcado final para los programas por lotes que terminan antes del primer intervalo
+        Runtime.getRuntime().addShutdownHook(new Thread(task, "metrics-final-dump"));
+    }
+
+    /**
+     * Arranca un endpoint HTTP /metrics en el puerto dado.
+     */
+    public synchronized void startHttpServer(int port) throws IOException {
+        if (server != null) return;
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics-http");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+        System.out.println("Métricas en http://localhost:" + port + "/metrics");
+    }
+
+    /**
+     * Registra el MBean con un atributo de solo lectura por serie (los histogramas exponen _count y _sum).
+     */
+    public void registerMBean() throws Exception {
+        ObjectName name = new ObjectName("es.udc.fi.irudc.c2425.ClinicalTrials:type=Metrics");
+        if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), name);
+        }
+    }
+
+    private Map<String, Double> snapshot() {
+        Map<String, Double> values = new ConcurrentSkipListMap<>();
+        for (Map.Entry<String, Map<String, Metric>> family : metrics.entrySet()) {
+            for (Map.Entry<String, Metric> e : family.getValue().entrySet()) {
+                e.getValue().attributes(family.getKey(), e.getKey(), values);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * MBean dinámico: los atributos se descubren en cada consulta, ya que las series se crean al usarse.
+     */
+    private class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Double value = snapshot().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Las métricas son de solo lectura");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Double> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Double value = values.get(attribute);
+                if (value != null) list.add(new Attribute(attribute, value));
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : snapshot().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "java.lang.Double", name, true, false, false));
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(), "Métricas de búsqueda, indexación y evaluación",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.FSDirectory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Barrido de parámetros de ranking sobre un único índice abierto.
+ *
+ * Recibe una especificación JSON con una rejilla (grid) o una búsqueda aleatoria (random) sobre:
+ * - k1, b: parámetros de BM25.
+ * - boost.brief_title, boost.detailed_description, boost.criteria: pesos por campo.
+ * - fusionWeight: peso del producto punto vectorial frente al BM25 normalizado.
+ * - rescoreDepth: número de candidatas BM25 que se reordenan; el resto se mantiene a continuación en
+ *   su orden BM25.
+ *
+ * Cada tópico se analiza una sola vez, y las configuraciones que solo difieren en fusionWeight o
+ * rescoreDepth comparten el mismo conjunto de candidatas (y sus similitudes vectoriales). Las
+ * configuraciones se evalúan en un pool de hilos con {@link Evaluation} en memoria, y el resultado
+ * es una tabla de configuraciones ordenada por la métrica elegida, con el tiempo por consulta.
+ *
+ * Ejemplo de especificación:
+ * { "mode": "grid", "threads": 8, "cutoff": 10, "metric": "NDCG",
+ *   "params": { "k1": [0.9, 1.2], "b": [0.4, 0.75], "boost.brief_title": [1, 2],
+ *               "fusionWeight": [0, 0.5], "rescoreDepth": [100, 1000] } }
+ * En modo "random", "samples" indica cuántas configuraciones probar y cada parámetro puede ser
+ * una lista de valores o un rango { "min": x, "max": y }.
+ */
+public class ParameterSweep {
+
+    private static final String[] TEXT_FIELDS = {"brief_title", "detailed_description", "criteria"};
+    private static final int RUN_DEPTH = 1000;
+
+    private final IndexReader reader;
+    private final List<PreparedTopic> topics;
+    private final Evaluation.Qrels qrels;
+    private final int[] cutoffs;
+    private final int maxDepth;
+    private final Map<String, CompletableFuture<CandidateSet>> candidateCache = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> evalIds = new ConcurrentHashMap<>();
+
+    public ParameterSweep(IndexReader reader, List<PreparedTopic> topics, Evaluation.Qrels qrels, int[] cutoffs, int maxDepth) {
+        this.reader = reader;
+        this.topics = topics;
+        this.qrels = qrels;
+        this.cutoffs = cutoffs;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Tópico preparado: términos analizados una sola vez (con su frecuencia), filtros y embedding.
+     */
+    public static class PreparedTopic {
+        final String id;
+        final Map<String, Integer> terms;
+        final Query filter;
+        final float[] embedding;
+
+        PreparedTopic(String id, Map<String, Integer> terms, Query filter, float[] embedding) {
+            this.id = id;
+            this.terms = terms;
+            this.filter = filter;
+            this.embedding = embedding;
+        }
+    }
+
+    /**
+     * Candidatas BM25 de todos los tópicos para unos parámetros léxicos, con sus similitudes vectoriales.
+     */
+    private static class CandidateSet {
+        final ScoreDoc[][] hits;
+        final float[][] similarities;
+        final double retrievalMs;
+
+        CandidateSet(ScoreDoc[][] hits, float[][] similarities, double retrievalMs) {
+            this.hits = hits;
+            this.similarities = similarities;
+            this.retrievalMs = retrievalMs;
+        }
+    }
+
+    /**
+     * Resultado de una configuración.
+     */
+    public static class SweepResult {
+        final Map<String, Double> config;
+        final double[][] means; // [métrica][corte]
+        final double msPerQuery;
+
+        SweepResult(Map<String, Double> config, double[][] means, double msPerQuery) {
+            this.config = config;
+            this.means = means;
+            this.msPerQuery = msPerQuery;
+        }
+    }
+
+    /**
+     * Analiza cada tópico una sola vez y agrupa los términos repetidos.
+     */
+    public static List<PreparedTopic> prepareTopics(List<Topic2> topics, Map<String, float[]> embeddings, Analyzer analyzer)
+            throws IOException {
+        List<PreparedTopic> prepared = new ArrayList<>();
+        for (Topic2 topic : topics) {
+            String queryText = topic.getQuery();
+            if (queryText == null || queryText.isEmpty()) continue;
+
+            Map<String, Integer> terms = new LinkedHashMap<>();
+            try (TokenStream ts = analyzer.tokenStream(TEXT_FIELDS[0], queryText)) {
+                CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+                ts.reset();
+                while (ts.incrementToken()) {
+                    terms.merge(term.toString(), 1, Integer::sum);
+                }
+                ts.end();
+            }
+            String id = String.valueOf(topic.getNumber());
+            Query filter = CascadeRanker.buildFilter(topic.getAge(), topic.getGender() != null ? topic.getGender().toLowerCase() : null);
+            prepared.add(new PreparedTopic(id, terms, filter, embeddings.get(id)));
+        }
+        return prepared;
+    }
+
+    /**
+     * Evalúa todas las configuraciones en un pool de hilos y las devuelve ordenadas por la métrica.
+     */
+    public List<SweepResult> run(List<Map<String, Double>> configs, int threads, int metric, int cutoffIndex) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<SweepResult>> futures = new ArrayList<>();
+            for (Map<String, Double> config : configs) {
+                futures.add(pool.submit(() -> evaluateConfig(config)));
+            }
+            List<SweepResult> results = new ArrayList<>();
+            for (Future<SweepResult> f : futures) {
+                results.add(f.get());
+            }
+            results.sort((a, b) -> Double.compare(b.means[metric][cutoffIndex], a.means[metric][cutoffIndex]));
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private SweepResult evaluateConfig(Map<String, Double> config) throws Exception {
+        CandidateSet candidates = candidates(config);
+
+        long start = System.nanoTime();
+        double w = config.getOrDefault("fusionWeight", 0.0);
+        int depth = (int) Math.round(config.getOrDefault("rescoreDepth", (double) maxDepth));
+        double[][] sums = new double[Evaluation.METRIC_NAMES.length][cutoffs.length];
+
+        for (int t = 0; t < topics.size(); t++) {
+            ScoreDoc[] hits = candidates.hits[t];
+            int n = Math.min(depth, hits.length);
+            float[] fused = new float[n];
+
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i++) {
+                min = Math.min(min, hits[i].score);
+                max = Math.max(max, hits[i].score);
+            }
+            for (int i = 0; i < n; i++) {
+                float lexical = max > min ? (hits[i].score - min) / (max - min) : 1f;
+                float sim = candidates.similarities[t][i];
+                fused[i] = (float) ((1 - w) * lexical + w * (Float.isNaN(sim) ? 0f : sim));
+            }
+
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) order[i] = i;
+            if (w > 0) Arrays.sort(order, (a, b) -> Float.compare(fused[b], fused[a]));
+
+            // Las candidatas por debajo de la profundidad conservan su orden BM25 tras las reordenadas
+            int[] ranking = new int[Math.min(hits.length, RUN_DEPTH)];
+            for (int i = 0; i < ranking.length; i++) {
+                ranking[i] = evalId(hits[i < n ? order[i] : i].doc);
+            }
+
+            Evaluation.TopicQrels topicQrels = qrels.get(topics.get(t).id);
+            Evaluation.TopicMetrics metrics = Evaluation.evaluate(ranking,
+                    topicQrels != null ? topicQrels : Evaluation.TopicQrels.EMPTY, cutoffs);
+            for (int m = 0; m < sums.length; m++) {
+                for (int c = 0; c < cutoffs.length; c++) sums[m][c] += metrics.values[m][c];
+            }
+        }
+
+        for (double[] row : sums) {
+            for (int c = 0; c < row.length; c++) row[c] /= Math.max(1, topics.size());
+        }
+        double fusionMs = (System.nanoTime() - start) / 1e6;
+        return new SweepResult(config, sums, (candidates.retrievalMs + fusionMs) / Math.max(1, topics.size()));
+    }
+
+    /**
+     * Identificador de evaluación (NCT ID internado) de un documento; se resuelve una vez por documento.
+     */
+    private int evalId(int docId) {
+        return evalIds.computeIfAbsent(docId, d -> {
+            try {
+                StoredFields storedFields = reader.storedFields();
+                String nctId = storedFields.document(d, Set.of("nct_id")).get("nct_id");
+                return nctId != null ? qrels.docId(nctId) : Evaluation.UNKNOWN_DOC;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * Obtiene (o calcula una única vez) las candidatas para los parámetros léxicos de la configuración.
+     */
+    private CandidateSet candidates(Map<String, Double> config) throws Exception {
+        double k1 = config.getOrDefault("k1", 1.2);
+        double b = config.getOrDefault("b", 0.75);
+        double[] boosts = new double[TEXT_FIELDS.length];
+        for (int f = 0; f < TEXT_FIELDS.length; f++) {
+            boosts[f] = config.getOrDefault("boost." + TEXT_FIELDS[f], 1.0);
+        }
+        String key = k1 + "|" + b + "|" + Arrays.toString(boosts);
+
+        CompletableFuture<CandidateSet> future = new CompletableFuture<>();
+        CompletableFuture<CandidateSet> existing = candidateCache.putIfAbsent(key, future);
+        if (existing != null) return existing.get();
+
+        try {
+            future.complete(retrieve((float) k1, (float) b, boosts));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future.get();
+    }
+
+    private CandidateSet retrieve(float k1, float b, double[] boosts) throws IOException {
+        long start = System.nanoTime();
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(new BM25Similarity(k1, b));
+
+        ScoreDoc[][] hits = new ScoreDoc[topics.size()][];
+        float[][] similarities = new float[topics.size()][];
+        for (int t = 0; t < topics.size(); t++) {
+            PreparedTopic topic = topics.get(t);
+            BooleanQuery.Builder text = new BooleanQuery.Builder();
+            for (Map.Entry<String, Integer> term : topic.terms.entrySet()) {
+                for (int f = 0; f < TEXT_FIELDS.length; f++) {
+                    if (boosts[f] <= 0) continue;
+                    Query tq = new TermQuery(new Term(TEXT_FIELDS[f], term.getKey()));
+                    // Un término repetido pesa como sus repeticiones en la consulta original
+                    text.add(new BoostQuery(tq, (float) (boosts[f] * term.getValue())), BooleanClause.Occur.SHOULD);
+                }
+            }
+            BooleanQuery.Builder query = new BooleanQuery.Builder().add(text.build(), BooleanClause.Occur.MUST);
+            if (topic.filter != null) query.add(topic.filter, BooleanClause.Occur.FILTER);
+
+            hits[t] = searcher.search(query.build(), maxDepth).scoreDocs;
+
+            int[] docIds = new int[hits[t].length];
+            for (int i = 0; i < docIds.length; i++) docIds[i] = hits[t][i].doc;
+            similarities[t] = topic.embedding != null
+                    ? VectorRescorer.dotProducts(reader, docIds, docIds.length, topic.embedding)
+                    : nanArray(docIds.length);
+        }
+        return new CandidateSet(hits, similarities, (System.nanoTime() - start) / 1e6);
+    }
+
+    private static float[] nanArray(int n) {
+        float[] values = new float[n];
+        Arrays.fill(values, Float.NaN);
+        return values;
+    }
+
+    /**
+     * Genera las configuraciones a partir de la especificación (rejilla completa o muestras aleatorias).
+     */
+    public static List<Map<String, Double>> expand(JsonNode spec) {
+        JsonNode params = spec.get("params");
+        List<String> names = new ArrayList<>();
+        for (Iterator<String> it = params.fieldNames(); it.hasNext(); ) names.add(it.next());
+
+        List<Map<String, Double>> configs = new ArrayList<>();
+        String mode = spec.has("mode") ? spec.get("mode").asText() : "grid";
+        if (mode.equals("random")) {
+            int samples = spec.has("samples") ? spec.get("samples").asInt() : 50;
+            Random random = new Random(spec.has("seed") ? spec.get("seed").asLong() : 42L);
+            for (int s = 0; s < samples; s++) {
+                Map<String, Double> config = new TreeMap<>();
+                for (String name : names) {
+                    JsonNode p = params.get(name);
+                    double value = p.isArray()
+                            ? p.get(random.nextInt(p.size())).asDouble()
+                            : p.get("min").asDouble() + random.nextDouble() * (p.get("max").asDouble() - p.get("min").asDouble());
+                    config.put(name, value);
+                }
+                configs.add(config);
+            }
+        } else {
+            configs.add(new TreeMap<>());
+            for (String name : names) {
+                List<Map<String, Double>> next = new ArrayList<>();
+                for (Map<String, Double> partial : configs) {
+                    for (JsonNode value : params.get(name)) {
+                        Map<String, Double> config = new TreeMap<>(partial);
+                        config.put(name, value.asDouble());
+                        next.add(config);
+                    }
+                }
+                configs = next;
+            }
+        }
+        return configs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String specPath = args.length > 0 ? args[0] : "src/main/resources/sweep.json";
+        String indexPath = "src/main/resources/index";
+        String topicsPath = "src/main/resources/topics_queries_and_narratives.xml";
+        String embeddingsPath = "src/main/resources/query_embeddings.json";
+        String qrelsPath = "src/main/resources/qrels.txt";
+        String outputPath = "src/main/resources/sweep_results.csv";
+
+        JsonNode spec = new ObjectMapper().readTree(new File(specPath));
+        int threads = spec.has("threads") ? spec.get("threads").asInt() : Runtime.getRuntime().availableProcessors();
+        int cutoff = spec.has("cutoff") ? spec.get("cutoff").asInt() : 10;
+        String metricName = spec.has("metric") ? spec.get("metric").asText() : "NDCG";
+        int metric = Arrays.asList(Evaluation.METRIC_NAMES).indexOf(metricName);
+        if (metric < 0) throw new IllegalArgumentException("Métrica desconocida: " + metricName);
+
+        List<Map<String, Double>> configs = expand(spec);
+        int maxDepth = 1000;
+        for (Map<String, Double> config : configs) {
+            maxDepth = Math.max(maxDepth, (int) Math.round(config.getOrDefault("rescoreDepth", 1000.0)));
+        }
+        int[] cutoffs = {cutoff};
+
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)))) {
+            List<PreparedTopic> topics = prepareTopics(TopicParser2.parseTopics(topicsPath),
+                    QueryEmbeddings.load(embeddingsPath), ClinicalTrialAnalyzer.forQuery());
+            Evaluation.Qrels qrels = Evaluation.loadQrels(qrelsPath, cutoff);
+
+            ParameterSweep sweep = new ParameterSweep(reader, topics, qrels, cutoffs, maxDepth);
+            long start = System.nanoTime();
+            List<SweepResult> results = sweep.run(configs, threads, metric, 0);
+            System.out.printf(Locale.US, "%d configuraciones, %d conjuntos de candidatas, %d tópicos en %.1f s%n%n",
+                    configs.size(), sweep.candidateCache.size(), topics.size(), (System.nanoTime() - start) / 1e9);
+
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(outputPath))) {
+                List<String> names = new ArrayList<>(results.isEmpty() ? List.of() : results.get(0).config.keySet());
+                StringBuilder header = new StringBuilder("rank");
+                for (String name : names) header.append(',').append(name);
+                for (String m : Evaluation.METRIC_NAMES) header.append(',').append(m).append('@').append(cutoff);
+                header.append(",ms_per_query");
+                writer.write(header.append('\n').toString());
+                System.out.println(header.toString().replace(',', '\t'));
+
+                int rank = 1;
+                for (SweepResult result : results) {
+                    StringBuilder row = new StringBuilder(String.valueOf(rank++));
+                    for (String name : names) row.append(',').append(result.config.get(name));
+                    for (double[] values : result.means) row.append(String.format(Locale.US, ",%.4f", values[0]));
+                    row.append(String.format(Locale.US, ",%.2f", result.msPerQuery));
+                    writer.write(row.append('\n').toString());
+                    System.out.print(row.toString().replace(',', '\t'));
+                }
+            }
+        }
+        System.out.println("\nResultados del barrido en: " + outputPath);
+    }
+}
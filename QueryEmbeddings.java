@@ -0,0 +1,47 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Carga de los embeddings de las queries (tópicos) compartida por los buscadores.
+ * El archivo debe tener formato: { "1": [float, float, ...], "2": [...], ... }
+ */
+public class QueryEmbeddings {
+
+    private QueryEmbeddings() {
+    }
+
+    /**
+     * Carga todos los embeddings del archivo JSON en un mapa indexado por el número de tópico.
+     *
+     * @param filePath ruta del archivo JSON
+     * @return mapa tópico → vector; vacío si el archivo no se puede leer
+     */
+    public static Map<String, float[]> load(String filePath) {
+        Map<String, float[]> embeddings = new HashMap<>();
+        try (FileReader fileReader = new FileReader(filePath)) {
+            ObjectMapper mapper = new ObjectMapper();
+            JsonNode root = mapper.readTree(fileReader);
+
+            for (Iterator<String> it = root.fieldNames(); it.hasNext(); ) {
+                String topicId = it.next();
+                JsonNode array = root.get(topicId);
+                float[] vec = new float[array.size()];
+                for (int i = 0; i < array.size(); i++) {
+                    vec[i] = (float) array.get(i).asDouble();
+                }
+                embeddings.put(topicId, vec);
+            }
+        } catch (IOException e) {
+            System.err.println("Error leyendo embeddings: " + e.getMessage());
+        }
+        return embeddings;
+    }
+}
@@ -0,0 +1,239 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.sandbox.search.QueryProfilerIndexSearcher;
+import org.apache.lucene.sandbox.search.QueryProfilerResult;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Traza por consulta con los tiempos de cada etapa (parseo, BM25, carga de campos almacenados,
+ * parseo de vectores, ordenación, escritura...).
+ *
+ * Es opcional: solo se activa con -Dtrace.output=ruta.jsonl. Si no está activa, {@link #start}
+ * devuelve una traza vacía cuyos spans no miden nada, de modo que los buscadores pueden
+ * instrumentarse sin coste. Cada consulta se escribe como una línea JSON:
+ *
+ * {"searcher":"rescore","topic":"12","start":1712345678901,"total_ms":1834.2,
+ *  "attributes":{"hits":10000},
+ *  "spans":[{"name":"bm25","depth":0,"start_ms":0.4,"duration_ms":912.3}, ...],
+ *  "profile":[{"query":"BooleanQuery","description":"...","time_ms":905.1,
+ *              "breakdown":{"score":...,"next_doc":...},"children":[...]}]}
+ *
+ * La parte léxica se puede ejecutar con el QueryProfilerIndexSearcher de Lucene para incluir el
+ * desglose por consulta y por operación (create_weight, build_scorer, next_doc, score...). El
+ * profiler añade sobrecoste, así que se puede desactivar con -Dtrace.profile=false.
+ *
+ * La traza activa se guarda por hilo ({@link #current()}), para que las clases que ejecuta un
+ * buscador (p. ej. las etapas de la cascada) puedan añadir sus spans sin recibirla como parámetro.
+ */
+public final class QueryTrace {
+
+    public static final String OUTPUT_PROPERTY = "trace.output";
+    public static final String PROFILE_PROPERTY = "trace.profile";
+
+    private static final String OUTPUT = System.getProperty(OUTPUT_PROPERTY);
+    private static final boolean PROFILE = Boolean.parseBoolean(System.getProperty(PROFILE_PROPERTY, "true"));
+    private static final QueryTrace NOOP = new QueryTrace(null, null);
+    private static final ThreadLocal<QueryTrace> CURRENT = new ThreadLocal<>();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static BufferedWriter writer;
+
+    private final String searcher;
+    private final String topic;
+    private final long startMillis;
+    private final long startNanos;
+    private final Map<String, Object> attributes = new LinkedHashMap<>();
+    private final List<Map<String, Object>> spans = new ArrayList<>();
+    private final List<Map<String, Object>> profile = new ArrayList<>();
+    private int depth;
+
+    private QueryTrace(String searcher, String topic) {
+        this.searcher = searcher;
+        this.topic = topic;
+        this.startMillis = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Indica si la traza está activada para esta JVM.
+     */
+    public static boolean isEnabled() {
+        return OUTPUT != null;
+    }
+
+    /**
+     * Empieza la traza de una consulta y la deja como traza activa del hilo.
+     *
+     * @param searcher nombre del buscador (p. ej. "batch", "rescore", "cascade")
+     * @param topic tópico o identificador de la consulta
+     */
+    public static QueryTrace start(String searcher, Object topic) {
+        if (!isEnabled()) return NOOP;
+        QueryTrace trace = new QueryTrace(searcher, String.valueOf(topic));
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    /**
+     * Traza activa del hilo, o una traza vacía si no hay ninguna.
+     */
+    public static QueryTrace current() {
+        QueryTrace trace = CURRENT.get();
+        return trace != null ? trace : NOOP;
+    }
+
+    /**
+     * Abre un span; se cierra con try-with-resources. Los spans anidados guardan su profundidad.
+     * Cada span suele anotar con {@link Span#attr} lo que ha procesado (hits, filas...).
+     */
+    public Span span(String name) {
+        if (this == NOOP) return Span.NOOP;
+        return new Span(this, name);
+    }
+
+    /**
+     * Registra como span el tiempo acumulado de una operación repetida (p. ej. la carga de campos
+     * almacenados de cada hit), para no crear un span por documento.
+     */
+    public void record(String name, long nanos, int count) {
+        if (this == NOOP) return;
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("name", name);
+        json.put("depth", depth);
+        json.put("duration_ms", nanos / 1e6);
+        json.put("count", count);
+        spans.add(json);
+    }
+
+    /**
+     * Añade un atributo a la traza (número de hits, tamaño del ranking, etc.).
+     */
+    public QueryTrace attr(String key, Object value) {
+        if (this != NOOP) attributes.put(key, value);
+        return this;
+    }
+
+    /**
+     * Ejecuta la búsqueda; si la traza está activa y el profiler habilitado, la ejecuta con el
+     * QueryProfilerIndexSearcher y guarda su desglose en la traza.
+     */
+    public TopDocs search(IndexSearcher searcher, Query query, int n) throws IOException {
+        if (this == NOOP || !PROFILE) {
+            return searcher.search(query, n);
+        }
+        QueryProfilerIndexSearcher profiler = new QueryProfilerIndexSearcher(searcher.getIndexReader());
+        profiler.setSimilarity(searcher.getSimilarity());
+        TopDocs topDocs = profiler.search(query, n);
+        for (QueryProfilerResult result : profiler.getProfileResult()) {
+            profile.add(toMap(result));
+        }
+        return topDocs;
+    }
+
+    private static Map<String, Object> toMap(QueryProfilerResult result) {
+        Map<String, Object> node = new LinkedHashMap<>();
+        node.put("query", result.getQueryName());
+        node.put("description", result.getDescription());
+        node.put("time_ms", result.getTotalTime() / 1e6);
+        node.put("breakdown", result.getTimeBreakdown());
+        List<Map<String, Object>> children = new ArrayList<>();
+        for (QueryProfilerResult child : result.getProfiledChildren()) {
+            children.add(toMap(child));
+        }
+        node.put("children", children);
+        return node;
+    }
+
+    /**
+     * Termina la traza, la escribe como una línea JSON y la retira del hilo. Se llama en un bloque
+     * finally para que también se registren las consultas que fallan.
+     */
+    public void finish() {
+        if (this == NOOP) return;
+        CURRENT.remove();
+
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("searcher", searcher);
+        json.put("topic", topic);
+        json.put("start", startMillis);
+        json.put("total_ms", (System.nanoTime() - startNanos) / 1e6);
+        json.put("attributes", attributes);
+        json.put("spans", spans);
+        if (!profile.isEmpty()) json.put("profile", profile);
+
+        try {
+            write(MAPPER.writeValueAsString(json));
+        } catch (IOException e) {
+            System.err.println("Error escribiendo la traza: " + e.getMessage());
+        }
+    }
+
+    private static synchronized void write(String line) throws IOException {
+        if (writer == null) {
+            writer = new BufferedWriter(new FileWriter(OUTPUT, true));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    synchronized (QueryTrace.class) {
+                        writer.close();
+                    }
+                } catch (IOException e) {
+                    // La JVM se está cerrando
+                }
+            }));
+        }
+        writer.write(line);
+        writer.newLine();
+        writer.flush();
+    }
+
+    /**
+     * Etapa medida dentro de una traza.
+     */
+    public static final class Span implements AutoCloseable {
+        static final Span NOOP = new Span(null, null);
+
+        private final QueryTrace trace;
+        private final Map<String, Object> json;
+        private final long start;
+
+        private Span(QueryTrace trace, String name) {
+            this.trace = trace;
+            this.start = System.nanoTime();
+            if (trace == null) {
+                this.json = null;
+                return;
+            }
+            this.json = new LinkedHashMap<>();
+            json.put("name", name);
+            json.put("depth", trace.depth++);
+            json.put("start_ms", (start - trace.startNanos) / 1e6);
+            trace.spans.add(json);
+        }
+
+        /**
+         * Añade un atributo al span (p. ej. número de documentos procesados).
+         */
+        public Span attr(String key, Object value) {
+            if (json != null) json.put(key, value);
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (trace == null) return;
+            json.put("duration_ms", (System.nanoTime() - start) / 1e6);
+            trace.depth--;
+        }
+    }
+}
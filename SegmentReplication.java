@@ -0,0 +1,655 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+
+/**
+ * Replicación por segmentos de un índice primario a réplicas de solo lectura en la misma máquina.
+ *
+ * El primario publica puntos de commit: el manifiesto de un commit es su generación y la lista de
+ * archivos que lo forman con su longitud y el checksum CRC32 del pie de Lucene. Con un IndexWriter
+ * abierto, el commit publicado se protege con un {@link SnapshotDeletionPolicy} para que el
+ * escritor no borre sus archivos mientras las réplicas los copian; se conservan las dos últimas
+ * revisiones publicadas. Sin escritor (primario independiente), solo se publican commits de
+ * ingestas terminadas: los checkpoints de una reconstrucción en curso con ClinicalTrialIndexer
+ * ("ingest.complete" = false) no llegan a las réplicas, que siguen con la última revisión completa.
+ *
+ * La réplica compara el manifiesto con sus archivos locales y solo descarga los que faltan o han
+ * cambiado (los archivos de segmento no se modifican nunca una vez escritos), de modo que cada
+ * actualización cuesta una transferencia proporcional al delta. Cada archivo se descarga a un
+ * directorio de staging, se verifica su checksum completo ({@link CodecUtil#checksumEntireFile}) y
+ * se mueve al índice; el segments_N del commit se instala el último, después de sincronizar a disco
+ * el resto, así que un lector nunca ve un commit a medias. Después se refresca el
+ * {@link SearcherManager} de la réplica y se borran los archivos que ya no usa ningún commit.
+ *
+ * El canal es un socket en localhost con un protocolo mínimo: "MANIFEST" y "FILE nombre". Solo se
+ * replica el índice Lucene; con el layout ligero, el {@link TrialDocStore} se copia aparte.
+ *
+ * Uso:
+ *   SegmentReplication primary [índice] [puerto]          sirve un índice sin escritor (p. ej. tras
+ *                                                         una reconstrucción con ClinicalTrialIndexer)
+ *   SegmentReplication replica [host:puerto] [índice]     réplica que sondea cada -Dreplication.pollSeconds
+ * El indexador NRT publica sus commits con -Dreplication.port.
+ */
+public class SegmentReplication {
+
+    public static final int DEFAULT_PORT = 7010;
+
+    private static final String MANIFEST = "MANIFEST";
+    private static final String FILE = "FILE";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private SegmentReplication() {
+    }
+
+    /**
+     * Archivo de un commit publicado.
+     */
+    public static final class FileEntry {
+        public final String name;
+        public final long length;
+        public final long checksum;
+
+        FileEntry(String name, long length, long checksum) {
+            this.name = name;
+            this.length = length;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * Commit publicado: generación y archivos; el segments_N va siempre el último.
+     */
+    public static final class Revision {
+        public final long generation;
+        public final List<FileEntry> files;
+        final IndexCommit snapshot; // null si no hay escritor que proteger
+
+        Revision(long generation, List<FileEntry> files, IndexCommit snapshot) {
+            this.generation = generation;
+            this.files = files;
+            this.snapshot = snapshot;
+        }
+
+        boolean contains(String name) {
+            for (FileEntry f : files) {
+                if (f.name.equals(name)) return true;
+            }
+            return false;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Primario
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Publica los commits de un directorio y sirve sus archivos a las réplicas.
+     */
+    public static final class Primary implements Closeable {
+        private static final int KEEP_REVISIONS = 2;
+
+        private final Directory directory;
+        private final SnapshotDeletionPolicy snapshots;
+        private final ServerSocket server;
+        private final Thread acceptThread;
+        // Checksums por nombre de archivo: los archivos de Lucene no cambian una vez escritos
+        private final Map<String, Long> checksums = new ConcurrentHashMap<>();
+        private final Deque<Revision> revisions = new ArrayDeque<>();
+        private final MetricsRegistry.Counter bytesSent;
+        private volatile Revision current;
+
+        /**
+         * @param directory índice publicado
+         * @param snapshots política de borrado del IndexWriter que escribe en el directorio, o null si
+         *                  no hay ningún escritor abierto
+         * @param port puerto en localhost
+         */
+        public Primary(Directory directory, SnapshotDeletionPolicy snapshots, int port) throws IOException {
+            this.directory = directory;
+            this.snapshots = snapshots;
+            if (DirectoryReader.indexExists(directory)) {
+                publish();
+            }
+
+            MetricsRegistry metrics = MetricsRegistry.get();
+            this.bytesSent = metrics.counter("replication_bytes_sent_total", "Bytes enviados a las réplicas");
+            metrics.gauge("replication_published_generation", "Generación del último commit publicado",
+                    () -> current != null ? current.generation : -1);
+
+            this.server = new ServerSocket();
+            this.server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            this.acceptThread = new Thread(this::acceptLoop, "replication-primary");
+            this.acceptThread.setDaemon(true);
+            this.acceptThread.start();
+        }
+
+        public int port() {
+            return server.getLocalPort();
+        }
+
+        public Revision current() {
+            return current;
+        }
+
+        /**
+         * Publica el último commit del directorio. Se llama tras cada commit del escritor.
+         *
+         * @return la revisión publicada; la actual (o null) si no hay un commit nuevo publicable
+         */
+        public synchronized Revision publish() throws IOException {
+            IndexCommit commit = snapshots != null ? snapshots.snapshot() : latestCompleteCommit(directory);
+            if (commit == null) {
+                return current; // solo hay checkpoints de una ingesta en curso
+            }
+            if (current != null && current.generation == commit.getGeneration()) {
+                if (snapshots != null) snapshots.release(commit); // ya estaba protegido por la revisión actual
+                return current;
+            }
+
+            List<FileEntry> files = new ArrayList<>();
+            String segmentsFile = commit.getSegmentsFileName();
+            for (String name : commit.getFileNames()) {
+                if (!name.equals(segmentsFile)) files.add(entry(name));
+            }
+            files.add(entry(segmentsFile));
+            Revision revision = new Revision(commit.getGeneration(), List.copyOf(files), snapshots != null ? commit : null);
+
+            revisions.addLast(revision);
+            current = revision;
+            while (revisions.size() > KEEP_REVISIONS) {
+                Revision old = revisions.removeFirst();
+                if (old.snapshot != null) snapshots.release(old.snapshot);
+            }
+            checksums.keySet().removeIf(name -> !isRetained(name));
+            return revision;
+        }
+
+        private FileEntry entry(String name) throws IOException {
+            Long checksum = checksums.get(name);
+            if (checksum == null) {
+                try (IndexInput in = directory.openInput(name, IOContext.READONCE)) {
+                    checksum = CodecUtil.retrieveChecksum(in);
+                }
+                checksums.put(name, checksum);
+            }
+            return new FileEntry(name, directory.fileLength(name), checksum);
+        }
+
+        private synchronized boolean isRetained(String name) {
+            for (Revision r : revisions) {
+                if (r.contains(name)) return true;
+            }
+            return false;
+        }
+
+        private void acceptLoop() {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    Thread handler = new Thread(() -> serve(socket), "replication-connection");
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (SocketException e) {
+                    return; // servidor cerrado
+                } catch (IOException e) {
+                    System.err.println("Error aceptando una réplica: " + e.getMessage());
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (Socket s = socket;
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), BUFFER_SIZE))) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (true) {
+                    String command;
+                    try {
+                        command = in.readUTF();
+                    } catch (EOFException e) {
+                        return; // la réplica ha cerrado la conexión
+                    }
+                    if (command.equals(MANIFEST)) {
+                        writeManifest(out, current);
+                    } else if (command.equals(FILE)) {
+                        sendFile(in.readUTF(), out, buffer);
+                    } else {
+                        throw new IOException("Comando desconocido: " + command);
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                System.err.println("Error sirviendo a una réplica: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Envía la longitud y el contenido del archivo, o -1 si no pertenece a ninguna revisión
+         * conservada (así una réplica no puede leer archivos arbitrarios ni commits liberados).
+         */
+        private void sendFile(String name, DataOutputStream out, byte[] buffer) throws IOException {
+            IndexInput in = null;
+            if (isRetained(name)) {
+                try {
+                    in = directory.openInput(name, IOContext.READONCE);
+                } catch (NoSuchFileException e) {
+                    in = null;
+                }
+            }
+            if (in == null) {
+                out.writeLong(-1);
+                return;
+            }
+            try (IndexInput input = in) {
+                long remaining = input.length();
+                out.writeLong(remaining);
+                while (remaining > 0) {
+                    int n = (int) Math.min(buffer.length, remaining);
+                    input.readBytes(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                    remaining -= n;
+                }
+                bytesSent.inc(input.length());
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            server.close();
+            acceptThread.interrupt();
+            for (Revision r : revisions) {
+                if (r.snapshot != null) snapshots.release(r.snapshot);
+            }
+            revisions.clear();
+        }
+    }
+
+    /**
+     * Último commit publicable sin escritor: el de una ingesta terminada o uno sin datos de ingesta
+     * (índices anteriores a los checkpoints). Con la política de borrado por defecto solo queda el
+     * último commit, así que durante una reconstrucción normalmente no hay ninguno.
+     *
+     * @return el commit, o null si todos son checkpoints intermedios
+     */
+    private static IndexCommit latestCompleteCommit(Directory directory) throws IOException {
+        List<IndexCommit> commits = DirectoryReader.listCommits(directory);
+        for (int i = commits.size() - 1; i >= 0; i--) {
+            Map<String, String> userData = commits.get(i).getUserData();
+            String complete = userData.get(ClinicalTrialIndexer.COMPLETE_KEY);
+            if (complete != null ? Boolean.parseBoolean(complete)
+                    : !userData.containsKey(ClinicalTrialIndexer.FILES_KEY) && !userData.containsKey(ClinicalTrialIndexer.CURSOR_KEY)) {
+                return commits.get(i);
+            }
+        }
+        return null;
+    }
+
+    private static void writeManifest(DataOutputStream out, Revision revision) throws IOException {
+        if (revision == null) {
+            out.writeLong(-1);
+            return;
+        }
+        out.writeLong(revision.generation);
+        out.writeInt(revision.files.size());
+        for (FileEntry f : revision.files) {
+            out.writeUTF(f.name);
+            out.writeLong(f.length);
+            out.writeLong(f.checksum);
+        }
+    }
+
+    private static Revision readManifest(DataInputStream in) throws IOException {
+        long generation = in.readLong();
+        if (generation < 0) return null;
+        int count = in.readInt();
+        List<FileEntry> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            files.add(new FileEntry(in.readUTF(), in.readLong(), in.readLong()));
+        }
+        return new Revision(generation, files, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Réplica
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Resultado de una sincronización.
+     */
+    public static final class SyncStats {
+        public long generation = -1;
+        public boolean changed;
+        public int filesCopied;
+        public int filesReused;
+        public long bytesCopied;
+        public long bytesTotal;
+        public int filesDeleted;
+        public double elapsedMs;
+
+        @Override
+        public String toString() {
+            if (!changed) return String.format(Locale.US, "commit %d sin cambios (%.1f ms)", generation, elapsedMs);
+            return String.format(Locale.US, "commit %d: %d archivos copiados (%.1f MB de %.1f MB), %d reutilizados, %d borrados en %.1f ms",
+                    generation, filesCopied, bytesCopied / 1e6, bytesTotal / 1e6, filesReused, filesDeleted, elapsedMs);
+        }
+    }
+
+    /**
+     * Réplica local: descarga los commits del primario y sirve búsquedas con su propio SearcherManager.
+     */
+    public static final class Replica implements Closeable {
+        private final Path indexPath;
+        private final Path stagingPath;
+        private final FSDirectory directory;
+        private final String host;
+        private final int port;
+        private final SearcherFactory searcherFactory;
+        private final Set<String> pendingDeletes = new LinkedHashSet<>();
+        private final MetricsRegistry.Counter bytesCopied;
+        private final MetricsRegistry.Counter bytesReused;
+        private final MetricsRegistry.Histogram syncLatency;
+        private volatile SearcherManager searcherManager;
+        private volatile long generation = -1;
+
+        /**
+         * @param searcherFactory fábrica de buscadores (p. ej. para calentarlos), o null
+         */
+        public Replica(Path indexPath, String host, int port, SearcherFactory searcherFactory) throws IOException {
+            this.indexPath = indexPath;
+            this.stagingPath = indexPath.resolveSibling(indexPath.getFileName() + ".staging");
+            Files.createDirectories(indexPath);
+            this.directory = FSDirectory.open(indexPath);
+            this.host = host;
+            this.port = port;
+            this.searcherFactory = searcherFactory != null ? searcherFactory : new SearcherFactory();
+            if (DirectoryReader.indexExists(directory)) {
+                this.searcherManager = new SearcherManager(directory, this.searcherFactory);
+                this.generation = SegmentInfos.readLatestCommit(directory).getGeneration();
+            }
+
+            MetricsRegistry metrics = MetricsRegistry.get();
+            this.bytesCopied = metrics.counter("replication_bytes_total", "Bytes de los commits replicados", "kind", "copied");
+            this.bytesReused = metrics.counter("replication_bytes_total", "Bytes de los commits replicados", "kind", "reused");
+            this.syncLatency = metrics.latency("replication_sync_seconds", "Duración de una sincronización con cambios");
+            metrics.gauge("replication_replica_generation", "Generación del commit servido por la réplica", () -> generation);
+        }
+
+        /**
+         * Buscador sobre el último commit instalado, o null si aún no hay ninguno. Hay que devolverlo
+         * con {@link #release}.
+         */
+        public IndexSearcher acquire() throws IOException {
+            SearcherManager manager = searcherManager;
+            return manager != null ? manager.acquire() : null;
+        }
+
+        public void release(IndexSearcher searcher) throws IOException {
+            if (searcher != null) searcherManager.release(searcher);
+        }
+
+        /**
+         * Descarga e instala el commit publicado si es más reciente que el local.
+         */
+        public synchronized SyncStats sync() throws IOException {
+            long start = System.nanoTime();
+            SyncStats stats = new SyncStats();
+            stats.generation = generation;
+            retryPendingDeletes();
+
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), 5_000);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+
+                out.writeUTF(MANIFEST);
+                out.flush();
+                Revision revision = readManifest(in);
+                if (revision == null || revision.generation == generation) {
+                    stats.elapsedMs = (System.nanoTime() - start) / 1e6;
+                    return stats;
+                }
+
+                resetStaging();
+                FileEntry segments = revision.files.get(revision.files.size() - 1);
+                List<String> installed = new ArrayList<>();
+                byte[] buffer = new byte[BUFFER_SIZE];
+                for (FileEntry f : revision.files) {
+                    stats.bytesTotal += f.length;
+                    if (f != segments && isUpToDate(f)) {
+                        stats.filesReused++;
+                        bytesReused.inc(f.length);
+                        continue;
+                    }
+                    fetch(f, out, in, buffer);
+                    stats.filesCopied++;
+                    stats.bytesCopied += f.length;
+                    bytesCopied.inc(f.length);
+                    if (f != segments) installed.add(f.name);
+                }
+
+                // Primero los segmentos (a disco), después el segments_N que los hace visibles
+                for (String name : installed) {
+                    Files.move(stagingPath.resolve(name), indexPath.resolve(name),
+                            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                }
+                directory.sync(installed);
+                Files.move(stagingPath.resolve(segments.name), indexPath.resolve(segments.name),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                directory.sync(List.of(segments.name));
+                directory.syncMetaData();
+            } finally {
+                deleteStaging();
+            }
+
+            if (searcherManager == null) {
+                searcherManager = new SearcherManager(directory, searcherFactory);
+            } else {
+                searcherManager.maybeRefreshBlocking();
+            }
+            generation = SegmentInfos.readLatestCommit(directory).getGeneration();
+            stats.generation = generation;
+            stats.changed = true;
+            stats.filesDeleted = deleteUnreferenced();
+            stats.elapsedMs = (System.nanoTime() - start) / 1e6;
+            syncLatency.observeNanos(System.nanoTime() - start);
+            return stats;
+        }
+
+        /**
+         * El archivo local coincide con el publicado (longitud y checksum del pie).
+         */
+        private boolean isUpToDate(FileEntry f) {
+            try {
+                if (directory.fileLength(f.name) != f.length) return false;
+                try (IndexInput in = directory.openInput(f.name, IOContext.READONCE)) {
+                    return CodecUtil.retrieveChecksum(in) == f.checksum;
+                }
+            } catch (IOException e) {
+                return false; // no existe o está dañado: se descarga
+            }
+        }
+
+        /**
+         * Descarga un archivo al staging y verifica su longitud y su checksum completo.
+         */
+        private void fetch(FileEntry f, DataOutputStream out, DataInputStream in, byte[] buffer) throws IOException {
+            out.writeUTF(FILE);
+            out.writeUTF(f.name);
+            out.flush();
+            long length = in.readLong();
+            if (length < 0) {
+                throw new IOException("El primario ya no conserva " + f.name + ": se reintentará con el commit actual");
+            }
+            if (length != f.length) {
+                throw new CorruptIndexException("Longitud inesperada: " + length + " != " + f.length, f.name);
+            }
+            try (OutputStream file = Files.newOutputStream(stagingPath.resolve(f.name))) {
+                long remaining = length;
+                while (remaining > 0) {
+                    int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (n < 0) throw new EOFException("Conexión cerrada durante la copia de " + f.name);
+                    file.write(buffer, 0, n);
+                    remaining -= n;
+                }
+            }
+            try (FSDirectory staging = FSDirectory.open(stagingPath);
+                 IndexInput input = staging.openInput(f.name, IOContext.READONCE)) {
+                long actual = CodecUtil.checksumEntireFile(input);
+                if (actual != f.checksum) {
+                    throw new CorruptIndexException("Checksum " + Long.toHexString(actual) + " != "
+                            + Long.toHexString(f.checksum), f.name);
+                }
+            }
+        }
+
+        /**
+         * Borra los archivos de índice que no pertenecen al commit actual. Si un lector antiguo aún
+         * los tiene abiertos y el sistema no permite borrarlos (Windows), se reintenta más tarde.
+         */
+        private int deleteUnreferenced() throws IOException {
+            Set<String> referenced = new HashSet<>(SegmentInfos.readLatestCommit(directory).files(true));
+            int deleted = 0;
+            for (String name : directory.listAll()) {
+                if (referenced.contains(name) || name.equals(IndexWriter.WRITE_LOCK_NAME)) continue;
+                if (!name.startsWith(IndexFileNames.SEGMENTS) && !name.startsWith("_")) continue;
+                if (tryDelete(name)) deleted++;
+            }
+            return deleted;
+        }
+
+        private void retryPendingDeletes() {
+            for (String name : new ArrayList<>(pendingDeletes)) {
+                tryDelete(name);
+            }
+        }
+
+        private boolean tryDelete(String name) {
+            try {
+                directory.deleteFile(name);
+                pendingDeletes.remove(name);
+                return true;
+            } catch (NoSuchFileException e) {
+                pendingDeletes.remove(name);
+                return false;
+            } catch (IOException e) {
+                pendingDeletes.add(name);
+                return false;
+            }
+        }
+
+        private void resetStaging() throws IOException {
+            deleteStaging();
+            Files.createDirectories(stagingPath);
+        }
+
+        private void deleteStaging() throws IOException {
+            if (!Files.exists(stagingPath)) return;
+            try (Stream<Path> files = Files.list(stagingPath)) {
+                for (Path p : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(p);
+                }
+            }
+            Files.deleteIfExists(stagingPath);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (searcherManager != null) searcherManager.close();
+            directory.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "replica";
+        long pollMs = (long) (Double.parseDouble(System.getProperty("replication.pollSeconds", "5")) * 1000);
+
+        if (mode.equals("primary")) {
+            String indexPath = args.length > 1 ? args[1] : "src/main/resources/index";
+            int port = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PORT;
+            try (FSDirectory directory = FSDirectory.open(Path.of(indexPath));
+                 Primary primary = new Primary(directory, null, port)) {
+                System.out.println("Primario sirviendo " + indexPath + " en localhost:" + primary.port());
+                Revision published = primary.current();
+                if (published != null) {
+                    System.out.println("Publicado el commit " + published.generation + " (" + published.files.size() + " archivos)");
+                }
+                // Sin escritor en este proceso: se vuelve a publicar si otro proceso hace commit
+                while (true) {
+                    Thread.sleep(pollMs);
+                    if (!DirectoryReader.indexExists(directory)) continue;
+                    Revision revision = primary.publish();
+                    if (revision != null && revision != published) {
+                        published = revision;
+                        System.out.println("Publicado el commit " + revision.generation + " (" + revision.files.size() + " archivos)");
+                    }
+                }
+            }
+        }
+
+        String address = args.length > 1 ? args[1] : "localhost:" + DEFAULT_PORT;
+        String indexPath = args.length > 2 ? args[2] : "src/main/resources/index_replica";
+        String topicsPath = "src/main/resources/topics_queries_and_narratives.xml";
+        String queryEmbeddingsPath = "src/main/resources/query_embeddings.json";
+        int colon = address.lastIndexOf(':');
+
+        // Cada buscador nuevo se calienta con los tópicos antes de sustituir al anterior
+        List<org.apache.lucene.search.Query> warmingQueries = ClinicalTrialIndexWarmer.buildWarmingQueries(
+                TopicParser2.parseTopics(topicsPath), QueryEmbeddings.load(queryEmbeddingsPath), ClinicalTrialAnalyzer.forQuery());
+        try (Replica replica = new Replica(Path.of(indexPath), address.substring(0, colon),
+                Integer.parseInt(address.substring(colon + 1)), new ClinicalTrialIndexWarmer.WarmingSearcherFactory(warmingQueries))) {
+            System.out.println("Réplica en " + indexPath + " sincronizando con " + address + " cada " + pollMs + " ms");
+            while (true) {
+                try {
+                    SyncStats stats = replica.sync();
+                    if (stats.changed) System.out.println(stats);
+                } catch (IOException e) {
+                    System.err.println("Sincronización fallida (se reintentará): " + e.getMessage());
+                }
+                Thread.sleep(pollMs);
+            }
+        }
+    }
+}
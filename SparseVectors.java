@@ -0,0 +1,196 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FeatureField;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Representaciones dispersas aprendidas (término → peso, p. ej. SPLADE) de ensayos y consultas.
+ *
+ * Los pesos de cada documento se indexan como postings de impacto con {@link FeatureField} en el
+ * campo {@link #FIELD}: cada término es una feature y su peso va codificado en la frecuencia. La
+ * consulta es una disyunción de {@link FeatureField#newLinearQuery} con el peso de cada término,
+ * de modo que la puntuación es la suma de productos peso consulta × peso documento. Como las
+ * postings guardan los impactos máximos por bloque, la disyunción se poda dinámicamente (WAND /
+ * MaxScore) igual que BM25: latencia de índice invertido con términos de expansión semántica.
+ *
+ * Formatos (precalculados fuera de Java, como los embeddings):
+ * - Documentos (JSONL, -Dindex.sparse): {"nct_id": "NCT...", "vector": {"término": peso, ...}}
+ * - Consultas (JSON): {"1": {"término": peso, ...}, "2": {...}}
+ */
+public class SparseVectors {
+
+    public static final String FIELD = "sparse_terms";
+    public static final String DEFAULT_DOCUMENTS = "src/main/resources/sparse_vectors.jsonl";
+    public static final String DEFAULT_QUERIES = "src/main/resources/query_sparse.json";
+
+    // FeatureField solo admite pesos de consulta en (0, 64]; la escala global no cambia el ranking
+    private static final float MAX_QUERY_WEIGHT = 64f;
+
+    private SparseVectors() {
+    }
+
+    /**
+     * Vector disperso: términos y pesos en arrays paralelos, sin objetos por término.
+     */
+    public static final class SparseVector {
+        final String[] terms;
+        final float[] weights;
+
+        SparseVector(String[] terms, float[] weights) {
+            this.terms = terms;
+            this.weights = weights;
+        }
+
+        public int size() {
+            return terms.length;
+        }
+    }
+
+    /**
+     * Carga los vectores de los documentos. Los términos se internan en un vocabulario común: el
+     * vocabulario de un modelo disperso es pequeño (~30K) y se repite en todos los documentos.
+     *
+     * @return mapa NCT ID → vector; vacío si el archivo no se puede leer
+     */
+    public static Map<String, SparseVector> loadDocuments(String path) {
+        Map<String, SparseVector> vectors = new HashMap<>();
+        Map<String, String> vocabulary = new HashMap<>();
+        ObjectMapper mapper = new ObjectMapper();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) continue;
+                try {
+                    JsonNode node = mapper.readTree(line);
+                    if (node.has("nct_id") && node.has("vector")) {
+                        vectors.put(node.get("nct_id").asText(), parse(node.get("vector"), vocabulary));
+                    } else {
+                        System.err.println("Línea " + lineNumber + ": falta 'nct_id' o 'vector'.");
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error procesando línea " + lineNumber + ": " + e.getMessage());
+                }
+            }
+            System.out.println("Vectores dispersos cargados: " + vectors.size() + " (vocabulario: " + vocabulary.size() + " términos)");
+        } catch (IOException e) {
+            System.err.println("Error leyendo los vectores dispersos de " + path + ": " + e.getMessage());
+        }
+        return vectors;
+    }
+
+    /**
+     * Carga los vectores de las consultas indexados por número de tópico.
+     *
+     * @return mapa tópico → vector; vacío si el archivo no se puede leer
+     */
+    public static Map<String, SparseVector> loadQueries(String path) {
+        Map<String, SparseVector> vectors = new HashMap<>();
+        try (FileReader reader = new FileReader(path)) {
+            JsonNode root = new ObjectMapper().readTree(reader);
+            Map<String, String> vocabulary = new HashMap<>();
+            for (Iterator<String> it = root.fieldNames(); it.hasNext(); ) {
+                String topicId = it.next();
+                vectors.put(topicId, parse(root.get(topicId), vocabulary));
+            }
+        } catch (IOException e) {
+            System.err.println("Error leyendo las consultas dispersas de " + path + ": " + e.getMessage());
+        }
+        return vectors;
+    }
+
+    /**
+     * Lee un objeto {término: peso}, descartando los pesos no positivos (FeatureField no los admite).
+     */
+    private static SparseVector parse(JsonNode object, Map<String, String> vocabulary) {
+        String[] terms = new String[object.size()];
+        float[] weights = new float[object.size()];
+        int n = 0;
+        for (Iterator<Map.Entry<String, JsonNode>> it = object.fields(); it.hasNext(); ) {
+            Map.Entry<String, JsonNode> e = it.next();
+            float weight = (float) e.getValue().asDouble();
+            if (!(weight > 0) || Float.isInfinite(weight)) continue;
+            terms[n] = vocabulary.computeIfAbsent(e.getKey(), k -> k);
+            weights[n] = weight;
+            n++;
+        }
+        return n == terms.length ? new SparseVector(terms, weights)
+                : new SparseVector(Arrays.copyOf(terms, n), Arrays.copyOf(weights, n));
+    }
+
+    /**
+     * Vector de consulta a partir del texto cuando no hay uno precalculado: los términos de la
+     * consulta BM25F con su frecuencia como peso (sin expansión).
+     */
+    public static SparseVector fromQueryTerms(Map<String, Integer> terms) {
+        String[] t = new String[terms.size()];
+        float[] w = new float[terms.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> e : terms.entrySet()) {
+            t[i] = e.getKey();
+            w[i] = e.getValue();
+            i++;
+        }
+        return new SparseVector(t, w);
+    }
+
+    /**
+     * Añade los impactos del documento al índice.
+     */
+    public static void addFields(Document doc, SparseVector vector) {
+        if (vector == null) return;
+        for (int i = 0; i < vector.terms.length; i++) {
+            doc.add(new FeatureField(FIELD, vector.terms[i], vector.weights[i]));
+        }
+    }
+
+    /**
+     * Consulta de impactos: suma de peso × impacto sobre los maxTerms términos de mayor peso.
+     *
+     * @param maxTerms número máximo de términos (0 = todos, hasta el límite de cláusulas); los de
+     *                 peso bajo aportan poco y alargan la disyunción
+     */
+    public static Query query(SparseVector vector, int maxTerms) {
+        int n = vector.terms.length;
+        if (n == 0) return new MatchNoDocsQuery("Vector disperso vacío");
+
+        Integer[] order = new Integer[n];
+        float max = 0;
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+            max = Math.max(max, vector.weights[i]);
+        }
+        int limit = maxTerms > 0 ? Math.min(maxTerms, IndexSearcher.getMaxClauseCount()) : IndexSearcher.getMaxClauseCount();
+        if (n > limit) {
+            Arrays.sort(order, (a, b) -> Float.compare(vector.weights[b], vector.weights[a]));
+            n = limit;
+        }
+        float scale = max > MAX_QUERY_WEIGHT ? MAX_QUERY_WEIGHT / max : 1f;
+
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (int i = 0; i < n; i++) {
+            int t = order[i];
+            builder.add(FeatureField.newLinearQuery(FIELD, vector.terms[t], vector.weights[t] * scale), BooleanClause.Occur.SHOULD);
+        }
+        QueryTrace.current().attr("sparse_terms", vector.terms.length).attr("sparse_terms_kept", n);
+        return builder.build();
+    }
+}
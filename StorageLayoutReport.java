@@ -0,0 +1,230 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Compara el layout completo del índice (textos y vector serializado almacenados) con el layout
+ * ligero (solo identificadores en el índice y registros completos en el {@link TrialDocStore}).
+ *
+ * Indexa los mismos ensayos con los dos layouts en directorios temporales y muestra:
+ * - Tamaño del índice por tipo de archivo (fdt/fdx/fdm son los campos almacenados) y del almacén.
+ * - Coste medio por hit de las lecturas que hacen los buscadores: documento completo (lo que hacía
+ *   searcher.doc()), solo nct_id, y nct_id más el registro del almacén con la caché de bloques fría
+ *   (almacén recién abierto) y caliente.
+ *
+ * Uso: StorageLayoutReport [directorio de XML] [embeddings.jsonl] [hits por ronda] [rondas]
+ */
+public class StorageLayoutReport {
+
+    private static final Set<String> ID_FIELD = Set.of("nct_id");
+
+    // Evita que el JIT elimine las lecturas medidas
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        String datasetRoot = args.length > 0 ? args[0] : "src/main/resources/dataset";
+        String embeddingsPath = args.length > 1 ? args[1] : "src/main/resources/brieftitle_embeddings.jsonl";
+        int hits = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        List<ClinicalTrial> trials = new ArrayList<>();
+        collectTrials(new File(datasetRoot), trials);
+        if (trials.isEmpty()) {
+            System.err.println("No hay ensayos en " + datasetRoot);
+            return;
+        }
+        Map<String, float[]> embeddings = Files.exists(Path.of(embeddingsPath))
+                ? ClinicalTrialIndexer.loadBriefTitleEmbeddings(embeddingsPath) : Map.of();
+        System.out.println("Ensayos: " + trials.size() + " | Embeddings: " + embeddings.size() + "\n");
+
+        Path fullPath = Files.createTempDirectory("layout-full");
+        Path leanPath = Files.createTempDirectory("layout-lean");
+        Path storePath = Files.createTempDirectory("layout-docstore");
+        try {
+            buildIndex(fullPath, null, trials, embeddings, false);
+            buildIndex(leanPath, storePath, trials, embeddings, true);
+
+            System.out.println("===== Tamaño =====");
+            Map<String, Long> full = sizeByExtension(fullPath);
+            Map<String, Long> lean = sizeByExtension(leanPath);
+            long storeBytes;
+            try (TrialDocStore store = TrialDocStore.open(storePath)) {
+                storeBytes = store.sizeInBytes();
+            }
+            Set<String> extensions = new TreeSet<>(full.keySet());
+            extensions.addAll(lean.keySet());
+            System.out.printf("%-12s %12s %12s%n", "archivo", "completo MB", "ligero MB");
+            for (String ext : extensions) {
+                System.out.printf(Locale.US, "%-12s %12.2f %12.2f%n", ext, mb(full.getOrDefault(ext, 0L)), mb(lean.getOrDefault(ext, 0L)));
+            }
+            long fullTotal = full.values().stream().mapToLong(Long::longValue).sum();
+            long leanTotal = lean.values().stream().mapToLong(Long::longValue).sum();
+            System.out.printf(Locale.US, "%-12s %12.2f %12.2f%n", "índice", mb(fullTotal), mb(leanTotal));
+            System.out.printf(Locale.US, "%-12s %12s %12.2f%n", "almacén", "-", mb(storeBytes));
+            System.out.printf(Locale.US, "%-12s %12.2f %12.2f%n%n", "total", mb(fullTotal), mb(leanTotal + storeBytes));
+
+            System.out.println("===== Coste por hit (" + hits + " hits aleatorios, mediana de " + rounds + " rondas) =====");
+            try (Directory fullDir = FSDirectory.open(fullPath);
+                 Directory leanDir = FSDirectory.open(leanPath);
+                 IndexReader fullReader = DirectoryReader.open(fullDir);
+                 IndexReader leanReader = DirectoryReader.open(leanDir)) {
+                int[] docIds = sampleDocs(fullReader.maxDoc(), hits);
+
+                report("completo: documento entero", rounds, docIds, () -> {
+                    StoredFields storedFields = fullReader.storedFields();
+                    long read = 0;
+                    for (int doc : docIds) read += storedFields.document(doc).getFields().size();
+                    return read;
+                });
+                report("completo: solo nct_id", rounds, docIds, () -> {
+                    StoredFields storedFields = fullReader.storedFields();
+                    long read = 0;
+                    for (int doc : docIds) read += storedFields.document(doc, ID_FIELD).get("nct_id").length();
+                    return read;
+                });
+                report("ligero: solo nct_id", rounds, docIds, () -> {
+                    StoredFields storedFields = leanReader.storedFields();
+                    long read = 0;
+                    for (int doc : docIds) read += storedFields.document(doc, ID_FIELD).get("nct_id").length();
+                    return read;
+                });
+                report("ligero: nct_id + almacén (frío)", rounds, docIds, () -> {
+                    try (TrialDocStore store = TrialDocStore.open(storePath)) {
+                        return fetchRecords(leanReader, store, docIds);
+                    }
+                });
+                try (TrialDocStore store = TrialDocStore.open(storePath)) {
+                    fetchRecords(leanReader, store, docIds); // llena la caché de bloques
+                    report("ligero: nct_id + almacén (caliente)", rounds, docIds, () -> fetchRecords(leanReader, store, docIds));
+                    System.out.printf(Locale.US, "Caché de bloques: %d aciertos, %d fallos%n", store.cacheHits(), store.cacheMisses());
+                }
+            }
+        } finally {
+            IOUtils.rm(fullPath, leanPath, storePath);
+        }
+    }
+
+    private interface Fetch {
+        long run() throws IOException;
+    }
+
+    /**
+     * Ejecuta una ronda de calentamiento y las rondas medidas, y muestra la mediana del coste por hit.
+     */
+    private static void report(String name, int rounds, int[] docIds, Fetch fetch) throws IOException {
+        sink += fetch.run();
+        double[] perHit = new double[rounds];
+        for (int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            sink += fetch.run();
+            perHit[r] = (System.nanoTime() - start) / (double) docIds.length / 1000.0;
+        }
+        Arrays.sort(perHit);
+        System.out.printf(Locale.US, "%-38s %10.2f µs/hit  (min %.2f, max %.2f)%n", name, perHit[rounds / 2],
+                perHit[0], perHit[rounds - 1]);
+    }
+
+    /**
+     * Lee el nct_id del índice y el registro completo del almacén de cada documento.
+     */
+    private static long fetchRecords(IndexReader reader, TrialDocStore store, int[] docIds) throws IOException {
+        StoredFields storedFields = reader.storedFields();
+        long read = 0;
+        for (int doc : docIds) {
+            String nctId = storedFields.document(doc, ID_FIELD).get("nct_id");
+            Map<String, String> record = store.get(nctId);
+            read += record != null ? record.size() : 0;
+        }
+        return read;
+    }
+
+    private static void buildIndex(Path indexPath, Path storePath, List<ClinicalTrial> trials,
+                                   Map<String, float[]> embeddings, boolean lean) throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(ClinicalTrialAnalyzer.forIndexing());
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        config.setUseCompoundFile(false); // archivos separados para ver el tamaño de los campos almacenados
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setNoCFSRatio(0.0);
+        config.setMergePolicy(mergePolicy);
+
+        try (Directory dir = FSDirectory.open(indexPath);
+             IndexWriter writer = new IndexWriter(dir, config);
+             TrialDocStore.Writer store = lean ? new TrialDocStore.Writer(storePath, false) : null) {
+            for (ClinicalTrial trial : trials) {
+                Document doc = ClinicalTrialIndexer.buildDocument(trial, embeddings, lean);
+                writer.addDocument(doc);
+                if (store != null) {
+                    store.add(trial.getNctId(), ClinicalTrialIndexer.buildRecord(trial));
+                }
+            }
+            writer.forceMerge(1);
+            writer.commit();
+        }
+    }
+
+    private static void collectTrials(File dir, List<ClinicalTrial> trials) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collectTrials(file, trials);
+            } else if (file.getName().toLowerCase().endsWith(".xml")) {
+                ClinicalTrial trial = ClinicalTrialParser.parseFromFile(file.getAbsolutePath());
+                if (trial != null) trials.add(trial);
+            }
+        }
+    }
+
+    private static Map<String, Long> sizeByExtension(Path indexPath) throws IOException {
+        Map<String, Long> sizes = new TreeMap<>();
+        try (Directory dir = FSDirectory.open(indexPath)) {
+            for (String file : dir.listAll()) {
+                int dot = file.lastIndexOf('.');
+                String ext = dot >= 0 ? file.substring(dot + 1) : file.replaceAll("_\\d+$", "");
+                sizes.merge(ext, dir.fileLength(file), Long::sum);
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Documentos aleatorios (con semilla fija) en orden aleatorio, como los hits de una consulta.
+     */
+    private static int[] sampleDocs(int maxDoc, int hits) {
+        List<Integer> docs = new ArrayList<>();
+        for (int i = 0; i < maxDoc; i++) docs.add(i);
+        Collections.shuffle(docs, new Random(42));
+        int[] sample = new int[Math.min(hits, maxDoc)];
+        for (int i = 0; i < sample.length; i++) sample[i] = docs.get(i);
+        return sample;
+    }
+
+    private static double mb(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+}
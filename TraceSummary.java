@@ -0,0 +1,160 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Resumen de las trazas JSON lines generadas con {@link QueryTrace}.
+ *
+ * Muestra los tópicos más lentos (con su etapa más lenta), las estadísticas por buscador y etapa
+ * (número, total, media, p50, p99 y máximo) ordenadas por tiempo total, y el tiempo del profiler
+ * de Lucene agregado por tipo de consulta y operación.
+ *
+ * Uso: TraceSummary [trazas.jsonl] [N tópicos más lentos]
+ */
+public class TraceSummary {
+
+    private static class TraceRow {
+        final String searcher;
+        final String topic;
+        final double totalMs;
+        final String slowestSpan;
+        final double slowestSpanMs;
+
+        TraceRow(String searcher, String topic, double totalMs, String slowestSpan, double slowestSpanMs) {
+            this.searcher = searcher;
+            this.topic = topic;
+            this.totalMs = totalMs;
+            this.slowestSpan = slowestSpan;
+            this.slowestSpanMs = slowestSpanMs;
+        }
+    }
+
+    /**
+     * Duraciones acumuladas de una etapa.
+     */
+    private static class StageStats {
+        double[] values = new double[16];
+        int count;
+        double total;
+
+        void add(double value) {
+            if (count == values.length) values = Arrays.copyOf(values, count * 2);
+            values[count++] = value;
+            total += value;
+        }
+
+        double percentile(double p) {
+            double[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(p / 100.0 * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, index))];
+        }
+
+        double max() {
+            double max = 0;
+            for (int i = 0; i < count; i++) max = Math.max(max, values[i]);
+            return max;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String tracePath = args.length > 0 ? args[0] : System.getProperty(QueryTrace.OUTPUT_PROPERTY, "src/main/resources/traces.jsonl");
+        int topN = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        ObjectMapper mapper = new ObjectMapper();
+        List<TraceRow> rows = new ArrayList<>();
+        Map<String, StageStats> stages = new TreeMap<>();
+        Map<String, StageStats> profileTimes = new TreeMap<>();
+
+        try (BufferedReader br = new BufferedReader(new FileReader(tracePath))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.isBlank()) continue;
+                JsonNode trace = mapper.readTree(line);
+                String searcher = trace.get("searcher").asText();
+
+                String slowest = "-";
+                double slowestMs = 0;
+                for (JsonNode span : trace.get("spans")) {
+                    if (!span.has("duration_ms")) continue; // span aún abierto al llamar a finish()
+                    String name = span.get("name").asText();
+                    double ms = span.get("duration_ms").asDouble();
+                    stages.computeIfAbsent(searcher + " / " + name, k -> new StageStats()).add(ms);
+                    // La etapa más lenta se busca entre las de primer nivel para no contar dos veces el tiempo
+                    if (span.get("depth").asInt() == 0 && ms > slowestMs) {
+                        slowest = name;
+                        slowestMs = ms;
+                    }
+                }
+
+                if (trace.has("profile")) {
+                    for (JsonNode node : trace.get("profile")) {
+                        addProfile(node, profileTimes);
+                    }
+                }
+
+                rows.add(new TraceRow(searcher, trace.get("topic").asText(), trace.get("total_ms").asDouble(), slowest, slowestMs));
+            }
+        }
+
+        if (rows.isEmpty()) {
+            System.out.println("No hay trazas en " + tracePath);
+            return;
+        }
+
+        rows.sort((a, b) -> Double.compare(b.totalMs, a.totalMs));
+        System.out.println("Trazas: " + rows.size() + " | Archivo: " + tracePath);
+        System.out.println("\n== Tópicos más lentos ==");
+        System.out.println("buscador\ttópico\ttotal ms\tetapa más lenta\tms");
+        for (TraceRow row : rows.subList(0, Math.min(topN, rows.size()))) {
+            System.out.printf(Locale.US, "%s\t%s\t%.2f\t%s\t%.2f%n", row.searcher, row.topic, row.totalMs, row.slowestSpan, row.slowestSpanMs);
+        }
+
+        System.out.println("\n== Etapas (por tiempo total) ==");
+        printStats(stages);
+
+        if (!profileTimes.isEmpty()) {
+            System.out.println("\n== Profiler de Lucene (consulta / operación) ==");
+            printStats(profileTimes);
+        }
+    }
+
+    /**
+     * Acumula el tiempo de cada operación del profiler por tipo de consulta, recorriendo los hijos.
+     */
+    private static void addProfile(JsonNode node, Map<String, StageStats> profileTimes) {
+        String query = node.get("query").asText();
+        JsonNode breakdown = node.get("breakdown");
+        for (Iterator<String> it = breakdown.fieldNames(); it.hasNext(); ) {
+            String op = it.next();
+            if (op.endsWith("_count")) continue; // contadores de llamadas, no tiempos
+            profileTimes.computeIfAbsent(query + " / " + op, k -> new StageStats()).add(breakdown.get(op).asDouble() / 1e6);
+        }
+        for (JsonNode child : node.get("children")) {
+            addProfile(child, profileTimes);
+        }
+    }
+
+    private static void printStats(Map<String, StageStats> stats) {
+        List<Map.Entry<String, StageStats>> entries = new ArrayList<>(stats.entrySet());
+        entries.sort((a, b) -> Double.compare(b.getValue().total, a.getValue().total));
+        System.out.println("nombre\tn\ttotal ms\tmedia ms\tp50 ms\tp99 ms\tmax ms");
+        for (Map.Entry<String, StageStats> e : entries) {
+            StageStats s = e.getValue();
+            System.out.printf(Locale.US, "%s\t%d\t%.2f\t%.3f\t%.3f\t%.3f\t%.3f%n", e.getKey(), s.count, s.total,
+                    s.total / s.count, s.percentile(50), s.percentile(99), s.max());
+        }
+    }
+}
@@ -0,0 +1,625 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Lectura y escritura de archivos de resultados (runs) compartida por los buscadores y la evaluación.
+ *
+ * Formato de texto (TREC): <topic> Q0 <doc> <rank> <score> <run>, con la puntuación con 4 decimales.
+ * El escritor formatea los números directamente en un buffer de bytes reutilizado, sin String.format
+ * ni un String por línea, y escribe sobre cualquier OutputStream. El lector recorre las líneas sin
+ * expresiones regulares y solo crea el String del tópico cuando cambia.
+ *
+ * Formato binario (extensión .runb) para los runs muy grandes de los barridos de parámetros:
+ * - Cabecera: MAGIC, VERSION y nombre del run.
+ * - Registros con una etiqueta de un byte: TAG_TOPIC (nuevo tópico), TAG_NCT (identificador NCT
+ *   empaquetado en un int), TAG_DOC (identificador genérico) y TAG_END al cerrar.
+ * - Cada hit guarda el rank como vint y la puntuación como float: unos 10 bytes por hit frente a
+ *   los ~40 del formato de texto, y sin redondear la puntuación.
+ *
+ * Uso: TrecRun <entrada> <salida> convierte entre formatos según la extensión de la salida.
+ */
+public final class TrecRun {
+
+    public static final String BINARY_EXTENSION = ".runb";
+
+    static final int MAGIC = 0x5452554E; // "TRUN"
+    static final int VERSION = 1;
+    static final byte TAG_END = 0;
+    static final byte TAG_TOPIC = 1;
+    static final byte TAG_NCT = 2;
+    static final byte TAG_DOC = 3;
+
+    private TrecRun() {
+    }
+
+    /**
+     * Abre un escritor para el archivo: binario si la extensión es .runb, texto en otro caso.
+     */
+    public static Writer writer(Path path, String runName) throws IOException {
+        OutputStream out = Files.newOutputStream(path);
+        return isBinary(path) ? new BinaryWriter(out, runName) : new TextWriter(out, runName);
+    }
+
+    /**
+     * Ruta de salida de un buscador: con -Drun.binary=true se sustituye la extensión por .runb.
+     */
+    public static Path outputPath(String path) {
+        if (!Boolean.getBoolean("run.binary") || path.endsWith(BINARY_EXTENSION)) return Path.of(path);
+        int dot = path.lastIndexOf('.');
+        int slash = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+        return Path.of((dot > slash ? path.substring(0, dot) : path) + BINARY_EXTENSION);
+    }
+
+    /**
+     * Abre un lector para el archivo; el formato se detecta por la cabecera.
+     */
+    public static Reader reader(Path path) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(path), 1 << 16);
+        in.mark(4);
+        byte[] head = in.readNBytes(4);
+        in.reset();
+        if (head.length == 4 && ((head[0] & 0xFF) << 24 | (head[1] & 0xFF) << 16 | (head[2] & 0xFF) << 8 | (head[3] & 0xFF)) == MAGIC) {
+            return new BinaryReader(in);
+        }
+        return new TextReader(in);
+    }
+
+    static boolean isBinary(Path path) {
+        return path.getFileName().toString().endsWith(BINARY_EXTENSION);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Escritura
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Escritor de runs. Los hits de un tópico deben escribirse seguidos y en orden de rank.
+     */
+    public abstract static class Writer implements Closeable {
+        protected final String runName;
+
+        Writer(String runName) {
+            this.runName = runName;
+        }
+
+        public abstract void add(int topic, CharSequence docId, int rank, float score) throws IOException;
+
+        public abstract void add(String topic, CharSequence docId, int rank, float score) throws IOException;
+
+        public abstract void flush() throws IOException;
+    }
+
+    /**
+     * Escritor de texto TREC sobre un buffer de bytes propio.
+     */
+    static final class TextWriter extends Writer {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[1 << 16];
+        private final byte[] suffix; // " <run>\n"
+        private int pos;
+
+        TextWriter(OutputStream out, String runName) {
+            super(runName);
+            this.out = out;
+            this.suffix = (" " + runName + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void add(int topic, CharSequence docId, int rank, float score) throws IOException {
+            ensure(12);
+            writeLong(topic);
+            writeHit(docId, rank, score);
+        }
+
+        @Override
+        public void add(String topic, CharSequence docId, int rank, float score) throws IOException {
+            writeChars(topic);
+            writeHit(docId, rank, score);
+        }
+
+        private void writeHit(CharSequence docId, int rank, float score) throws IOException {
+            ensure(4);
+            buffer[pos++] = ' ';
+            buffer[pos++] = 'Q';
+            buffer[pos++] = '0';
+            buffer[pos++] = ' ';
+            writeChars(docId);
+            ensure(64);
+            buffer[pos++] = ' ';
+            writeLong(rank);
+            buffer[pos++] = ' ';
+            writeScore(score);
+            ensure(suffix.length);
+            System.arraycopy(suffix, 0, buffer, pos, suffix.length);
+            pos += suffix.length;
+        }
+
+        private void writeChars(CharSequence s) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                ensure(4);
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buffer[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[pos++] = (byte) (0xC0 | (c >> 6));
+                    buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length()) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buffer[pos++] = (byte) (0xF0 | (cp >> 18));
+                    buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buffer[pos++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    buffer[pos++] = (byte) (0xE0 | (c >> 12));
+                    buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        /**
+         * Escribe el entero en decimal (el llamador garantiza 20 bytes libres).
+         */
+        private void writeLong(long value) {
+            if (value < 0) {
+                buffer[pos++] = '-';
+                value = -value;
+            }
+            int digits = 1;
+            for (long v = value; v >= 10; v /= 10) digits++;
+            for (int i = pos + digits - 1; i >= pos; i--) {
+                buffer[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            pos += digits;
+        }
+
+        /**
+         * Puntuación con 4 decimales, igual que %.4f.
+         */
+        private void writeScore(float score) {
+            if (Float.isNaN(score) || Float.isInfinite(score)) {
+                for (byte b : Float.toString(score).getBytes(StandardCharsets.US_ASCII)) buffer[pos++] = b;
+                return;
+            }
+            long scaled = Math.round(score * 10_000.0);
+            if (scaled < 0) {
+                buffer[pos++] = '-';
+                scaled = -scaled;
+            }
+            writeLong(scaled / 10_000);
+            buffer[pos++] = '.';
+            long decimals = scaled % 10_000;
+            for (int i = pos + 3; i >= pos; i--) {
+                buffer[i] = (byte) ('0' + decimals % 10);
+                decimals /= 10;
+            }
+            pos += 4;
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (pos + bytes > buffer.length) {
+                out.write(buffer, 0, pos);
+                pos = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.write(buffer, 0, pos);
+            pos = 0;
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Escritor del formato binario.
+     */
+    static final class BinaryWriter extends Writer {
+        private final DataOutputStream out;
+        private String lastTopic;
+        private long lastIntTopic = Long.MIN_VALUE;
+
+        BinaryWriter(OutputStream out, String runName) throws IOException {
+            super(runName);
+            this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+            this.out.writeInt(MAGIC);
+            this.out.writeInt(VERSION);
+            this.out.writeUTF(runName);
+        }
+
+        @Override
+        public void add(int topic, CharSequence docId, int rank, float score) throws IOException {
+            if (topic != lastIntTopic) {
+                lastIntTopic = topic;
+                lastTopic = Integer.toString(topic);
+                out.writeByte(TAG_TOPIC);
+                out.writeUTF(lastTopic);
+            }
+            writeHit(docId, rank, score);
+        }
+
+        @Override
+        public void add(String topic, CharSequence docId, int rank, float score) throws IOException {
+            if (!topic.equals(lastTopic)) {
+                lastTopic = topic;
+                lastIntTopic = Long.MIN_VALUE;
+                out.writeByte(TAG_TOPIC);
+                out.writeUTF(topic);
+            }
+            writeHit(docId, rank, score);
+        }
+
+        private void writeHit(CharSequence docId, int rank, float score) throws IOException {
+            int nct = packNct(docId);
+            if (nct >= 0) {
+                out.writeByte(TAG_NCT);
+                out.writeInt(nct);
+            } else {
+                out.writeByte(TAG_DOC);
+                out.writeUTF(docId.toString());
+            }
+            writeVInt(rank);
+            out.writeFloat(score);
+        }
+
+        private void writeVInt(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.writeByte(TAG_END);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Empaqueta un identificador NCT seguido de 8 dígitos en un int, o -1 si no tiene esa forma.
+     */
+    static int packNct(CharSequence docId) {
+        if (docId.length() != 11 || docId.charAt(0) != 'N' || docId.charAt(1) != 'C' || docId.charAt(2) != 'T') return -1;
+        int value = 0;
+        for (int i = 3; i < 11; i++) {
+            char c = docId.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Lectura
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Lector en streaming de un run. El documento se expone como un CharSequence reutilizado que solo
+     * es válido hasta la siguiente llamada a next().
+     */
+    public abstract static class Reader implements Closeable {
+        protected final StringBuilder doc = new StringBuilder(16);
+        protected String topic;
+        protected boolean topicChanged;
+        protected int rank;
+        protected String runName;
+
+        /**
+         * Avanza al siguiente hit.
+         *
+         * @return false al final del run
+         */
+        public abstract boolean next() throws IOException;
+
+        public String topic() {
+            return topic;
+        }
+
+        /**
+         * @return true si el hit actual es el primero de su tópico en el archivo
+         */
+        public boolean topicChanged() {
+            return topicChanged;
+        }
+
+        public CharSequence doc() {
+            return doc;
+        }
+
+        public String docId() {
+            return doc.toString();
+        }
+
+        public int rank() {
+            return rank;
+        }
+
+        public abstract float score();
+
+        /**
+         * Nombre del run (en texto, el de la última línea leída).
+         */
+        public String runName() {
+            return runName;
+        }
+    }
+
+    /**
+     * Lector del formato de texto: localiza los campos sin split y convierte rank y puntuación sin
+     * crear Strings intermedios.
+     */
+    static final class TextReader extends Reader {
+        private final BufferedReader in;
+        private final int[] bounds = new int[12];
+        private String line;
+
+        TextReader(InputStream in) {
+            this.in = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while ((line = in.readLine()) != null) {
+                if (tokenize(line, bounds) < 6) continue; // formato TREC: query Q0 doc rank score run
+
+                // El tópico solo se materializa cuando cambia respecto a la línea anterior
+                int qStart = bounds[0];
+                int qEnd = bounds[1];
+                topicChanged = topic == null || topic.length() != qEnd - qStart
+                        || !line.regionMatches(qStart, topic, 0, qEnd - qStart);
+                if (topicChanged) {
+                    topic = line.substring(qStart, qEnd);
+                    runName = line.substring(bounds[10], bounds[11]);
+                }
+                doc.setLength(0);
+                doc.append(line, bounds[4], bounds[5]);
+                rank = parseInt(line, bounds[6], bounds[7]);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public float score() {
+            return parseFloat(line, bounds[8], bounds[9]);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Lector del formato binario.
+     */
+    static final class BinaryReader extends Reader {
+        private final DataInputStream in;
+        private float score;
+        private boolean ended;
+
+        BinaryReader(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            if (this.in.readInt() != MAGIC) throw new IOException("No es un run binario");
+            int version = this.in.readInt();
+            if (version != VERSION) throw new IOException("Versión de run binario no soportada: " + version);
+            this.runName = this.in.readUTF();
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (ended) return false;
+            topicChanged = false;
+            while (true) {
+                byte tag;
+                try {
+                    tag = in.readByte();
+                } catch (EOFException e) {
+                    throw new IOException("Run binario truncado (falta el registro final)");
+                }
+                switch (tag) {
+                    case TAG_END:
+                        ended = true;
+                        return false;
+                    case TAG_TOPIC:
+                        topic = in.readUTF();
+                        topicChanged = true;
+                        continue;
+                    case TAG_NCT:
+                        unpackNct(in.readInt());
+                        break;
+                    case TAG_DOC:
+                        doc.setLength(0);
+                        doc.append(in.readUTF());
+                        break;
+                    default:
+                        throw new IOException("Registro desconocido en el run binario: " + tag);
+                }
+                rank = readVInt();
+                score = in.readFloat();
+                return true;
+            }
+        }
+
+        private void unpackNct(int value) {
+            doc.setLength(0);
+            doc.append("NCT");
+            for (int div = 10_000_000; div > 0; div /= 10) {
+                doc.append((char) ('0' + (value / div) % 10));
+            }
+        }
+
+        private int readVInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = in.readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+        }
+
+        @Override
+        public float score() {
+            return score;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Utilidades de análisis de líneas (también las usa la lectura de qrels)
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Localiza hasta bounds.length/2 campos separados por espacios o tabuladores.
+     * bounds[2*j] y bounds[2*j+1] son el inicio y el fin del campo j.
+     *
+     * @return número de campos encontrados
+     */
+    static int tokenize(String line, int[] bounds) {
+        int fields = 0;
+        int i = 0;
+        int n = line.length();
+        while (i < n && fields * 2 < bounds.length) {
+            while (i < n && isSeparator(line.charAt(i))) i++;
+            if (i >= n) break;
+            int start = i;
+            while (i < n && !isSeparator(line.charAt(i))) i++;
+            bounds[fields * 2] = start;
+            bounds[fields * 2 + 1] = i;
+            fields++;
+        }
+        return fields;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '\t' || c == '\r';
+    }
+
+    static int parseInt(String s, int start, int end) {
+        boolean negative = s.charAt(start) == '-';
+        int value = 0;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            value = value * 10 + (s.charAt(i) - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Decimal sin exponente (como los que escribe el escritor de texto); en otro caso se recurre a
+     * Float.parseFloat.
+     */
+    static float parseFloat(String s, int start, int end) {
+        int i = start;
+        boolean negative = i < end && s.charAt(i) == '-';
+        if (negative) i++;
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean dot = false;
+        for (; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digits > 17) return Float.parseFloat(s.substring(start, end));
+                mantissa = mantissa * 10 + (c - '0');
+                if (dot) scale++;
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else {
+                return Float.parseFloat(s.substring(start, end)); // exponente, NaN, Infinity...
+            }
+        }
+        if (digits == 0) return Float.parseFloat(s.substring(start, end));
+        double value = scale < POW10.length ? mantissa / POW10[scale] : mantissa / Math.pow(10, scale);
+        return (float) (negative ? -value : value);
+    }
+
+    private static final double[] POW10 = new double[18];
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) POW10[i] = POW10[i - 1] * 10;
+    }
+
+    /**
+     * Añade la puntuación con 4 decimales sin pasar por String.format.
+     */
+    static void appendScore(StringBuilder sb, float score) {
+        long scaled = Math.round(score * 10_000.0);
+        if (scaled < 0) {
+            sb.append('-');
+            scaled = -scaled;
+        }
+        sb.append(scaled / 10_000).append('.');
+        long decimals = scaled % 10_000;
+        if (decimals < 1000) sb.append('0');
+        if (decimals < 100) sb.append('0');
+        if (decimals < 10) sb.append('0');
+        sb.append(decimals);
+    }
+
+    /**
+     * Convierte un run entre los formatos de texto y binario según la extensión de la salida.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Uso: TrecRun <entrada> <salida[.runb]> [nombre del run]");
+            return;
+        }
+        Path input = Path.of(args[0]);
+        Path output = Path.of(args[1]);
+        long start = System.nanoTime();
+        long hits = 0;
+        try (Reader reader = reader(input)) {
+            if (!reader.next()) {
+                System.err.println("Run vacío: " + input);
+                return;
+            }
+            String runName = args.length > 2 ? args[2] : reader.runName();
+            try (Writer writer = writer(output, runName)) {
+                do {
+                    writer.add(reader.topic(), reader.doc(), reader.rank(), reader.score());
+                    hits++;
+                } while (reader.next());
+            }
+        }
+        System.out.printf(java.util.Locale.US, "%d hits: %s (%.1f MB) -> %s (%.1f MB) en %.1f ms%n", hits,
+                input, Files.size(input) / 1048576.0, output, Files.size(output) / 1048576.0, (System.nanoTime() - start) / 1e6);
+    }
+}
@@ -0,0 +1,450 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * Almacén externo con los registros completos de los ensayos, comprimido por bloques y con clave NCT ID.
+ *
+ * Con el layout ligero del índice (-Dindex.layout=lean) el índice solo guarda identificadores y
+ * valores pequeños; los textos largos (título, descripción, criterios...) se guardan aquí y se leen
+ * de forma perezosa para mostrarlos o resaltarlos, solo para los resultados que se muestran.
+ *
+ * Formato, en el directorio del almacén:
+ * - trials_N.dat: bloques comprimidos con Deflater, uno tras otro. Cada bloque sin comprimir contiene
+ *   registros consecutivos: [short nº de campos] y por campo [UTF nombre][int longitud][bytes UTF-8].
+ * - trials.idx: [int versión][UTF archivo de datos][int nº de bloques] y por bloque [long posición]
+ *   [int longitud comprimida][int longitud original]; después [int nº de registros] y por registro,
+ *   ordenados por NCT ID, [UTF nct_id][int bloque][int posición dentro del bloque]. La versión 1 no
+ *   lleva el nombre del archivo de datos (siempre trials.dat).
+ *
+ * El archivo de datos solo crece: una actualización añade el registro nuevo al final y el índice
+ * pasa a apuntar a él. Un almacén nuevo (reconstrucción) se escribe en otro archivo de datos que
+ * solo pasa a usarse con el commit que reemplaza el índice. El índice se reescribe de forma atómica
+ * en cada commit, así que un lector siempre ve el último commit completo. Los bloques leídos se
+ * guardan descomprimidos en una caché
+ * LRU (-Ddocstore.cacheBlocks, 64 por defecto).
+ */
+public final class TrialDocStore implements Closeable {
+
+    public static final String DEFAULT_PATH = "src/main/resources/docstore";
+
+    private static final String LEGACY_DATA_FILE = "trials.dat";
+    private static final String INDEX_FILE = "trials.idx";
+    private static final int VERSION = 2;
+    /** Tamaño aproximado de un bloque sin comprimir. */
+    private static final int BLOCK_SIZE = 32 * 1024;
+
+    private final Path dir;
+    private final String dataFile;
+    private final FileChannel data;
+    private final String[] ids;
+    private final int[] docBlock;
+    private final int[] docOffset;
+    private final long[] blockPosition;
+    private final int[] blockLength;
+    private final int[] blockRawLength;
+    private final Map<Integer, byte[]> cache;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final MetricsRegistry.Counter cacheHits;
+    private final MetricsRegistry.Counter cacheMisses;
+
+    private TrialDocStore(Path dir, int cacheBlocks) throws IOException {
+        this.dir = dir;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(dir.resolve(INDEX_FILE))))) {
+            int version = in.readInt();
+            if (version != VERSION && version != 1) throw new IOException("Versión del almacén no soportada: " + version);
+            this.dataFile = version == 1 ? LEGACY_DATA_FILE : in.readUTF();
+            int blocks = in.readInt();
+            blockPosition = new long[blocks];
+            blockLength = new int[blocks];
+            blockRawLength = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                blockPosition[i] = in.readLong();
+                blockLength[i] = in.readInt();
+                blockRawLength[i] = in.readInt();
+            }
+            int docs = in.readInt();
+            ids = new String[docs];
+            docBlock = new int[docs];
+            docOffset = new int[docs];
+            for (int i = 0; i < docs; i++) {
+                ids[i] = in.readUTF();
+                docBlock[i] = in.readInt();
+                docOffset[i] = in.readInt();
+            }
+        }
+        this.data = FileChannel.open(dir.resolve(dataFile), StandardOpenOption.READ);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > cacheBlocks;
+            }
+        };
+        MetricsRegistry metrics = MetricsRegistry.get();
+        this.cacheHits = metrics.counter("docstore_block_reads_total", "Bloques del almacén de documentos leídos", "result", "hit");
+        this.cacheMisses = metrics.counter("docstore_block_reads_total", "Bloques del almacén de documentos leídos", "result", "miss");
+    }
+
+    /**
+     * Abre el almacén para lectura.
+     */
+    public static TrialDocStore open(Path dir) throws IOException {
+        return new TrialDocStore(dir, Integer.getInteger("docstore.cacheBlocks", 64));
+    }
+
+    /**
+     * Abre el almacén si existe (índice con layout ligero), o devuelve null.
+     */
+    public static TrialDocStore openIfExists(Path dir) throws IOException {
+        return Files.exists(dir.resolve(INDEX_FILE)) ? open(dir) : null;
+    }
+
+    /**
+     * Número de registros.
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Tamaño en disco del archivo de datos y del índice.
+     */
+    public long sizeInBytes() throws IOException {
+        return Files.size(dir.resolve(dataFile)) + Files.size(dir.resolve(INDEX_FILE));
+    }
+
+    /**
+     * Lecturas de bloques servidas por la caché de este almacén.
+     */
+    public long cacheHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Lecturas de bloques que han tenido que ir a disco y descomprimirse.
+     */
+    public long cacheMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Obtiene el registro completo del ensayo, o null si no está en el almacén.
+     */
+    public Map<String, String> get(String nctId) throws IOException {
+        return get(nctId, (Set<String>) null);
+    }
+
+    /**
+     * Obtiene el valor de un campo del ensayo, o null si el ensayo o el campo no existen.
+     */
+    public String get(String nctId, String field) throws IOException {
+        Map<String, String> record = get(nctId, Set.of(field));
+        return record != null ? record.get(field) : null;
+    }
+
+    /**
+     * Obtiene los campos indicados del ensayo (todos si fields es null). Solo se decodifican los
+     * campos pedidos; el resto se salta dentro del bloque.
+     *
+     * @return campo → valor, o null si el ensayo no está en el almacén
+     */
+    public Map<String, String> get(String nctId, Set<String> fields) throws IOException {
+        int doc = Arrays.binarySearch(ids, nctId);
+        if (doc < 0) return null;
+
+        byte[] block = block(docBlock[doc]);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(block, docOffset[doc], block.length - docOffset[doc]));
+        Map<String, String> record = new LinkedHashMap<>();
+        int count = in.readShort();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            int length = in.readInt();
+            if (fields == null || fields.contains(name)) {
+                int start = block.length - in.available();
+                record.put(name, new String(block, start, length, StandardCharsets.UTF_8));
+            }
+            in.skipNBytes(length);
+        }
+        return record;
+    }
+
+    /**
+     * Campos de un resultado para mostrarlo: se leen del índice y, si no están almacenados en él
+     * (layout ligero), del almacén.
+     *
+     * @param docStore almacén, o null si el índice usa el layout completo
+     * @param fields campos a mostrar; debe incluir nct_id, que es la clave del almacén
+     * @return campo → valor para los campos disponibles
+     */
+    public static Map<String, String> display(IndexSearcher searcher, TrialDocStore docStore, int docId, Set<String> fields) throws IOException {
+        Document doc = searcher.storedFields().document(docId, fields);
+        Map<String, String> values = new LinkedHashMap<>();
+        for (String field : fields) {
+            String value = doc.get(field);
+            if (value != null) values.put(field, value);
+        }
+        String nctId = values.get("nct_id");
+        if (docStore != null && nctId != null && values.size() < fields.size()) {
+            Map<String, String> record = docStore.get(nctId, fields);
+            if (record != null) {
+                for (Map.Entry<String, String> e : record.entrySet()) values.putIfAbsent(e.getKey(), e.getValue());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Bloque descomprimido, desde la caché o desde disco.
+     */
+    private byte[] block(int index) throws IOException {
+        synchronized (cache) {
+            byte[] cached = cache.get(index);
+            if (cached != null) {
+                hits.increment();
+                cacheHits.inc();
+                return cached;
+            }
+        }
+        misses.increment();
+        cacheMisses.inc();
+
+        ByteBuffer compressed = ByteBuffer.allocate(blockLength[index]);
+        long position = blockPosition[index];
+        while (compressed.hasRemaining()) {
+            int read = data.read(compressed, position + compressed.position());
+            if (read < 0) throw new EOFException("Bloque " + index + " truncado en " + dir.resolve(dataFile));
+        }
+
+        byte[] raw = new byte[blockRawLength[index]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array());
+            int n = inflater.inflate(raw);
+            if (n != raw.length) throw new IOException("Bloque " + index + " corrupto: " + n + " de " + raw.length + " bytes");
+        } catch (DataFormatException e) {
+            throw new IOException("Bloque " + index + " corrupto", e);
+        } finally {
+            inflater.end();
+        }
+
+        synchronized (cache) {
+            cache.put(index, raw);
+        }
+        return raw;
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+    }
+
+    /**
+     * Escritor del almacén. No es seguro para varios hilos salvo a través de sus métodos sincronizados.
+     * Los registros añadidos son visibles para los lectores que se abran tras el siguiente {@link #commit()}.
+     */
+    public static final class Writer implements Closeable {
+
+        private final Path dir;
+        private final String dataFile;
+        private final FileChannel data;
+        // NCT ID -> {bloque, posición}; los bloques pendientes se numeran a continuación de los escritos
+        private final TreeMap<String, int[]> entries = new TreeMap<>();
+        private final List<long[]> blocks = new ArrayList<>();
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream(BLOCK_SIZE * 2);
+        private final DataOutputStream pendingOut = new DataOutputStream(pending);
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        private byte[] compressBuffer = new byte[BLOCK_SIZE];
+
+        /**
+         * @param dir directorio del almacén (se crea si no existe)
+         * @param append true para añadir al almacén existente, false para empezar uno vacío (en un archivo
+         *               de datos nuevo: los lectores siguen usando el anterior hasta el primer commit)
+         */
+        public Writer(Path dir, boolean append) throws IOException {
+            this.dir = dir;
+            Files.createDirectories(dir);
+            if (append && Files.exists(dir.resolve(INDEX_FILE))) {
+                String existingData;
+                try (TrialDocStore existing = new TrialDocStore(dir, 0)) {
+                    existingData = existing.dataFile;
+                    for (int i = 0; i < existing.blockPosition.length; i++) {
+                        blocks.add(new long[] {existing.blockPosition[i], existing.blockLength[i], existing.blockRawLength[i]});
+                    }
+                    for (int i = 0; i < existing.ids.length; i++) {
+                        entries.put(existing.ids[i], new int[] {existing.docBlock[i], existing.docOffset[i]});
+                    }
+                }
+                this.dataFile = existingData;
+                this.data = FileChannel.open(dir.resolve(dataFile), StandardOpenOption.WRITE);
+            } else {
+                // Nunca se trunca el archivo al que apunta el índice actual
+                this.dataFile = nextDataFile(dir);
+                this.data = FileChannel.open(dir.resolve(dataFile), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            // Los bloques de un commit anterior que no llegó a escribir el índice se quedan como basura al final
+            data.position(data.size());
+        }
+
+        /**
+         * Nombre del siguiente archivo de datos: una generación mayor que la de todos los existentes.
+         */
+        private static String nextDataFile(Path dir) throws IOException {
+            long generation = 0;
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "trials_*.dat")) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    try {
+                        generation = Math.max(generation, Long.parseLong(name.substring(7, name.length() - 4)));
+                    } catch (NumberFormatException e) {
+                        // no es un archivo de datos del almacén
+                    }
+                }
+            }
+            return "trials_" + (generation + 1) + ".dat";
+        }
+
+        /**
+         * Añade o reemplaza el registro de un ensayo.
+         *
+         * @param record campo → valor; los valores nulos se omiten
+         */
+        public synchronized void add(String nctId, Map<String, String> record) throws IOException {
+            int offset = pending.size();
+            int count = 0;
+            for (String value : record.values()) {
+                if (value != null) count++;
+            }
+            pendingOut.writeShort(count);
+            for (Map.Entry<String, String> field : record.entrySet()) {
+                if (field.getValue() == null) continue;
+                byte[] bytes = field.getValue().getBytes(StandardCharsets.UTF_8);
+                pendingOut.writeUTF(field.getKey());
+                pendingOut.writeInt(bytes.length);
+                pendingOut.write(bytes);
+            }
+            entries.put(nctId, new int[] {blocks.size(), offset});
+
+            if (pending.size() >= BLOCK_SIZE) {
+                flushBlock();
+            }
+        }
+
+        /**
+         * Elimina el registro de un ensayo (sus bytes quedan en el archivo de datos hasta que se reconstruya).
+         */
+        public synchronized void delete(String nctId) {
+            entries.remove(nctId);
+        }
+
+        private void flushBlock() throws IOException {
+            if (pending.size() == 0) return;
+            byte[] raw = pending.toByteArray();
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressBuffer.length) compressBuffer = Arrays.copyOf(compressBuffer, length * 2);
+                length += deflater.deflate(compressBuffer, length, compressBuffer.length - length);
+            }
+
+            long position = data.position();
+            ByteBuffer buffer = ByteBuffer.wrap(compressBuffer, 0, length);
+            while (buffer.hasRemaining()) {
+                data.write(buffer);
+            }
+            blocks.add(new long[] {position, length, raw.length});
+            pending.reset();
+        }
+
+        /**
+         * Escribe el bloque pendiente, sincroniza los datos y reemplaza el índice de forma atómica.
+         */
+        public synchronized void commit() throws IOException {
+            flushBlock();
+            data.force(false);
+
+            Path tmp = dir.resolve(INDEX_FILE + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(VERSION);
+                out.writeUTF(dataFile);
+                out.writeInt(blocks.size());
+                for (long[] block : blocks) {
+                    out.writeLong(block[0]);
+                    out.writeInt((int) block[1]);
+                    out.writeInt((int) block[2]);
+                }
+                out.writeInt(entries.size());
+                for (Map.Entry<String, int[]> entry : entries.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue()[0]);
+                    out.writeInt(entry.getValue()[1]);
+                }
+            }
+            try (FileChannel index = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                index.force(true);
+            }
+            Files.move(tmp, dir.resolve(INDEX_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            deleteUnusedDataFiles();
+        }
+
+        /**
+         * Borra los archivos de datos de almacenes anteriores. Si un lector abierto impide borrar
+         * alguno (Windows), se reintenta en el siguiente commit.
+         */
+        private void deleteUnusedDataFiles() throws IOException {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "trials*.dat")) {
+                for (Path file : files) {
+                    if (file.getFileName().toString().equals(dataFile)) continue;
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException e) {
+                        // sigue en uso
+                    }
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                commit();
+            } finally {
+                deflater.end();
+                data.close();
+            }
+        }
+    }
+}
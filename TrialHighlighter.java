@@ -0,0 +1,145 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.uhighlight.DefaultPassageFormatter;
+import org.apache.lucene.search.uhighlight.UnifiedHighlighter;
+
+/**
+ * Genera fragmentos (snippets) con los términos de la consulta para cada resultado.
+ *
+ * Los campos detailed_description y criteria se indexan con offsets en las postings, así que el
+ * UnifiedHighlighter localiza los términos directamente desde el índice sin volver a analizar el
+ * texto almacenado. El coste se acota con un número máximo de pasajes, una longitud máxima de
+ * texto por campo y un presupuesto de tiempo por resultado.
+ *
+ * Con el layout ligero el texto no está almacenado en el índice: si se pasa un {@link TrialDocStore},
+ * el texto de cada resultado se lee de él (solo el nct_id sale del índice).
+ */
+public class TrialHighlighter {
+
+    /** Campos de los que se extraen los fragmentos. */
+    public static final String[] FIELDS = {"detailed_description", "criteria"};
+
+    private final UnifiedHighlighter highlighter;
+    private final int maxPassages;
+    private final long perHitBudgetNanos;
+
+    /**
+     * @param searcher buscador sobre el índice
+     * @param analyzer analizador usado en la consulta
+     * @param maxPassages número máximo de pasajes por campo
+     * @param maxLength número máximo de caracteres de cada campo que se consideran
+     * @param perHitBudgetMs presupuesto de tiempo por resultado en milisegundos
+     */
+    public TrialHighlighter(IndexSearcher searcher, Analyzer analyzer, int maxPassages, int maxLength, long perHitBudgetMs) {
+        this(searcher, analyzer, null, maxPassages, maxLength, perHitBudgetMs);
+    }
+
+    /**
+     * @param docStore almacén del que leer el texto de los campos, o null para leerlo del índice
+     */
+    public TrialHighlighter(IndexSearcher searcher, Analyzer analyzer, TrialDocStore docStore,
+                            int maxPassages, int maxLength, long perHitBudgetMs) {
+        UnifiedHighlighter.Builder builder = UnifiedHighlighter.builder(searcher, analyzer)
+                .withMaxLength(maxLength)
+                .withFormatter(new DefaultPassageFormatter("[", "]", " ... ", false));
+        this.highlighter = docStore == null ? builder.build() : new DocStoreHighlighter(builder, searcher, docStore, maxLength);
+        this.maxPassages = maxPassages;
+        this.perHitBudgetNanos = perHitBudgetMs * 1_000_000L;
+    }
+
+    public TrialHighlighter(IndexSearcher searcher, Analyzer analyzer) {
+        this(searcher, analyzer, 2, 10_000, 5);
+    }
+
+    public TrialHighlighter(IndexSearcher searcher, Analyzer analyzer, TrialDocStore docStore) {
+        this(searcher, analyzer, docStore, 2, 10_000, 5);
+    }
+
+    /**
+     * Obtiene los fragmentos de cada resultado, por campo.
+     * Los resultados se procesan en orden de ranking; cuando se agota el presupuesto acumulado
+     * (presupuesto por resultado × resultados) los restantes se devuelven sin fragmentos.
+     *
+     * @param query consulta ejecutada
+     * @param topDocs resultados de la búsqueda
+     * @return mapa docId → (campo → fragmento); los campos sin coincidencias no aparecen
+     */
+    public Map<Integer, Map<String, String>> highlight(Query query, TopDocs topDocs) throws IOException {
+        Map<Integer, Map<String, String>> snippets = new HashMap<>();
+        int[] passages = new int[FIELDS.length];
+        Arrays.fill(passages, maxPassages);
+
+        long deadline = System.nanoTime() + perHitBudgetNanos * topDocs.scoreDocs.length;
+        for (ScoreDoc sd : topDocs.scoreDocs) {
+            if (System.nanoTime() > deadline) break;
+
+            Map<String, String[]> byField = highlighter.highlightFields(FIELDS, query, new int[] {sd.doc}, passages);
+            Map<String, String> docSnippets = new HashMap<>();
+            for (Map.Entry<String, String[]> entry : byField.entrySet()) {
+                String snippet = entry.getValue()[0];
+                if (snippet != null && !snippet.isEmpty()) {
+                    docSnippets.put(entry.getKey(), snippet);
+                }
+            }
+            snippets.put(sd.doc, docSnippets);
+        }
+        return snippets;
+    }
+
+    /**
+     * UnifiedHighlighter que obtiene el texto de los campos del almacén externo a partir del nct_id.
+     */
+    private static class DocStoreHighlighter extends UnifiedHighlighter {
+        private static final Set<String> ID_FIELD = Set.of("nct_id");
+
+        private final IndexSearcher searcher;
+        private final TrialDocStore docStore;
+        private final int maxLength;
+
+        DocStoreHighlighter(Builder builder, IndexSearcher searcher, TrialDocStore docStore, int maxLength) {
+            super(builder);
+            this.searcher = searcher;
+            this.docStore = docStore;
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        protected List<CharSequence[]> loadFieldValues(String[] fields, DocIdSetIterator docIter, int cacheCharsThreshold) throws IOException {
+            StoredFields storedFields = searcher.storedFields();
+            Set<String> wanted = Set.of(fields);
+            List<CharSequence[]> values = new ArrayList<>();
+            long chars = 0;
+            for (int doc = docIter.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docIter.nextDoc()) {
+                String nctId = storedFields.document(doc, ID_FIELD).get("nct_id");
+                Map<String, String> record = nctId != null ? docStore.get(nctId, wanted) : null;
+
+                CharSequence[] docValues = new CharSequence[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                    String value = record != null ? record.get(fields[i]) : null;
+                    if (value == null) value = "";
+                    docValues[i] = value.length() > maxLength ? value.substring(0, maxLength) : value;
+                    chars += docValues[i].length();
+                }
+                values.add(docValues);
+                // Igual que la implementación por defecto: se deja de cargar al superar el umbral de caracteres
+                if (cacheCharsThreshold != 0 && chars > cacheCharsThreshold) break;
+            }
+            return values;
+        }
+    }
+}
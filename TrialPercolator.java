@@ -0,0 +1,462 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Búsqueda inversa: cruza los ensayos recién indexados con las consultas guardadas de los pacientes.
+ *
+ * Cada paciente se guarda como una consulta del mismo tipo que searchInitialQuery (texto sobre
+ * brief_title, detailed_description y criteria, más los filtros de edad y género) en un índice de
+ * consultas. Junto a la consulta se indexan sus términos (campo:término) y la edad del paciente.
+ *
+ * Por cada lote de ensayos:
+ * 1. Los ensayos se indexan en un índice en memoria (ByteBuffersDirectory) con el mismo
+ *    documento que el índice principal.
+ * 2. Preselección: la parte textual de cada consulta es una disyunción, así que solo puede
+ *    coincidir si alguno de sus términos aparece en el lote. Las candidatas son las consultas con
+ *    algún término del vocabulario del lote (TermInSetQuery) y cuya edad cae en el rango de edades
+ *    de los ensayos del lote (o que no filtran por edad).
+ * 3. Cada candidata se ejecuta contra el índice del lote, en paralelo, y sus hits son las
+ *    coincidencias (paciente, ensayo, puntuación).
+ *
+ * Las puntuaciones BM25 usan las estadísticas del lote, así que sirven para ordenar las
+ * coincidencias de un mismo lote, no para compararlas entre lotes.
+ */
+public class TrialPercolator implements Closeable {
+
+    public static final String DEFAULT_PATH = "src/main/resources/percolator";
+
+    private static final String[] TEXT_FIELDS = {"brief_title", "detailed_description", "criteria"};
+    private static final String TERM_FIELD = "query_term";
+    private static final String AGE_FIELD = "age";
+    private static final String HAS_AGE_FIELD = "has_age";
+    private static final Set<String> QUERY_FIELDS = Set.of("patient_id", "text", "age", "gender");
+
+    private final Directory queryDir;
+    private final DirectoryReader queryReader;
+    private final IndexSearcher querySearcher;
+    private final Analyzer analyzer = ClinicalTrialAnalyzer.forQuery();
+    private final ExecutorService executor;
+    private final int threads;
+    private final float minScore;
+    private final MetricsRegistry metrics = MetricsRegistry.get();
+
+    /**
+     * @param indexPath índice de consultas creado con {@link #buildQueryIndex}
+     * @param threads hilos para evaluar las consultas candidatas
+     * @param minScore puntuación mínima de una coincidencia
+     */
+    public TrialPercolator(Path indexPath, int threads, float minScore) throws IOException {
+        this.queryDir = FSDirectory.open(indexPath);
+        this.queryReader = DirectoryReader.open(queryDir);
+        this.querySearcher = new IndexSearcher(queryReader);
+        this.threads = threads;
+        this.minScore = minScore;
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "percolator");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Coincidencia entre un paciente y un ensayo.
+     */
+    public static class Match {
+        public final String patientId;
+        public final String nctId;
+        public final float score;
+
+        Match(String patientId, String nctId, float score) {
+            this.patientId = patientId;
+            this.nctId = nctId;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Estadísticas del último lote procesado.
+     */
+    public static class BatchStats {
+        public int trials;
+        public int queries;
+        public int candidates;
+        public int matches;
+        public double indexMs;
+        public double preselectMs;
+        public double matchMs;
+
+        @Override
+        public String toString() {
+            double totalMs = indexMs + preselectMs + matchMs;
+            return String.format(Locale.US, "%d ensayos | %d de %d consultas candidatas (%.2f%%) | %d coincidencias | "
+                            + "índice %.1f ms, preselección %.1f ms, cruce %.1f ms | %.0f ensayos/s, %.0f consultas/s",
+                    trials, candidates, queries, queries == 0 ? 0 : 100.0 * candidates / queries, matches,
+                    indexMs, preselectMs, matchMs, trials / (totalMs / 1000.0), candidates / (matchMs / 1000.0));
+        }
+    }
+
+    private volatile BatchStats lastStats;
+
+    public BatchStats getLastStats() {
+        return lastStats;
+    }
+
+    /**
+     * Consulta de un paciente, con la misma forma que la búsqueda inicial de los buscadores.
+     */
+    static Query patientQuery(Analyzer analyzer, String text, int age, String gender) throws IOException {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        builder.add(textQuery(analyzer, text), BooleanClause.Occur.MUST);
+        Query filter = CascadeRanker.buildFilter(age, gender);
+        if (filter != null) builder.add(filter, BooleanClause.Occur.FILTER);
+        return builder.build();
+    }
+
+    private static Query textQuery(Analyzer analyzer, String text) throws IOException {
+        // Sin poda por IDF: las estadísticas del lote no son representativas del índice
+        return new CombinedFieldQueryBuilder(null, analyzer).build(text);
+    }
+
+    /**
+     * Crea el índice de consultas a partir de un JSONL de pacientes (mismo formato que
+     * {@link CohortMatcher}).
+     *
+     * @return número de consultas indexadas
+     */
+    public static int buildQueryIndex(Path patientsPath, Path indexPath) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        Analyzer analyzer = ClinicalTrialAnalyzer.forQuery();
+        IndexWriterConfig config = new IndexWriterConfig(analyzer);
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+
+        int indexed = 0;
+        long lineNumber = 0;
+        try (Directory dir = FSDirectory.open(indexPath);
+             IndexWriter writer = new IndexWriter(dir, config);
+             BufferedReader reader = Files.newBufferedReader(patientsPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) continue;
+                try {
+                    JsonNode node = mapper.readTree(line);
+                    String patientId = node.has("patient_id") ? node.get("patient_id").asText() : "line-" + lineNumber;
+                    String text = CohortMatcher.queryText(node);
+                    int age = node.has("age") ? node.get("age").asInt(-1) : -1;
+                    String gender = node.has("gender") ? node.get("gender").asText().toLowerCase(Locale.ROOT) : "unknown";
+
+                    // Términos de la parte textual: los que usa la preselección
+                    Set<Term> queryTerms = new HashSet<>();
+                    textQuery(analyzer, text).visit(QueryVisitor.termCollector(queryTerms));
+                    Set<String> terms = new HashSet<>();
+                    for (Term term : queryTerms) {
+                        terms.add(termKey(term.field(), term.text()));
+                    }
+                    if (terms.isEmpty()) {
+                        System.err.println("Línea " + lineNumber + ": consulta sin términos, se ignora");
+                        continue;
+                    }
+
+                    Document doc = new Document();
+                    doc.add(new StringField("patient_id", patientId, Field.Store.YES));
+                    doc.add(new StoredField("text", text));
+                    doc.add(new StringField("gender", gender, Field.Store.YES));
+                    doc.add(new StoredField("age", age));
+                    if (age != -1) {
+                        doc.add(new IntPoint(AGE_FIELD, age));
+                    }
+                    doc.add(new StringField(HAS_AGE_FIELD, age != -1 ? "true" : "false", Field.Store.NO));
+                    for (String term : terms) {
+                        doc.add(new StringField(TERM_FIELD, term, Field.Store.NO));
+                    }
+                    writer.addDocument(doc);
+                    indexed++;
+                } catch (Exception e) {
+                    System.err.println("Línea " + lineNumber + ": " + e.getMessage());
+                }
+            }
+            writer.forceMerge(1);
+            writer.commit();
+        }
+        return indexed;
+    }
+
+    private static String termKey(String field, String text) {
+        return field + '\u0000' + text;
+    }
+
+    /**
+     * Cruza un lote de ensayos con las consultas guardadas.
+     *
+     * @return coincidencias (paciente, ensayo, puntuación) agrupadas por paciente
+     */
+    public List<Match> percolate(List<ClinicalTrial> trials) throws IOException {
+        BatchStats stats = new BatchStats();
+        stats.trials = trials.size();
+        stats.queries = queryReader.numDocs();
+        List<Match> matches = new ArrayList<>();
+        if (trials.isEmpty()) {
+            lastStats = stats;
+            return matches;
+        }
+
+        // 1. Índice en memoria con los ensayos del lote
+        long start = System.nanoTime();
+        Directory batchDir = new ByteBuffersDirectory();
+        int minAge = Integer.MAX_VALUE;
+        int maxAge = Integer.MIN_VALUE;
+        try (IndexWriter writer = new IndexWriter(batchDir, new IndexWriterConfig(ClinicalTrialAnalyzer.forIndexing()))) {
+            for (ClinicalTrial trial : trials) {
+                writer.addDocument(ClinicalTrialIndexer.buildDocument(trial, Map.of(), true));
+                if (trial.getMinAgeInt() != -1 && trial.getMaxAgeInt() != -1) {
+                    minAge = Math.min(minAge, trial.getMinAgeInt());
+                    maxAge = Math.max(maxAge, trial.getMaxAgeInt());
+                }
+            }
+        }
+
+        try (DirectoryReader batchReader = DirectoryReader.open(batchDir)) {
+            IndexSearcher batchSearcher = new IndexSearcher(batchReader);
+            long indexed = System.nanoTime();
+            stats.indexMs = (indexed - start) / 1e6;
+
+            // 2. Preselección de consultas por vocabulario del lote y edad
+            List<BytesRef> vocabulary = new ArrayList<>();
+            for (String field : TEXT_FIELDS) {
+                Terms terms = MultiTerms.getTerms(batchReader, field);
+                if (terms == null) continue;
+                TermsEnum termsEnum = terms.iterator();
+                for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+                    vocabulary.add(new BytesRef(termKey(field, term.utf8ToString())));
+                }
+            }
+
+            BooleanQuery.Builder ageClause = new BooleanQuery.Builder();
+            ageClause.add(new TermQuery(new Term(HAS_AGE_FIELD, "false")), BooleanClause.Occur.SHOULD);
+            if (minAge <= maxAge) {
+                ageClause.add(IntPoint.newRangeQuery(AGE_FIELD, minAge, maxAge), BooleanClause.Occur.SHOULD);
+            }
+            Query preselect = new BooleanQuery.Builder()
+                    .add(new TermInSetQuery(TERM_FIELD, vocabulary), BooleanClause.Occur.FILTER)
+                    .add(ageClause.build(), BooleanClause.Occur.FILTER)
+                    .build();
+
+            List<Integer> candidates = querySearcher.search(preselect, new DocIdCollectorManager());
+            stats.candidates = candidates.size();
+            long preselected = System.nanoTime();
+            stats.preselectMs = (preselected - indexed) / 1e6;
+
+            // 3. Cada consulta candidata contra el lote, repartidas entre los hilos
+            List<Future<List<Match>>> futures = new ArrayList<>();
+            int chunk = Math.max(1, (candidates.size() + threads - 1) / threads);
+            for (int from = 0; from < candidates.size(); from += chunk) {
+                List<Integer> slice = candidates.subList(from, Math.min(candidates.size(), from + chunk));
+                Callable<List<Match>> task = () -> matchQueries(slice, batchSearcher, trials.size());
+                futures.add(executor.submit(task));
+            }
+            for (Future<List<Match>> future : futures) {
+                try {
+                    matches.addAll(future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Cruce interrumpido", e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Error cruzando las consultas", e.getCause());
+                }
+            }
+            stats.matches = matches.size();
+            stats.matchMs = (System.nanoTime() - preselected) / 1e6;
+        }
+
+        metrics.counter("percolator_trials_total", "Ensayos cruzados con las consultas guardadas").inc(stats.trials);
+        metrics.counter("percolator_queries_total", "Consultas guardadas evaluadas", "stage", "preselected").inc(stats.candidates);
+        metrics.counter("percolator_queries_total", "Consultas guardadas evaluadas", "stage", "skipped").inc(stats.queries - stats.candidates);
+        metrics.counter("percolator_matches_total", "Coincidencias paciente-ensayo").inc(stats.matches);
+        metrics.latency("percolator_batch_seconds", "Duración del cruce de un lote").observeNanos(System.nanoTime() - start);
+        lastStats = stats;
+        return matches;
+    }
+
+    /**
+     * Recoge los docIds (globales) que cumplen una consulta, sin puntuar. Un colector por porción
+     * del buscador; el resultado se devuelve en orden de docId.
+     */
+    private static final class DocIdCollectorManager implements CollectorManager<DocIdCollectorManager.DocIdCollector, List<Integer>> {
+
+        static final class DocIdCollector extends SimpleCollector {
+            final List<Integer> docs = new ArrayList<>();
+            private int docBase;
+
+            @Override
+            protected void doSetNextReader(LeafReaderContext context) {
+                docBase = context.docBase;
+            }
+
+            @Override
+            public void collect(int doc) {
+                docs.add(docBase + doc);
+            }
+
+            @Override
+            public ScoreMode scoreMode() {
+                return ScoreMode.COMPLETE_NO_SCORES;
+            }
+        }
+
+        @Override
+        public DocIdCollector newCollector() {
+            return new DocIdCollector();
+        }
+
+        @Override
+        public List<Integer> reduce(Collection<DocIdCollector> collectors) {
+            List<Integer> docs = new ArrayList<>();
+            for (DocIdCollector collector : collectors) {
+                docs.addAll(collector.docs);
+            }
+            Collections.sort(docs);
+            return docs;
+        }
+    }
+
+    /**
+     * Ejecuta las consultas guardadas indicadas contra el índice del lote.
+     */
+    private List<Match> matchQueries(List<Integer> queryDocs, IndexSearcher batchSearcher, int batchSize) throws IOException {
+        StoredFields queryFields = queryReader.storedFields();
+        StoredFields trialFields = batchSearcher.getIndexReader().storedFields();
+        Set<String> idField = Set.of("nct_id");
+        List<Match> matches = new ArrayList<>();
+
+        for (int queryDoc : queryDocs) {
+            Document saved = queryFields.document(queryDoc, QUERY_FIELDS);
+            Query query = patientQuery(analyzer, saved.get("text"), saved.getField("age").numericValue().intValue(), saved.get("gender"));
+            TopDocs hits = batchSearcher.search(query, batchSize);
+            for (ScoreDoc sd : hits.scoreDocs) {
+                if (sd.score < minScore) break;
+                matches.add(new Match(saved.get("patient_id"), trialFields.document(sd.doc, idField).get("nct_id"), sd.score));
+            }
+        }
+        return matches;
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        queryReader.close();
+        queryDir.close();
+    }
+
+    /**
+     * Cruza los ensayos de un directorio de XML, en lotes, con las consultas guardadas y escribe las
+     * coincidencias como TSV (paciente, ensayo, puntuación).
+     *
+     * Uso: TrialPercolator [pacientes.jsonl] [directorio de XML] [salida.tsv] [tamaño de lote]
+     * El índice de consultas se crea si no existe o con -Dpercolator.rebuild=true.
+     */
+    public static void main(String[] args) throws Exception {
+        String patientsPath = args.length > 0 ? args[0] : "src/main/resources/patients.jsonl";
+        String trialsPath = args.length > 1 ? args[1] : "src/main/resources/drop";
+        String outputPath = args.length > 2 ? args[2] : "src/main/resources/percolator_matches.tsv";
+        int batchSize = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+        int threads = Integer.getInteger("percolator.threads", Runtime.getRuntime().availableProcessors());
+        float minScore = Float.parseFloat(System.getProperty("percolator.minScore", "0"));
+        Path indexPath = Path.of(DEFAULT_PATH);
+
+        if (Boolean.getBoolean("percolator.rebuild") || !Files.exists(indexPath) || !DirectoryReader.indexExists(FSDirectory.open(indexPath))) {
+            long start = System.nanoTime();
+            int queries = buildQueryIndex(Path.of(patientsPath), indexPath);
+            System.out.printf(Locale.US, "Índice de consultas: %d pacientes en %.1f s%n", queries, (System.nanoTime() - start) / 1e9);
+        }
+
+        Path root = Path.of(trialsPath);
+        List<String> files = ClinicalTrialIndexer.listTrialFiles(root);
+        long start = System.nanoTime();
+        long totalMatches = 0;
+        int totalTrials = 0;
+
+        try (TrialPercolator percolator = new TrialPercolator(indexPath, threads, minScore);
+             BufferedWriter writer = Files.newBufferedWriter(Path.of(outputPath), StandardCharsets.UTF_8)) {
+            System.out.println("Consultas guardadas: " + percolator.queryReader.numDocs() + " | Ensayos: " + files.size());
+            for (int from = 0; from < files.size(); from += batchSize) {
+                List<ClinicalTrial> batch = new ArrayList<>();
+                for (String file : files.subList(from, Math.min(files.size(), from + batchSize))) {
+                    ClinicalTrial trial = ClinicalTrialParser.parseFromFile(root.resolve(file).toString());
+                    if (trial != null) batch.add(trial);
+                }
+
+                List<Match> matches = percolator.percolate(batch);
+                for (Match m : matches) {
+                    writer.write(m.patientId);
+                    writer.write('\t');
+                    writer.write(m.nctId);
+                    writer.write('\t');
+                    writer.write(Float.toString(m.score));
+                    writer.newLine();
+                }
+                totalMatches += matches.size();
+                totalTrials += batch.size();
+                System.out.println("Lote " + (from / batchSize + 1) + ": " + percolator.getLastStats());
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf(Locale.US, "Total: %d ensayos, %d coincidencias en %.1f s | %.0f ensayos/s%n",
+                totalTrials, totalMatches, seconds, totalTrials / seconds);
+    }
+}
@@ -0,0 +1,83 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.FloatVectorValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+
+/**
+ * Rescoring vectorial barato: lee los vectores directamente de los valores vectoriales del índice
+ * (los mismos que usa la búsqueda KNN) en lugar de parsear el vector almacenado como texto.
+ *
+ * Los documentos se visitan en orden creciente de docId dentro de cada segmento, ya que
+ * {@link FloatVectorValues} es un iterador que solo avanza hacia delante.
+ */
+public class VectorRescorer {
+
+    /** Campo vectorial generado por el indexador a partir de los embeddings del título breve. */
+    public static final String VECTOR_FIELD = "brief_title_vector";
+
+    private VectorRescorer() {
+    }
+
+    /**
+     * Calcula el producto punto entre la query y el vector de cada documento.
+     *
+     * @param reader lector del índice
+     * @param docIds ids internos de los documentos (en cualquier orden)
+     * @param count número de posiciones de docIds a procesar
+     * @param query vector de la query
+     * @return similitudes alineadas con docIds; NaN si el documento no tiene vector
+     */
+    public static float[] dotProducts(IndexReader reader, int[] docIds, int count, float[] query) throws IOException {
+        float[] scores = new float[count];
+        Arrays.fill(scores, Float.NaN);
+        if (count == 0) return scores;
+
+        // Orden de visita por docId para avanzar los iteradores de cada segmento una sola vez
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Integer.compare(docIds[a], docIds[b]));
+
+        List<LeafReaderContext> leaves = reader.leaves();
+        int currentLeaf = -1;
+        FloatVectorValues values = null;
+        LeafReaderContext ctx = null;
+
+        for (Integer pos : order) {
+            int docId = docIds[pos];
+            int leafIndex = ReaderUtil.subIndex(docId, leaves);
+            if (leafIndex != currentLeaf) {
+                currentLeaf = leafIndex;
+                ctx = leaves.get(leafIndex);
+                values = ctx.reader().getFloatVectorValues(VECTOR_FIELD);
+            }
+            if (values == null) continue;
+
+            int target = docId - ctx.docBase;
+            int current = values.docID();
+            if (current < target) {
+                current = values.advance(target);
+            }
+            if (current == target) {
+                scores[pos] = dotProduct(query, values.vectorValue());
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * Calcula el producto punto entre dos vectores.
+     */
+    public static float dotProduct(float[] a, float[] b) {
+        float sum = 0f;
+        for (int i = 0; i < a.length && i < b.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,169 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.SerialMergeScheduler;
+import org.apache.lucene.store.Directory;
+
+/**
+ * Datos de prueba reproducibles para los benchmarks.
+ *
+ * Todo se genera a partir de los ensayos de ejemplo incluidos en ejemplos.zip: los archivos se
+ * extraen en orden alfabético, los embeddings se generan de forma determinista a partir del NCT ID
+ * (el zip no trae embeddings) y el índice se construye con un único hilo y una política de merge
+ * por número de documentos, de modo que dos ejecuciones producen exactamente los mismos segmentos.
+ */
+final class BenchmarkFixtures {
+
+    /** Ruta del zip de ejemplos; se puede cambiar con -Dbench.samples. */
+    static final String SAMPLES_ZIP = System.getProperty("bench.samples", "ejemplos.zip");
+
+    /** Dimensión de los embeddings sintéticos; se puede cambiar con -Dbench.dim. */
+    static final int DIMENSION = Integer.getInteger("bench.dim", 384);
+
+    /** Consultas de referencia: texto, edad y género del paciente. */
+    static final String[][] QUERIES = {
+            {"chronic heart failure patient with shortness of breath", "67", "male"},
+            {"breast cancer chemotherapy after surgery", "52", "female"},
+            {"hiv infection antiretroviral therapy in adults", "34", "male"},
+            {"type 2 diabetes insulin resistance obesity", "58", "female"},
+            {"asthma in children inhaled corticosteroids", "9", "male"},
+            {"depression treatment with antidepressant drugs", "41", "female"},
+            {"hypertension blood pressure control elderly", "73", "male"},
+            {"vaccine trial healthy volunteers", "25", "female"},
+    };
+
+    private static Path extracted;
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Extrae (una vez por JVM) los XML del zip de ejemplos y los devuelve ordenados por nombre.
+     */
+    static synchronized List<Path> sampleFiles() throws IOException {
+        if (extracted == null) {
+            Path dir = Files.createTempDirectory("ct-bench-samples");
+            try (ZipFile zip = new ZipFile(SAMPLES_ZIP)) {
+                List<? extends ZipEntry> entries = Collections.list(zip.entries());
+                for (ZipEntry entry : entries) {
+                    if (entry.isDirectory() || !entry.getName().toLowerCase().endsWith(".xml")) continue;
+                    Path target = dir.resolve(Path.of(entry.getName()).getFileName().toString());
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            }
+            extracted = dir;
+        }
+        List<Path> files = new ArrayList<>();
+        try (var stream = Files.list(extracted)) {
+            stream.sorted().forEach(files::add);
+        }
+        if (files.isEmpty()) {
+            throw new IllegalStateException("No hay ensayos de ejemplo en " + SAMPLES_ZIP);
+        }
+        return files;
+    }
+
+    /**
+     * Parsea los ensayos de ejemplo en orden.
+     */
+    static List<ClinicalTrial> sampleTrials() throws IOException {
+        List<ClinicalTrial> trials = new ArrayList<>();
+        for (Path file : sampleFiles()) {
+            ClinicalTrial trial = ClinicalTrialParser.parseFromFile(file.toString());
+            if (trial != null) trials.add(trial);
+        }
+        return trials;
+    }
+
+    /**
+     * Replica los ensayos de ejemplo con NCT IDs distintos para obtener una colección del tamaño deseado.
+     *
+     * @param copies número de copias de cada ensayo (1 = solo los originales)
+     */
+    static List<ClinicalTrial> replicatedTrials(int copies) throws IOException {
+        List<Path> files = sampleFiles();
+        List<ClinicalTrial> trials = new ArrayList<>(files.size() * Math.max(1, copies));
+        for (int c = 0; c < Math.max(1, copies); c++) {
+            // Cada copia se parsea de nuevo para no compartir listas entre documentos; solo cambia el NCT ID
+            for (Path file : files) {
+                ClinicalTrial trial = ClinicalTrialParser.parseFromFile(file.toString());
+                if (trial == null) continue;
+                if (c > 0) trial.setNctId(trial.getNctId() + "_" + c);
+                trials.add(trial);
+            }
+        }
+        return trials;
+    }
+
+    /**
+     * Embeddings deterministas (vectores unitarios pseudoaleatorios sembrados con el NCT ID).
+     */
+    static Map<String, float[]> syntheticEmbeddings(List<ClinicalTrial> trials) {
+        Map<String, float[]> embeddings = new HashMap<>();
+        for (ClinicalTrial trial : trials) {
+            embeddings.put(trial.getNctId(), unitVector(trial.getNctId().hashCode()));
+        }
+        return embeddings;
+    }
+
+    /**
+     * Vector unitario pseudoaleatorio de dimensión {@link #DIMENSION} para la semilla dada.
+     */
+    static float[] unitVector(long seed) {
+        Random random = new Random(seed);
+        float[] vector = new float[DIMENSION];
+        double norm = 0;
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = (float) random.nextGaussian();
+            norm += vector[i] * vector[i];
+        }
+        float inv = (float) (1.0 / Math.sqrt(norm));
+        for (int i = 0; i < vector.length; i++) vector[i] *= inv;
+        return vector;
+    }
+
+    /**
+     * Configuración del IndexWriter para índices reproducibles: un único hilo de merge y merges por
+     * número de documentos en lugar de por tamaño en bytes.
+     */
+    static IndexWriterConfig writerConfig() {
+        IndexWriterConfig config = new IndexWriterConfig(ClinicalTrialAnalyzer.forIndexing());
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        config.setMergeScheduler(new SerialMergeScheduler());
+        config.setMergePolicy(new LogDocMergePolicy());
+        config.setRAMBufferSizeMB(64);
+        return config;
+    }
+
+    /**
+     * Construye el índice de prueba en el directorio dado con los ensayos y embeddings indicados.
+     * Usa siempre el layout completo, que incluye el vector almacenado que compara RescoreBenchmark.
+     */
+    static void buildIndex(Directory directory, List<ClinicalTrial> trials, Map<String, float[]> embeddings) throws IOException {
+        try (IndexWriter writer = new IndexWriter(directory, writerConfig())) {
+            for (ClinicalTrial trial : trials) {
+                writer.addDocument(ClinicalTrialIndexer.buildDocument(trial, embeddings, false));
+            }
+            writer.forceMerge(1);
+            writer.commit();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Punto de entrada de los benchmarks JMH.
+ *
+ * Uso: BenchmarkRunner [patrón] [archivo de salida]
+ * - patrón: expresión regular sobre los nombres de benchmark (por defecto, todos).
+ * - archivo de salida: resultados en JSON (por defecto benchmarks/results/jmh-fecha.json), el
+ *   formato que entienden las herramientas de comparación de JMH para contrastar dos ejecuciones.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+        String output = args.length > 1 ? args[1]
+                : "benchmarks/results/jmh-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".json";
+        Path parent = Path.of(output).toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+
+        Options options = new OptionsBuilder()
+                .include(include)
+                .resultFormat(ResultFormatType.JSON)
+                .result(output)
+                .shouldFailOnError(true)
+                .build();
+        new Runner(options).run();
+
+        System.out.println("Resultados de los benchmarks en: " + output);
+    }
+}
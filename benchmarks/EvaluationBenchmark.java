@@ -0,0 +1,114 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Coste de la evaluación de un run: lectura del archivo y cálculo de las métricas.
+ *
+ * Los qrels y el run se generan de forma determinista (semilla fija) con el tamaño de un run
+ * real: topics consultas con depth documentos cada una.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EvaluationBenchmark {
+
+    @Param({"50"})
+    public int topics;
+
+    @Param({"1000"})
+    public int depth;
+
+    private Path qrelsFile;
+    private Path runFile;
+    private Evaluation.Qrels qrels;
+    private Map<String, int[]> run;
+    private Map<String, Map<String, Integer>> legacyQrels;
+    private Map<String, List<String>> legacyRun;
+
+    @Setup
+    public void setup() throws Exception {
+        Random random = new Random(42);
+        int collection = depth * 20;
+        qrelsFile = Files.createTempFile("bench-qrels", ".txt");
+        runFile = Files.createTempFile("bench-run", ".txt");
+
+        try (BufferedWriter qw = Files.newBufferedWriter(qrelsFile, StandardCharsets.UTF_8);
+             BufferedWriter rw = Files.newBufferedWriter(runFile, StandardCharsets.UTF_8)) {
+            for (int t = 1; t <= topics; t++) {
+                for (int j = 0; j < 200; j++) {
+                    qw.write(t + " 0 NCT" + (10_000_000 + random.nextInt(collection)) + " " + random.nextInt(3));
+                    qw.newLine();
+                }
+                for (int r = 1; r <= depth; r++) {
+                    rw.write(t + " Q0 NCT" + (10_000_000 + random.nextInt(collection)) + " " + r + " "
+                            + (depth - r) + " bench");
+                    rw.newLine();
+                }
+            }
+        }
+
+        qrels = Evaluation.loadQrels(qrelsFile.toString(), Evaluation.DEFAULT_CUTOFFS[Evaluation.DEFAULT_CUTOFFS.length - 1]);
+        run = Evaluation.readRun(runFile.toString(), qrels);
+        legacyQrels = Evaluation.parseQrels(qrelsFile.toString());
+        legacyRun = Evaluation.parseRanking(runFile.toString());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(qrelsFile);
+        Files.deleteIfExists(runFile);
+    }
+
+    /** Lectura en streaming del run con documentos internados. */
+    @Benchmark
+    public Map<String, int[]> readRun() throws Exception {
+        return Evaluation.readRun(runFile.toString(), qrels);
+    }
+
+    /** Todas las métricas en todos los cortes, en una pasada por ranking. */
+    @Benchmark
+    public void evaluate(Blackhole bh) {
+        for (Map.Entry<String, int[]> e : run.entrySet()) {
+            Evaluation.TopicQrels topic = qrels.get(e.getKey());
+            bh.consume(Evaluation.evaluate(e.getValue(), topic != null ? topic : Evaluation.TopicQrels.EMPTY,
+                    Evaluation.DEFAULT_CUTOFFS));
+        }
+    }
+
+    /** Métricas con los métodos originales por cadena (P, R, MAP y nDCG a 10). */
+    @Benchmark
+    public void legacyMetrics(Blackhole bh) {
+        for (Map.Entry<String, List<String>> e : legacyRun.entrySet()) {
+            Map<String, Integer> relevant = legacyQrels.getOrDefault(e.getKey(), Map.of());
+            bh.consume(Evaluation.precisionAtK(e.getValue(), relevant, 10));
+            bh.consume(Evaluation.recallAtK(e.getValue(), relevant, 10));
+            bh.consume(Evaluation.mapAtK(e.getValue(), relevant, 10));
+            bh.consume(Evaluation.ndcgAtK(e.getValue(), relevant, 10));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Coste de la indexación: construcción y alta de un documento suelto, e indexación completa de
+ * la colección de ejemplo (replicada copies veces) hasta el commit.
+ *
+ * El índice vive en memoria (ByteBuffersDirectory) para medir el coste de CPU y no el del disco.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexingBenchmark {
+
+    @Param({"1", "10"})
+    public int copies;
+
+    private List<ClinicalTrial> trials;
+    private Map<String, float[]> embeddings;
+    private ByteBuffersDirectory directory;
+    private IndexWriter writer;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void loadTrials() throws Exception {
+        trials = BenchmarkFixtures.replicatedTrials(copies);
+        embeddings = BenchmarkFixtures.syntheticEmbeddings(trials);
+    }
+
+    @Setup(Level.Iteration)
+    public void openWriter() throws Exception {
+        directory = new ByteBuffersDirectory();
+        writer = new IndexWriter(directory, BenchmarkFixtures.writerConfig());
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeWriter() throws Exception {
+        writer.close();
+        directory.close();
+    }
+
+    /** Construcción del documento (campos, vector, facetas) sin añadirlo al índice. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Document buildDocument() throws Exception {
+        return ClinicalTrialIndexer.buildDocument(trials.get(next++ % trials.size()), embeddings);
+    }
+
+    /** Alta de un documento en un IndexWriter abierto. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long addDocument() throws Exception {
+        return writer.addDocument(ClinicalTrialIndexer.buildDocument(trials.get(next++ % trials.size()), embeddings));
+    }
+
+    /** Indexación completa de la colección en un directorio nuevo, con forceMerge y commit. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void bulkIndex() throws Exception {
+        try (ByteBuffersDirectory bulkDirectory = new ByteBuffersDirectory()) {
+            BenchmarkFixtures.buildIndex(bulkDirectory, trials, embeddings);
+        }
+    }
+}
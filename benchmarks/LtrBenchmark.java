@@ -0,0 +1,128 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Coste de la etapa de learning-to-rank: extracción de características de {@link LtrFeatureExtractor}
+ * (objetivo: pocos milisegundos para 1000 candidatas) y evaluación de un modelo lineal y de un
+ * conjunto de árboles sobre las filas ya extraídas.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LtrBenchmark {
+
+    @Param({"20"})
+    public int copies;
+
+    @Param({"100", "1000"})
+    public int candidates;
+
+    private ByteBuffersDirectory directory;
+    private DirectoryReader reader;
+    private LtrFeatureExtractor extractor;
+    private CascadeRanker.Request request;
+    private List<CascadeRanker.Candidate> candidateList;
+    private float[] features;
+    private LtrModel linear;
+    private LtrModel trees;
+
+    @Setup
+    public void setup() throws Exception {
+        List<ClinicalTrial> trials = BenchmarkFixtures.replicatedTrials(copies);
+        directory = new ByteBuffersDirectory();
+        BenchmarkFixtures.buildIndex(directory, trials, BenchmarkFixtures.syntheticEmbeddings(trials));
+        reader = DirectoryReader.open(directory);
+        extractor = new LtrFeatureExtractor(reader, new CombinedFieldQueryBuilder(reader, ClinicalTrialAnalyzer.forQuery()));
+
+        String[] q = BenchmarkFixtures.QUERIES[0];
+        request = new CascadeRanker.Request(1, q[0], Integer.parseInt(q[1]), q[2], BenchmarkFixtures.unitVector(q[0].hashCode()));
+
+        // Candidatas en orden pseudoaleatorio fijo, sin similitud vectorial previa (se calcula en la extracción)
+        int n = Math.min(candidates, reader.maxDoc());
+        candidateList = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            CascadeRanker.Candidate c = new CascadeRanker.Candidate((int) ((i * 2654435761L) % reader.maxDoc()));
+            c.lexicalScore = n - i;
+            candidateList.add(c);
+        }
+        features = extractor.extract(request, candidateList);
+
+        int[] all = new int[LtrFeatureExtractor.NUM_FEATURES];
+        float[] weights = new float[all.length];
+        for (int f = 0; f < all.length; f++) {
+            all[f] = f;
+            weights[f] = 1f / (f + 1);
+        }
+        linear = new LtrModel.Linear(all, weights, 0f);
+        trees = LtrModel.TreeEnsemble.fromJson(new ObjectMapper().readTree(syntheticTrees(200, 6)));
+    }
+
+    /**
+     * Conjunto de árboles completos de la profundidad dada con umbrales arbitrarios.
+     */
+    private static String syntheticTrees(int count, int depth) {
+        StringBuilder sb = new StringBuilder("{\"type\":\"trees\",\"trees\":[");
+        for (int t = 0; t < count; t++) {
+            if (t > 0) sb.append(',');
+            appendNode(sb, t, depth);
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static void appendNode(StringBuilder sb, int seed, int depth) {
+        if (depth == 0) {
+            sb.append("{\"leaf\":").append((seed % 7) / 100.0).append('}');
+            return;
+        }
+        sb.append("{\"feature\":\"f").append(1 + (seed * 31 + depth) % LtrFeatureExtractor.NUM_FEATURES)
+                .append("\",\"threshold\":").append((seed % 5) / 2.0).append(",\"left\":");
+        appendNode(sb, seed * 3 + 1, depth - 1);
+        sb.append(",\"right\":");
+        appendNode(sb, seed * 3 + 2, depth - 1);
+        sb.append('}');
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    @Benchmark
+    public float[] extractFeatures() throws Exception {
+        return extractor.extract(request, candidateList);
+    }
+
+    @Benchmark
+    public float[] scoreLinear() {
+        return linear.scoreAll(features, candidateList.size());
+    }
+
+    @Benchmark
+    public float[] scoreTrees() {
+        return trees.scoreAll(features, candidateList.size());
+    }
+}
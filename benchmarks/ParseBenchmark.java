@@ -0,0 +1,53 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Coste del parseo XML de un ensayo con {@link ClinicalTrialParser#parseFromFile}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+    private List<Path> files;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        files = BenchmarkFixtures.sampleFiles();
+    }
+
+    /** Un ensayo por invocación, recorriendo los ejemplos en orden. */
+    @Benchmark
+    public ClinicalTrial parseOne() {
+        Path file = files.get(next++ % files.size());
+        return ClinicalTrialParser.parseFromFile(file.toString());
+    }
+
+    /** Todos los ensayos de ejemplo por invocación. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void parseAll(Blackhole bh) {
+        for (Path file : files) {
+            bh.consume(ClinicalTrialParser.parseFromFile(file.toString()));
+        }
+    }
+}
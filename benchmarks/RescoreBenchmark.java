@@ -0,0 +1,108 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Coste del rescoring vectorial de un conjunto de candidatas.
+ *
+ * Compara el camino de {@link ClinicalTrialRescoreSearcher} (leer el vector almacenado como texto,
+ * parsearlo y calcular el producto punto) con {@link VectorRescorer}, que lee los valores
+ * vectoriales del índice directamente. Se mide también el parseo y el producto punto por separado.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RescoreBenchmark {
+
+    private static final String STORED_VECTOR_FIELD = "brief_title_vector_stored";
+
+    @Param({"20"})
+    public int copies;
+
+    @Param({"100", "1000"})
+    public int candidates;
+
+    private ByteBuffersDirectory directory;
+    private DirectoryReader reader;
+    private int[] docIds;
+    private float[] query;
+    private String storedVector;
+    private float[] parsedVector;
+
+    @Setup
+    public void setup() throws Exception {
+        List<ClinicalTrial> trials = BenchmarkFixtures.replicatedTrials(copies);
+        directory = new ByteBuffersDirectory();
+        BenchmarkFixtures.buildIndex(directory, trials, BenchmarkFixtures.syntheticEmbeddings(trials));
+        reader = DirectoryReader.open(directory);
+
+        // Candidatas en orden pseudoaleatorio fijo, como llegarían ordenadas por BM25
+        int n = Math.min(candidates, reader.maxDoc());
+        docIds = new int[n];
+        for (int i = 0; i < n; i++) docIds[i] = (int) ((i * 2654435761L) % reader.maxDoc());
+        query = BenchmarkFixtures.unitVector(42);
+
+        storedVector = reader.storedFields().document(docIds[0], Set.of(STORED_VECTOR_FIELD)).get(STORED_VECTOR_FIELD);
+        parsedVector = ClinicalTrialRescoreSearcher.parseStoredVector(storedVector);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    /** Camino original: documento almacenado, parseo del texto y producto punto. */
+    @Benchmark
+    public void storedVectorRescore(Blackhole bh) throws Exception {
+        StoredFields storedFields = reader.storedFields();
+        Set<String> fields = Set.of(STORED_VECTOR_FIELD);
+        for (int docId : docIds) {
+            String vecStr = storedFields.document(docId, fields).get(STORED_VECTOR_FIELD);
+            if (vecStr != null) {
+                bh.consume(ClinicalTrialRescoreSearcher.dotProduct(query, ClinicalTrialRescoreSearcher.parseStoredVector(vecStr)));
+            }
+        }
+    }
+
+    /** Lectura de los valores vectoriales del índice en orden de docId. */
+    @Benchmark
+    public float[] vectorValuesRescore() throws Exception {
+        return VectorRescorer.dotProducts(reader, docIds, docIds.length, query);
+    }
+
+    /** Parseo de un único vector almacenado. */
+    @Benchmark
+    public float[] parseStoredVector() {
+        return ClinicalTrialRescoreSearcher.parseStoredVector(storedVector);
+    }
+
+    /** Producto punto de un único par de vectores. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public float dotProduct() {
+        return ClinicalTrialRescoreSearcher.dotProduct(query, parsedVector);
+    }
+}
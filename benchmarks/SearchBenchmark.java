@@ -0,0 +1,122 @@
+package es.udc.fi.irudc.c2425.ClinicalTrials;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.KnnFloatVectorQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latencia de las consultas sobre el índice de prueba: BM25 con filtros de edad y género (como en
+ * los buscadores de los tópicos), tanto con la disyunción por campo de MultiFieldQueryParser como
+ * con BM25F ({@link CombinedFieldQueryBuilder}), y KNN sobre el vector del título breve, con y sin filtro.
+ *
+ * Las consultas se construyen en el setup, de modo que solo se mide la ejecución.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+
+    private static final String[] TEXT_FIELDS = {"brief_title", "detailed_description", "criteria"};
+
+    @Param({"10"})
+    public int copies;
+
+    @Param({"100"})
+    public int topK;
+
+    private ByteBuffersDirectory directory;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+    private Query[] lexical;
+    private Query[] combined;
+    private Query[] knn;
+    private Query[] filteredKnn;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        List<ClinicalTrial> trials = BenchmarkFixtures.replicatedTrials(copies);
+        directory = new ByteBuffersDirectory();
+        BenchmarkFixtures.buildIndex(directory, trials, BenchmarkFixtures.syntheticEmbeddings(trials));
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+        // Sin caché de consultas para no medir resultados cacheados de los filtros
+        searcher.setQueryCache(null);
+
+        ClinicalTrialAnalyzer analyzer = ClinicalTrialAnalyzer.forQuery();
+        int n = BenchmarkFixtures.QUERIES.length;
+        lexical = new Query[n];
+        combined = new Query[n];
+        CombinedFieldQueryBuilder queryBuilder = new CombinedFieldQueryBuilder(reader, analyzer);
+        knn = new Query[n];
+        filteredKnn = new Query[n];
+        for (int i = 0; i < n; i++) {
+            String[] q = BenchmarkFixtures.QUERIES[i];
+            Query filter = CascadeRanker.buildFilter(Integer.parseInt(q[1]), q[2]);
+            Query text = new MultiFieldQueryParser(TEXT_FIELDS, analyzer).parse(QueryParser.escape(q[0]));
+            lexical[i] = new BooleanQuery.Builder()
+                    .add(text, BooleanClause.Occur.MUST)
+                    .add(filter, BooleanClause.Occur.FILTER)
+                    .build();
+            combined[i] = new BooleanQuery.Builder()
+                    .add(queryBuilder.build(q[0]), BooleanClause.Occur.MUST)
+                    .add(filter, BooleanClause.Occur.FILTER)
+                    .build();
+
+            float[] embedding = BenchmarkFixtures.unitVector(q[0].hashCode());
+            knn[i] = new KnnFloatVectorQuery(VectorRescorer.VECTOR_FIELD, embedding, topK);
+            filteredKnn[i] = new KnnFloatVectorQuery(VectorRescorer.VECTOR_FIELD, embedding, topK, filter);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    @Benchmark
+    public TopDocs filteredBm25() throws Exception {
+        return searcher.search(lexical[next++ % lexical.length], topK);
+    }
+
+    @Benchmark
+    public TopDocs filteredBm25f() throws Exception {
+        return searcher.search(combined[next++ % combined.length], topK);
+    }
+
+    @Benchmark
+    public TopDocs knn() throws Exception {
+        return searcher.search(knn[next++ % knn.length], topK);
+    }
+
+    @Benchmark
+    public TopDocs filteredKnn() throws Exception {
+        return searcher.search(filteredKnn[next++ % filteredKnn.length], topK);
+    }
+}